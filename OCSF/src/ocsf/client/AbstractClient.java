@@ -6,6 +6,17 @@ package ocsf.client;
 
 import java.io.*;
 import java.net.*;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import ocsf.common.*;
 
 /**
  * The <code> AbstractClient </code> contains all the methods necessary to set
@@ -19,6 +30,54 @@ import java.net.*;
  * Several public service methods are provided to application that use this
  * framework.
  * <p>
+ * When the server answers with the greeting of <code>ocsf.common.Framing</code>
+ * instead of an object stream header, the client exchanges length-prefixed
+ * frames with it instead; this is what servers running the NIO engine do.
+ * A client given a codec, with <code>setCodec</code> or the
+ * <code>ocsf.codec</code> system property, proposes it in its hello and
+ * always exchanges frames encoded with that codec. It may also propose a
+ * <code>Compression</code> of the frames, with <code>setCompression</code>
+ * or the <code>ocsf.compression</code> system property, which the server
+ * may lower.
+ * <p>
+ * Writes are buffered and flushed according to a <code>FlushPolicy</code>,
+ * given with <code>setFlushPolicy</code> or the <code>ocsf.flushPolicy</code>
+ * system property; by default every message is flushed as it is sent.
+ * <p>
+ * The thread reading from the server is a platform thread unless virtual
+ * threads are turned on with <code>setVirtualThreads</code> or the
+ * <code>ocsf.client.virtualThreads</code> system property.
+ * <p>
+ * A framing client can watch its connection with heartbeats, given with
+ * <code>setHeartbeat</code> or the <code>ocsf.client.heartbeatMillis</code>
+ * and <code>ocsf.client.idleTimeoutMillis</code> system properties, if the
+ * server announces it answers them: when it has written nothing for the
+ * interval the client pings the server, and when it has read nothing for
+ * the idle timeout it drops the connection, reporting a
+ * <code>SocketTimeoutException</code> to <code>connectionException</code>.
+ * Pings of the server are always answered.
+ * <p>
+ * A client given a <code>ReconnectPolicy</code>, with
+ * <code>setReconnectPolicy</code> or the <code>ocsf.client.reconnect</code>
+ * system property, gets its connection back when it fails: after
+ * <code>connectionException</code>, the thread that was reading waits a
+ * random, growing delay and connects again, until the policy gives up or
+ * the client is closed. Hooks report each step, so that a subclass can log
+ * in again once reconnected. A client given several servers with
+ * <code>setEndpoints</code> connects to the first that accepts, in order.
+ * <p>
+ * <code>sendToServerAsync</code> queues a message and returns at once with
+ * a future completed once it is written. A writer on a pooled thread
+ * drains the queue, each run writing what was queued as one batch, so
+ * that a sender of many messages neither waits for the socket nor, with
+ * the <code>END_OF_BATCH</code> or <code>MAX_DELAY</code> flush policy,
+ * costs a write per message. Messages sent this way are written in the
+ * order of the calls.
+ * <p>
+ * The traffic of the client is counted in the <code>ClientMetrics</code>
+ * returned by <code>getMetrics</code>, which is also a JMX MBean while the
+ * client is connected.
+ * <p>
  * Project Name: OCSF (Object Client-Server Framework)
  * <p>
  * 
@@ -30,6 +89,29 @@ import java.net.*;
  */
 public abstract class AbstractClient implements Runnable {
 
+	// CLASS VARIABLES **************************************************
+
+	/**
+	 * The system property giving the default of <code>setVirtualThreads</code>.
+	 */
+	public static final String	VIRTUAL_THREADS_PROPERTY	= "ocsf.client.virtualThreads";
+
+	/**
+	 * The system property giving the default heartbeat interval, in ms.
+	 */
+	public static final String	HEARTBEAT_PROPERTY			= "ocsf.client.heartbeatMillis";
+
+	/**
+	 * The system property giving the default idle timeout, in ms.
+	 */
+	public static final String	IDLE_TIMEOUT_PROPERTY		= "ocsf.client.idleTimeoutMillis";
+
+	/**
+	 * The system property giving the default capacity of the outbound
+	 * queue.
+	 */
+	public static final String	OUTBOUND_CAPACITY_PROPERTY	= "ocsf.client.outboundQueueCapacity";
+
 	// INSTANCE VARIABLES ***********************************************
 
 	/**
@@ -50,6 +132,24 @@ public abstract class AbstractClient implements Runnable {
 	 */
 	private ObjectInputStream	input;
 
+	/**
+	 * The stream to handle frames from a framing server; null when the
+	 * server speaks object streams.
+	 */
+	private DataInputStream		frameInput;
+
+	/**
+	 * Buffer of the bytes written to the socket. Frames are written to it
+	 * directly, and the object stream writes through it.
+	 */
+	private CoalescingOutputStream	socketOutput;
+
+	/**
+	 * The codec of the frames exchanged on the current connection; null
+	 * when the server speaks object streams.
+	 */
+	private MessageCodec		frameCodec;
+
 	/**
 	 * The thread created to read data from the server.
 	 */
@@ -59,7 +159,7 @@ public abstract class AbstractClient implements Runnable {
 	 * Indicates if the thread is ready to stop. Needed so that the loop in the
 	 * run method knows when to stop waiting for incoming messages.
 	 */
-	private boolean				readyToStop	= false;
+	private volatile boolean	readyToStop	= false;
 
 	/**
 	 * The server's host name.
@@ -71,6 +171,125 @@ public abstract class AbstractClient implements Runnable {
 	 */
 	private int					port;
 
+	/**
+	 * Indicates if the reader thread is a virtual thread.
+	 */
+	private boolean				virtualThreads	= Boolean.getBoolean(VIRTUAL_THREADS_PROPERTY);
+
+	/**
+	 * The codec proposed to the server; null to speak object streams.
+	 */
+	private MessageCodec		codec			= Codecs.fromSystemProperty();
+
+	/**
+	 * The compression proposed to the server with the codec.
+	 */
+	private Compression			compression		= Compression.fromSystemProperty(Compression.NONE);
+
+	/**
+	 * When the bytes written to the server are flushed.
+	 */
+	private FlushPolicy			flushPolicy		= FlushPolicy.fromSystemProperty();
+
+	/**
+	 * The delay of <code>FlushPolicy.MAX_DELAY</code>, in ms.
+	 */
+	private long				flushDelay		= FlushPolicy.delayFromSystemProperty();
+
+	/**
+	 * The TCP settings of the socket.
+	 */
+	private SocketSettings		socketSettings	= SocketSettings.fromSystemProperties();
+
+	/**
+	 * The counters of the traffic of the client.
+	 */
+	private final ClientMetrics	metrics			= new ClientMetrics(this);
+
+	/**
+	 * Indicates if the current socket was counted as connected, and is yet
+	 * to be counted as disconnected.
+	 */
+	private final AtomicBoolean	countedConnected	= new AtomicBoolean();
+
+	/**
+	 * How long the client may go without writing before it pings the
+	 * server, in ms; 0 for no pings.
+	 */
+	private long				heartbeatMillis	= Math.max(0, Long.getLong(HEARTBEAT_PROPERTY, 0));
+
+	/**
+	 * How long the client may go without reading before it drops the
+	 * connection, in ms; 0 to never drop it.
+	 */
+	private long				idleTimeoutMillis	= Math.max(0, Long.getLong(IDLE_TIMEOUT_PROPERTY, 0));
+
+	/**
+	 * The heartbeat of the current connection.
+	 */
+	private volatile Heartbeat	heartbeat;
+
+	/**
+	 * The reason the heartbeat dropped the connection, reported instead of
+	 * the failed read it causes.
+	 */
+	private volatile IOException	idleFailure;
+
+	/**
+	 * The servers tried in order when connecting; null to connect to the
+	 * host and port.
+	 */
+	private volatile List<InetSocketAddress>	endpoints;
+
+	/**
+	 * How the connection is got back when it fails; null not to. Taken
+	 * from the system properties if <code>ocsf.client.reconnect</code> is
+	 * <code>true</code>, null by default.
+	 */
+	private volatile ReconnectPolicy	reconnectPolicy	= ReconnectPolicy.fromSystemPropertyIfEnabled();
+
+	/**
+	 * Held by a reconnection from the moment it checks that the client is
+	 * not closed until it is connected, and by <code>closeConnection</code>
+	 * to close the client, so a client closed meanwhile stays closed.
+	 */
+	private final Object		reconnectLock	= new Object();
+
+	/**
+	 * The thread waiting to reconnect; null otherwise.
+	 */
+	private volatile Thread		reconnector;
+
+	/**
+	 * Held while a message, or a batch, is written, so that the messages
+	 * of different senders are never interleaved.
+	 */
+	private final Object		sendLock		= new Object();
+
+	/**
+	 * The messages sent with <code>sendToServerAsync</code> and not written
+	 * yet.
+	 */
+	private final ConcurrentLinkedQueue<PendingSend>	outbound	= new ConcurrentLinkedQueue<>();
+
+	/**
+	 * The number of messages in <code>outbound</code>.
+	 */
+	private final AtomicInteger	outboundSize	= new AtomicInteger();
+
+	/**
+	 * Indicates if a writer is draining <code>outbound</code>.
+	 */
+	private final AtomicBoolean	writerActive	= new AtomicBoolean();
+
+	/**
+	 * The number of messages that may wait in <code>outbound</code>; 0 for
+	 * no limit. Taken from the
+	 * <code>ocsf.client.outboundQueueCapacity</code> system property, 0 by
+	 * default.
+	 */
+	private volatile int		outboundCapacity	= Math.max(0, Integer.getInteger(OUTBOUND_CAPACITY_PROPERTY, 0));
+
 	// CONSTRUCTORS *****************************************************
 
 	/**
@@ -87,6 +306,47 @@ public abstract class AbstractClient implements Runnable {
 		this.port = port;
 	}
 
+	// CLASS METHODS ****************************************************
+
+	/**
+	 * Reads a list of servers, such as
+	 * <code>chat1:5555,chat2,[::1]:5556</code>, for
+	 * <code>setEndpoints</code>.
+	 * 
+	 * @param spec
+	 *            servers given as <i>host</i> or <i>host</i>:<i>port</i>,
+	 *            separated by commas; IPv6 addresses with a port are put
+	 *            in brackets.
+	 * @param defaultPort
+	 *            the port of the servers given without one.
+	 * @return the servers, unresolved, in order.
+	 * @exception IllegalArgumentException
+	 *                if the list is empty or a port is invalid.
+	 */
+	public static List<InetSocketAddress> parseEndpoints(String spec, int defaultPort) {
+		List<InetSocketAddress> endpoints = new ArrayList<>();
+		for (String entry : spec.split(",")) {
+			entry = entry.trim();
+			if (entry.isEmpty())
+				continue;
+
+			String host = entry;
+			int port = defaultPort;
+			int colon = entry.lastIndexOf(':');
+			if (colon > 0 && (entry.startsWith("[") ? entry.charAt(colon - 1) == ']'
+					: entry.indexOf(':') == colon)) {
+				host = entry.substring(0, colon);
+				port = Integer.parseInt(entry.substring(colon + 1));
+			}
+			if (host.startsWith("[") && host.endsWith("]"))
+				host = host.substring(1, host.length() - 1);
+			endpoints.add(InetSocketAddress.createUnresolved(host, port));
+		}
+		if (endpoints.isEmpty())
+			throw new IllegalArgumentException("no endpoint in " + spec);
+		return endpoints;
+	}
+
 	// INSTANCE METHODS *************************************************
 
 	/**
@@ -95,17 +355,66 @@ public abstract class AbstractClient implements Runnable {
 	 * 
 	 * @exception IOException
 	 *                if an I/O error occurs when opening.
+	 * @exception UnsupportedOperationException
+	 *                if virtual threads are turned on but the runtime has
+	 *                none.
 	 */
 	final public void openConnection() throws IOException {
 		// Do not do anything if the connection is already open
 		if (isConnected())
 			return;
 
+		ThreadFactory readerThreads = Threads.readerThreads(virtualThreads);
+		Heartbeat heartbeat;
+		byte[] hello = new byte[Framing.HELLO_LENGTH];
+		boolean heartbeats = false;
+		idleFailure = null;
+
 		// Create the sockets and the data streams
 		try {
-			clientSocket = new Socket(host, port);
-			output = new ObjectOutputStream(clientSocket.getOutputStream());
-			input = new ObjectInputStream(clientSocket.getInputStream());
+			// The options are set before connecting so that the receive
+			// buffer size can take effect
+			clientSocket = connectToServer();
+			heartbeat = newHeartbeat(clientSocket);
+			this.heartbeat = heartbeat;
+			socketOutput = new CoalescingOutputStream(
+					Metrics.countingOutput(clientSocket.getOutputStream(), count -> {
+						metrics.bytesOut(count);
+						heartbeat.written();
+					}), flushPolicy, flushDelay);
+			InputStream socketInput = Metrics.countingInput(
+					clientSocket.getInputStream(), count -> {
+						metrics.bytesIn(count);
+						heartbeat.read();
+					});
+
+			if (codec != null) {
+				// Propose our codec, which the server must accept, and our
+				// compression, which it may lower
+				MessageCodec proposed = compression.wrap(codec);
+				socketOutput.write(Framing.hello(proposed));
+				socketOutput.flush();
+
+				InputStream serverInput = new BufferedInputStream(socketInput);
+				frameCodec = Framing.readServerHello(serverInput, proposed, hello);
+				frameInput = new DataInputStream(serverInput);
+				heartbeats = Framing.hasHeartbeats(hello);
+			} else {
+				output = new ObjectOutputStream(socketOutput);
+				socketOutput.flush();
+
+				// The header just written is our hello; the answer tells us
+				// which protocol the server speaks
+				PushbackInputStream serverInput = new PushbackInputStream(
+						socketInput, Framing.HEADER_LENGTH);
+
+				if (Framing.readGreeting(serverInput)) {
+					frameInput = new DataInputStream(new BufferedInputStream(serverInput));
+					frameCodec = Codecs.SERIALIZATION;
+				} else {
+					input = new ObjectInputStream(serverInput);
+				}
+			}
 		} catch (IOException ex)
 		// All three of the above must be closed when there is a failure
 		// to create any of them
@@ -118,9 +427,14 @@ public abstract class AbstractClient implements Runnable {
 			throw ex; // Rethrow the exception.
 		}
 
-		clientReader = new Thread(this); // Create the data reader thread
+		metrics.connected();
+		countedConnected.set(true);
+		clientReader = readerThreads.newThread(this); // Create the data reader thread
 		readyToStop = false;
 		clientReader.start(); // Start the thread
+
+		if (heartbeats)
+			heartbeat.start();
 	}
 
 	/**
@@ -133,30 +447,123 @@ public abstract class AbstractClient implements Runnable {
 	 *                if an I/O error occurs when sending
 	 */
 	final public void sendToServer(Object msg) throws IOException {
-		if (clientSocket == null || output == null)
+		if (clientSocket == null || socketOutput == null)
 			throw new SocketException("socket does not exist");
 
-		output.writeObject(msg);
+		long start = System.nanoTime();
+		try {
+			synchronized (sendLock) {
+				write(msg);
+				socketOutput.endBatch();
+			}
+		} finally {
+			metrics.writeBlocked(System.nanoTime() - start);
+		}
+		metrics.messagesOut(1);
+	}
+
+	/**
+	 * Sends a batch of objects to the server, in order. With the
+	 * <code>END_OF_BATCH</code> flush policy they leave in as few writes as
+	 * the buffers allow.
+	 * 
+	 * @param msgs
+	 *            The messages to be sent.
+	 * @exception IOException
+	 *                if an I/O error occurs when sending
+	 */
+	final public void sendToServer(List<?> msgs) throws IOException {
+		if (clientSocket == null || socketOutput == null)
+			throw new SocketException("socket does not exist");
+
+		long start = System.nanoTime();
+		try {
+			synchronized (sendLock) {
+				for (Object msg : msgs)
+					write(msg);
+				socketOutput.endBatch();
+			}
+		} finally {
+			metrics.writeBlocked(System.nanoTime() - start);
+		}
+		metrics.messagesOut(msgs.size());
+	}
+
+	/**
+	 * Sends an object to the server without waiting for it to be written.
+	 * The object is queued, and a writer on a pooled thread writes it with
+	 * the others queued meanwhile. Objects sent this way are written in
+	 * the order of the calls; <code>sendToServer</code> may write before
+	 * them.
+	 * 
+	 * @param msg
+	 *            The message to be sent.
+	 * @return a future completed once the message is written, or completed
+	 *         with the <code>IOException</code> that kept it from being
+	 *         written: the client is not connected, the outbound queue is
+	 *         full, or the connection failed or was closed first.
+	 */
+	final public CompletableFuture<Void> sendToServerAsync(Object msg) {
+		CompletableFuture<Void> future = new CompletableFuture<>();
+		if (clientSocket == null || socketOutput == null) {
+			future.completeExceptionally(new SocketException("socket does not exist"));
+			return future;
+		}
+
+		int capacity = outboundCapacity;
+		if (outboundSize.incrementAndGet() > capacity && capacity > 0) {
+			outboundSize.decrementAndGet();
+			future.completeExceptionally(new IOException("outbound queue full"));
+			return future;
+		}
+		outbound.add(new PendingSend(msg, future));
+
+		// The sender that finds the writer idle starts it
+		if (writerActive.compareAndSet(false, true)) {
+			try {
+				Threads.ioTasks().execute(this::drainOutbound);
+			} catch (RejectedExecutionException ex) {
+				writerActive.set(false);
+				failOutbound(new IOException("no thread to write", ex));
+			}
+		}
+		return future;
 	}
 
 	/**
 	 * Reset the object output stream so we can use the same
 	 * buffer repeatedly. This would not normally be used, but is necessary
     * in some circumstances when Java refuses to send data that it thinks has been sent.
+	 * Frames never share state, so this has no effect with a framing server.
 	 */
 	final public void forceResetAfterSend() throws IOException {
+      if (frameCodec != null)
+        return;
       output.reset();
 	}
 
 	/**
-	 * Closes the connection to the server.
+	 * Closes the connection to the server. Messages still waiting in the
+	 * write buffer are flushed first.
 	 * 
 	 * @exception IOException
 	 *                if an I/O error occurs when closing.
 	 */
 	final public void closeConnection() throws IOException {
-		// Prevent the thread from looping any more
-		readyToStop = true;
+		// Prevent the thread from looping any more, and from reconnecting
+		synchronized (reconnectLock) {
+			readyToStop = true;
+		}
+		Thread reconnector = this.reconnector;
+		if (reconnector != null && reconnector != Thread.currentThread())
+			reconnector.interrupt();
+
+		try {
+			if (socketOutput != null)
+				socketOutput.flush();
+		} catch (IOException ex) {
+			// The connection is being closed anyway
+		}
 
 		try {
 			closeAll();
@@ -175,6 +582,17 @@ public abstract class AbstractClient implements Runnable {
 		return clientReader != null && clientReader.isAlive();
 	}
 
+	/**
+	 * Returns the counters of the traffic of the client: connections,
+	 * messages, bytes and the time spent writing. They keep counting across
+	 * connections.
+	 *
+	 * @return the counters.
+	 */
+	final public ClientMetrics getMetrics() {
+		return metrics;
+	}
+
 	/**
 	 * @return the port number.
 	 */
@@ -193,6 +611,218 @@ public abstract class AbstractClient implements Runnable {
 		this.port = port;
 	}
 
+	/**
+	 * @return true if the reader thread is a virtual thread.
+	 */
+	final public boolean isVirtualThreads() {
+		return virtualThreads;
+	}
+
+	/**
+	 * Chooses between a platform and a virtual reader thread for the next
+	 * connection. The change only takes effect at the time of the next call
+	 * to openConnection().
+	 * 
+	 * @param virtualThreads
+	 *            true for a virtual reader thread.
+	 */
+	final public void setVirtualThreads(boolean virtualThreads) {
+		this.virtualThreads = virtualThreads;
+	}
+
+	/**
+	 * @return the codec proposed to the server, or null if the client
+	 *         speaks object streams.
+	 */
+	final public MessageCodec getCodec() {
+		return codec;
+	}
+
+	/**
+	 * Sets the codec proposed to the server for the next connection. The
+	 * change only takes effect at the time of the next call to
+	 * openConnection().
+	 * 
+	 * @param codec
+	 *            the codec, or null to speak object streams.
+	 */
+	final public void setCodec(MessageCodec codec) {
+		this.codec = codec;
+	}
+
+	/**
+	 * @return the compression proposed to the server.
+	 */
+	final public Compression getCompression() {
+		return compression;
+	}
+
+	/**
+	 * Sets the compression proposed to the server with the codec; the
+	 * server may lower it. It has no effect on a client speaking object
+	 * streams. The change only takes effect at the time of the next call to
+	 * openConnection().
+	 * 
+	 * @param compression
+	 *            the compression, <code>NONE</code> for none.
+	 */
+	final public void setCompression(Compression compression) {
+		this.compression = compression;
+	}
+
+	/**
+	 * @return the compression of the current connection, <code>NONE</code>
+	 *         if it is not compressed or not open.
+	 */
+	final public Compression getConnectionCompression() {
+		MessageCodec current = frameCodec;
+		return isConnected() && current != null ? Compression.of(current) : Compression.NONE;
+	}
+
+	/**
+	 * @return when the bytes written to the server are flushed.
+	 */
+	final public FlushPolicy getFlushPolicy() {
+		return flushPolicy;
+	}
+
+	/**
+	 * Sets when the bytes written to the server are flushed. The change only
+	 * takes effect at the time of the next call to openConnection().
+	 * 
+	 * @param policy
+	 *            when the bytes are flushed.
+	 * @param maxDelayMillis
+	 *            the delay of <code>MAX_DELAY</code>, in ms.
+	 */
+	final public void setFlushPolicy(FlushPolicy policy, long maxDelayMillis) {
+		this.flushPolicy = policy;
+		this.flushDelay = Math.max(0, maxDelayMillis);
+	}
+
+	/**
+	 * @return the TCP settings of the socket.
+	 */
+	final public SocketSettings getSocketSettings() {
+		return socketSettings;
+	}
+
+	/**
+	 * Sets the TCP settings of the socket: TCP_NODELAY and the sizes of the
+	 * kernel buffers. The change only takes effect at the time of the next
+	 * call to openConnection().
+	 * 
+	 * @param socketSettings
+	 *            the TCP settings.
+	 */
+	final public void setSocketSettings(SocketSettings socketSettings) {
+		this.socketSettings = socketSettings;
+	}
+
+	/**
+	 * Sets the heartbeat of the next connections, used if the server
+	 * announces it answers pings. The change only takes effect at the time
+	 * of the next call to openConnection().
+	 * 
+	 * @param heartbeatMillis
+	 *            how long the client may go without writing before it pings
+	 *            the server, in ms; 0 for no pings.
+	 * @param idleTimeoutMillis
+	 *            how long the client may go without reading before it drops
+	 *            the connection, in ms; 0 to never drop it. It should be a
+	 *            few heartbeat intervals of the server.
+	 */
+	final public void setHeartbeat(long heartbeatMillis, long idleTimeoutMillis) {
+		this.heartbeatMillis = Math.max(0, heartbeatMillis);
+		this.idleTimeoutMillis = Math.max(0, idleTimeoutMillis);
+	}
+
+	/**
+	 * @return the heartbeat interval in ms, 0 for none.
+	 */
+	final public long getHeartbeatMillis() {
+		return heartbeatMillis;
+	}
+
+	/**
+	 * @return the idle timeout in ms, 0 for none.
+	 */
+	final public long getIdleTimeoutMillis() {
+		return idleTimeoutMillis;
+	}
+
+	/**
+	 * @return how the connection is got back when it fails, or null if it
+	 *         is not.
+	 */
+	final public ReconnectPolicy getReconnectPolicy() {
+		return reconnectPolicy;
+	}
+
+	/**
+	 * Sets how the connection is got back when it fails, or null not to.
+	 * Its connect timeout also applies to <code>openConnection</code>.
+	 * 
+	 * @param reconnectPolicy
+	 *            the policy, or null.
+	 */
+	final public void setReconnectPolicy(ReconnectPolicy reconnectPolicy) {
+		this.reconnectPolicy = reconnectPolicy;
+	}
+
+	/**
+	 * @return true if the connection failed and the client is waiting to
+	 *         reconnect, or reconnecting.
+	 */
+	final public boolean isReconnecting() {
+		return reconnector != null;
+	}
+
+	/**
+	 * @return the number of messages sent with
+	 *         <code>sendToServerAsync</code> and not written yet.
+	 */
+	final public int getOutboundQueueSize() {
+		return outboundSize.get();
+	}
+
+	/**
+	 * Sets how many messages may wait to be written; a message sent with
+	 * <code>sendToServerAsync</code> while the queue is full fails at once.
+	 * 
+	 * @param capacity
+	 *            the capacity, or 0 for no limit.
+	 */
+	final public void setOutboundQueueCapacity(int capacity) {
+		this.outboundCapacity = Math.max(0, capacity);
+	}
+
+	/**
+	 * @return the servers tried in order when connecting, or null if only
+	 *         the host and port are.
+	 */
+	final public List<InetSocketAddress> getEndpoints() {
+		return endpoints;
+	}
+
+	/**
+	 * Sets the servers tried in order when connecting, instead of the host
+	 * and port; each connection, and each reconnection, goes to the first
+	 * that accepts. The host and port then tell which server the client
+	 * connected to last.
+	 * 
+	 * @param endpoints
+	 *            the servers, or null to only try the host and port.
+	 * @exception IllegalArgumentException
+	 *                if the list is empty.
+	 */
+	final public void setEndpoints(List<InetSocketAddress> endpoints) {
+		if (endpoints != null && endpoints.isEmpty())
+			throw new IllegalArgumentException("no endpoint");
+		this.endpoints = endpoints == null ? null
+				: Collections.unmodifiableList(new ArrayList<>(endpoints));
+	}
+
 	/**
 	 * @return the host name.
 	 */
@@ -239,7 +869,14 @@ public abstract class AbstractClient implements Runnable {
 				// Get data from Server and send it to the handler
 				// The thread waits indefinitely at the following
 				// statement until something is received from the server
-				msg = input.readObject();
+				msg = frameInput != null ? Framing.readFrame(frameInput, frameCodec)
+						: input.readObject();
+				if (msg instanceof Framing.Control) {
+					if (msg == Framing.Control.PING)
+						sendControl(Framing.Control.PONG);
+					continue;
+				}
+				metrics.messageIn();
 
 				// Concrete subclasses do what they want with the
 				// msg by implementing the following method
@@ -252,10 +889,21 @@ public abstract class AbstractClient implements Runnable {
 				} catch (Exception ex) {
 				}
 
-				connectionException(exception);
+				// The hook and the senders already see the client reconnecting
+				ReconnectPolicy policy = reconnectPolicy;
+				if (policy != null)
+					reconnector = Thread.currentThread();
+
+				IOException idle = idleFailure;
+				connectionException(idle != null ? idle : exception);
+
+				if (policy != null)
+					reconnect(policy);
 			}
 		} finally {
-			clientReader = null;
+			// A reconnection may have started the next reader already
+			if (clientReader == Thread.currentThread())
+				clientReader = null;
 		}
 	}
 
@@ -273,7 +921,8 @@ public abstract class AbstractClient implements Runnable {
 	/**
 	 * Hook method called each time an exception is thrown by the client's
 	 * thread that is waiting for messages from the server. The method may be
-	 * overridden by subclasses.
+	 * overridden by subclasses. <code>isReconnecting</code> tells whether the
+	 * client gets its connection back afterwards.
 	 * 
 	 * @param exception
 	 *            the exception raised.
@@ -289,6 +938,40 @@ public abstract class AbstractClient implements Runnable {
 	protected void connectionEstablished() {
 	}
 
+	/**
+	 * Hook method called before each attempt to get a failed connection
+	 * back, on the thread that was reading from it. The default
+	 * implementation does nothing.
+	 * 
+	 * @param attempt
+	 *            the number of the attempt, from 1.
+	 * @param delayMillis
+	 *            how long the client waits before the attempt, in ms.
+	 */
+	protected void reconnecting(int attempt, long delayMillis) {
+	}
+
+	/**
+	 * Hook method called once a failed connection is back, after the
+	 * reader of the new connection is started. The default implementation
+	 * does nothing. It may be overridden by subclasses to log in again.
+	 * 
+	 * @param attempts
+	 *            the number of attempts it took.
+	 */
+	protected void reconnected(int attempts) {
+	}
+
+	/**
+	 * Hook method called when the reconnect policy gives up. The default
+	 * implementation does nothing.
+	 * 
+	 * @param exception
+	 *            why the last attempt failed.
+	 */
+	protected void reconnectFailed(Exception exception) {
+	}
+
 	/**
 	 * Handles a message sent from the server to this client. This MUST be
 	 * implemented by subclasses, who should respond to messages.
@@ -300,6 +983,213 @@ public abstract class AbstractClient implements Runnable {
 
 	// METHODS TO BE USED FROM WITHIN THE FRAMEWORK ONLY ----------------
 
+	/**
+	 * Connects a new socket to the first server that accepts, among the
+	 * endpoints or else the host and port, and makes it the host and port.
+	 * 
+	 * @return the connected socket.
+	 * @exception IOException
+	 *                if no server accepts; the failures of all but the first
+	 *                server are suppressed in it.
+	 */
+	private Socket connectToServer() throws IOException {
+		List<InetSocketAddress> servers = endpoints;
+		if (servers == null)
+			servers = Collections.singletonList(InetSocketAddress.createUnresolved(host, port));
+		ReconnectPolicy policy = reconnectPolicy;
+		int timeout = policy == null ? 0 : policy.getConnectTimeoutMillis();
+		IOException failure = null;
+
+		for (InetSocketAddress server : servers) {
+			// The options are set before connecting so that the receive
+			// buffer size can take effect
+			Socket socket = new Socket();
+			try {
+				socketSettings.apply(socket);
+				// Resolved anew, in case the name moved to another address
+				socket.connect(new InetSocketAddress(server.getHostString(),
+						server.getPort()), timeout);
+			} catch (IOException ex) {
+				socket.close();
+				if (failure == null)
+					failure = ex;
+				else
+					failure.addSuppressed(ex);
+				continue;
+			}
+			host = server.getHostString();
+			port = server.getPort();
+			return socket;
+		}
+		throw failure;
+	}
+
+	/**
+	 * Gets a failed connection back, following the policy, on the thread
+	 * that was reading from it. Each attempt waits, then tries the servers
+	 * in order. Stops once connected, when the client is closed or opened
+	 * meanwhile, or when the policy gives up.
+	 * 
+	 * @param policy
+	 *            the reconnect policy.
+	 */
+	private void reconnect(ReconnectPolicy policy) {
+		Thread current = Thread.currentThread();
+		if (clientReader == current)
+			clientReader = null;
+		reconnector = current;
+		IOException failure = null;
+
+		try {
+			for (int attempt = 1; policy.allows(attempt); attempt++) {
+				long delay = policy.nextDelayMillis(attempt);
+				reconnecting(attempt, delay);
+				Thread.sleep(delay);
+
+				synchronized (reconnectLock) {
+					if (readyToStop || isConnected())
+						return;
+					try {
+						openConnection();
+					} catch (IOException ex) {
+						failure = ex;
+						continue;
+					}
+				}
+				metrics.reconnected();
+				reconnected(attempt);
+				return;
+			}
+		} catch (InterruptedException ex) {
+			// Closed while waiting
+			return;
+		} finally {
+			reconnector = null;
+		}
+		reconnectFailed(failure);
+	}
+
+	/**
+	 * Writes one message to the buffer of the socket and ends it.
+	 * 
+	 * @param msg
+	 *            the message to write.
+	 * @exception IOException
+	 *                if an I/O error occurs when writing.
+	 */
+	private void write(Object msg) throws IOException {
+		if (frameCodec != null)
+			Framing.writeFrame(socketOutput, frameCodec, msg);
+		else
+			output.writeObject(msg);
+		socketOutput.endMessage();
+	}
+
+	/**
+	 * The loop of the writer: writes the messages in the outbound queue by
+	 * batches, then completes their futures, until the queue is empty. A
+	 * failed batch fails all its futures, since whether its first messages
+	 * left is unknown; the reader finds out the connection is broken.
+	 */
+	private void drainOutbound() {
+		List<PendingSend> batch = new ArrayList<>();
+		for (;;) {
+			PendingSend pending;
+			while ((pending = outbound.poll()) != null)
+				batch.add(pending);
+
+			if (batch.isEmpty()) {
+				writerActive.set(false);
+				// A sender may have queued after the poll, and found the
+				// writer still active
+				if (outbound.isEmpty() || !writerActive.compareAndSet(false, true))
+					return;
+				continue;
+			}
+			outboundSize.addAndGet(-batch.size());
+
+			long start = System.nanoTime();
+			try {
+				CoalescingOutputStream socketOutput = this.socketOutput;
+				if (socketOutput == null)
+					throw new SocketException("socket does not exist");
+				synchronized (sendLock) {
+					for (PendingSend send : batch)
+						write(send.msg);
+					socketOutput.endBatch();
+				}
+				metrics.messagesOut(batch.size());
+				for (PendingSend send : batch)
+					send.future.complete(null);
+			} catch (IOException | RuntimeException ex) {
+				for (PendingSend send : batch)
+					send.future.completeExceptionally(ex);
+			} finally {
+				metrics.writeBlocked(System.nanoTime() - start);
+			}
+			batch.clear();
+		}
+	}
+
+	/**
+	 * Fails the messages of the outbound queue.
+	 * 
+	 * @param exception
+	 *            the reason.
+	 */
+	private void failOutbound(IOException exception) {
+		PendingSend pending;
+		while ((pending = outbound.poll()) != null) {
+			outboundSize.decrementAndGet();
+			pending.future.completeExceptionally(exception);
+		}
+	}
+
+	/**
+	 * Writes a control frame to the buffer of the socket and flushes it.
+	 * It is written whole, between two messages of other senders.
+	 * 
+	 * @param control
+	 *            the control frame.
+	 * @exception IOException
+	 *                if an I/O error occurs when writing.
+	 */
+	private void sendControl(Framing.Control control) throws IOException {
+		CoalescingOutputStream socketOutput = this.socketOutput;
+		if (socketOutput == null)
+			throw new SocketException("socket does not exist");
+
+		Framing.writeFrame(socketOutput, control.frame());
+		socketOutput.endBatch();
+	}
+
+	/**
+	 * Returns a heartbeat configured for a new connection.
+	 * 
+	 * @param socket
+	 *            the socket of the connection, closed when the server is
+	 *            silent too long.
+	 * @return the heartbeat.
+	 */
+	private Heartbeat newHeartbeat(Socket socket) {
+		long idleTimeout = idleTimeoutMillis;
+		return new Heartbeat(heartbeatMillis, idleTimeout, () -> {
+			try {
+				sendControl(Framing.Control.PING);
+			} catch (IOException ex) {
+				// The reader finds out the connection is broken
+			}
+		}, () -> {
+			// Closing the socket makes the reader fail and report the reason
+			idleFailure = new SocketTimeoutException(
+					"no traffic from the server for " + idleTimeout + " ms");
+			try {
+				socket.close();
+			} catch (IOException ex) {
+			}
+		});
+	}
+
 	/**
 	 * Closes all aspects of the connection to the server.
 	 * 
@@ -307,11 +1197,21 @@ public abstract class AbstractClient implements Runnable {
 	 *                if an I/O error occurs when closing.
 	 */
 	private void closeAll() throws IOException {
+		// Failed attempts and repeated closes are not disconnections
+		if (clientSocket != null && countedConnected.getAndSet(false))
+			metrics.disconnected();
+		Heartbeat heartbeat = this.heartbeat;
+		if (heartbeat != null)
+			heartbeat.stop();
 		try {
 			// Close the socket
 			if (clientSocket != null)
 				clientSocket.close();
 
+			// Drop the bytes not yet flushed
+			if (socketOutput != null)
+				socketOutput.close();
+
 			// Close the output stream
 			if (output != null)
 				output.close();
@@ -319,6 +1219,10 @@ public abstract class AbstractClient implements Runnable {
 			// Close the input stream
 			if (input != null)
 				input.close();
+
+			// Close the frame stream
+			if (frameInput != null)
+				frameInput.close();
 		} finally {
 			// Set the streams and the sockets to NULL no matter what
 			// Doing so allows, but does not require, any finalizers
@@ -326,7 +1230,29 @@ public abstract class AbstractClient implements Runnable {
 			// when they are garbage collected.
 			output = null;
 			input = null;
+			frameInput = null;
+			socketOutput = null;
+			frameCodec = null;
 			clientSocket = null;
+
+			// The writer finds no socket for what it has taken already
+			failOutbound(new SocketException("connection closed"));
+		}
+	}
+
+	// INNER CLASSES ****************************************************
+
+	/**
+	 * A message sent with <code>sendToServerAsync</code>, waiting for the
+	 * writer.
+	 */
+	private static final class PendingSend {
+		final Object					msg;
+		final CompletableFuture<Void>	future;
+
+		PendingSend(Object msg, CompletableFuture<Void> future) {
+			this.msg = msg;
+			this.future = future;
 		}
 	}
 }
@@ -0,0 +1,173 @@
+package ocsf.client;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.ObjectName;
+
+import ocsf.common.Metrics;
+
+/**
+ * The <code> ClientMetrics </code> class counts the traffic of a client:
+ * connections, messages and bytes in both directions, and the time spent
+ * writing to the server. The counters are <code>LongAdder</code>s, so
+ * threads sending at once do not contend on them.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ *
+ * @see ocsf.client.AbstractClient#getMetrics()
+ */
+public final class ClientMetrics implements ClientMetricsMBean {
+
+	// CLASS VARIABLES **************************************************
+
+	/**
+	 * Numbers the clients of this JVM, to tell their MBeans apart.
+	 */
+	private static final AtomicLong	lastId				= new AtomicLong();
+
+	// INSTANCE VARIABLES ***********************************************
+
+	/**
+	 * The client counted.
+	 */
+	private final AbstractClient	client;
+
+	/**
+	 * The number of the client in this JVM.
+	 */
+	private final long				id					= lastId.incrementAndGet();
+
+	private final LongAdder			connects			= new LongAdder();
+	private final LongAdder			disconnects			= new LongAdder();
+	private final LongAdder			messagesIn			= new LongAdder();
+	private final LongAdder			messagesOut			= new LongAdder();
+	private final LongAdder			bytesIn				= new LongAdder();
+	private final LongAdder			bytesOut			= new LongAdder();
+	private final LongAdder			writeBlockedNanos	= new LongAdder();
+	private final LongAdder			reconnects			= new LongAdder();
+
+	/**
+	 * Indicates if a connection was counted and not its end yet.
+	 */
+	private boolean					open;
+
+	/**
+	 * The name of the MBean while it is registered; null otherwise.
+	 */
+	private ObjectName				mbeanName;
+
+	// CONSTRUCTORS *****************************************************
+
+	/**
+	 * Constructs the counters of a client.
+	 *
+	 * @param client
+	 *            the client.
+	 */
+	ClientMetrics(AbstractClient client) {
+		this.client = client;
+	}
+
+	// INSTANCE METHODS *************************************************
+
+	public boolean isConnected() {
+		return client.isConnected();
+	}
+
+	public long getConnects() {
+		return connects.sum();
+	}
+
+	public long getDisconnects() {
+		return disconnects.sum();
+	}
+
+	public long getMessagesIn() {
+		return messagesIn.sum();
+	}
+
+	public long getMessagesOut() {
+		return messagesOut.sum();
+	}
+
+	public long getBytesIn() {
+		return bytesIn.sum();
+	}
+
+	public long getBytesOut() {
+		return bytesOut.sum();
+	}
+
+	public double getWriteBlockedMillis() {
+		return writeBlockedNanos.sum() / 1e6;
+	}
+
+	public long getReconnects() {
+		return reconnects.sum();
+	}
+
+	public void reset() {
+		connects.reset();
+		disconnects.reset();
+		messagesIn.reset();
+		messagesOut.reset();
+		bytesIn.reset();
+		bytesOut.reset();
+		writeBlockedNanos.reset();
+		reconnects.reset();
+	}
+
+	// METHODS TO BE USED FROM WITHIN THE FRAMEWORK ONLY ----------------
+
+	/**
+	 * Counts a connection and registers the MBean.
+	 */
+	synchronized void connected() {
+		open = true;
+		connects.increment();
+		if (mbeanName == null && Metrics.jmxEnabled())
+			mbeanName = Metrics.register(this, "type=Client,host="
+					+ Metrics.quote(client.getHost()) + ",port=" + client.getPort()
+					+ ",id=" + id);
+	}
+
+	/**
+	 * Counts the end of a connection, if one was open, and unregisters the
+	 * MBean.
+	 */
+	synchronized void disconnected() {
+		if (!open)
+			return;
+		open = false;
+		disconnects.increment();
+		Metrics.unregister(mbeanName);
+		mbeanName = null;
+	}
+
+	void messageIn() {
+		messagesIn.increment();
+	}
+
+	void messagesOut(int count) {
+		messagesOut.add(count);
+	}
+
+	void bytesIn(long count) {
+		bytesIn.add(count);
+	}
+
+	void bytesOut(long count) {
+		bytesOut.add(count);
+	}
+
+	void writeBlocked(long nanos) {
+		writeBlockedNanos.add(nanos);
+	}
+
+	void reconnected() {
+		reconnects.increment();
+	}
+}
+// End of ClientMetrics class
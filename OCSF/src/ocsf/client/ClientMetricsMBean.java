@@ -0,0 +1,68 @@
+package ocsf.client;
+
+/**
+ * The management interface of the <code> ClientMetrics </code> of a client,
+ * registered as
+ * <code>ocsf:type=Client,host=</code><i>host</i><code>,port=</code><i>port</i><code>,id=</code><i>n</i>
+ * while it is connected, unless the <code>ocsf.jmx</code> system property
+ * is <code>false</code>. Counters only grow, across connections, from the
+ * construction of the client or the last <code>reset</code>.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ *
+ * @see ocsf.common.Metrics
+ */
+public interface ClientMetricsMBean {
+	/**
+	 * @return true if the client is connected.
+	 */
+	boolean isConnected();
+
+	/**
+	 * @return the number of connections opened.
+	 */
+	long getConnects();
+
+	/**
+	 * @return the number of connections closed or lost.
+	 */
+	long getDisconnects();
+
+	/**
+	 * @return the number of messages received from the server.
+	 */
+	long getMessagesIn();
+
+	/**
+	 * @return the number of messages sent to the server.
+	 */
+	long getMessagesOut();
+
+	/**
+	 * @return the number of bytes read from the server.
+	 */
+	long getBytesIn();
+
+	/**
+	 * @return the number of bytes written to the server.
+	 */
+	long getBytesOut();
+
+	/**
+	 * @return the time <code>sendToServer</code> spent writing to the
+	 *         socket, in ms.
+	 */
+	double getWriteBlockedMillis();
+
+	/**
+	 * @return the number of times a failed connection was got back.
+	 */
+	long getReconnects();
+
+	/**
+	 * Sets every counter back to 0.
+	 */
+	void reset();
+}
+// End of ClientMetricsMBean interface
@@ -0,0 +1,181 @@
+package ocsf.client;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * A <code> ReconnectPolicy </code> instance tells a client how to get its
+ * connection back when it fails: how long to wait before each attempt, and
+ * how many attempts to make before giving up. Instances are immutable.
+ * <p>
+ * The wait doubles with each attempt, from the initial delay up to the
+ * maximum delay, and the client waits a random time between 0 and that
+ * bound. When a server restarts, its clients thus come back spread over
+ * the whole delay instead of all at once, and each later wave is spread
+ * wider.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ *
+ * @see ocsf.client.AbstractClient#setReconnectPolicy(ReconnectPolicy)
+ */
+public final class ReconnectPolicy {
+
+	// CLASS VARIABLES **************************************************
+
+	/**
+	 * The system property turning on reconnection, for clients that do not
+	 * set a policy themselves.
+	 */
+	public static final String	RECONNECT_PROPERTY			= "ocsf.client.reconnect";
+
+	/**
+	 * The system property giving the default initial delay, in ms.
+	 */
+	public static final String	INITIAL_DELAY_PROPERTY		= "ocsf.client.reconnectInitialMillis";
+
+	/**
+	 * The system property giving the default maximum delay, in ms.
+	 */
+	public static final String	MAX_DELAY_PROPERTY			= "ocsf.client.reconnectMaxMillis";
+
+	/**
+	 * The system property giving the default number of attempts.
+	 */
+	public static final String	MAX_ATTEMPTS_PROPERTY		= "ocsf.client.reconnectAttempts";
+
+	/**
+	 * The system property giving the default connect timeout, in ms.
+	 */
+	public static final String	CONNECT_TIMEOUT_PROPERTY	= "ocsf.client.connectTimeoutMillis";
+
+	// INSTANCE VARIABLES ***********************************************
+
+	/**
+	 * The bound of the wait before the first attempt, in ms.
+	 */
+	private final long			initialDelayMillis;
+
+	/**
+	 * The largest bound of the wait before an attempt, in ms.
+	 */
+	private final long			maxDelayMillis;
+
+	/**
+	 * The number of attempts before giving up; 0 to never give up.
+	 */
+	private final int			maxAttempts;
+
+	/**
+	 * How long connecting to a server may take, in ms; 0 for no limit.
+	 */
+	private final int			connectTimeoutMillis;
+
+	// CONSTRUCTORS *****************************************************
+
+	/**
+	 * Constructs a reconnect policy.
+	 *
+	 * @param initialDelayMillis
+	 *            the bound of the wait before the first attempt, in ms.
+	 * @param maxDelayMillis
+	 *            the largest bound of the wait before an attempt, in ms.
+	 * @param maxAttempts
+	 *            the number of attempts before giving up, or 0 to never
+	 *            give up.
+	 * @param connectTimeoutMillis
+	 *            how long connecting to a server may take before the next
+	 *            one is tried, in ms, or 0 for no limit.
+	 */
+	public ReconnectPolicy(long initialDelayMillis, long maxDelayMillis,
+			int maxAttempts, int connectTimeoutMillis) {
+		this.initialDelayMillis = Math.max(1, initialDelayMillis);
+		this.maxDelayMillis = Math.max(this.initialDelayMillis, maxDelayMillis);
+		this.maxAttempts = Math.max(0, maxAttempts);
+		this.connectTimeoutMillis = Math.max(0, connectTimeoutMillis);
+	}
+
+	// CLASS METHODS ****************************************************
+
+	/**
+	 * @return the policy given by the
+	 *         <code>ocsf.client.reconnectInitialMillis</code>,
+	 *         <code>ocsf.client.reconnectMaxMillis</code>,
+	 *         <code>ocsf.client.reconnectAttempts</code> and
+	 *         <code>ocsf.client.connectTimeoutMillis</code> system
+	 *         properties; by default half a second doubling up to 30
+	 *         seconds, forever, with a 5 second connect timeout.
+	 */
+	public static ReconnectPolicy fromSystemProperties() {
+		return new ReconnectPolicy(Long.getLong(INITIAL_DELAY_PROPERTY, 500),
+				Long.getLong(MAX_DELAY_PROPERTY, 30000),
+				Integer.getInteger(MAX_ATTEMPTS_PROPERTY, 0),
+				Integer.getInteger(CONNECT_TIMEOUT_PROPERTY, 5000));
+	}
+
+	/**
+	 * @return the policy of the system properties if the
+	 *         <code>ocsf.client.reconnect</code> system property is
+	 *         <code>true</code>, null otherwise.
+	 */
+	static ReconnectPolicy fromSystemPropertyIfEnabled() {
+		return Boolean.getBoolean(RECONNECT_PROPERTY) ? fromSystemProperties() : null;
+	}
+
+	// INSTANCE METHODS *************************************************
+
+	/**
+	 * Draws the wait before an attempt.
+	 *
+	 * @param attempt
+	 *            the number of the attempt, from 1.
+	 * @return the wait, in ms, between 0 and the bound of the attempt.
+	 */
+	public long nextDelayMillis(int attempt) {
+		long bound = initialDelayMillis;
+		for (int i = 1; i < attempt && bound < maxDelayMillis; i++)
+			bound <<= 1;
+		bound = Math.min(bound, maxDelayMillis);
+		return ThreadLocalRandom.current().nextLong(bound + 1);
+	}
+
+	/**
+	 * @param attempt
+	 *            the number of an attempt, from 1.
+	 * @return true if the attempt may be made.
+	 */
+	public boolean allows(int attempt) {
+		return maxAttempts == 0 || attempt <= maxAttempts;
+	}
+
+	// ACCESSING METHODS ------------------------------------------------
+
+	/**
+	 * @return the bound of the wait before the first attempt, in ms.
+	 */
+	public long getInitialDelayMillis() {
+		return initialDelayMillis;
+	}
+
+	/**
+	 * @return the largest bound of the wait before an attempt, in ms.
+	 */
+	public long getMaxDelayMillis() {
+		return maxDelayMillis;
+	}
+
+	/**
+	 * @return the number of attempts before giving up, or 0 for no limit.
+	 */
+	public int getMaxAttempts() {
+		return maxAttempts;
+	}
+
+	/**
+	 * @return how long connecting to a server may take, in ms, or 0 for no
+	 *         limit.
+	 */
+	public int getConnectTimeoutMillis() {
+		return connectTimeoutMillis;
+	}
+}
+// End of ReconnectPolicy class
@@ -0,0 +1,129 @@
+package ocsf.common;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A compact binary codec for chat traffic. It carries <code>String</code>
+ * lines and <code>ChatEvent</code> instances; every body starts with a one
+ * byte tag:
+ * <ul>
+ * <li>1, a string: its UTF-8 bytes fill the rest of the body;</li>
+ * <li>2, an event: kind (1 byte), timestamp (8 bytes), then the sender,
+ * target and text, each as a 4 byte length, -1 for null, followed by that
+ * many UTF-8 bytes.</li>
+ * </ul>
+ * Other objects cannot be sent.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ *
+ * @see ocsf.common.ChatEvent
+ */
+public final class BinaryChatCodec implements MessageCodec {
+
+	/**
+	 * The identifier of this codec on the wire.
+	 */
+	public static final int		ID			= 2;
+
+	/**
+	 * The tag of a body holding a string.
+	 */
+	private static final int	TAG_STRING	= 1;
+
+	/**
+	 * The tag of a body holding an event.
+	 */
+	private static final int	TAG_EVENT	= 2;
+
+	/**
+	 * The kinds of events, indexed by their code on the wire.
+	 */
+	private static final ChatEvent.Kind[]	KINDS	= ChatEvent.Kind.values();
+
+	public int getId() {
+		return ID;
+	}
+
+	public String getName() {
+		return "binary";
+	}
+
+	public void encode(Object msg, OutputStream out) throws IOException {
+		if (msg instanceof String) {
+			out.write(TAG_STRING);
+			out.write(((String) msg).getBytes(StandardCharsets.UTF_8));
+		} else if (msg instanceof ChatEvent) {
+			ChatEvent event = (ChatEvent) msg;
+			DataOutputStream data = new DataOutputStream(out);
+
+			data.writeByte(TAG_EVENT);
+			data.writeByte(event.getKind().ordinal());
+			data.writeLong(event.getTimestamp());
+			writeString(data, event.getSender());
+			writeString(data, event.getTarget());
+			writeString(data, event.getText());
+			data.flush();
+		} else {
+			throw new NotSerializableException("binary codec cannot send "
+					+ (msg == null ? "null" : msg.getClass().getName()));
+		}
+	}
+
+	public Object decode(byte[] body, int offset, int length) throws IOException {
+		if (length < 1)
+			throw new StreamCorruptedException("empty frame");
+
+		switch (body[offset]) {
+		case TAG_STRING:
+			return new String(body, offset + 1, length - 1, StandardCharsets.UTF_8);
+
+		case TAG_EVENT:
+			DataInputStream data = new DataInputStream(
+					new ByteArrayInputStream(body, offset + 1, length - 1));
+			int kind = data.readUnsignedByte();
+			if (kind >= KINDS.length)
+				throw new StreamCorruptedException("unknown event kind " + kind);
+
+			long timestamp = data.readLong();
+			String sender = readString(data);
+			String target = readString(data);
+			String text = readString(data);
+			return new ChatEvent(KINDS[kind], sender, target, text, timestamp);
+
+		default:
+			throw new StreamCorruptedException("unknown tag " + body[offset]);
+		}
+	}
+
+	/**
+	 * Writes a nullable string as a length and UTF-8 bytes.
+	 */
+	private static void writeString(DataOutputStream data, String s)
+			throws IOException {
+		if (s == null) {
+			data.writeInt(-1);
+			return;
+		}
+		byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+		data.writeInt(bytes.length);
+		data.write(bytes);
+	}
+
+	/**
+	 * Reads a string written by <code>writeString</code>.
+	 */
+	private static String readString(DataInputStream data) throws IOException {
+		int length = data.readInt();
+		if (length < 0)
+			return null;
+		if (length > data.available())
+			throw new StreamCorruptedException("invalid string length " + length);
+
+		byte[] bytes = new byte[length];
+		data.readFully(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+}
+// End of BinaryChatCodec class
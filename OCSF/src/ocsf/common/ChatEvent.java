@@ -0,0 +1,138 @@
+package ocsf.common;
+
+import java.io.Serializable;
+
+/**
+ * A <code> ChatEvent </code> is a structured chat message: what happened,
+ * who caused it, where it is addressed and its text. Events are immutable.
+ * They travel compactly with <code>BinaryChatCodec</code> but, being
+ * serializable, can also be sent with the legacy codec.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ *
+ * @see ocsf.common.BinaryChatCodec
+ */
+public final class ChatEvent implements Serializable {
+
+	private static final long	serialVersionUID	= 1L;
+
+	/**
+	 * The kinds of chat events. The ordinal of a kind is its code on the
+	 * wire, so new kinds must be added at the end.
+	 */
+	public enum Kind {
+		/** A line of chat from a user. */
+		MESSAGE,
+		/** A user joined a room or logged on. */
+		JOIN,
+		/** A user left a room or logged off. */
+		LEAVE,
+		/** A message addressed to a single user. */
+		PRIVATE,
+		/** A message from the server itself. */
+		SYSTEM
+	}
+
+	// INSTANCE VARIABLES ***********************************************
+
+	/**
+	 * What happened.
+	 */
+	private final Kind			kind;
+
+	/**
+	 * Who caused the event; may be null for server events.
+	 */
+	private final String		sender;
+
+	/**
+	 * The room or user the event is addressed to; null for everyone.
+	 */
+	private final String		target;
+
+	/**
+	 * The text of the event; may be null.
+	 */
+	private final String		text;
+
+	/**
+	 * When the event happened, in milliseconds since the epoch.
+	 */
+	private final long			timestamp;
+
+	// CONSTRUCTORS *****************************************************
+
+	/**
+	 * Constructs an event.
+	 *
+	 * @param kind
+	 *            what happened.
+	 * @param sender
+	 *            who caused the event, or null.
+	 * @param target
+	 *            the room or user addressed, or null for everyone.
+	 * @param text
+	 *            the text of the event, or null.
+	 * @param timestamp
+	 *            when the event happened, in milliseconds since the epoch.
+	 */
+	public ChatEvent(Kind kind, String sender, String target, String text,
+			long timestamp) {
+		if (kind == null)
+			throw new NullPointerException("kind");
+
+		this.kind = kind;
+		this.sender = sender;
+		this.target = target;
+		this.text = text;
+		this.timestamp = timestamp;
+	}
+
+	// ACCESSING METHODS ------------------------------------------------
+
+	/**
+	 * @return what happened.
+	 */
+	public Kind getKind() {
+		return kind;
+	}
+
+	/**
+	 * @return who caused the event, or null.
+	 */
+	public String getSender() {
+		return sender;
+	}
+
+	/**
+	 * @return the room or user addressed, or null for everyone.
+	 */
+	public String getTarget() {
+		return target;
+	}
+
+	/**
+	 * @return the text of the event, or null.
+	 */
+	public String getText() {
+		return text;
+	}
+
+	/**
+	 * @return when the event happened, in milliseconds since the epoch.
+	 */
+	public long getTimestamp() {
+		return timestamp;
+	}
+
+	/**
+	 * Returns the event as a line of chat, the way a console displays it.
+	 *
+	 * @return the sender and text of the event.
+	 */
+	public String toString() {
+		return sender == null ? String.valueOf(text) : sender + ": " + text;
+	}
+}
+// End of ChatEvent class
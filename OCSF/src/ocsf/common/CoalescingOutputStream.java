@@ -0,0 +1,135 @@
+package ocsf.common;
+
+import java.io.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A <code> CoalescingOutputStream </code> buffers the bytes of the messages
+ * written to a socket and flushes them according to a
+ * <code>FlushPolicy</code>. Writers call <code>endMessage</code> after each
+ * message and <code>endBatch</code> after each batch; the policy decides
+ * which of these, or a timer, actually flushes. Writes larger than the
+ * buffer go straight to the socket.
+ * <p>
+ * Closing the stream discards the bytes not yet flushed, so that closing a
+ * connection never waits for a peer that does not read.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ *
+ * @see ocsf.common.FlushPolicy
+ */
+public class CoalescingOutputStream extends BufferedOutputStream {
+
+	// CLASS VARIABLES **************************************************
+
+	/**
+	 * The size of the write buffer, in bytes.
+	 */
+	public static final int		BUFFER_SIZE	= 8192;
+
+	// INSTANCE VARIABLES ***********************************************
+
+	/**
+	 * When the buffer is flushed.
+	 */
+	private final FlushPolicy	policy;
+
+	/**
+	 * The delay of <code>MAX_DELAY</code>, in milliseconds.
+	 */
+	private final long			maxDelayMillis;
+
+	/**
+	 * Indicates that a timed flush is pending. Guarded by this.
+	 */
+	private boolean				flushScheduled;
+
+	// CONSTRUCTORS *****************************************************
+
+	/**
+	 * Constructs a stream buffering the bytes written to another.
+	 *
+	 * @param out
+	 *            the stream of the socket.
+	 * @param policy
+	 *            when the buffer is flushed.
+	 * @param maxDelayMillis
+	 *            the delay of <code>MAX_DELAY</code>, in milliseconds.
+	 */
+	public CoalescingOutputStream(OutputStream out, FlushPolicy policy,
+			long maxDelayMillis) {
+		super(out, BUFFER_SIZE);
+		this.policy = policy;
+		this.maxDelayMillis = maxDelayMillis;
+	}
+
+	// INSTANCE METHODS *************************************************
+
+	/**
+	 * Marks the end of a message: flushes with <code>IMMEDIATE</code>, and
+	 * arms the timer with <code>MAX_DELAY</code> if it is not armed yet.
+	 *
+	 * @exception IOException
+	 *                if an I/O error occurs when flushing.
+	 */
+	public synchronized void endMessage() throws IOException {
+		switch (policy) {
+		case IMMEDIATE:
+			flush();
+			break;
+
+		case MAX_DELAY:
+			if (!flushScheduled && count > 0) {
+				flushScheduled = true;
+				Threads.timer().schedule(this::timedFlush, maxDelayMillis,
+						TimeUnit.MILLISECONDS);
+			}
+			break;
+
+		default:
+			break;
+		}
+	}
+
+	/**
+	 * Marks the end of a batch: flushes unless the policy is
+	 * <code>MAX_DELAY</code>, whose timer does.
+	 *
+	 * @exception IOException
+	 *                if an I/O error occurs when flushing.
+	 */
+	public synchronized void endBatch() throws IOException {
+		if (policy == FlushPolicy.MAX_DELAY)
+			endMessage();
+		else
+			flush();
+	}
+
+	/**
+	 * Discards the bytes not yet flushed and closes the stream of the
+	 * socket.
+	 *
+	 * @exception IOException
+	 *                if an I/O error occurs when closing.
+	 */
+	public void close() throws IOException {
+		synchronized (this) {
+			count = 0;
+		}
+		out.close();
+	}
+
+	/**
+	 * Flushes on behalf of the timer. A failure is left for the next write,
+	 * or the reader, to report.
+	 */
+	private synchronized void timedFlush() {
+		flushScheduled = false;
+		try {
+			flush();
+		} catch (IOException ex) {
+		}
+	}
+}
+// End of CoalescingOutputStream class
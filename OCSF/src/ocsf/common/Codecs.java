@@ -0,0 +1,104 @@
+package ocsf.common;
+
+/**
+ * The <code> Codecs </code> class is the registry of message codecs known to
+ * this process, by wire identifier and by name. The serialization, UTF-8
+ * text and binary chat codecs are always registered; applications may add
+ * their own before connecting.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ *
+ * @see ocsf.common.MessageCodec
+ */
+public final class Codecs {
+
+	// CLASS VARIABLES **************************************************
+
+	/**
+	 * The system property naming the codec a client proposes, read by
+	 * <code>AbstractClient</code>.
+	 */
+	public static final String				PROPERTY	= "ocsf.codec";
+
+	/**
+	 * The registered codecs, indexed by identifier.
+	 */
+	private static final MessageCodec[]		BY_ID		= new MessageCodec[256];
+
+	/**
+	 * The legacy codec.
+	 */
+	public static final MessageCodec		SERIALIZATION	= new SerializationCodec();
+
+	static {
+		register(SERIALIZATION);
+		register(new Utf8TextCodec());
+		register(new BinaryChatCodec());
+	}
+
+	// CONSTRUCTORS *****************************************************
+
+	private Codecs() {
+	}
+
+	// CLASS METHODS ****************************************************
+
+	/**
+	 * Registers a codec, replacing any codec with the same identifier.
+	 *
+	 * @param codec
+	 *            the codec to register.
+	 * @exception IllegalArgumentException
+	 *                if the identifier is not between 0 and 255.
+	 */
+	public static synchronized void register(MessageCodec codec) {
+		int id = codec.getId();
+		if (id < 0 || id >= BY_ID.length)
+			throw new IllegalArgumentException("codec id out of range: " + id);
+
+		BY_ID[id] = codec;
+	}
+
+	/**
+	 * @param id
+	 *            a wire identifier.
+	 * @return the codec registered under it, or null.
+	 */
+	public static synchronized MessageCodec forId(int id) {
+		return id < 0 || id >= BY_ID.length ? null : BY_ID[id];
+	}
+
+	/**
+	 * @param name
+	 *            a codec name.
+	 * @return the codec registered under it, or null.
+	 */
+	public static synchronized MessageCodec forName(String name) {
+		for (MessageCodec codec : BY_ID) {
+			if (codec != null && codec.getName().equalsIgnoreCase(name))
+				return codec;
+		}
+		return null;
+	}
+
+	/**
+	 * Returns the codec named by the <code>ocsf.codec</code> system
+	 * property.
+	 *
+	 * @return the codec, or null if the property is not set.
+	 * @exception IllegalArgumentException
+	 *                if the property names no registered codec.
+	 */
+	public static MessageCodec fromSystemProperty() {
+		String name = System.getProperty(PROPERTY);
+		if (name == null || name.trim().isEmpty())
+			return null;
+
+		MessageCodec codec = forName(name.trim());
+		if (codec == null)
+			throw new IllegalArgumentException("unknown codec: " + name);
+		return codec;
+	}
+}
+// End of Codecs class
@@ -0,0 +1,300 @@
+package ocsf.common;
+
+import java.io.*;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * A codec compressing the frame bodies of another codec. It is not
+ * registered: a connection uses it when its hello negotiates a
+ * compression, and it goes on the wire under the identifier of the codec
+ * it wraps. Every body starts with a one byte tag:
+ * <ul>
+ * <li>0, stored: the body of the wrapped codec fills the rest;</li>
+ * <li>1, deflated: the length of the body of the wrapped codec (4 bytes),
+ * then that body in the zlib format, with the chat dictionary for
+ * <code>Compression.DICTIONARY</code>.</li>
+ * </ul>
+ * Deflaters and inflaters hold native memory, so a few of them are kept
+ * for reuse by whatever thread encodes or decodes next.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ *
+ * @see ocsf.common.Compression
+ */
+public final class CompressedCodec implements MessageCodec {
+
+	// CLASS VARIABLES **************************************************
+
+	/**
+	 * The tag of a body stored as it is.
+	 */
+	private static final int	TAG_STORED	= 0;
+
+	/**
+	 * The tag of a deflated body.
+	 */
+	private static final int	TAG_DEFLATED	= 1;
+
+	/**
+	 * The shortest body worth compressing whatever the threshold, in bytes:
+	 * the zlib format alone adds six.
+	 */
+	private static final int	MIN_LENGTH	= 16;
+
+	/**
+	 * The largest number of deflaters, and of inflaters, kept for reuse.
+	 */
+	private static final int	POOL_SIZE	= 16;
+
+	/**
+	 * The most a deflated body can grow when inflated: deflate encodes at
+	 * best 258 bytes in a couple of bits.
+	 */
+	private static final int	MAX_RATIO	= 1032;
+
+	/**
+	 * The size of the buffer an inflated body starts in, in bytes; it grows
+	 * as the body is inflated, so a body lying about its size cannot have a
+	 * large buffer allocated for nothing.
+	 */
+	private static final int	INITIAL_INFLATE_SIZE	= 64 * 1024;
+
+	/**
+	 * The deflaters kept for reuse.
+	 */
+	private static final Queue<Deflater>	DEFLATERS	= new ConcurrentLinkedQueue<>();
+
+	/**
+	 * The inflaters kept for reuse.
+	 */
+	private static final Queue<Inflater>	INFLATERS	= new ConcurrentLinkedQueue<>();
+
+	/**
+	 * The codecs created so far, by wrapped codec, indexed by compression.
+	 */
+	private static final Map<MessageCodec, CompressedCodec[]>	CODECS	= new IdentityHashMap<>();
+
+	// INSTANCE VARIABLES ***********************************************
+
+	/**
+	 * The wrapped codec.
+	 */
+	private final MessageCodec	base;
+
+	/**
+	 * The compression of the bodies.
+	 */
+	private final Compression	compression;
+
+	/**
+	 * The size under which bodies are stored as they are.
+	 */
+	private final int			threshold;
+
+	// CONSTRUCTORS *****************************************************
+
+	private CompressedCodec(MessageCodec base, Compression compression, int threshold) {
+		this.base = base;
+		this.compression = compression;
+		this.threshold = threshold;
+	}
+
+	// CLASS METHODS ****************************************************
+
+	/**
+	 * Returns the codec compressing the bodies of another one, always the
+	 * same instance for the same arguments.
+	 *
+	 * @param base
+	 *            the wrapped codec.
+	 * @param compression
+	 *            the compression, other than <code>NONE</code>.
+	 * @return the codec.
+	 */
+	static synchronized CompressedCodec of(MessageCodec base, Compression compression) {
+		CompressedCodec[] codecs = CODECS.computeIfAbsent(base,
+				codec -> new CompressedCodec[Compression.values().length]);
+		if (codecs[compression.ordinal()] == null)
+			codecs[compression.ordinal()] = new CompressedCodec(base, compression,
+					Compression.thresholdFromSystemProperty());
+		return codecs[compression.ordinal()];
+	}
+
+	/**
+	 * @return the codec wrapped by a codec, or the codec itself if it does
+	 *         not compress.
+	 */
+	static MessageCodec baseOf(MessageCodec codec) {
+		return codec instanceof CompressedCodec ? ((CompressedCodec) codec).base : codec;
+	}
+
+	// INSTANCE METHODS *************************************************
+
+	/**
+	 * @return the wrapped codec.
+	 */
+	public MessageCodec getBase() {
+		return base;
+	}
+
+	/**
+	 * @return the compression of the bodies.
+	 */
+	public Compression getCompression() {
+		return compression;
+	}
+
+	public int getId() {
+		return base.getId();
+	}
+
+	public String getName() {
+		return base.getName() + "+" + compression.name().toLowerCase();
+	}
+
+	public void encode(Object msg, OutputStream out) throws IOException {
+		BodyBuffer body = new BodyBuffer();
+		base.encode(msg, body);
+
+		byte[] deflated = body.size() < Math.max(threshold, MIN_LENGTH) ? null
+				: deflate(body.array(), body.size());
+		if (deflated == null) {
+			out.write(TAG_STORED);
+			body.writeTo(out);
+			return;
+		}
+
+		DataOutputStream data = new DataOutputStream(out);
+		data.writeByte(TAG_DEFLATED);
+		data.writeInt(body.size());
+		data.write(deflated);
+		data.flush();
+	}
+
+	public Object decode(byte[] body, int offset, int length)
+			throws IOException, ClassNotFoundException {
+		if (length < 1)
+			throw new StreamCorruptedException("empty compressed body");
+
+		int tag = body[offset];
+		if (tag == TAG_STORED)
+			return base.decode(body, offset + 1, length - 1);
+		if (tag != TAG_DEFLATED || length < 5)
+			throw new StreamCorruptedException("invalid compressed body");
+
+		DataInputStream data = new DataInputStream(
+				new ByteArrayInputStream(body, offset + 1, 4));
+		int size = data.readInt();
+		Framing.checkLength(size);
+		if (size > (long) (length - 5) * MAX_RATIO)
+			throw new StreamCorruptedException("invalid compressed body: " + size
+					+ " bytes cannot come from " + (length - 5));
+
+		byte[] inflated = inflate(body, offset + 5, length - 5, size);
+		return base.decode(inflated, 0, size);
+	}
+
+	/**
+	 * Compresses a body.
+	 *
+	 * @return the deflated body, or null if it is not smaller.
+	 */
+	private byte[] deflate(byte[] body, int length) {
+		Deflater deflater = DEFLATERS.poll();
+		if (deflater == null)
+			deflater = new Deflater();
+
+		try {
+			if (compression == Compression.DICTIONARY)
+				deflater.setDictionary(Compression.CHAT_DICTIONARY);
+			deflater.setInput(body, 0, length);
+			deflater.finish();
+
+			// Anything as long as the body is useless; 4 bytes go to the length
+			byte[] out = new byte[length - 4];
+			int count = 0;
+			while (!deflater.finished() && count < out.length)
+				count += deflater.deflate(out, count, out.length - count);
+			if (!deflater.finished())
+				return null;
+
+			byte[] deflated = new byte[count];
+			System.arraycopy(out, 0, deflated, 0, count);
+			return deflated;
+		} finally {
+			deflater.reset();
+			if (DEFLATERS.size() < POOL_SIZE)
+				DEFLATERS.offer(deflater);
+			else
+				deflater.end();
+		}
+	}
+
+	/**
+	 * Decompresses a body, which must be exactly <code>size</code> bytes
+	 * long once inflated.
+	 */
+	private byte[] inflate(byte[] body, int offset, int length, int size)
+			throws IOException {
+		Inflater inflater = INFLATERS.poll();
+		if (inflater == null)
+			inflater = new Inflater();
+
+		try {
+			inflater.setInput(body, offset, length);
+			byte[] out = new byte[Math.min(size, INITIAL_INFLATE_SIZE)];
+			int count = 0;
+			while (!inflater.finished()) {
+				if (count == out.length && count < size)
+					out = Arrays.copyOf(out, (int) Math.min(size, 2L * count));
+				int n = inflater.inflate(out, count, out.length - count);
+				count += n;
+				if (n > 0)
+					continue;
+
+				// Stuck: needs the dictionary once, or the body is invalid
+				if (inflater.needsDictionary() && compression == Compression.DICTIONARY
+						&& count == 0)
+					inflater.setDictionary(Compression.CHAT_DICTIONARY);
+				else
+					break;
+			}
+
+			if (!inflater.finished() || count != size)
+				throw new StreamCorruptedException("invalid compressed body");
+			return out;
+		} catch (DataFormatException | IllegalArgumentException e) {
+			throw new StreamCorruptedException("invalid compressed body: " + e.getMessage());
+		} finally {
+			inflater.reset();
+			if (INFLATERS.size() < POOL_SIZE)
+				INFLATERS.offer(inflater);
+			else
+				inflater.end();
+		}
+	}
+
+	// INNER CLASSES ****************************************************
+
+	/**
+	 * A byte array stream that hands out its buffer without copying it.
+	 */
+	private static final class BodyBuffer extends ByteArrayOutputStream {
+		BodyBuffer() {
+			super(128);
+		}
+
+		byte[] array() {
+			return buf;
+		}
+	}
+}
+// End of CompressedCodec class
@@ -0,0 +1,172 @@
+package ocsf.common;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The <code> Compression </code> enumeration lists how the frame bodies of
+ * a connection may be compressed. The client proposes a compression in the
+ * flags byte of its hello and the server answers with the compression both
+ * ends support, the lesser of the proposal and what it accepts, so a peer
+ * that knows nothing of compression simply turns it off.
+ * <p>
+ * Every frame is compressed on its own, so it can still be decoded without
+ * the previous ones and the same encoded frame can still be sent to every
+ * connection of a broadcast. Bodies shorter than the threshold, or that do
+ * not shrink, are sent as they are. Legacy clients speaking object streams
+ * have no hello and are never compressed.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ *
+ * @see ocsf.common.CompressedCodec
+ * @see ocsf.common.Framing
+ */
+public enum Compression {
+	/**
+	 * Frame bodies are sent as they are.
+	 */
+	NONE(0),
+
+	/**
+	 * Frame bodies are compressed with deflate.
+	 */
+	DEFLATE(1),
+
+	/**
+	 * Frame bodies are compressed with deflate, primed with a dictionary of
+	 * common chat tokens, which helps most with short messages.
+	 */
+	DICTIONARY(3);
+
+	/**
+	 * The system property giving the default compression; one of
+	 * <code>none</code>, <code>deflate</code> or <code>dictionary</code>.
+	 * For a client it is the compression proposed, <code>none</code> by
+	 * default; for a server it is the most it accepts,
+	 * <code>dictionary</code> by default.
+	 */
+	public static final String	PROPERTY			= "ocsf.compression";
+
+	/**
+	 * The system property giving the size in bytes under which frame bodies
+	 * are not compressed.
+	 */
+	public static final String	THRESHOLD_PROPERTY	= "ocsf.compressionThreshold";
+
+	/**
+	 * The threshold used when the property is not set, in bytes.
+	 */
+	public static final int		DEFAULT_THRESHOLD	= 128;
+
+	/**
+	 * The dictionary shared by both ends with <code>DICTIONARY</code>.
+	 * Deflate favours the end of the dictionary, so the most frequent
+	 * tokens come last. It is part of the protocol and must not change.
+	 */
+	static final byte[]			CHAT_DICTIONARY		= ("java.lang.String"
+			+ "java.util.ArrayListxp" + "ocsf.common.ChatEvent"
+			+ " is disconnected. has logged on. is not connected."
+			+ "ERROR - Usage: #login #logoff #join #leave #rooms #history #msg "
+			+ "--- History --- --- End of history --- "
+			+ " has left  has joined You are now in lobby [private to [private] "
+			+ "and that have for not with you this but what the is it to a ")
+			.getBytes(StandardCharsets.UTF_8);
+
+	/**
+	 * The bits of the flags byte of the hello for this compression.
+	 */
+	private final int flags;
+
+	private Compression(int flags) {
+		this.flags = flags;
+	}
+
+	/**
+	 * @return the bits of the flags byte of the hello for this compression.
+	 */
+	public int getFlags() {
+		return flags;
+	}
+
+	/**
+	 * Returns the compression both ends support.
+	 *
+	 * @param other
+	 *            the compression of the other end.
+	 * @return the lesser of the two.
+	 */
+	public Compression min(Compression other) {
+		return compareTo(other) <= 0 ? this : other;
+	}
+
+	/**
+	 * Returns the codec exchanging the bodies of another codec with this
+	 * compression. The same instance is returned for the same codec, so the
+	 * connections sharing both still share encoded frames.
+	 *
+	 * @param codec
+	 *            the codec of the messages.
+	 * @return the compressing codec, or <code>codec</code> itself for
+	 *         <code>NONE</code>.
+	 */
+	public MessageCodec wrap(MessageCodec codec) {
+		MessageCodec base = CompressedCodec.baseOf(codec);
+		return this == NONE ? base : CompressedCodec.of(base, this);
+	}
+
+	/**
+	 * Returns the compression of a codec.
+	 *
+	 * @param codec
+	 *            a codec, possibly returned by <code>wrap</code>.
+	 * @return its compression, <code>NONE</code> for a plain codec.
+	 */
+	public static Compression of(MessageCodec codec) {
+		return codec instanceof CompressedCodec
+				? ((CompressedCodec) codec).getCompression() : NONE;
+	}
+
+	/**
+	 * Reads the compression out of the flags byte of a hello. Bits that are
+	 * not understood are ignored.
+	 *
+	 * @param flags
+	 *            the flags byte.
+	 * @return the strongest compression the flags allow.
+	 */
+	public static Compression forFlags(int flags) {
+		Compression found = NONE;
+		for (Compression compression : values()) {
+			if ((flags & compression.flags) == compression.flags)
+				found = compression;
+		}
+		return found;
+	}
+
+	/**
+	 * Returns the compression named by the <code>ocsf.compression</code>
+	 * system property.
+	 *
+	 * @param defaultCompression
+	 *            the compression if the property is not set.
+	 * @return the compression.
+	 * @exception IllegalArgumentException
+	 *                if the property names no compression.
+	 */
+	public static Compression fromSystemProperty(Compression defaultCompression) {
+		String name = System.getProperty(PROPERTY);
+		if (name == null || name.trim().isEmpty())
+			return defaultCompression;
+		return valueOf(name.trim().toUpperCase());
+	}
+
+	/**
+	 * @return the threshold named by the
+	 *         <code>ocsf.compressionThreshold</code> system property,
+	 *         <code>DEFAULT_THRESHOLD</code> by default.
+	 */
+	public static int thresholdFromSystemProperty() {
+		return Math.max(0, Integer.getInteger(THRESHOLD_PROPERTY, DEFAULT_THRESHOLD));
+	}
+}
+// End of Compression enum
@@ -0,0 +1,71 @@
+package ocsf.common;
+
+/**
+ * The <code> FlushPolicy </code> enumeration lists when the bytes written
+ * to a connection leave its write buffer for the socket. Buffering lets a
+ * burst of small messages go out in a few large writes instead of one
+ * system call, and often one TCP segment, per message.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ *
+ * @see ocsf.common.CoalescingOutputStream
+ */
+public enum FlushPolicy {
+	/**
+	 * Every message is flushed as soon as it is written. Latency is lowest,
+	 * but each message costs at least one write.
+	 */
+	IMMEDIATE,
+
+	/**
+	 * Messages are flushed at the end of each batch: one call of a
+	 * <code>send</code> method, whether it sends one message or a list, or
+	 * one run of an outbound queue writer.
+	 */
+	END_OF_BATCH,
+
+	/**
+	 * Messages are flushed at the latest the configured delay after the
+	 * first unflushed one was written, or earlier when the buffer fills up.
+	 */
+	MAX_DELAY;
+
+	/**
+	 * The system property giving the default policy; one of
+	 * <code>immediate</code>, <code>end_of_batch</code> or
+	 * <code>max_delay</code>.
+	 */
+	public static final String	PROPERTY		= "ocsf.flushPolicy";
+
+	/**
+	 * The system property giving the default delay of <code>MAX_DELAY</code>,
+	 * in milliseconds.
+	 */
+	public static final String	DELAY_PROPERTY	= "ocsf.flushDelayMillis";
+
+	/**
+	 * Returns the policy named by the <code>ocsf.flushPolicy</code> system
+	 * property.
+	 *
+	 * @return the policy, or <code>IMMEDIATE</code> if the property is not
+	 *         set.
+	 * @exception IllegalArgumentException
+	 *                if the property names no policy.
+	 */
+	public static FlushPolicy fromSystemProperty() {
+		String name = System.getProperty(PROPERTY);
+		if (name == null || name.trim().isEmpty())
+			return IMMEDIATE;
+		return valueOf(name.trim().toUpperCase());
+	}
+
+	/**
+	 * @return the delay named by the <code>ocsf.flushDelayMillis</code>
+	 *         system property, 5 ms by default.
+	 */
+	public static long delayFromSystemProperty() {
+		return Math.max(0, Long.getLong(DELAY_PROPERTY, 5));
+	}
+}
+// End of FlushPolicy enum
@@ -0,0 +1,546 @@
+package ocsf.common;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * The <code> Framing </code> class implements the length-prefixed wire
+ * format of OCSF. Every frame is a four byte big-endian length followed by
+ * that many bytes of body, and the body is produced by the
+ * <code>MessageCodec</code> of the connection, so a frame can be decoded
+ * without any state from previous frames.
+ * <p>
+ * The connection starts with a hello from the client:
+ * <ul>
+ * <li>A client with a codec sends <code>HELLO_LENGTH</code> bytes: the
+ * magic <code>OCSF</code>, the protocol version, the identifier of its
+ * codec and a flags byte proposing a <code>Compression</code>. The server
+ * answers with the same seven bytes, the flags lowered to the compression
+ * it accepts, and both ends then exchange frames encoded with that codec
+ * and compression.</li>
+ * <li>A legacy client sends the Java serialization stream header. A server
+ * running the thread-per-client engines answers with its own stream header
+ * and both ends exchange object streams; the NIO engine answers with the
+ * bare magic instead and both ends exchange frames encoded with the
+ * serialization codec.</li>
+ * </ul>
+ * <p>
+ * Both ends of this implementation set <code>HEARTBEATS</code> in the
+ * flags of their hello: they understand control frames, whose length
+ * prefix is negative and which carry no body. A <code>Control.PING</code>
+ * is answered with a <code>Control.PONG</code>, and neither is handed to
+ * the application. Control frames are only sent to a peer whose hello has
+ * the flag; earlier implementations ignore it.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ *
+ * @see ocsf.common.MessageCodec
+ */
+public final class Framing {
+
+	// CLASS VARIABLES **************************************************
+
+	/**
+	 * The size of the length prefix of every frame, in bytes.
+	 */
+	public static final int	HEADER_LENGTH		= 4;
+
+	/**
+	 * The largest frame body accepted from the network. Anything longer is
+	 * treated as a corrupted stream rather than allocated.
+	 */
+	public static final int	MAX_FRAME_LENGTH	= 16 * 1024 * 1024;
+
+	/**
+	 * The most a frame body is given before its bytes arrive. The buffer
+	 * doubles as it fills, so a length prefix alone, which anybody can
+	 * send, never makes a large buffer allocated for nothing.
+	 */
+	public static final int	INITIAL_BODY_LENGTH	= 64 * 1024;
+
+	/**
+	 * The version of the framed protocol spoken by this implementation.
+	 */
+	public static final int	PROTOCOL_VERSION	= 1;
+
+	/**
+	 * The length of the hello exchanged by framed clients and servers.
+	 */
+	public static final int	HELLO_LENGTH		= 7;
+
+	/**
+	 * The flag of a hello announcing that its sender understands control
+	 * frames.
+	 */
+	public static final int	HEARTBEATS			= 0x80;
+
+	/**
+	 * The magic that opens a hello, and the whole greeting sent by the NIO
+	 * engine to legacy clients.
+	 */
+	private static final byte[]	MAGIC				= { 'O', 'C', 'S', 'F' };
+
+	/**
+	 * The four bytes that open every Java serialization stream
+	 * (STREAM_MAGIC followed by STREAM_VERSION).
+	 */
+	private static final byte[]	STREAM_HEADER		= { (byte) 0xAC, (byte) 0xED, 0x00, 0x05 };
+
+	// CONSTRUCTORS *****************************************************
+
+	private Framing() {
+	}
+
+	// HANDSHAKE METHODS ------------------------------------------------
+
+	/**
+	 * @return a fresh copy of the greeting sent by the NIO engine to legacy
+	 *         clients.
+	 */
+	public static byte[] greeting() {
+		return MAGIC.clone();
+	}
+
+	/**
+	 * Builds the hello proposing, or accepting, a codec and its compression.
+	 *
+	 * @param codec
+	 *            the codec of the connection, possibly compressed.
+	 * @return the hello bytes.
+	 */
+	public static byte[] hello(MessageCodec codec) {
+		byte[] hello = new byte[HELLO_LENGTH];
+		System.arraycopy(MAGIC, 0, hello, 0, MAGIC.length);
+		hello[4] = (byte) PROTOCOL_VERSION;
+		hello[5] = (byte) codec.getId();
+		hello[6] = (byte) (Compression.of(codec).getFlags() | HEARTBEATS);
+		return hello;
+	}
+
+	/**
+	 * Tells whether a hello announces that its sender understands control
+	 * frames.
+	 *
+	 * @param hello
+	 *            the bytes of a complete hello.
+	 * @return true if the sender can be sent heartbeats.
+	 */
+	public static boolean hasHeartbeats(byte[] hello) {
+		return (hello[6] & HEARTBEATS) != 0;
+	}
+
+	/**
+	 * Tells whether a hello announces that its sender understands control
+	 * frames.
+	 *
+	 * @param buffer
+	 *            a buffer holding at least <code>HELLO_LENGTH</code> readable
+	 *            bytes; its position is not changed.
+	 * @return true if the sender can be sent heartbeats.
+	 */
+	public static boolean hasHeartbeats(ByteBuffer buffer) {
+		return (buffer.get(buffer.position() + 6) & HEARTBEATS) != 0;
+	}
+
+	/**
+	 * Checks whether the given bytes are the serialization stream header a
+	 * legacy client sends when it connects.
+	 *
+	 * @param buffer
+	 *            a buffer holding at least four readable bytes; its position
+	 *            is not changed.
+	 * @return true if the next four bytes are the stream header.
+	 */
+	public static boolean isStreamHeader(ByteBuffer buffer) {
+		return startsWith(buffer, STREAM_HEADER);
+	}
+
+	/**
+	 * Checks whether the given bytes open a hello.
+	 *
+	 * @param buffer
+	 *            a buffer holding at least four readable bytes; its position
+	 *            is not changed.
+	 * @return true if the next four bytes are the magic.
+	 */
+	public static boolean isHello(ByteBuffer buffer) {
+		return startsWith(buffer, MAGIC);
+	}
+
+	/**
+	 * Reads the codec out of a complete hello, without compression.
+	 *
+	 * @param buffer
+	 *            a buffer holding at least <code>HELLO_LENGTH</code> readable
+	 *            bytes; its position is moved past the hello.
+	 * @return the codec named by the hello.
+	 * @exception IOException
+	 *                if the hello is invalid or names an unknown codec.
+	 */
+	public static MessageCodec parseHello(ByteBuffer buffer) throws IOException {
+		return parseHello(buffer, Compression.NONE);
+	}
+
+	/**
+	 * Reads the codec and compression out of a complete hello.
+	 *
+	 * @param buffer
+	 *            a buffer holding at least <code>HELLO_LENGTH</code> readable
+	 *            bytes; its position is moved past the hello.
+	 * @param accepted
+	 *            the strongest compression accepted.
+	 * @return the codec named by the hello, compressed with the lesser of
+	 *         the proposed and accepted compressions.
+	 * @exception IOException
+	 *                if the hello is invalid or names an unknown codec.
+	 */
+	public static MessageCodec parseHello(ByteBuffer buffer, Compression accepted)
+			throws IOException {
+		byte[] hello = new byte[HELLO_LENGTH];
+		buffer.get(hello);
+		return parseHello(hello, accepted);
+	}
+
+	/**
+	 * Reads the hello of a client on a blocking stream, without
+	 * compression.
+	 *
+	 * @param in
+	 *            the client's input stream; must allow four bytes of pushback.
+	 * @return the codec proposed by the client, or null for a legacy client.
+	 * @exception IOException
+	 *                if the hello is invalid or names an unknown codec.
+	 */
+	public static MessageCodec readClientHello(PushbackInputStream in)
+			throws IOException {
+		return readClientHello(in, Compression.NONE);
+	}
+
+	/**
+	 * Reads the hello of a client on a blocking stream. If the client is a
+	 * legacy client, the stream header is pushed back so that an
+	 * <code>ObjectInputStream</code> can read it.
+	 *
+	 * @param in
+	 *            the client's input stream; must allow four bytes of pushback.
+	 * @param accepted
+	 *            the strongest compression accepted.
+	 * @return the codec proposed by the client, compressed with the lesser
+	 *         of the proposed and accepted compressions, or null for a
+	 *         legacy client.
+	 * @exception IOException
+	 *                if the hello is invalid or names an unknown codec.
+	 */
+	public static MessageCodec readClientHello(PushbackInputStream in,
+			Compression accepted) throws IOException {
+		return readClientHello(in, accepted, new byte[HELLO_LENGTH]);
+	}
+
+	/**
+	 * Reads the hello of a client on a blocking stream, keeping its bytes
+	 * for <code>hasHeartbeats</code>.
+	 *
+	 * @param in
+	 *            the client's input stream; must allow four bytes of pushback.
+	 * @param accepted
+	 *            the strongest compression accepted.
+	 * @param hello
+	 *            an array of <code>HELLO_LENGTH</code> bytes receiving the
+	 *            hello; its content is undefined for a legacy client.
+	 * @return the codec proposed by the client, compressed with the lesser
+	 *         of the proposed and accepted compressions, or null for a
+	 *         legacy client.
+	 * @exception IOException
+	 *                if the hello is invalid or names an unknown codec.
+	 */
+	public static MessageCodec readClientHello(PushbackInputStream in,
+			Compression accepted, byte[] hello) throws IOException {
+		DataInputStream data = new DataInputStream(in);
+
+		data.readFully(hello, 0, MAGIC.length);
+		if (!startsWith(ByteBuffer.wrap(hello), MAGIC)) {
+			in.unread(hello, 0, MAGIC.length);
+			return null;
+		}
+		data.readFully(hello, MAGIC.length, HELLO_LENGTH - MAGIC.length);
+		return parseHello(hello, accepted);
+	}
+
+	/**
+	 * Reads the answer of a server to the hello of a client, and checks that
+	 * the server accepted the proposed codec. The server may lower the
+	 * proposed compression, down to none for a server that does not know
+	 * compression.
+	 *
+	 * @param in
+	 *            the server's input stream.
+	 * @param codec
+	 *            the codec proposed by the client, possibly compressed.
+	 * @return the codec of the connection, with the compression the server
+	 *         accepted.
+	 * @exception IOException
+	 *                if the answer is not the expected hello.
+	 */
+	public static MessageCodec readServerHello(InputStream in, MessageCodec codec)
+			throws IOException {
+		return readServerHello(in, codec, new byte[HELLO_LENGTH]);
+	}
+
+	/**
+	 * Reads the answer of a server to the hello of a client, keeping its
+	 * bytes for <code>hasHeartbeats</code>.
+	 *
+	 * @param in
+	 *            the server's input stream.
+	 * @param codec
+	 *            the codec proposed by the client, possibly compressed.
+	 * @param hello
+	 *            an array of <code>HELLO_LENGTH</code> bytes receiving the
+	 *            answer.
+	 * @return the codec of the connection, with the compression the server
+	 *         accepted.
+	 * @exception IOException
+	 *                if the answer is not the expected hello.
+	 */
+	public static MessageCodec readServerHello(InputStream in, MessageCodec codec,
+			byte[] hello) throws IOException {
+		new DataInputStream(in).readFully(hello);
+
+		MessageCodec accepted = parseHello(hello, Compression.of(codec));
+		if (accepted.getId() != codec.getId())
+			throw new StreamCorruptedException("server refused codec "
+					+ codec.getName());
+		return accepted;
+	}
+
+	/**
+	 * Reads the first bytes sent by a server to a legacy client and tells
+	 * whether it speaks frames. When it does not, the bytes are pushed back
+	 * so that an <code>ObjectInputStream</code> can read them as its stream
+	 * header.
+	 *
+	 * @param in
+	 *            the server's input stream; must allow four bytes of pushback.
+	 * @return true if the server greeted with the magic.
+	 * @exception IOException
+	 *                if the server closes before sending four bytes.
+	 */
+	public static boolean readGreeting(PushbackInputStream in) throws IOException {
+		byte[] first = new byte[MAGIC.length];
+		new DataInputStream(in).readFully(first);
+
+		if (startsWith(ByteBuffer.wrap(first), MAGIC))
+			return true;
+		in.unread(first);
+		return false;
+	}
+
+	// FRAME METHODS ----------------------------------------------------
+
+	/**
+	 * Encodes an object into a complete frame, length prefix included. The
+	 * frame holds no per-connection state, so it can be sent to any number
+	 * of connections using the same codec.
+	 *
+	 * @param codec
+	 *            the codec of the connection.
+	 * @param msg
+	 *            the object to encode.
+	 * @return a buffer positioned at the start of the frame.
+	 * @exception IOException
+	 *                if the codec cannot encode the object.
+	 */
+	public static ByteBuffer encode(MessageCodec codec, Object msg)
+			throws IOException {
+		FrameBuffer frame = new FrameBuffer();
+		codec.encode(msg, frame);
+		return frame.toFrame();
+	}
+
+	/**
+	 * Checks a length prefix read from the network.
+	 *
+	 * @param length
+	 *            the length to check.
+	 * @exception StreamCorruptedException
+	 *                if the length is negative or too large.
+	 */
+	public static void checkLength(int length) throws StreamCorruptedException {
+		if (length < 0 || length > MAX_FRAME_LENGTH)
+			throw new StreamCorruptedException("invalid frame length " + length);
+	}
+
+	/**
+	 * Writes one frame to a blocking stream. The stream is not flushed.
+	 *
+	 * @param out
+	 *            the stream to write to.
+	 * @param codec
+	 *            the codec of the connection.
+	 * @param msg
+	 *            the object to send.
+	 * @exception IOException
+	 *                if an I/O error occurs when writing.
+	 */
+	public static void writeFrame(OutputStream out, MessageCodec codec,
+			Object msg) throws IOException {
+		writeFrame(out, encode(codec, msg));
+	}
+
+	/**
+	 * Writes a frame returned by <code>encode</code> to a blocking stream.
+	 * The position of the frame is not changed, so the same frame can be
+	 * written to several streams. The stream is not flushed.
+	 *
+	 * @param out
+	 *            the stream to write to.
+	 * @param frame
+	 *            the encoded frame.
+	 * @exception IOException
+	 *                if an I/O error occurs when writing.
+	 */
+	public static void writeFrame(OutputStream out, ByteBuffer frame)
+			throws IOException {
+		out.write(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining());
+	}
+
+	/**
+	 * Reads one frame from a blocking stream.
+	 *
+	 * @param in
+	 *            the stream to read from.
+	 * @param codec
+	 *            the codec of the connection.
+	 * @return the object carried by the frame, or the <code>Control</code>
+	 *         of a control frame.
+	 * @exception IOException
+	 *                if an I/O error occurs or the frame is invalid.
+	 * @exception ClassNotFoundException
+	 *                if the class of the object is not available.
+	 */
+	public static Object readFrame(DataInputStream in, MessageCodec codec)
+			throws IOException, ClassNotFoundException {
+		int length = in.readInt();
+		if (length < 0)
+			return Control.forLength(length);
+		checkLength(length);
+
+		byte[] body = new byte[Math.min(length, INITIAL_BODY_LENGTH)];
+		in.readFully(body);
+		while (body.length < length) {
+			int count = body.length;
+			body = Arrays.copyOf(body, (int) Math.min(length, 2L * count));
+			in.readFully(body, count, body.length - count);
+		}
+		return codec.decode(body, 0, length);
+	}
+
+	// PRIVATE METHODS --------------------------------------------------
+
+	/**
+	 * Checks a complete hello and finds its codec, compressed as both the
+	 * hello and the other end allow.
+	 */
+	private static MessageCodec parseHello(byte[] hello, Compression accepted)
+			throws IOException {
+		if (!startsWith(ByteBuffer.wrap(hello), MAGIC))
+			throw new StreamCorruptedException("invalid hello");
+		if (hello[4] != PROTOCOL_VERSION)
+			throw new StreamCorruptedException("unsupported protocol version "
+					+ hello[4]);
+
+		MessageCodec codec = Codecs.forId(hello[5] & 0xFF);
+		if (codec == null)
+			throw new StreamCorruptedException("unknown codec " + (hello[5] & 0xFF));
+		return Compression.forFlags(hello[6] & 0xFF).min(accepted).wrap(codec);
+	}
+
+	/**
+	 * Checks whether a buffer starts with the given bytes, without moving
+	 * its position.
+	 */
+	private static boolean startsWith(ByteBuffer buffer, byte[] prefix) {
+		for (int i = 0; i < prefix.length; i++) {
+			if (buffer.get(buffer.position() + i) != prefix[i])
+				return false;
+		}
+		return true;
+	}
+
+	// INNER CLASSES ****************************************************
+
+	/**
+	 * The control frames, made of a negative length prefix alone.
+	 */
+	public enum Control {
+		/**
+		 * Asks the peer for a <code>PONG</code>, to find out whether it is
+		 * still there.
+		 */
+		PING(-1),
+
+		/**
+		 * Answers a <code>PING</code>.
+		 */
+		PONG(-2);
+
+		private final int	length;
+
+		private Control(int length) {
+			this.length = length;
+		}
+
+		/**
+		 * @return the length prefix standing for the control frame.
+		 */
+		public int getLength() {
+			return length;
+		}
+
+		/**
+		 * @return a new buffer holding the frame, positioned at its start.
+		 */
+		public ByteBuffer frame() {
+			return ByteBuffer.allocate(HEADER_LENGTH).putInt(0, length);
+		}
+
+		/**
+		 * Finds the control frame a negative length prefix stands for.
+		 *
+		 * @param length
+		 *            the length prefix.
+		 * @return the control frame.
+		 * @exception StreamCorruptedException
+		 *                if no control frame has that prefix.
+		 */
+		public static Control forLength(int length) throws StreamCorruptedException {
+			for (Control control : values()) {
+				if (control.length == length)
+					return control;
+			}
+			throw new StreamCorruptedException("invalid frame length " + length);
+		}
+	}
+
+	/**
+	 * A byte array stream that reserves room for the length prefix and hands
+	 * out its buffer without copying it.
+	 */
+	private static final class FrameBuffer extends ByteArrayOutputStream {
+		FrameBuffer() {
+			super(128);
+			count = HEADER_LENGTH;
+		}
+
+		ByteBuffer toFrame() throws IOException {
+			checkLength(count - HEADER_LENGTH);
+
+			ByteBuffer frame = ByteBuffer.wrap(buf, 0, count);
+			frame.putInt(0, count - HEADER_LENGTH);
+			return frame;
+		}
+	}
+}
+// End of Framing class
@@ -0,0 +1,185 @@
+package ocsf.common;
+
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The <code> Heartbeat </code> class keeps a connection alive and finds out
+ * when its peer is gone. The connection tells it whenever bytes are read or
+ * written; when nothing was written for the heartbeat interval, it has a
+ * <code>Framing.Control.PING</code> sent, which the peer answers, and when
+ * nothing was read for the idle timeout, it has the connection closed. A
+ * peer that vanished without closing its socket is thus found even though
+ * no read ever fails.
+ * <p>
+ * Each connection has a single timeout on the shared
+ * <code>TimerWheel</code>, set for the earliest moment something may be
+ * due. Traffic only updates two timestamps; when the timeout expires after
+ * traffic, it is set again from the timestamps instead of acting. The
+ * ping and the close are handed to <code>Threads.ioTasks()</code>, since
+ * they may block.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ *
+ * @see ocsf.common.Framing.Control
+ * @see ocsf.common.TimerWheel
+ */
+public final class Heartbeat {
+
+	// INSTANCE VARIABLES ***********************************************
+
+	/**
+	 * How long the connection may go without writing, in nanoseconds; 0 for
+	 * no heartbeats.
+	 */
+	private final long					intervalNanos;
+
+	/**
+	 * How long the connection may go without reading, in nanoseconds; 0 to
+	 * never close it.
+	 */
+	private final long					idleTimeoutNanos;
+
+	/**
+	 * Sends a ping to the peer.
+	 */
+	private final Runnable				ping;
+
+	/**
+	 * Closes the connection when the peer is silent too long.
+	 */
+	private final Runnable				idle;
+
+	/**
+	 * The <code>System.nanoTime</code> of the last read and write.
+	 */
+	private volatile long				lastRead;
+	private volatile long				lastWritten;
+
+	/**
+	 * The pending check, if started.
+	 */
+	private volatile TimerWheel.Timeout	timeout;
+
+	private volatile boolean			stopped;
+
+	// CONSTRUCTORS *****************************************************
+
+	/**
+	 * Constructs the heartbeat of a connection; it does nothing until
+	 * started.
+	 *
+	 * @param intervalMillis
+	 *            how long the connection may go without writing before a
+	 *            ping is sent, in ms; 0 for no pings.
+	 * @param idleTimeoutMillis
+	 *            how long the connection may go without reading before it is
+	 *            closed, in ms; 0 to never close it.
+	 * @param ping
+	 *            sends a ping.
+	 * @param idle
+	 *            closes the connection.
+	 */
+	public Heartbeat(long intervalMillis, long idleTimeoutMillis, Runnable ping,
+			Runnable idle) {
+		this.intervalNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, intervalMillis));
+		this.idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, idleTimeoutMillis));
+		this.ping = ping;
+		this.idle = idle;
+	}
+
+	// INSTANCE METHODS *************************************************
+
+	/**
+	 * @return true if an interval or an idle timeout is set.
+	 */
+	public boolean isEnabled() {
+		return intervalNanos > 0 || idleTimeoutNanos > 0;
+	}
+
+	/**
+	 * Records that bytes were read from the peer.
+	 */
+	public void read() {
+		lastRead = System.nanoTime();
+	}
+
+	/**
+	 * Records that bytes were written to the peer.
+	 */
+	public void written() {
+		lastWritten = System.nanoTime();
+	}
+
+	/**
+	 * Starts watching the connection, if an interval or an idle timeout is
+	 * set. To be called once the peer is known to answer pings.
+	 */
+	public void start() {
+		if (!isEnabled() || stopped)
+			return;
+
+		long now = System.nanoTime();
+		lastRead = now;
+		lastWritten = now;
+		schedule(now);
+	}
+
+	/**
+	 * Stops watching the connection, for good.
+	 */
+	public void stop() {
+		stopped = true;
+		TimerWheel.Timeout pending = timeout;
+		if (pending != null)
+			pending.cancel();
+	}
+
+	/**
+	 * Runs on the wheel thread when the pending check expires: closes the
+	 * connection if the peer has been silent too long, has a ping sent if
+	 * the connection has been quiet, and sets the next check.
+	 */
+	private void check() {
+		if (stopped)
+			return;
+
+		long now = System.nanoTime();
+		try {
+			if (idleTimeoutNanos > 0 && now - lastRead >= idleTimeoutNanos) {
+				stopped = true;
+				Threads.ioTasks().execute(idle);
+				return;
+			}
+			if (intervalNanos > 0 && now - lastWritten >= intervalNanos) {
+				// Counted as written now, so a slow write is not pinged again
+				lastWritten = now;
+				Threads.ioTasks().execute(ping);
+			}
+		} catch (RejectedExecutionException ex) {
+			return;
+		}
+		schedule(now);
+	}
+
+	/**
+	 * Sets the next check for the earliest moment a ping or the idle
+	 * timeout may be due.
+	 *
+	 * @param now
+	 *            the current <code>System.nanoTime</code>.
+	 */
+	private void schedule(long now) {
+		long delay = Long.MAX_VALUE;
+		if (intervalNanos > 0)
+			delay = Math.min(delay, lastWritten + intervalNanos - now);
+		if (idleTimeoutNanos > 0)
+			delay = Math.min(delay, lastRead + idleTimeoutNanos - now);
+
+		timeout = Threads.wheel().schedule(this::check, delay, TimeUnit.NANOSECONDS);
+		if (stopped)
+			timeout.cancel();
+	}
+}
+// End of Heartbeat class
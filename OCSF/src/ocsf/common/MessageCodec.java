@@ -0,0 +1,63 @@
+package ocsf.common;
+
+import java.io.*;
+
+/**
+ * A <code> MessageCodec </code> turns the objects exchanged by clients and
+ * servers into frame bodies and back. The codec of a connection is proposed
+ * by the client when it connects and identified on the wire by
+ * <code>getId()</code>, so both ends must have a codec registered under the
+ * same identifier in <code>Codecs</code>.
+ * <p>
+ * Implementations must be thread-safe: one instance serves every
+ * connection that uses it.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ *
+ * @see ocsf.common.Codecs
+ * @see ocsf.common.Framing
+ */
+public interface MessageCodec {
+
+	/**
+	 * @return the identifier of the codec on the wire, from 0 to 255.
+	 */
+	int getId();
+
+	/**
+	 * @return the name of the codec, as used in system properties.
+	 */
+	String getName();
+
+	/**
+	 * Writes the body of the frame carrying an object.
+	 *
+	 * @param msg
+	 *            the object to encode.
+	 * @param out
+	 *            where to write the body; the codec must not close it.
+	 * @exception IOException
+	 *                if the object cannot be encoded by this codec.
+	 */
+	void encode(Object msg, OutputStream out) throws IOException;
+
+	/**
+	 * Reads the object carried by a frame body.
+	 *
+	 * @param body
+	 *            the array holding the body.
+	 * @param offset
+	 *            where the body starts.
+	 * @param length
+	 *            the length of the body.
+	 * @return the decoded object.
+	 * @exception IOException
+	 *                if the body is not valid for this codec.
+	 * @exception ClassNotFoundException
+	 *                if the class of a decoded object is not available.
+	 */
+	Object decode(byte[] body, int offset, int length)
+			throws IOException, ClassNotFoundException;
+}
+// End of MessageCodec interface
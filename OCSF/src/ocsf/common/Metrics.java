@@ -0,0 +1,176 @@
+package ocsf.common;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.util.function.LongConsumer;
+
+import javax.management.*;
+
+/**
+ * The <code> Metrics </code> class holds what the counters of servers,
+ * connections and clients share: their registration as JMX MBeans and the
+ * streams counting the bytes of a socket. The counters themselves are
+ * <code>LongAdder</code>s, which threads update without contending, so
+ * they can stay on all the time.
+ * <p>
+ * MBeans are registered with the platform MBean server, in the
+ * <code>ocsf</code> domain, unless the <code>ocsf.jmx</code> system
+ * property is <code>false</code>. The connections of a server only get
+ * MBeans of their own if <code>ocsf.jmx.connections</code> is
+ * <code>true</code>, since a server may have thousands of them; their
+ * counters still add up in the MBean of the server.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ */
+public final class Metrics {
+
+	// CLASS VARIABLES **************************************************
+
+	/**
+	 * The system property turning off the registration of MBeans.
+	 */
+	public static final String	JMX_PROPERTY			= "ocsf.jmx";
+
+	/**
+	 * The system property turning on the MBeans of server connections.
+	 */
+	public static final String	CONNECTIONS_PROPERTY	= "ocsf.jmx.connections";
+
+	/**
+	 * The domain of the MBeans of the framework.
+	 */
+	public static final String	DOMAIN					= "ocsf";
+
+	// CONSTRUCTORS *****************************************************
+
+	private Metrics() {
+	}
+
+	// CLASS METHODS ****************************************************
+
+	/**
+	 * @return true unless the <code>ocsf.jmx</code> system property is
+	 *         <code>false</code>.
+	 */
+	public static boolean jmxEnabled() {
+		return !"false".equalsIgnoreCase(System.getProperty(JMX_PROPERTY));
+	}
+
+	/**
+	 * @return true if the connections of servers get MBeans of their own.
+	 */
+	public static boolean connectionMBeansEnabled() {
+		return jmxEnabled() && Boolean.getBoolean(CONNECTIONS_PROPERTY);
+	}
+
+	/**
+	 * Registers an MBean with the platform MBean server, replacing one
+	 * left under the same name. Metrics are not worth failing for, so a
+	 * registration that fails is ignored.
+	 *
+	 * @param mbean
+	 *            the MBean.
+	 * @param properties
+	 *            the key properties of its name, such as
+	 *            <code>type=Server,port=5555</code>.
+	 * @return its name, or null if it was not registered.
+	 */
+	public static ObjectName register(Object mbean, String properties) {
+		try {
+			ObjectName name = new ObjectName(DOMAIN + ":" + properties);
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			if (server.isRegistered(name))
+				server.unregisterMBean(name);
+			server.registerMBean(mbean, name);
+			return name;
+		} catch (JMException | RuntimeException ex) {
+			return null;
+		}
+	}
+
+	/**
+	 * Unregisters an MBean, if it is still registered.
+	 *
+	 * @param name
+	 *            its name, or null.
+	 */
+	public static void unregister(ObjectName name) {
+		if (name == null)
+			return;
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+		} catch (JMException | RuntimeException ex) {
+			// Already gone
+		}
+	}
+
+	/**
+	 * Quotes a value for the name of an MBean, if needed.
+	 *
+	 * @param value
+	 *            the value, such as a host name.
+	 * @return the value as it can appear in a name.
+	 */
+	public static String quote(String value) {
+		return value.matches("[\\w.-]*") ? value : ObjectName.quote(value);
+	}
+
+	/**
+	 * Counts the bytes read from a stream.
+	 *
+	 * @param in
+	 *            the stream.
+	 * @param bytes
+	 *            given the number of bytes of each read.
+	 * @return a stream reading through to <code>in</code>.
+	 */
+	public static InputStream countingInput(InputStream in, LongConsumer bytes) {
+		return new FilterInputStream(in) {
+			public int read() throws IOException {
+				int b = super.read();
+				if (b >= 0)
+					bytes.accept(1);
+				return b;
+			}
+
+			public int read(byte[] b, int off, int len) throws IOException {
+				int count = super.read(b, off, len);
+				if (count > 0)
+					bytes.accept(count);
+				return count;
+			}
+
+			public long skip(long n) throws IOException {
+				long count = super.skip(n);
+				if (count > 0)
+					bytes.accept(count);
+				return count;
+			}
+		};
+	}
+
+	/**
+	 * Counts the bytes written to a stream.
+	 *
+	 * @param out
+	 *            the stream.
+	 * @param bytes
+	 *            given the number of bytes of each write.
+	 * @return a stream writing through to <code>out</code>.
+	 */
+	public static OutputStream countingOutput(OutputStream out, LongConsumer bytes) {
+		return new FilterOutputStream(out) {
+			public void write(int b) throws IOException {
+				out.write(b);
+				bytes.accept(1);
+			}
+
+			public void write(byte[] b, int off, int len) throws IOException {
+				out.write(b, off, len);
+				bytes.accept(len);
+			}
+		};
+	}
+}
+// End of Metrics class
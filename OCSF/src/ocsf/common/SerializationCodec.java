@@ -0,0 +1,42 @@
+package ocsf.common;
+
+import java.io.*;
+
+/**
+ * The legacy codec: every frame body is a complete Java serialization stream
+ * holding one object. It carries any <code>Serializable</code> object, at
+ * the price of a stream header, class descriptors and reflection for every
+ * message. It is the codec used with clients that do not propose one.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ */
+public final class SerializationCodec implements MessageCodec {
+
+	/**
+	 * The identifier of this codec on the wire.
+	 */
+	public static final int	ID	= 0;
+
+	public int getId() {
+		return ID;
+	}
+
+	public String getName() {
+		return "java";
+	}
+
+	public void encode(Object msg, OutputStream out) throws IOException {
+		ObjectOutputStream stream = new ObjectOutputStream(out);
+		stream.writeObject(msg);
+		stream.flush();
+	}
+
+	public Object decode(byte[] body, int offset, int length)
+			throws IOException, ClassNotFoundException {
+		ObjectInputStream stream = new ObjectInputStream(
+				new ByteArrayInputStream(body, offset, length));
+		return stream.readObject();
+	}
+}
+// End of SerializationCodec class
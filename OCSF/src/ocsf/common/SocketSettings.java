@@ -0,0 +1,143 @@
+package ocsf.common;
+
+import java.net.*;
+
+/**
+ * A <code> SocketSettings </code> instance holds the TCP settings applied to
+ * the sockets of a client or a server: whether Nagle's algorithm is turned
+ * off, and the sizes of the kernel send and receive buffers. A size of 0
+ * leaves the operating system default. Instances are immutable.
+ * <p>
+ * With a flush policy that coalesces messages, turning on TCP_NODELAY lets
+ * each flush leave at once instead of waiting for the acknowledgement of
+ * the previous segment.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ *
+ * @see ocsf.common.FlushPolicy
+ */
+public final class SocketSettings {
+
+	// CLASS VARIABLES **************************************************
+
+	/**
+	 * The system property giving the default of <code>tcpNoDelay</code>.
+	 */
+	public static final String	TCP_NO_DELAY_PROPERTY		= "ocsf.tcpNoDelay";
+
+	/**
+	 * The system property giving the default send buffer size, in bytes.
+	 */
+	public static final String	SEND_BUFFER_PROPERTY		= "ocsf.sendBufferSize";
+
+	/**
+	 * The system property giving the default receive buffer size, in bytes.
+	 */
+	public static final String	RECEIVE_BUFFER_PROPERTY		= "ocsf.receiveBufferSize";
+
+	// INSTANCE VARIABLES ***********************************************
+
+	/**
+	 * Indicates if Nagle's algorithm is turned off.
+	 */
+	private final boolean		tcpNoDelay;
+
+	/**
+	 * The size of the kernel send buffer; 0 for the default.
+	 */
+	private final int			sendBufferSize;
+
+	/**
+	 * The size of the kernel receive buffer; 0 for the default.
+	 */
+	private final int			receiveBufferSize;
+
+	// CONSTRUCTORS *****************************************************
+
+	/**
+	 * Constructs socket options.
+	 *
+	 * @param tcpNoDelay
+	 *            true to turn off Nagle's algorithm.
+	 * @param sendBufferSize
+	 *            the size of the kernel send buffer, or 0.
+	 * @param receiveBufferSize
+	 *            the size of the kernel receive buffer, or 0.
+	 */
+	public SocketSettings(boolean tcpNoDelay, int sendBufferSize,
+			int receiveBufferSize) {
+		this.tcpNoDelay = tcpNoDelay;
+		this.sendBufferSize = Math.max(0, sendBufferSize);
+		this.receiveBufferSize = Math.max(0, receiveBufferSize);
+	}
+
+	// CLASS METHODS ****************************************************
+
+	/**
+	 * @return the options given by the <code>ocsf.tcpNoDelay</code>,
+	 *         <code>ocsf.sendBufferSize</code> and
+	 *         <code>ocsf.receiveBufferSize</code> system properties.
+	 */
+	public static SocketSettings fromSystemProperties() {
+		return new SocketSettings(Boolean.getBoolean(TCP_NO_DELAY_PROPERTY),
+				Integer.getInteger(SEND_BUFFER_PROPERTY, 0),
+				Integer.getInteger(RECEIVE_BUFFER_PROPERTY, 0));
+	}
+
+	// INSTANCE METHODS *************************************************
+
+	/**
+	 * Applies the options to a connected socket.
+	 *
+	 * @param socket
+	 *            the socket.
+	 * @exception SocketException
+	 *                if an option cannot be set.
+	 */
+	public void apply(Socket socket) throws SocketException {
+		socket.setTcpNoDelay(tcpNoDelay);
+		if (sendBufferSize > 0)
+			socket.setSendBufferSize(sendBufferSize);
+		if (receiveBufferSize > 0)
+			socket.setReceiveBufferSize(receiveBufferSize);
+	}
+
+	/**
+	 * Applies the receive buffer size to a server socket, before it is
+	 * bound, so that accepted sockets can use a window larger than 64 KB.
+	 *
+	 * @param socket
+	 *            the server socket.
+	 * @exception SocketException
+	 *                if the option cannot be set.
+	 */
+	public void apply(ServerSocket socket) throws SocketException {
+		if (receiveBufferSize > 0)
+			socket.setReceiveBufferSize(receiveBufferSize);
+	}
+
+	// ACCESSING METHODS ------------------------------------------------
+
+	/**
+	 * @return true if Nagle's algorithm is turned off.
+	 */
+	public boolean isTcpNoDelay() {
+		return tcpNoDelay;
+	}
+
+	/**
+	 * @return the size of the kernel send buffer, or 0 for the default.
+	 */
+	public int getSendBufferSize() {
+		return sendBufferSize;
+	}
+
+	/**
+	 * @return the size of the kernel receive buffer, or 0 for the default.
+	 */
+	public int getReceiveBufferSize() {
+		return receiveBufferSize;
+	}
+}
+// End of SocketSettings class
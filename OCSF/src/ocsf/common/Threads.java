@@ -0,0 +1,141 @@
+package ocsf.common;
+
+import java.util.concurrent.*;
+
+/**
+ * The <code> Threads </code> class creates the reader threads of clients and
+ * connections, and owns the timers and the pool shared by the framework. Virtual threads
+ * are looked up reflectively so that the framework still compiles and runs
+ * on releases that predate them; on such a release
+ * <code>virtualThreadsSupported()</code> returns false.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ */
+public final class Threads {
+
+	// CLASS VARIABLES **************************************************
+
+	/**
+	 * Creates unstarted virtual threads; null if the runtime has none.
+	 */
+	private static final ThreadFactory	VIRTUAL_THREADS	= lookupVirtualThreadFactory();
+
+	/**
+	 * The shared timer; created when first needed.
+	 */
+	private static ScheduledExecutorService	timer;
+
+	/**
+	 * The shared timer wheel; created when first needed.
+	 */
+	private static TimerWheel				wheel;
+
+	/**
+	 * The shared pool for tasks that may block; created when first needed.
+	 */
+	private static ExecutorService			ioTasks;
+
+	// CONSTRUCTORS *****************************************************
+
+	private Threads() {
+	}
+
+	// CLASS METHODS ****************************************************
+
+	/**
+	 * @return true if the running Java release provides virtual threads.
+	 */
+	public static boolean virtualThreadsSupported() {
+		return VIRTUAL_THREADS != null;
+	}
+
+	/**
+	 * Returns a factory of unstarted reader threads.
+	 *
+	 * @param virtual
+	 *            true for virtual threads, false for platform threads.
+	 * @return the factory.
+	 * @exception UnsupportedOperationException
+	 *                if virtual threads are asked for but the runtime has
+	 *                none.
+	 */
+	public static ThreadFactory readerThreads(boolean virtual) {
+		if (!virtual)
+			return Thread::new;
+		if (VIRTUAL_THREADS == null)
+			throw new UnsupportedOperationException(
+					"virtual threads require Java 21 or later");
+		return VIRTUAL_THREADS;
+	}
+
+	/**
+	 * Returns the timer shared by the framework for short delayed tasks,
+	 * such as timed flushes. It runs on a single daemon thread, so tasks
+	 * must not block.
+	 *
+	 * @return the timer.
+	 */
+	public static synchronized ScheduledExecutorService timer() {
+		if (timer == null) {
+			ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1,
+					task -> {
+						Thread thread = new Thread(task, "ocsf-timer");
+						thread.setDaemon(true);
+						return thread;
+					});
+			executor.setRemoveOnCancelPolicy(true);
+			timer = executor;
+		}
+		return timer;
+	}
+
+	/**
+	 * Returns the timer wheel shared by the framework for the timeouts kept
+	 * per connection, such as heartbeats. It ticks every 100 ms and runs
+	 * its tasks on a single daemon thread, so tasks must not block.
+	 *
+	 * @return the wheel.
+	 */
+	public static synchronized TimerWheel wheel() {
+		if (wheel == null)
+			wheel = new TimerWheel("ocsf-wheel", 100, 512);
+		return wheel;
+	}
+
+	/**
+	 * Returns the pool shared by the framework for short tasks the timers
+	 * hand over because they may block, such as writing a heartbeat to a
+	 * client that does not read. Its daemon threads are created as needed
+	 * and end after a minute unused.
+	 *
+	 * @return the pool.
+	 */
+	public static synchronized ExecutorService ioTasks() {
+		if (ioTasks == null) {
+			ioTasks = Executors.newCachedThreadPool(task -> {
+				Thread thread = new Thread(task, "ocsf-io");
+				thread.setDaemon(true);
+				return thread;
+			});
+		}
+		return ioTasks;
+	}
+
+	/**
+	 * Finds <code>Thread.ofVirtual().factory()</code> if it exists.
+	 *
+	 * @return the factory, or null.
+	 */
+	private static ThreadFactory lookupVirtualThreadFactory() {
+		try {
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			return (ThreadFactory) Class.forName("java.lang.Thread$Builder")
+					.getMethod("factory").invoke(builder);
+		} catch (ReflectiveOperationException | RuntimeException ex) {
+			// Not available, or only as a disabled preview feature
+			return null;
+		}
+	}
+}
+// End of Threads class
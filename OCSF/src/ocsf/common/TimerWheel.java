@@ -0,0 +1,270 @@
+package ocsf.common;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The <code> TimerWheel </code> class runs delayed tasks with the precision
+ * of a tick, for very many timeouts that are mostly cancelled or pushed
+ * back, such as the heartbeats of connections. A timeout lands in the
+ * bucket of the tick it expires at, modulo the number of buckets; each
+ * tick, the wheel thread visits a single bucket and runs the timeouts of
+ * that bucket that are due in this round. Scheduling and cancelling cost
+ * the same whatever the number of timeouts, where a
+ * <code>ScheduledThreadPoolExecutor</code> would keep them all in a heap.
+ * <p>
+ * Threads that schedule only queue the timeout; the wheel thread moves it
+ * into its bucket at the next tick. A cancelled timeout is dropped when its
+ * bucket is visited. Tasks run on the wheel thread, one after the other, so
+ * they must not block.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ *
+ * @see ocsf.common.Threads#wheel()
+ */
+public final class TimerWheel {
+
+	// INSTANCE VARIABLES ***********************************************
+
+	/**
+	 * The duration of a tick, in nanoseconds.
+	 */
+	private final long					tickNanos;
+
+	/**
+	 * The buckets, each the head of a list of timeouts linked by
+	 * <code>next</code>. Only the wheel thread touches them.
+	 */
+	private final Timeout[]				buckets;
+
+	private final int					mask;
+
+	/**
+	 * The timeouts scheduled since the last tick.
+	 */
+	private final Queue<Timeout>		pending	= new ConcurrentLinkedQueue<>();
+
+	/**
+	 * The <code>System.nanoTime</code> deadlines are counted from.
+	 */
+	private final long					startTime;
+
+	/**
+	 * The number of ticks done. Only the wheel thread touches it.
+	 */
+	private long						tick;
+
+	private volatile boolean			stopped;
+
+	private final Thread				worker;
+
+	// CONSTRUCTORS *****************************************************
+
+	/**
+	 * Constructs a wheel and starts its thread, a daemon.
+	 *
+	 * @param name
+	 *            the name of the thread.
+	 * @param tickMillis
+	 *            the duration of a tick, in ms.
+	 * @param bucketCount
+	 *            the number of buckets, rounded up to a power of 2; a
+	 *            timeout is looked at once per turn of the wheel until it
+	 *            is due.
+	 */
+	public TimerWheel(String name, long tickMillis, int bucketCount) {
+		if (tickMillis < 1 || bucketCount < 1)
+			throw new IllegalArgumentException("tick and bucket count must be positive");
+
+		int size = Integer.highestOneBit(bucketCount);
+		if (size < bucketCount)
+			size <<= 1;
+		this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+		this.buckets = new Timeout[size];
+		this.mask = size - 1;
+		this.startTime = System.nanoTime();
+
+		worker = new Thread(this::run, name);
+		worker.setDaemon(true);
+		worker.start();
+	}
+
+	// INSTANCE METHODS *************************************************
+
+	/**
+	 * Schedules a task. It runs on the wheel thread at the first tick at or
+	 * after the delay, so up to a tick late.
+	 *
+	 * @param task
+	 *            the task, which must not block.
+	 * @param delay
+	 *            the delay.
+	 * @param unit
+	 *            the unit of the delay.
+	 * @return the timeout, to cancel the task.
+	 * @exception RejectedExecutionException
+	 *                if the wheel is stopped.
+	 */
+	public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+		if (stopped)
+			throw new RejectedExecutionException("timer wheel stopped");
+
+		Timeout timeout = new Timeout(task,
+				System.nanoTime() - startTime + Math.max(0, unit.toNanos(delay)));
+		pending.add(timeout);
+		return timeout;
+	}
+
+	/**
+	 * Stops the wheel thread. Tasks not yet run never will be.
+	 */
+	public void stop() {
+		stopped = true;
+		worker.interrupt();
+	}
+
+	/**
+	 * The loop of the wheel thread: waits for each tick, then places the
+	 * new timeouts and expires the bucket of the tick.
+	 */
+	private void run() {
+		while (!stopped) {
+			long deadline = (tick + 1) * tickNanos;
+			long wait;
+			while ((wait = deadline - (System.nanoTime() - startTime)) > 0) {
+				try {
+					TimeUnit.NANOSECONDS.sleep(wait);
+				} catch (InterruptedException e) {
+					if (stopped)
+						return;
+				}
+			}
+
+			placePending();
+			expire(buckets[(int) (tick & mask)], deadline);
+			tick++;
+		}
+	}
+
+	/**
+	 * Moves the timeouts scheduled since the last tick into their buckets.
+	 * One already due goes into the bucket of the current tick.
+	 */
+	private void placePending() {
+		Timeout timeout;
+		while ((timeout = pending.poll()) != null) {
+			if (timeout.state.get() != Timeout.WAITING)
+				continue;
+
+			long ticks = timeout.deadline / tickNanos;
+			timeout.rounds = (ticks - tick) / buckets.length;
+			int index = (int) (Math.max(ticks, tick) & mask);
+
+			timeout.next = buckets[index];
+			buckets[index] = timeout;
+		}
+	}
+
+	/**
+	 * Runs the timeouts of a bucket due by the end of the current tick,
+	 * counts down the rounds of the others, and unlinks the timeouts
+	 * cancelled or run.
+	 */
+	private void expire(Timeout head, long deadline) {
+		Timeout previous = null;
+		Timeout timeout = head;
+
+		while (timeout != null) {
+			Timeout next = timeout.next;
+			boolean remove = timeout.state.get() != Timeout.WAITING;
+
+			if (!remove && timeout.rounds <= 0) {
+				remove = true;
+				if (timeout.state.compareAndSet(Timeout.WAITING, Timeout.EXPIRED)) {
+					try {
+						timeout.task.run();
+					} catch (RuntimeException ex) {
+						// A failing task must not stop the others
+					}
+				}
+			} else if (!remove) {
+				timeout.rounds--;
+			}
+
+			if (remove) {
+				if (previous == null)
+					buckets[(int) (tick & mask)] = next;
+				else
+					previous.next = next;
+				timeout.next = null;
+			} else {
+				previous = timeout;
+			}
+			timeout = next;
+		}
+	}
+
+	// INNER CLASSES ****************************************************
+
+	/**
+	 * A task scheduled on the wheel.
+	 */
+	public static final class Timeout {
+		private static final int		WAITING		= 0;
+		private static final int		CANCELLED	= 1;
+		private static final int		EXPIRED		= 2;
+
+		private final Runnable			task;
+
+		/**
+		 * When the task is due, in nanoseconds from the start of the wheel.
+		 */
+		private final long				deadline;
+
+		private final AtomicInteger		state		= new AtomicInteger(WAITING);
+
+		/**
+		 * The number of turns of the wheel left before the task is due.
+		 * Only the wheel thread touches it.
+		 */
+		private long					rounds;
+
+		/**
+		 * The next timeout of the bucket. Only the wheel thread touches it.
+		 */
+		private Timeout					next;
+
+		private Timeout(Runnable task, long deadline) {
+			this.task = task;
+			this.deadline = deadline;
+		}
+
+		/**
+		 * Cancels the task if it has not run.
+		 *
+		 * @return true if it was cancelled by this call.
+		 */
+		public boolean cancel() {
+			return state.compareAndSet(WAITING, CANCELLED);
+		}
+
+		/**
+		 * @return true if the task was cancelled.
+		 */
+		public boolean isCancelled() {
+			return state.get() == CANCELLED;
+		}
+
+		/**
+		 * @return true if the task ran, or is running.
+		 */
+		public boolean isExpired() {
+			return state.get() == EXPIRED;
+		}
+	}
+}
+// End of TimerWheel class
@@ -0,0 +1,89 @@
+package ocsf.common;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The <code> TokenBucket </code> class limits how often something happens:
+ * a bucket holds up to <i>burst</i> tokens, earns one every
+ * <code>1 / rate</code> seconds, and each event takes one. Events may come
+ * in bursts as long as their average stays under the rate.
+ * <p>
+ * The bucket keeps no count of tokens and no timer. Its whole state is the
+ * moment it will be full again if nothing more is taken, in a single
+ * <code>AtomicLong</code>: taking a token pushes that moment back by one
+ * interval, and is refused when it would go further than a burst ahead of
+ * now. Threads taking tokens at once only retry a compare-and-set; no lock
+ * is ever held.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ */
+public final class TokenBucket {
+
+	// INSTANCE VARIABLES ***********************************************
+
+	/**
+	 * The time it takes to earn a token, in nanoseconds.
+	 */
+	private final long			intervalNanos;
+
+	/**
+	 * The time it takes to fill the empty bucket, in nanoseconds.
+	 */
+	private final long			burstNanos;
+
+	/**
+	 * The <code>System.nanoTime</code> at which the bucket is full again;
+	 * in the past if it already is.
+	 */
+	private final AtomicLong	fullAt;
+
+	// CONSTRUCTORS *****************************************************
+
+	/**
+	 * Constructs a full bucket.
+	 *
+	 * @param ratePerSecond
+	 *            the number of tokens earned per second.
+	 * @param burst
+	 *            the number of tokens the bucket holds, at least 1.
+	 */
+	public TokenBucket(double ratePerSecond, int burst) {
+		if (!(ratePerSecond > 0) || burst < 1)
+			throw new IllegalArgumentException("rate and burst must be positive");
+
+		this.intervalNanos = Math.max(1, Math.round(1e9 / ratePerSecond));
+		this.burstNanos = intervalNanos * burst;
+		this.fullAt = new AtomicLong(System.nanoTime());
+	}
+
+	// INSTANCE METHODS *************************************************
+
+	/**
+	 * Takes a token if there is one.
+	 *
+	 * @return 0 if a token was taken; otherwise how long until there is
+	 *         one, in nanoseconds.
+	 */
+	public long tryAcquire() {
+		long now = System.nanoTime();
+		for (;;) {
+			long current = fullAt.get();
+			long next = (current - now < 0 ? now : current) + intervalNanos;
+			long wait = next - now - burstNanos;
+			if (wait > 0)
+				return wait;
+			if (fullAt.compareAndSet(current, next))
+				return 0;
+		}
+	}
+
+	/**
+	 * @return how long until the bucket is full, in nanoseconds; 0 if it
+	 *         is.
+	 */
+	public long getRefillNanos() {
+		return Math.max(0, fullAt.get() - System.nanoTime());
+	}
+}
+// End of TokenBucket class
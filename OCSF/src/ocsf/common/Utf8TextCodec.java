@@ -0,0 +1,40 @@
+package ocsf.common;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A codec for plain text chat: every frame body is the UTF-8 encoding of
+ * one <code>String</code>, with nothing else. Other objects cannot be sent.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ */
+public final class Utf8TextCodec implements MessageCodec {
+
+	/**
+	 * The identifier of this codec on the wire.
+	 */
+	public static final int	ID	= 1;
+
+	public int getId() {
+		return ID;
+	}
+
+	public String getName() {
+		return "utf8";
+	}
+
+	public void encode(Object msg, OutputStream out) throws IOException {
+		if (!(msg instanceof String))
+			throw new NotSerializableException("utf8 codec cannot send "
+					+ (msg == null ? "null" : msg.getClass().getName()));
+
+		out.write(((String) msg).getBytes(StandardCharsets.UTF_8));
+	}
+
+	public Object decode(byte[] body, int offset, int length) {
+		return new String(body, offset, length, StandardCharsets.UTF_8);
+	}
+}
+// End of Utf8TextCodec class
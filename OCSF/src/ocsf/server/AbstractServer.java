@@ -5,27 +5,54 @@
 package ocsf.server;
 
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicReference;
 import java.io.*;
 
+import ocsf.common.*;
+
 /**
  * The <code> AbstractServer </code> class maintains a thread that waits
  * for connection attempts from clients. When a connection attempt occurs
  * it creates a new <code> ConnectionToClient </code> instance which
- * runs as a thread. When a client is thus connected to the
+ * runs in its own thread, a platform thread or, with
+ * <code>ServerEngine.VIRTUAL_THREAD</code>, a virtual thread. When a client is thus connected to the
  * server, the two programs can then exchange <code> Object </code>
  * instances.
  * <p>
  *
+ * Alternatively, a server constructed with <code>ServerEngine.NIO</code>
+ * services all its clients from a small pool of selector event loops
+ * instead of one thread per client. The hook methods are called in the
+ * same way whichever engine is used.
+ * <p>
+ *
+ * Connections are accepted by one or more acceptor threads waiting on
+ * selectors, see <code>setAcceptorCount</code>; they hand each connection
+ * over to be set up and are woken up as soon as the server stops
+ * listening.
+ * <p>
+ *
  * Method <code> handleMessageFromClient </code> must be defined by
  * a concrete subclass. Several other hook methods may also be
- * overriden.
+ * overriden. Messages from one client are handled one at a time and in
+ * order, but messages from different clients are handled concurrently;
+ * see <code>setDispatchThreads</code>.
  * <p>
  *
  * Several public service methods are provided to applications that use
  * this framework, and several hook methods are also available
  * <p>
  *
+ * The server counts its traffic as it goes, in the
+ * <code>ServerMetrics</code> returned by <code>getMetrics</code>, which
+ * is also a JMX MBean while the server is listening; each connection
+ * has <code>ConnectionMetrics</code> of its own.
+ * <p>
+ *
  * Project Name: OCSF (Object Client-Server Framework)
  * <p>
  *
@@ -35,14 +62,26 @@ import java.io.*;
  * @author Paul Holden
  * @version 2.12
  * @see ocsf.server.ConnectionToClient
+ * @see ocsf.server.ServerEngine
+ * @see ocsf.server.ServerMetrics
  */
 public abstract class AbstractServer implements Runnable {
+  // CLASS VARIABLES *************************************************
+
+  /**
+   * The largest number of connections an acceptor takes from the
+   * backlog before looking again whether it should stop.
+   */
+  private static final int ACCEPT_BATCH = 64;
+
   // INSTANCE VARIABLES *********************************************
 
   /**
-   * The server socket: listens for clients who want to connect.
+   * The server sockets, listening for clients who want to connect: one
+   * per acceptor when they are bound with SO_REUSEPORT, a single one
+   * shared by the acceptors otherwise. Null while the server is closed.
    */
-  private ServerSocket serverSocket = null;
+  private ServerSocketChannel[] serverChannels = null;
 
   /**
    * The connection listener thread.
@@ -55,51 +94,247 @@ public abstract class AbstractServer implements Runnable {
   private int port;
 
   /**
-   * The server timeout while for accepting connections.
-   * After timing out, the server will check to see if a command to
-   * stop the server has been issued; it not it will resume accepting
-   * connections.
-   * Set to half a second by default.
+   * The maximum queue length; i.e. the maximum number of clients that
+   * can be waiting to connect. Taken from the
+   * <code>ocsf.server.backlog</code> system property, 1024 by default;
+   * the operating system may cap it lower.
    */
-  private int timeout = 500;
+  private int backlog = Math.max(1, Integer.getInteger("ocsf.server.backlog", 1024));
 
   /**
-   * The maximum queue length; i.e. the maximum number of clients that
-   * can be waiting to connect.
-   * Set to 10 by default.
+   * The number of threads accepting connections. Taken from the
+   * <code>ocsf.server.acceptors</code> system property, 1 by default.
+   */
+  private int acceptorCount = Math.max(1, Integer.getInteger("ocsf.server.acceptors", 1));
+
+  /**
+   * The selectors the acceptors are waiting on, so that
+   * <code>stopListening</code> can wake them up.
    */
-  private int backlog = 10;
+  private final Set<Selector> acceptSelectors = ConcurrentHashMap.newKeySet();
 
   /**
-   * The thread group associated with client threads. Each member of the
-   * thread group is a <code> ConnectionToClient </code>.
+   * Sets up the accepted connections, reading their hello, off the
+   * acceptors while the server socket is open with an engine that uses one
+   * thread per client; null otherwise.
    */
-  private ThreadGroup clientThreadGroup;
+  private ExecutorService connectionSetup;
+
+  /**
+   * The connections currently open, whichever engine services them,
+   * by connection ID and login ID. A connection is added when it is set
+   * up and removed when it is closed.
+   */
+  private final ClientRegistry clients = new ClientRegistry();
+
+  /**
+   * Creates the reader threads of connections while the server socket is
+   * open with an engine that uses one thread per client.
+   */
+  private ThreadFactory readerThreads;
 
   /**
    * Indicates if the listening thread is ready to stop. Set to
    * false by default.
    */
-  private boolean readyToStop = false;
+  private volatile boolean readyToStop = false;
+
+  /**
+   * The engine used to service clients the next time the server socket
+   * is opened.
+   */
+  private ServerEngine engine;
+
+  /**
+   * The number of event loop threads of the NIO engine.
+   * Set to the number of available processors by default.
+   */
+  private int eventLoopCount = Runtime.getRuntime().availableProcessors();
+
+  /**
+   * The NIO engine servicing the clients while the server socket is open
+   * with <code>ServerEngine.NIO</code>; null otherwise.
+   */
+  private NioServerEngine nioEngine;
+
+  /**
+   * The number of dispatch stripes used for the next server socket;
+   * 0 to handle messages on the thread that read them.
+   * Taken from the <code>ocsf.server.dispatchThreads</code> system
+   * property, 0 by default.
+   */
+  private int dispatchThreads =
+      Math.max(0, Integer.getInteger("ocsf.server.dispatchThreads", 0));
+
+  /**
+   * The number of messages each connection may have waiting to be
+   * written; 0 for no outbound queue. Taken from the
+   * <code>ocsf.server.outboundQueueCapacity</code> system property,
+   * 0 by default.
+   */
+  private int outboundQueueCapacity =
+      Math.max(0, Integer.getInteger("ocsf.server.outboundQueueCapacity", 0));
+
+  /**
+   * What happens to a message sent to a client whose outbound queue is
+   * full. Taken from the <code>ocsf.server.slowConsumerPolicy</code>
+   * system property, <code>DISCONNECT</code> by default.
+   */
+  private SlowConsumerPolicy slowConsumerPolicy = SlowConsumerPolicy.valueOf(
+      System.getProperty("ocsf.server.slowConsumerPolicy", "DISCONNECT")
+          .trim().toUpperCase());
+
+  /**
+   * How long a sender waits for room with <code>BLOCK</code>, in ms.
+   * Set to one second by default.
+   */
+  private long slowConsumerTimeout = 1000;
+
+  /**
+   * Runs the writers of the outbound queues while the server socket is
+   * open with an engine that uses one thread per client and a non-zero
+   * queue capacity; null otherwise.
+   */
+  private ExecutorService outboundWriters;
+
+  /**
+   * When the bytes written to a connection are flushed to its socket.
+   * Taken from the <code>ocsf.flushPolicy</code> system property,
+   * <code>IMMEDIATE</code> by default.
+   */
+  private FlushPolicy flushPolicy = FlushPolicy.fromSystemProperty();
+
+  /**
+   * The delay of <code>FlushPolicy.MAX_DELAY</code>, in ms. Taken from
+   * the <code>ocsf.flushDelayMillis</code> system property, 5 ms by
+   * default.
+   */
+  private long flushDelay = FlushPolicy.delayFromSystemProperty();
+
+  /**
+   * The TCP settings of the server socket and the accepted sockets.
+   * Taken from the <code>ocsf.tcpNoDelay</code>,
+   * <code>ocsf.sendBufferSize</code> and
+   * <code>ocsf.receiveBufferSize</code> system properties.
+   */
+  private SocketSettings socketSettings = SocketSettings.fromSystemProperties();
+
+  /**
+   * The strongest compression accepted from framing clients. Taken from
+   * the <code>ocsf.compression</code> system property,
+   * <code>DICTIONARY</code> by default.
+   */
+  private Compression compression = Compression.fromSystemProperty(Compression.DICTIONARY);
+
+  /**
+   * How long a connection may go without writing before it pings its
+   * client, in ms; 0 for no heartbeats. Taken from the
+   * <code>ocsf.server.heartbeatMillis</code> system property, 0 by default.
+   */
+  private long heartbeatMillis =
+      Math.max(0, Long.getLong("ocsf.server.heartbeatMillis", 0));
+
+  /**
+   * How long a connection may go without reading before it is closed, in
+   * ms; 0 to never close it. Taken from the
+   * <code>ocsf.server.idleTimeoutMillis</code> system property, 0 by
+   * default.
+   */
+  private long idleTimeoutMillis =
+      Math.max(0, Long.getLong("ocsf.server.idleTimeoutMillis", 0));
+
+  /**
+   * How long an accepted connection may take to send its hello before it
+   * is closed, in ms; 0 to wait forever. Taken from the
+   * <code>ocsf.server.helloTimeoutMillis</code> system property, 10
+   * seconds by default.
+   */
+  private long helloTimeoutMillis =
+      Math.max(0, Long.getLong("ocsf.server.helloTimeoutMillis", 10000));
+
+  /**
+   * The number of messages per second each connection may send; 0 for no
+   * limit. Taken from the <code>ocsf.server.rateLimit</code> system
+   * property, 0 by default.
+   */
+  private double rateLimit = Math.max(0,
+      Double.parseDouble(System.getProperty("ocsf.server.rateLimit", "0")));
+
+  /**
+   * The number of messages a connection may send at once, above its rate;
+   * 0 for a second's worth. Taken from the
+   * <code>ocsf.server.rateBurst</code> system property, 0 by default.
+   */
+  private int rateBurst =
+      Math.max(0, Integer.getInteger("ocsf.server.rateBurst", 0));
+
+  /**
+   * The number of messages per second all the connections of a login ID
+   * may send together; 0 for no limit. Taken from the
+   * <code>ocsf.server.loginRateLimit</code> system property, 0 by default.
+   */
+  private double loginRateLimit = Math.max(0,
+      Double.parseDouble(System.getProperty("ocsf.server.loginRateLimit", "0")));
+
+  /**
+   * The number of messages a login ID may send at once, above its rate;
+   * 0 for a second's worth. Taken from the
+   * <code>ocsf.server.loginRateBurst</code> system property, 0 by default.
+   */
+  private int loginRateBurst =
+      Math.max(0, Integer.getInteger("ocsf.server.loginRateBurst", 0));
+
+  /**
+   * What happens to a message over a rate limit. Taken from the
+   * <code>ocsf.server.rateLimitPolicy</code> system property,
+   * <code>THROTTLE</code> by default.
+   */
+  private RateLimitPolicy rateLimitPolicy = RateLimitPolicy.valueOf(
+      System.getProperty("ocsf.server.rateLimitPolicy", "THROTTLE")
+          .trim().toUpperCase());
+
+  /**
+   * The token buckets of the login IDs that sent messages recently. A
+   * bucket outlives the connections of its login ID until it is full
+   * again, so logging in anew does not reset the limit.
+   */
+  private final ConcurrentMap<String, TokenBucket> loginBuckets =
+      new ConcurrentHashMap<>();
+
+  /**
+   * The stripes handling messages while the server socket is open with
+   * <code>dispatchThreads</code> greater than 0; null otherwise.
+   */
+  private OrderedDispatcher dispatcher;
+
+  /**
+   * The counters of the traffic of the server.
+   */
+  private final ServerMetrics metrics = new ServerMetrics(this);
 
   // CONSTRUCTOR ******************************************************
 
   /**
-   * Constructs a new server.
+   * Constructs a new server. The engine is taken from the
+   * <code>ocsf.server.engine</code> system property, and is
+   * <code>ServerEngine.THREAD_PER_CLIENT</code> if the property is not set.
    *
    * @param port the port number on which to listen.
    */
   public AbstractServer(int port) {
-    this.port = port;
+    this(port, ServerEngine.fromSystemProperty());
+  }
 
-    this.clientThreadGroup = new ThreadGroup("ConnectionToClient threads") {
-      // All uncaught exceptions in connection threads will
-      // be sent to the clientException callback method.
-      public void uncaughtException(
-          Thread thread, Throwable exception) {
-        clientException((ConnectionToClient) thread, exception);
-      }
-    };
+  /**
+   * Constructs a new server that services its clients with the given
+   * engine.
+   *
+   * @param port   the port number on which to listen.
+   * @param engine the engine servicing the clients.
+   */
+  public AbstractServer(int port, ServerEngine engine) {
+    this.port = port;
+    this.engine = engine;
   }
 
   // INSTANCE METHODS *************************************************
@@ -111,14 +346,36 @@ public abstract class AbstractServer implements Runnable {
    *
    * @exception IOException if an I/O error occurs
    *                        when creating the server socket.
+   * @exception UnsupportedOperationException if the engine is
+   *                        <code>VIRTUAL_THREAD</code> and the runtime
+   *                        has no virtual threads.
    */
   final public void listen() throws IOException {
     if (!isListening()) {
-      if (serverSocket == null) {
-        serverSocket = new ServerSocket(getPort(), backlog);
+      if (serverChannels == null) {
+        ThreadFactory threads = engine == ServerEngine.NIO ? null
+            : Threads.readerThreads(engine == ServerEngine.VIRTUAL_THREAD);
+        ServerSocketChannel[] channels = openServerChannels();
+        if (engine == ServerEngine.NIO) {
+          try {
+            nioEngine = new NioServerEngine(this, eventLoopCount);
+          } catch (IOException ex) {
+            closeServerChannels(channels);
+            throw ex;
+          }
+          nioEngine.start();
+        } else {
+          readerThreads = threads;
+          connectionSetup = Executors.newCachedThreadPool(threads);
+          if (outboundQueueCapacity > 0)
+            outboundWriters = Executors.newCachedThreadPool(threads);
+        }
+        serverChannels = channels;
+        if (dispatchThreads > 0)
+          dispatcher = new OrderedDispatcher(dispatchThreads);
+        metrics.register();
       }
 
-      serverSocket.setSoTimeout(timeout);
       readyToStop = false;
       connectionListener = new Thread(this);
       connectionListener.start();
@@ -130,6 +387,8 @@ public abstract class AbstractServer implements Runnable {
    */
   final public void stopListening() {
     readyToStop = true;
+    for (Selector selector : acceptSelectors)
+      selector.wakeup();
   }
 
   /**
@@ -145,29 +404,53 @@ public abstract class AbstractServer implements Runnable {
    *                        closing the server socket.
    */
   final synchronized public void close() throws IOException {
-    if (serverSocket == null)
+    if (serverChannels == null)
       return;
     stopListening();
     try {
-      serverSocket.close();
+      closeServerChannels(serverChannels);
     } finally {
       // Close the client sockets of the already connected clients
-      Thread[] clientThreadList = getClientConnections();
-      for (int i = 0; i < clientThreadList.length; i++) {
+      ConnectionToClient[] clientList = getClientConnections();
+      for (int i = 0; i < clientList.length; i++) {
         try {
-          ((ConnectionToClient) clientThreadList[i]).close();
+          clientList[i].close();
         }
         // Ignore all exceptions when closing clients.
         catch (Exception ex) {
         }
       }
-      serverSocket = null;
+      serverChannels = null;
+      readerThreads = null;
+      if (connectionSetup != null) {
+        // Interrupting a setup closes its socket if it waits for a hello
+        connectionSetup.shutdownNow();
+        connectionSetup = null;
+      }
+      if (outboundWriters != null) {
+        outboundWriters.shutdown();
+        outboundWriters = null;
+      }
+      if (nioEngine != null) {
+        nioEngine.shutdown();
+        nioEngine = null;
+      }
+      if (dispatcher != null) {
+        dispatcher.shutdown();
+        dispatcher = null;
+      }
+      metrics.unregister();
       serverClosed();
     }
   }
 
   /**
    * Sends a message to every client connected to the server.
+   * The message is encoded once for all the framing clients using the
+   * same codec, and they share the encoded bytes; only clients
+   * exchanging object streams serialize it each.
+   * With outbound queues, this only queues the message for each client
+   * and a slow client does not delay the others.
    * This is merely a utility; a subclass may want to do some checks
    * before actually sending messages to all clients. This method
    * can be overriden, but if so it should still perform the general
@@ -178,14 +461,29 @@ public abstract class AbstractServer implements Runnable {
    * @param msg Object The message to be sent
    */
   public void sendToAllClients(Object msg) {
-    Thread[] clientThreadList = getClientConnections();
+    sendToClients(clients.snapshot(), msg);
+  }
 
-    for (int i = 0; i < clientThreadList.length; i++) {
+  /**
+   * Sends a message to some of the clients, such as the members of a
+   * room. Like <code>sendToAllClients</code>, the message is encoded
+   * once per codec and any exception thrown while sending the message to
+   * a particular client is ignored.
+   *
+   * @param clientList the clients to send the message to.
+   * @param msg        the message to be sent.
+   */
+  public void sendToClients(ConnectionToClient[] clientList, Object msg) {
+    Map<MessageCodec, ByteBuffer> frames = new IdentityHashMap<>(4);
+    long start = System.nanoTime();
+
+    for (int i = 0; i < clientList.length; i++) {
       try {
-        ((ConnectionToClient) clientThreadList[i]).sendToClient(msg);
+        clientList[i].sendToClient(msg, frames);
       } catch (Exception ex) {
       }
     }
+    metrics.broadcast(System.nanoTime() - start);
   }
 
   // ACCESSING METHODS ------------------------------------------------
@@ -208,15 +506,44 @@ public abstract class AbstractServer implements Runnable {
    * in this migth disconnect. New clients can also connect,
    * these later will not appear in the array.
    *
-   * @return an array of <code>Thread</code> containing
-   *         <code>ConnectionToClient</code> instances.
+   * @return an array of <code>ConnectionToClient</code> instances.
    */
-  synchronized final public Thread[] getClientConnections() {
-    Thread[] clientThreadList = new Thread[clientThreadGroup.activeCount()];
+  final public ConnectionToClient[] getClientConnections() {
+    return clients.snapshot().clone();
+  }
 
-    clientThreadGroup.enumerate(clientThreadList);
+  /**
+   * Finds an open connection by its connection ID.
+   *
+   * @param id the connection ID.
+   * @return the connection, or null if no open connection has that ID.
+   * @see ConnectionToClient#getId()
+   */
+  final public ConnectionToClient getClientConnection(long id) {
+    return clients.get(id);
+  }
 
-    return clientThreadList;
+  /**
+   * Finds the open connection of a logged in client.
+   *
+   * @param loginId the login ID of the client.
+   * @return the connection, or null if no open connection has that
+   *         login ID.
+   * @see ConnectionToClient#setLoginId(String)
+   */
+  final public ConnectionToClient getClientConnection(String loginId) {
+    return clients.getByLoginId(loginId);
+  }
+
+  /**
+   * Returns the counters of the traffic of the server: connections,
+   * messages and bytes, dispatch waits, broadcasts and blocked writes.
+   * They keep counting across <code>close</code> and <code>listen</code>.
+   *
+   * @return the counters.
+   */
+  final public ServerMetrics getMetrics() {
+    return metrics;
   }
 
   /**
@@ -225,7 +552,7 @@ public abstract class AbstractServer implements Runnable {
    * @return the number of clients currently connected.
    */
   final public int getNumberOfClients() {
-    return clientThreadGroup.activeCount();
+    return clients.size();
   }
 
   /**
@@ -249,21 +576,20 @@ public abstract class AbstractServer implements Runnable {
   }
 
   /**
-   * Sets the timeout time when accepting connections.
-   * The default is half a second. This means that stopping the
-   * server may take up to timeout duration to actually stop.
-   * The server must be stopped and restarted for the timeout
-   * change to be effective.
+   * Formerly set how often the server looked whether it had been asked
+   * to stop while waiting for connections.
    *
    * @param timeout the timeout time in ms.
+   * @deprecated the acceptors no longer poll: <code>stopListening</code>
+   *             wakes them up at once. This method has no effect.
    */
+  @Deprecated
   final public void setTimeout(int timeout) {
-    this.timeout = timeout;
   }
 
   /**
    * Sets the maximum number of waiting connections accepted by the
-   * operating system. The default is 20.
+   * operating system. The default is 1024.
    * The server must be closed and restarted for the backlog
    * change to be in effect.
    *
@@ -273,6 +599,273 @@ public abstract class AbstractServer implements Runnable {
     this.backlog = backlog;
   }
 
+  /**
+   * Sets the number of threads accepting connections. With more than
+   * one, each acceptor gets a server socket of its own, bound to the port
+   * with SO_REUSEPORT, and the operating system spreads the connections
+   * over them; where SO_REUSEPORT is not supported, they share one server
+   * socket. The default is 1.
+   * The server must be closed and restarted for the change
+   * to be in effect.
+   *
+   * @param acceptorCount the number of acceptor threads.
+   */
+  final public void setAcceptorCount(int acceptorCount) {
+    this.acceptorCount = Math.max(1, acceptorCount);
+  }
+
+  /**
+   * Returns the engine used to service clients.
+   *
+   * @return the engine.
+   */
+  final public ServerEngine getEngine() {
+    return engine;
+  }
+
+  /**
+   * Sets the engine used to service clients.
+   * The server must be closed and restarted for the engine
+   * change to be in effect.
+   *
+   * @param engine the engine.
+   */
+  final public void setEngine(ServerEngine engine) {
+    this.engine = engine;
+  }
+
+  /**
+   * Sets the number of event loop threads used by the NIO engine.
+   * The default is the number of available processors.
+   * The server must be closed and restarted for the change
+   * to be in effect.
+   *
+   * @param eventLoopCount the number of event loops.
+   */
+  final public void setEventLoopCount(int eventLoopCount) {
+    this.eventLoopCount = eventLoopCount;
+  }
+
+  /**
+   * Sets the number of threads handling messages from clients.
+   * With the default of 0, each message is handled by the thread that
+   * read it: the reader thread of its connection, or an event loop of the
+   * NIO engine. With a positive number, messages are handed to that many
+   * dispatch threads; messages with the same dispatch key (by default,
+   * from the same connection) always go to the same thread, so they are
+   * handled in order, and a single thread makes every call of
+   * <code>handleMessageFromClient</code> sequential, as in earlier
+   * versions of the framework.
+   * The server must be closed and restarted for the change
+   * to be in effect.
+   *
+   * @param dispatchThreads the number of dispatch threads, or 0.
+   * @see #getDispatchKey(ConnectionToClient)
+   */
+  final public void setDispatchThreads(int dispatchThreads) {
+    this.dispatchThreads = Math.max(0, dispatchThreads);
+  }
+
+  /**
+   * Gives every connection a bounded queue of messages waiting to be
+   * written, so that senders, and broadcasts in particular, never wait
+   * for a slow client. With the thread-per-client engines the queues are
+   * drained by writer threads; the NIO engine always queues and only
+   * uses the capacity to bound its queues.
+   * The server must be closed and restarted for the change
+   * to be in effect.
+   *
+   * @param capacity           the number of messages a connection may
+   *                           have waiting; 0 to write on the sender's
+   *                           thread, or for unbounded NIO queues.
+   * @param policy             what happens to a message sent to a client
+   *                           whose queue is full.
+   * @param blockTimeoutMillis how long a sender waits for room with
+   *                           <code>SlowConsumerPolicy.BLOCK</code>.
+   */
+  final public void setOutboundQueue(int capacity, SlowConsumerPolicy policy,
+      long blockTimeoutMillis) {
+    this.outboundQueueCapacity = Math.max(0, capacity);
+    this.slowConsumerPolicy = policy;
+    this.slowConsumerTimeout = blockTimeoutMillis;
+  }
+
+  /**
+   * Returns what happens to a message sent to a client whose outbound
+   * queue is full.
+   *
+   * @return the slow-consumer policy.
+   */
+  final public SlowConsumerPolicy getSlowConsumerPolicy() {
+    return slowConsumerPolicy;
+  }
+
+  /**
+   * Sets when the bytes written to a connection are flushed to its
+   * socket. Writes are buffered, so with <code>END_OF_BATCH</code> or
+   * <code>MAX_DELAY</code> a burst of messages, such as the backlog of
+   * an outbound queue or a list given to <code>sendToClient</code>, goes
+   * out in a few large writes.
+   * Only connections accepted after the change are affected.
+   *
+   * @param policy         when the bytes are flushed.
+   * @param maxDelayMillis the delay of <code>MAX_DELAY</code>, in ms.
+   */
+  final public void setFlushPolicy(FlushPolicy policy, long maxDelayMillis) {
+    this.flushPolicy = policy;
+    this.flushDelay = Math.max(0, maxDelayMillis);
+  }
+
+  /**
+   * Returns when the bytes written to a connection are flushed.
+   *
+   * @return the flush policy.
+   */
+  final public FlushPolicy getFlushPolicy() {
+    return flushPolicy;
+  }
+
+  /**
+   * Sets the TCP settings of the accepted sockets: TCP_NODELAY and the
+   * sizes of the kernel buffers. The receive buffer size also applies to
+   * the server socket, and only takes effect there once the server is
+   * closed and restarted.
+   *
+   * @param socketSettings the TCP settings.
+   */
+  final public void setSocketSettings(SocketSettings socketSettings) {
+    this.socketSettings = socketSettings;
+  }
+
+  /**
+   * Returns the TCP settings of the accepted sockets.
+   *
+   * @return the socket options.
+   */
+  final public SocketSettings getSocketSettings() {
+    return socketSettings;
+  }
+
+  /**
+   * Sets the strongest compression accepted from framing clients; a
+   * client proposing less gets what it proposed. Only connections accepted
+   * after the change are affected.
+   *
+   * @param compression the compression, <code>NONE</code> to refuse it.
+   */
+  final public void setCompression(Compression compression) {
+    this.compression = compression;
+  }
+
+  /**
+   * Sets the heartbeats of the connections with framing clients that
+   * answer them. A connection that writes nothing for the heartbeat
+   * interval sends a ping, which the client answers; a connection that
+   * reads nothing for the idle timeout is closed, as if the client had
+   * failed, with a <code>SocketTimeoutException</code>. The timeout should
+   * be a few intervals. Clients exchanging object streams are never
+   * pinged nor timed out. Only connections accepted after the change are
+   * affected.
+   *
+   * @param heartbeatMillis   the heartbeat interval in ms, 0 for none.
+   * @param idleTimeoutMillis the idle timeout in ms, 0 for none.
+   */
+  final public void setHeartbeat(long heartbeatMillis, long idleTimeoutMillis) {
+    this.heartbeatMillis = Math.max(0, heartbeatMillis);
+    this.idleTimeoutMillis = Math.max(0, idleTimeoutMillis);
+  }
+
+  /**
+   * @return the heartbeat interval of the connections in ms, 0 for none.
+   */
+  final public long getHeartbeatMillis() {
+    return heartbeatMillis;
+  }
+
+  /**
+   * @return the idle timeout of the connections in ms, 0 for none.
+   */
+  final public long getIdleTimeoutMillis() {
+    return idleTimeoutMillis;
+  }
+
+  /**
+   * Sets how long an accepted connection may take to send its hello. A
+   * client that says nothing would otherwise hold a setup thread, or a
+   * place on an event loop, for good; it is closed instead, and never
+   * made known to the server. Only connections accepted after the change
+   * are affected.
+   *
+   * @param helloTimeoutMillis the hello timeout in ms, 0 for none.
+   */
+  final public void setHelloTimeout(long helloTimeoutMillis) {
+    this.helloTimeoutMillis = Math.max(0, helloTimeoutMillis);
+  }
+
+  /**
+   * @return the hello timeout of the connections in ms, 0 for none.
+   */
+  final public long getHelloTimeoutMillis() {
+    return helloTimeoutMillis;
+  }
+
+  /**
+   * Limits the rate at which each client may send messages. A connection
+   * holds a bucket of <code>burst</code> tokens, earns
+   * <code>messagesPerSecond</code> tokens a second, and each message it
+   * receives takes one; a message that finds the bucket empty is
+   * throttled, dropped or makes the server disconnect the client,
+   * following the policy. The policy applies to the login ID limit as
+   * well. Only connections accepted after the change are affected.
+   *
+   * @param messagesPerSecond the rate of each connection, 0 for no limit.
+   * @param burst             the number of messages a connection may send
+   *                          at once; 0 for a second's worth.
+   * @param policy            what happens to a message over a limit.
+   * @see #setLoginRateLimit(double, int)
+   */
+  final public void setRateLimit(double messagesPerSecond, int burst,
+      RateLimitPolicy policy) {
+    this.rateLimit = Math.max(0, messagesPerSecond);
+    this.rateBurst = Math.max(0, burst);
+    this.rateLimitPolicy = policy;
+  }
+
+  /**
+   * Limits the rate at which all the connections that logged in with the
+   * same login ID may send messages together, so that a client cannot
+   * escape its limit by opening more connections or by reconnecting.
+   * Messages received before the login are only subject to the limit of
+   * their connection. Login IDs that have not sent a message since the
+   * change are affected.
+   *
+   * @param messagesPerSecond the rate of each login ID, 0 for no limit.
+   * @param burst             the number of messages a login ID may send
+   *                          at once; 0 for a second's worth.
+   */
+  final public void setLoginRateLimit(double messagesPerSecond, int burst) {
+    this.loginRateLimit = Math.max(0, messagesPerSecond);
+    this.loginRateBurst = Math.max(0, burst);
+  }
+
+  /**
+   * Returns what happens to a message over a rate limit.
+   *
+   * @return the rate limit policy.
+   */
+  final public RateLimitPolicy getRateLimitPolicy() {
+    return rateLimitPolicy;
+  }
+
+  /**
+   * Returns the strongest compression accepted from framing clients.
+   *
+   * @return the compression.
+   */
+  final public Compression getCompression() {
+    return compression;
+  }
+
   // RUN METHOD -------------------------------------------------------
 
   /**
@@ -283,42 +876,123 @@ public abstract class AbstractServer implements Runnable {
     // call the hook method to notify that the server is starting
     serverStarted();
 
-    try {
-      // Repeatedly waits for a new client connection, accepts it, and
-      // starts a new thread to handle data exchange.
-      while (!readyToStop) {
-        try {
-          // Wait here for new connection attempts, or a timeout
-          Socket clientSocket = serverSocket.accept();
+    ServerSocketChannel[] channels = serverChannels;
+    AtomicReference<IOException> failure = new AtomicReference<>();
+    Thread[] acceptors = new Thread[channels == null ? 0 : acceptorCount - 1];
 
-          // When a client is accepted, create a thread to handle
-          // the data exchange, then add it to thread group
+    try {
+      // The first acceptor runs on this thread, the others on their own
+      for (int i = 0; i < acceptors.length; i++) {
+        ServerSocketChannel channel = channels[(i + 1) % channels.length];
+        acceptors[i] = new Thread(() -> acceptConnections(channel, failure),
+            "ocsf-acceptor-" + (i + 1));
+        acceptors[i].start();
+      }
+      if (channels != null)
+        acceptConnections(channels[0], failure);
 
-          synchronized (this) {
-            ConnectionToClient c = new ConnectionToClient(
-                this.clientThreadGroup, clientSocket, this);
+      boolean interrupted = false;
+      for (Thread acceptor : acceptors) {
+        while (acceptor.isAlive()) {
+          try {
+            acceptor.join();
+          } catch (InterruptedException exception) {
+            interrupted = true;
           }
-        } catch (InterruptedIOException exception) {
-          // This will be thrown when a timeout occurs.
-          // The server will continue to listen if not ready to stop.
         }
       }
+      if (interrupted)
+        Thread.currentThread().interrupt();
 
       // call the hook method to notify that the server has stopped
-      serverStopped();
-    } catch (IOException exception) {
-      if (!readyToStop) {
-        // Closing the socket must have thrown a SocketException
-        listeningException(exception);
-      } else {
+      if (failure.get() == null)
         serverStopped();
-      }
+      else
+        listeningException(failure.get());
     } finally {
       readyToStop = true;
       connectionListener = null;
     }
   }
 
+  /**
+   * Runs an acceptor: waits on a selector for connections to be ready on a
+   * server socket, and accepts them by batches until the server stops
+   * listening. The first failure stops all the acceptors.
+   *
+   * @param channel the server socket.
+   * @param failure where to keep the first failure.
+   */
+  private void acceptConnections(ServerSocketChannel channel,
+      AtomicReference<IOException> failure) {
+    Selector selector = null;
+
+    try {
+      selector = Selector.open();
+      channel.register(selector, SelectionKey.OP_ACCEPT);
+      acceptSelectors.add(selector);
+
+      while (!readyToStop) {
+        selector.select();
+        selector.selectedKeys().clear();
+
+        SocketChannel clientChannel;
+        for (int i = 0; i < ACCEPT_BATCH && !readyToStop
+            && (clientChannel = channel.accept()) != null; i++)
+          setUpConnection(clientChannel);
+      }
+    } catch (IOException exception) {
+      // Closing the socket throws too, once the server is stopping
+      if (!readyToStop && failure.compareAndSet(null, exception))
+        stopListening();
+    } finally {
+      if (selector != null) {
+        acceptSelectors.remove(selector);
+        try {
+          selector.close();
+        } catch (IOException exception) {
+        }
+      }
+    }
+  }
+
+  /**
+   * Sets up an accepted connection. With the NIO engine, the channel is
+   * handed to an event loop; otherwise, a setup thread reads the hello of
+   * the client and starts its reader, so a client slow to say hello does
+   * not hold up the acceptor.
+   *
+   * @param channel the accepted channel.
+   */
+  private void setUpConnection(SocketChannel channel) {
+    NioServerEngine nioEngine = this.nioEngine;
+    ExecutorService connectionSetup = this.connectionSetup;
+    ThreadFactory readerThreads = this.readerThreads;
+
+    try {
+      socketSettings.apply(channel.socket());
+      if (nioEngine != null) {
+        nioEngine.register(channel);
+      } else if (connectionSetup != null) {
+        connectionSetup.execute(() -> {
+          try {
+            new ConnectionToClient(readerThreads, channel.socket(), this);
+          } catch (IOException exception) {
+            // The client left before its hello; the connection is closed
+          }
+        });
+      } else {
+        channel.close();
+      }
+    } catch (IOException | RejectedExecutionException exception) {
+      // The client is already gone, or the server is closing; drop it
+      try {
+        channel.close();
+      } catch (IOException ex) {
+      }
+    }
+  }
+
   // METHODS DESIGNED TO BE OVERRIDDEN BY CONCRETE SUBCLASSES ---------
 
   /**
@@ -390,12 +1064,28 @@ public abstract class AbstractServer implements Runnable {
   protected void serverClosed() {
   }
 
+  /**
+   * Returns the key ordering the messages of a client when dispatch
+   * threads are used: messages with equal keys are handled in the order
+   * they were received. The default is the connection itself. A subclass
+   * may return, for example, a login ID to order the messages of a user
+   * across connections; the key of a connection must then not change
+   * while its messages are being handled.
+   *
+   * @param client the connection that sent a message.
+   * @return the ordering key.
+   */
+  protected Object getDispatchKey(ConnectionToClient client) {
+    return client;
+  }
+
   /**
    * Handles a command sent from one client to the server.
    * This MUST be implemented by subclasses, who should respond to
    * messages.
-   * This method is called by a synchronized method so it is also
-   * implcitly synchronized.
+   * This method is not synchronized: calls for different clients may
+   * run concurrently, so any state shared between clients must be
+   * thread-safe. Calls for the same client never overlap.
    *
    * @param msg    the message sent.
    * @param client the connection connected to the client that
@@ -406,21 +1096,276 @@ public abstract class AbstractServer implements Runnable {
 
   // METHODS TO BE USED FROM WITHIN THE FRAMEWORK ONLY ----------------
 
+  /**
+   * Records a connection that has been set up.
+   *
+   * @param client the new connection.
+   */
+  void addClientConnection(ConnectionToClient client) {
+    if (clients.add(client)) {
+      metrics.connected();
+      client.getMetrics().register(getPort());
+    }
+  }
+
+  /**
+   * Forgets a connection that has been closed.
+   *
+   * @param client the closed connection.
+   */
+  void removeClientConnection(ConnectionToClient client) {
+    if (clients.remove(client)) {
+      metrics.disconnected();
+      client.getMetrics().unregister();
+    }
+    String loginId = client.getLoginId();
+    if (loginId != null)
+      releaseLoginBucket(loginId);
+  }
+
+  /**
+   * Creates the token bucket of a new connection.
+   *
+   * @return the bucket, or null if connections have no rate limit.
+   */
+  TokenBucket newRateLimiter() {
+    double rate = rateLimit;
+    if (rate <= 0)
+      return null;
+    return new TokenBucket(rate, burstOf(rate, rateBurst));
+  }
+
+  /**
+   * Finds the token bucket shared by the connections of a login ID,
+   * creating it on first use. Only reads the map once the bucket exists.
+   *
+   * @param loginId the login ID, or null.
+   * @return the bucket, or null if the connection has not logged in or
+   *         login IDs have no rate limit.
+   */
+  TokenBucket getLoginRateLimiter(String loginId) {
+    if (loginId == null)
+      return null;
+    TokenBucket bucket = loginBuckets.get(loginId);
+    if (bucket != null)
+      return bucket;
+
+    double rate = loginRateLimit;
+    if (rate <= 0)
+      return null;
+    return loginBuckets.computeIfAbsent(loginId,
+        id -> new TokenBucket(rate, burstOf(rate, loginRateBurst)));
+  }
+
+  /**
+   * Forgets the token bucket of a login ID once it is full and no
+   * connection holds the login ID; until then, looks again when it should
+   * be full.
+   *
+   * @param loginId the login ID.
+   */
+  private void releaseLoginBucket(String loginId) {
+    TokenBucket bucket = loginBuckets.get(loginId);
+    if (bucket == null || clients.getByLoginId(loginId) != null)
+      return;
+
+    long refill = bucket.getRefillNanos();
+    if (refill == 0)
+      loginBuckets.remove(loginId, bucket);
+    else
+      Threads.wheel().schedule(() -> releaseLoginBucket(loginId), refill,
+          TimeUnit.NANOSECONDS);
+  }
+
+  /**
+   * @param rate  a rate, in messages per second.
+   * @param burst a burst, or 0.
+   * @return the burst, or the messages of a second at the rate if 0.
+   */
+  private static int burstOf(double rate, int burst) {
+    if (burst > 0)
+      return burst;
+    return (int) Math.max(1, Math.min(Integer.MAX_VALUE, Math.ceil(rate)));
+  }
+
+  /**
+   * @return the registry of the open connections.
+   */
+  ClientRegistry getClientRegistry() {
+    return clients;
+  }
+
+  /**
+   * Creates the outbound queue of a new connection.
+   *
+   * @return an empty queue with the configured capacity and policy.
+   */
+  <T> OutboundQueue<T> newOutboundQueue() {
+    return new OutboundQueue<>(outboundQueueCapacity, slowConsumerPolicy,
+        slowConsumerTimeout, metrics);
+  }
+
+  /**
+   * @return the writers of outbound queues for thread-per-client
+   *         connections, or null if such connections write directly.
+   */
+  Executor getOutboundWriters() {
+    return outboundWriters;
+  }
+
+  /**
+   * Creates the write buffer of a thread-per-client connection.
+   *
+   * @param out the output stream of the socket.
+   * @return a buffer flushing with the configured policy.
+   */
+  CoalescingOutputStream newSocketOutput(OutputStream out) {
+    return new CoalescingOutputStream(out, flushPolicy, flushDelay);
+  }
+
+  /**
+   * @return the delay of <code>FlushPolicy.MAX_DELAY</code>, in ms.
+   */
+  long getFlushDelay() {
+    return flushDelay;
+  }
+
+  /**
+   * Opens the server sockets, one per acceptor bound with SO_REUSEPORT if
+   * there are several and the platform supports it, a single one
+   * otherwise. They are non-blocking, for the selectors of the acceptors.
+   *
+   * @return the server sockets.
+   * @exception IOException if an I/O error occurs when opening.
+   */
+  private ServerSocketChannel[] openServerChannels() throws IOException {
+    ServerSocketChannel[] channels = new ServerSocketChannel[1];
+
+    try {
+      channels[0] = ServerSocketChannel.open();
+      boolean reusePort = acceptorCount > 1 && channels[0].supportedOptions()
+          .contains(StandardSocketOptions.SO_REUSEPORT);
+      if (reusePort)
+        channels = Arrays.copyOf(channels, acceptorCount);
+
+      // With port 0, the other sockets join the port the first one got
+      int localPort = getPort();
+      for (int i = 0; i < channels.length; i++) {
+        if (channels[i] == null)
+          channels[i] = ServerSocketChannel.open();
+        if (reusePort)
+          channels[i].setOption(StandardSocketOptions.SO_REUSEPORT, true);
+        socketSettings.apply(channels[i].socket());
+        channels[i].bind(new InetSocketAddress(localPort), backlog);
+        channels[i].configureBlocking(false);
+        localPort = channels[i].socket().getLocalPort();
+      }
+    } catch (IOException ex) {
+      try {
+        closeServerChannels(channels);
+      } catch (IOException exc) {
+      }
+      throw ex;
+    }
+    return channels;
+  }
+
+  /**
+   * Closes server sockets.
+   *
+   * @param channels the server sockets; null elements are skipped.
+   * @exception IOException the first error that occurred, once all
+   *                        are closed.
+   */
+  private static void closeServerChannels(ServerSocketChannel[] channels)
+      throws IOException {
+    IOException failure = null;
+    for (ServerSocketChannel channel : channels) {
+      try {
+        if (channel != null)
+          channel.close();
+      } catch (IOException ex) {
+        if (failure == null)
+          failure = ex;
+      }
+    }
+    if (failure != null)
+      throw failure;
+  }
+
   /**
    * Receives a command sent from the client to the server.
    * Called by the run method of <code>ConnectionToClient</code>
-   * instances that are watching for messages coming from the server
-   * This method is synchronized to ensure that whatever effects it has
-   * do not conflict with work being done by other threads. The method
-   * simply calls the <code>handleMessageFromClient</code> slot method.
+   * instances that are watching for messages coming from the server;
+   * the event loops of the NIO engine use
+   * <code>offerMessageFromClient</code>, which never waits.
+   * The method calls the <code>handleMessageFromClient</code> slot method,
+   * either directly or on the dispatch thread of the client. Exceptions
+   * thrown by a dispatched call close the connection, as they would if
+   * the call had been made by the reader.
    *
    * @param msg    the message sent.
    * @param client the connection connected to the client that
    *               sent the message.
+   * @exception InterruptedException if interrupted while waiting for
+   *               room on a dispatch thread.
+   */
+  final void receiveMessageFromClient(
+      Object msg, ConnectionToClient client) throws InterruptedException {
+    OrderedDispatcher dispatcher = this.dispatcher;
+    client.getMetrics().messageIn();
+
+    if (dispatcher == null) {
+      this.handleMessageFromClient(msg, client);
+      return;
+    }
+
+    // The wait includes a stripe being full as well as the queue ahead
+    dispatcher.dispatch(getDispatchKey(client), newHandlerTask(msg, client));
+  }
+
+  /**
+   * Receives a command sent from the client to the server, like
+   * <code>receiveMessageFromClient</code>, without ever waiting: called by
+   * the event loops of the NIO engine, which serve many clients. If the
+   * dispatch thread of the client is full, the message is refused, and
+   * the caller is told when to offer it again.
+   *
+   * @param msg      the message sent.
+   * @param client   the connection connected to the client that sent the
+   *                 message.
+   * @param whenRoom called, once, when the message may be offered again,
+   *                 if it is refused.
+   * @return true if the message was handled or dispatched.
    */
-  final synchronized void receiveMessageFromClient(
-      Object msg, ConnectionToClient client) {
-    this.handleMessageFromClient(msg, client);
+  final boolean offerMessageFromClient(
+      Object msg, ConnectionToClient client, Runnable whenRoom) {
+    OrderedDispatcher dispatcher = this.dispatcher;
+    if (dispatcher != null
+        && !dispatcher.tryDispatch(getDispatchKey(client), newHandlerTask(msg, client), whenRoom))
+      return false;
+
+    client.getMetrics().messageIn();
+    if (dispatcher == null)
+      this.handleMessageFromClient(msg, client);
+    return true;
+  }
+
+  /**
+   * @return the work of handling a message on a dispatch thread; a
+   *         runtime exception closes the connection, as it would if the
+   *         call had been made by the reader.
+   */
+  private Runnable newHandlerTask(Object msg, ConnectionToClient client) {
+    long received = System.nanoTime();
+    return () -> {
+      metrics.dispatched(System.nanoTime() - received);
+      try {
+        this.handleMessageFromClient(msg, client);
+      } catch (RuntimeException exception) {
+        client.connectionFailed(exception);
+      }
+    };
   }
 }
 // End of AbstractServer Class
@@ -0,0 +1,157 @@
+package ocsf.server;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A <code> ClientRegistry </code> holds the open connections of a server,
+ * indexed by connection ID and by login ID. Lookups never lock. Broadcasts
+ * iterate over a snapshot array that is shared by every reader and only
+ * rebuilt, once, after the set of connections has changed, so iterating
+ * allocates nothing.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ *
+ * @see ocsf.server.AbstractServer
+ */
+final class ClientRegistry {
+  // CLASS VARIABLES ************************************************
+
+  /**
+   * The snapshot of a registry with no connection.
+   */
+  private static final ConnectionToClient[] NONE = new ConnectionToClient[0];
+
+  // INSTANCE VARIABLES *********************************************
+
+  /**
+   * The open connections, by connection ID.
+   */
+  private final ConcurrentHashMap<Long, ConnectionToClient> byId =
+      new ConcurrentHashMap<>();
+
+  /**
+   * The connections that logged in, by login ID.
+   */
+  private final ConcurrentHashMap<String, ConnectionToClient> byLoginId =
+      new ConcurrentHashMap<>();
+
+  /**
+   * The source of connection IDs.
+   */
+  private final AtomicLong lastId = new AtomicLong();
+
+  /**
+   * The open connections as an array, or null when it must be rebuilt.
+   * Cleared and rebuilt under the lock of the registry.
+   */
+  private volatile ConnectionToClient[] snapshot = NONE;
+
+  // INSTANCE METHODS *************************************************
+
+  /**
+   * @return a connection ID never given before by this registry.
+   */
+  long nextId() {
+    return lastId.incrementAndGet();
+  }
+
+  /**
+   * Adds an open connection.
+   *
+   * @param client the connection.
+   * @return false if it was already there.
+   */
+  synchronized boolean add(ConnectionToClient client) {
+    boolean added = byId.put(client.getId(), client) != client;
+    if (added)
+      snapshot = null;
+
+    String loginId = client.getLoginId();
+    if (loginId != null)
+      byLoginId.putIfAbsent(loginId, client);
+    return added;
+  }
+
+  /**
+   * Removes a closed connection and releases its login ID.
+   *
+   * @param client the connection.
+   * @return false if it was not there.
+   */
+  synchronized boolean remove(ConnectionToClient client) {
+    boolean removed = byId.remove(client.getId(), client);
+    if (removed)
+      snapshot = null;
+
+    String loginId = client.getLoginId();
+    if (loginId != null)
+      byLoginId.remove(loginId, client);
+    return removed;
+  }
+
+  /**
+   * Binds a login ID to a connection, releasing the one it had before.
+   * A connection that is not open keeps the ID without being indexed.
+   *
+   * @param client  the connection.
+   * @param loginId the new login ID, or null to only release the old one.
+   * @return false if another connection already has the login ID.
+   */
+  synchronized boolean bindLoginId(ConnectionToClient client, String loginId) {
+    if (loginId != null && byId.get(client.getId()) == client) {
+      ConnectionToClient holder = byLoginId.putIfAbsent(loginId, client);
+      if (holder != null && holder != client)
+        return false;
+    }
+
+    String oldId = client.getLoginId();
+    if (oldId != null && !oldId.equals(loginId))
+      byLoginId.remove(oldId, client);
+    client.assignLoginId(loginId);
+    return true;
+  }
+
+  /**
+   * @param id a connection ID.
+   * @return the open connection with that ID, or null.
+   */
+  ConnectionToClient get(long id) {
+    return byId.get(id);
+  }
+
+  /**
+   * @param loginId a login ID.
+   * @return the connection that logged in with that ID, or null.
+   */
+  ConnectionToClient getByLoginId(String loginId) {
+    return byLoginId.get(loginId);
+  }
+
+  /**
+   * @return the number of open connections.
+   */
+  int size() {
+    return byId.size();
+  }
+
+  /**
+   * Returns the open connections. The array is shared and must not be
+   * modified.
+   *
+   * @return the snapshot of the open connections.
+   */
+  ConnectionToClient[] snapshot() {
+    ConnectionToClient[] clients = snapshot;
+    if (clients != null)
+      return clients;
+
+    synchronized (this) {
+      if (snapshot == null)
+        snapshot = byId.values().toArray(NONE);
+      return snapshot;
+    }
+  }
+}
+// End of ClientRegistry class
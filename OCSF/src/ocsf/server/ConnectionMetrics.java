@@ -0,0 +1,184 @@
+package ocsf.server;
+
+import java.net.InetAddress;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.ObjectName;
+
+import ocsf.common.Metrics;
+
+/**
+ * The <code> ConnectionMetrics </code> class counts the traffic of one
+ * connection: messages and bytes in both directions, and the time senders
+ * waited for its client. Every count is also added to the
+ * <code>ServerMetrics</code> of the server.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ *
+ * @see ocsf.server.ConnectionToClient#getMetrics()
+ */
+public final class ConnectionMetrics implements ConnectionMetricsMBean {
+  // INSTANCE VARIABLES *********************************************
+
+  /**
+   * The connection counted.
+   */
+  private final ConnectionToClient client;
+
+  /**
+   * The counters of the server, which get every count too.
+   */
+  private final ServerMetrics server;
+
+  /**
+   * The <code>System.nanoTime</code> at which the connection was set up.
+   */
+  private final long openedAt = System.nanoTime();
+
+  private final LongAdder messagesIn = new LongAdder();
+  private final LongAdder messagesOut = new LongAdder();
+  private final LongAdder bytesIn = new LongAdder();
+  private final LongAdder bytesOut = new LongAdder();
+  private final LongAdder rateLimited = new LongAdder();
+
+  /**
+   * The time senders waited to write to the socket directly; the time they
+   * waited for room in the outbound queue is kept by the queue.
+   */
+  private final LongAdder writeBlockedNanos = new LongAdder();
+
+  /**
+   * The name of the MBean while it is registered; null otherwise.
+   */
+  private ObjectName mbeanName;
+
+  // CONSTRUCTORS *****************************************************
+
+  /**
+   * Constructs the counters of a connection.
+   *
+   * @param client the connection.
+   * @param server the counters of its server.
+   */
+  ConnectionMetrics(ConnectionToClient client, ServerMetrics server) {
+    this.client = client;
+    this.server = server;
+  }
+
+  // INSTANCE METHODS *************************************************
+
+  public long getId() {
+    return client.getId();
+  }
+
+  public String getLoginId() {
+    return client.getLoginId();
+  }
+
+  public String getAddress() {
+    InetAddress address = client.getInetAddress();
+    return address == null ? null : address.getHostAddress();
+  }
+
+  public double getUptimeSeconds() {
+    return (System.nanoTime() - openedAt) / 1e9;
+  }
+
+  public long getMessagesIn() {
+    return messagesIn.sum();
+  }
+
+  public long getMessagesOut() {
+    return messagesOut.sum();
+  }
+
+  public long getBytesIn() {
+    return bytesIn.sum();
+  }
+
+  public long getBytesOut() {
+    return bytesOut.sum();
+  }
+
+  public double getWriteBlockedMillis() {
+    return (writeBlockedNanos.sum() + client.getOutboundBlockedNanos()) / 1e6;
+  }
+
+  public int getOutboundQueueDepth() {
+    return client.getOutboundQueueDepth();
+  }
+
+  public int getOutboundQueueHighWatermark() {
+    return client.getOutboundQueueHighWatermark();
+  }
+
+  public long getOutboundDropped() {
+    return client.getOutboundDropped();
+  }
+
+  public long getRateLimited() {
+    return rateLimited.sum();
+  }
+
+  // METHODS TO BE USED FROM WITHIN THE FRAMEWORK ONLY ----------------
+
+  void messageIn() {
+    messagesIn.increment();
+    server.messageIn();
+  }
+
+  void messagesOut(int count) {
+    messagesOut.add(count);
+    server.messagesOut(count);
+  }
+
+  void bytesIn(long count) {
+    bytesIn.add(count);
+    server.bytesIn(count);
+  }
+
+  void bytesOut(long count) {
+    bytesOut.add(count);
+    server.bytesOut(count);
+  }
+
+  void rateLimited() {
+    rateLimited.increment();
+    server.rateLimited();
+  }
+
+  /**
+   * Counts the time reading from the client is held back by a rate limit.
+   *
+   * @param nanos the time, in nanoseconds.
+   */
+  void throttled(long nanos) {
+    server.throttled(nanos);
+  }
+
+  void writeBlocked(long nanos) {
+    writeBlockedNanos.add(nanos);
+    server.writeBlocked(nanos);
+  }
+
+  /**
+   * Registers the MBean if connections get their own.
+   *
+   * @param port the port of the server.
+   */
+  synchronized void register(int port) {
+    if (mbeanName == null && Metrics.connectionMBeansEnabled())
+      mbeanName = Metrics.register(this,
+          "type=Connection,port=" + port + ",id=" + client.getId());
+  }
+
+  /**
+   * Unregisters the MBean, if it is registered.
+   */
+  synchronized void unregister() {
+    Metrics.unregister(mbeanName);
+    mbeanName = null;
+  }
+}
+// End of ConnectionMetrics class
@@ -0,0 +1,83 @@
+package ocsf.server;
+
+/**
+ * The management interface of the <code> ConnectionMetrics </code> of a
+ * connection, registered as
+ * <code>ocsf:type=Connection,port=</code><i>port</i><code>,id=</code><i>id</i>
+ * while the connection is open if the <code>ocsf.jmx.connections</code>
+ * system property is <code>true</code>.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ *
+ * @see ocsf.common.Metrics
+ */
+public interface ConnectionMetricsMBean {
+  /**
+   * @return the ID of the connection.
+   */
+  long getId();
+
+  /**
+   * @return the login ID of the client, or null.
+   */
+  String getLoginId();
+
+  /**
+   * @return the address of the client, or null once closed.
+   */
+  String getAddress();
+
+  /**
+   * @return how long the connection has been open, in seconds.
+   */
+  double getUptimeSeconds();
+
+  /**
+   * @return the number of messages received from the client.
+   */
+  long getMessagesIn();
+
+  /**
+   * @return the number of messages sent to the client, queued or written.
+   */
+  long getMessagesOut();
+
+  /**
+   * @return the number of bytes read from the client.
+   */
+  long getBytesIn();
+
+  /**
+   * @return the number of bytes written to the client.
+   */
+  long getBytesOut();
+
+  /**
+   * @return the time senders waited for the socket of the client or for
+   *         room in its outbound queue, in ms.
+   */
+  double getWriteBlockedMillis();
+
+  /**
+   * @return the number of messages waiting to be written.
+   */
+  int getOutboundQueueDepth();
+
+  /**
+   * @return the largest number of messages ever waiting at once.
+   */
+  int getOutboundQueueHighWatermark();
+
+  /**
+   * @return the number of messages dropped by <code>DROP_OLDEST</code>.
+   */
+  long getOutboundDropped();
+
+  /**
+   * @return the number of messages from the client that went over a rate
+   *         limit.
+   */
+  long getRateLimited();
+}
+// End of ConnectionMetricsMBean interface
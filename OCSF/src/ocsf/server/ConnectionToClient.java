@@ -6,7 +6,14 @@ package ocsf.server;
 
 import java.io.*;
 import java.net.*;
-import java.util.HashMap;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.*;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import ocsf.common.*;
 
 /**
  * An instance of this class is created by the server when a client connects. It
@@ -15,6 +22,12 @@ import java.util.HashMap;
  * contains a set of instances of this class and is responsible for adding and
  * deleting them.
  * <p>
+ * Depending on the engine of the server, a connection is serviced by its own
+ * reader thread, platform or virtual, or by an event loop of the NIO engine.
+ * A client that proposes a codec in its hello exchanges frames encoded with
+ * that codec; a legacy client exchanges object streams, or frames encoded
+ * with the serialization codec on the NIO engine.
+ * <p>
  * Project Name: OCSF (Object Client-Server Framework)
  * <p>
  * 
@@ -24,7 +37,15 @@ import java.util.HashMap;
  * @author Paul Holden
  * @version 2.12
  */
-public class ConnectionToClient extends Thread {
+public class ConnectionToClient implements Runnable {
+	// CLASS VARIABLES **************************************************
+
+	/**
+	 * Queued in place of a message to have the writer reset the object
+	 * stream at that point.
+	 */
+	private static final Object RESET_MARKER = new Object();
+
 	// INSTANCE VARIABLES ***********************************************
 
 	/**
@@ -32,6 +53,16 @@ public class ConnectionToClient extends Thread {
 	 */
 	private AbstractServer server;
 
+	/**
+	 * The ID of the connection, unique within its server.
+	 */
+	private final long id;
+
+	/**
+	 * The login ID of the client, or null if it has not logged in.
+	 */
+	private volatile String loginId;
+
 	/**
 	 * Sockets are used in the operating system as channels of communication
 	 * between two processes.
@@ -50,28 +81,100 @@ public class ConnectionToClient extends Thread {
 	 */
 	private ObjectOutputStream output;
 
+	/**
+	 * The codec negotiated with a framing client; null when the client
+	 * exchanges object streams or the connection is serviced by the NIO
+	 * engine.
+	 */
+	private MessageCodec codec;
+
+	/**
+	 * Stream used to read frames from a framing client.
+	 */
+	private DataInputStream frameInput;
+
+	/**
+	 * Buffer of the bytes written to the socket, flushed according to the
+	 * flush policy of the server. Frames are written to it directly, and
+	 * the object stream writes through it.
+	 */
+	private CoalescingOutputStream socketOutput;
+
+	/**
+	 * The channel state when the connection is serviced by the NIO engine
+	 * instead of its own thread; null otherwise.
+	 */
+	private NioConnection nioConnection;
+
 	/**
 	 * Indicates if the thread is ready to stop. Set to true when closing of the
 	 * connection is initiated.
 	 */
-	private boolean readyToStop;
+	private volatile boolean readyToStop;
 
 	/**
 	 * Map to save information about the client such as its login ID. The
 	 * initial size of the map is small since it is not expected that concrete
 	 * servers will want to store many different types of information about each
-	 * client. Used by the setInfo and getInfo methods.
+	 * client. Used by the setInfo and getInfo methods, which may be called
+	 * from several threads.
+	 */
+	private Map<String, Object> savedInfo = Collections.synchronizedMap(new HashMap<>(10));
+
+	/**
+	 * Lock serializing the writes of concurrent senders on the object
+	 * stream.
+	 */
+	private final Object sendLock = new Object();
+
+	/**
+	 * The messages waiting to be written to the client; null when senders
+	 * write directly to the object stream.
+	 */
+	private OutboundQueue<Object> outboundQueue;
+
+	/**
+	 * Runs the writer draining <code>outboundQueue</code>.
+	 */
+	private Executor outboundWriters;
+
+	/**
+	 * The counters of the traffic of the connection.
+	 */
+	private final ConnectionMetrics metrics;
+
+	/**
+	 * Pings a quiet client and closes the connection of a silent one, once
+	 * the client has announced heartbeats in its hello.
 	 */
-	private HashMap savedInfo = new HashMap(10);
+	private final Heartbeat heartbeat;
+
+	/**
+	 * The token bucket limiting the messages of the connection; null for no
+	 * limit.
+	 */
+	private final TokenBucket rateLimiter;
+
+	/**
+	 * What happens to a message over a rate limit.
+	 */
+	private final RateLimitPolicy rateLimitPolicy;
+
+	/**
+	 * Indicates that the message being admitted already went over a rate
+	 * limit, so it is counted once however long it is throttled. Only the
+	 * reading thread touches it.
+	 */
+	private boolean throttled;
 
 	// CONSTRUCTORS *****************************************************
 
 	/**
 	 * Constructs a new connection to a client.
 	 * 
-	 * @param group
-	 *                     the thread groupSystem.out.println("Client at "+ client +
-	 *                     "connected"); that contains the connections.
+	 * @param threads
+	 *                     the factory creating the thread that reads from the
+	 *                     client.
 	 * @param clientSocket
 	 *                     contains the client's socket.
 	 * @param server
@@ -79,56 +182,167 @@ public class ConnectionToClient extends Thread {
 	 * @exception IOException
 	 *                        if an I/O error occur when creating the connection.
 	 */
-	ConnectionToClient(ThreadGroup group, Socket clientSocket, AbstractServer server) throws IOException {
-		super(group, (Runnable) null);
+	ConnectionToClient(ThreadFactory threads, Socket clientSocket, AbstractServer server) throws IOException {
 		// Initialize variables
 		this.clientSocket = clientSocket;
 		this.server = server;
+		this.id = server.getClientRegistry().nextId();
+		this.metrics = new ConnectionMetrics(this, server.getMetrics());
+		this.heartbeat = newHeartbeat();
+		this.rateLimiter = server.newRateLimiter();
+		this.rateLimitPolicy = server.getRateLimitPolicy();
 
 		clientSocket.setSoTimeout(0); // make sure timeout is infinite
 
-		// Initialize the objects streams
+		// Read the hello of the client and initialize the streams, counting
+		// the bytes that go through the socket. A client that says nothing
+		// has its socket closed, which ends the wait.
+		byte[] hello = new byte[Framing.HELLO_LENGTH];
+		long helloTimeout = server.getHelloTimeoutMillis();
+		TimerWheel.Timeout helloDeadline = helloTimeout == 0 ? null
+				: Threads.wheel().schedule(() -> closeQuietly(clientSocket),
+						helloTimeout, TimeUnit.MILLISECONDS);
 		try {
-			input = new ObjectInputStream(clientSocket.getInputStream());
-			output = new ObjectOutputStream(clientSocket.getOutputStream());
+			PushbackInputStream clientInput = new PushbackInputStream(
+					Metrics.countingInput(socketInput(clientSocket), this::bytesRead),
+					Framing.HEADER_LENGTH);
+			codec = Framing.readClientHello(clientInput, server.getCompression(), hello);
+
+			socketOutput = server.newSocketOutput(
+					Metrics.countingOutput(socketOutput(clientSocket), this::bytesWritten));
+			if (codec != null) {
+				socketOutput.write(Framing.hello(codec));
+				frameInput = new DataInputStream(new BufferedInputStream(clientInput));
+			} else {
+				input = new ObjectInputStream(clientInput);
+				output = new ObjectOutputStream(socketOutput);
+			}
+			socketOutput.flush();
+			if (helloDeadline != null && !helloDeadline.cancel())
+				throw new SocketException("socket closed");
 		} catch (IOException ex) {
 			try {
 				closeAll();
 			} catch (Exception exc) {
 			}
 
+			if (helloDeadline != null && helloDeadline.isExpired())
+				throw new SocketTimeoutException("no hello from the client within "
+						+ helloTimeout + " ms");
 			throw ex; // Rethrow the exception.
 		}
 
 		readyToStop = false;
-		start(); // Start the thread waits for data from the socket
+
+		outboundWriters = server.getOutboundWriters();
+		if (outboundWriters != null)
+			outboundQueue = server.newOutboundQueue();
+
+		// All uncaught exceptions in the reader thread will
+		// be sent to the clientException callback method.
+		Thread readerThread = threads.newThread(this);
+		readerThread.setUncaughtExceptionHandler(
+				(thread, exception) -> server.clientException(this, exception));
+
+		server.addClientConnection(this);
+		readerThread.start(); // Start the thread waits for data from the socket
+
+		if (codec != null && Framing.hasHeartbeats(hello))
+			heartbeat.start();
+	}
+
+	/**
+	 * Constructs a connection to a client serviced by an event loop of the
+	 * NIO engine. Such a connection has no thread of its own.
+	 * 
+	 * @param connection
+	 *                   the channel state of the connection.
+	 * @param server
+	 *                   a reference to the server that created this instance
+	 */
+	ConnectionToClient(NioConnection connection, AbstractServer server) {
+		this.clientSocket = connection.socket();
+		this.server = server;
+		this.id = server.getClientRegistry().nextId();
+		this.metrics = new ConnectionMetrics(this, server.getMetrics());
+		this.heartbeat = newHeartbeat();
+		this.rateLimiter = server.newRateLimiter();
+		this.rateLimitPolicy = server.getRateLimitPolicy();
+		this.nioConnection = connection;
+		readyToStop = false;
 	}
 
 	// INSTANCE METHODS *************************************************
 
 	/**
-	 * Sends an object to the client.
+	 * Sends an object to the client. May be called from several threads at
+	 * once; each object is written whole.
+	 * <p>
+	 * If the server gives its connections an outbound queue, the object is
+	 * only queued and written later by a writer, so this call does not wait
+	 * for a slow client; when the queue is full, the slow-consumer policy of
+	 * the server applies. Otherwise the object is written before this call
+	 * returns.
 	 * 
 	 * @param msg
 	 *            the message to be sent.
 	 * @exception IOException
 	 *                        if an I/O error occur when sending the message.
+	 * @exception SlowConsumerException
+	 *                        if the outbound queue is full and the policy
+	 *                        refuses the message.
 	 */
 	final public void sendToClient(Object msg) throws IOException {
-		if (clientSocket == null || output == null)
-			throw new SocketException("socket does not exist");
+		MessageCodec codec = getOpenCodec();
+		send(Collections.singletonList(codec == null ? msg : Framing.encode(codec, msg)));
+	}
+
+	/**
+	 * Sends a batch of objects to the client, in order. The objects are
+	 * written one after the other with no message of another sender in
+	 * between, and with the <code>END_OF_BATCH</code> flush policy they
+	 * leave in as few writes as the buffers allow.
+	 * 
+	 * @param msgs
+	 *            the messages to be sent.
+	 * @exception IOException
+	 *                        if an I/O error occur when sending the messages.
+	 * @exception SlowConsumerException
+	 *                        if the outbound queue has no room for the
+	 *                        batch and the policy refuses it; none of the
+	 *                        messages is then sent.
+	 */
+	final public void sendToClient(List<?> msgs) throws IOException {
+		MessageCodec codec = getOpenCodec();
+		if (codec == null) {
+			send(msgs);
+			return;
+		}
 
-		output.writeObject(msg);
+		List<ByteBuffer> frames = new ArrayList<>(msgs.size());
+		for (Object msg : msgs)
+			frames.add(Framing.encode(codec, msg));
+		send(frames);
 	}
 
 	/**
 	 * Reset the output stream so we can use the same
 	 * buffer repeatedly. This would not normally be used, but is necessary
 	 * in some circumstances when Java refuses to send data that it thinks has been
-	 * sent.
+	 * sent. Frames never share state, so this has no effect on framing
+	 * connections.
 	 */
 	final public void forceResetAfterSend() throws IOException {
-		output.reset();
+		if (nioConnection != null || codec != null)
+			return;
+		if (outboundQueue != null) {
+			if (outboundQueue.offer(RESET_MARKER))
+				outboundWriters.execute(this::drainOutbound);
+			return;
+		}
+		synchronized (sendLock) {
+			output.reset();
+		}
 	}
 
 	/**
@@ -150,6 +364,40 @@ public class ConnectionToClient extends Thread {
 
 	// ACCESSING METHODS ------------------------------------------------
 
+	/**
+	 * Returns the ID of the connection, given by the server when the client
+	 * connected and never reused by it.
+	 * 
+	 * @return the connection ID.
+	 */
+	final public long getId() {
+		return id;
+	}
+
+	/**
+	 * Returns the login ID of the client.
+	 * 
+	 * @return the login ID, or null if the client has not logged in.
+	 */
+	final public String getLoginId() {
+		return loginId;
+	}
+
+	/**
+	 * Sets the login ID of the client, so that the server can find the
+	 * connection with <code>getClientConnection(String)</code>. A login ID
+	 * belongs to at most one open connection at a time; it is released when
+	 * the connection closes or gets another one.
+	 * 
+	 * @param loginId
+	 *                the login ID, or null to log out.
+	 * @return false if another open connection already has this login ID,
+	 *         in which case nothing changes.
+	 */
+	final public boolean setLoginId(String loginId) {
+		return server.getClientRegistry().bindLoginId(this, loginId);
+	}
+
 	/**
 	 * Returns the address of the client.
 	 * 
@@ -159,6 +407,57 @@ public class ConnectionToClient extends Thread {
 		return clientSocket == null ? null : clientSocket.getInetAddress();
 	}
 
+	/**
+	 * Returns the codec of the messages exchanged with the client.
+	 * 
+	 * @return the codec, or null if the client exchanges object streams.
+	 */
+	final public MessageCodec getCodec() {
+		return nioConnection != null ? nioConnection.getCodec() : codec;
+	}
+
+	/**
+	 * Returns the number of messages waiting to be written to the client.
+	 * 
+	 * @return the depth of the outbound queue; 0 if there is none.
+	 */
+	final public int getOutboundQueueDepth() {
+		OutboundQueue<?> queue = getOutboundQueue();
+		return queue == null ? 0 : queue.size();
+	}
+
+	/**
+	 * Returns the largest number of messages that were ever waiting to be
+	 * written to the client at once.
+	 * 
+	 * @return the high watermark of the outbound queue; 0 if there is none.
+	 */
+	final public int getOutboundQueueHighWatermark() {
+		OutboundQueue<?> queue = getOutboundQueue();
+		return queue == null ? 0 : queue.getHighWatermark();
+	}
+
+	/**
+	 * Returns the number of messages discarded because the outbound queue
+	 * was full and the policy is <code>DROP_OLDEST</code>.
+	 * 
+	 * @return the number of dropped messages.
+	 */
+	final public long getOutboundDropped() {
+		OutboundQueue<?> queue = getOutboundQueue();
+		return queue == null ? 0 : queue.getDropped();
+	}
+
+	/**
+	 * Returns the counters of the traffic of the connection, which also
+	 * add up in those of the server.
+	 * 
+	 * @return the counters.
+	 */
+	final public ConnectionMetrics getMetrics() {
+		return metrics;
+	}
+
 	/**
 	 * Returns a string representation of the client.
 	 * 
@@ -212,8 +511,19 @@ public class ConnectionToClient extends Thread {
 			while (!readyToStop) {
 				// This block waits until it reads a message from the client
 				// and then sends it for handling by the server
-				msg = input.readObject();
-				server.receiveMessageFromClient(msg, this);
+				msg = frameInput != null ? Framing.readFrame(frameInput, codec)
+						: input.readObject();
+				if (msg instanceof Framing.Control) {
+					controlReceived((Framing.Control) msg);
+					continue;
+				}
+
+				// Not reading while throttled holds the client back
+				long wait;
+				while ((wait = admit()) > 0)
+					TimeUnit.NANOSECONDS.sleep(wait);
+				if (wait == 0 && !readyToStop)
+					server.receiveMessageFromClient(msg, this);
 			}
 		} catch (Exception exception) {
 			if (!readyToStop) {
@@ -229,6 +539,408 @@ public class ConnectionToClient extends Thread {
 
 	// METHODS TO BE USED FROM WITHIN THE FRAMEWORK ONLY ----------------
 
+	/**
+	 * Sends an object to the client as part of a broadcast. The first
+	 * connection to need a given codec encodes the object and leaves the
+	 * frame in <code>frames</code>; every other connection using that codec
+	 * sends the same bytes, so the object is encoded once per codec instead
+	 * of once per client. Clients exchanging object streams still serialize
+	 * the object each.
+	 * 
+	 * @param msg
+	 *            the message to be sent.
+	 * @param frames
+	 *            the frames already encoded for this broadcast, by codec.
+	 * @exception IOException
+	 *                        if an I/O error occur when sending the message.
+	 */
+	void sendToClient(Object msg, Map<MessageCodec, ByteBuffer> frames) throws IOException {
+		MessageCodec codec = getOpenCodec();
+		if (codec == null) {
+			send(Collections.singletonList(msg));
+			return;
+		}
+
+		ByteBuffer frame = frames.get(codec);
+		if (frame == null) {
+			frame = Framing.encode(codec, msg);
+			frames.put(codec, frame);
+		}
+		send(Collections.singletonList(frame.duplicate()));
+	}
+
+	/**
+	 * Checks that the connection can send and finds how to encode.
+	 * 
+	 * @return the codec of a framing connection, or null if the client
+	 *         exchanges object streams.
+	 * @exception SocketException
+	 *                        if the connection is closed or its hello has not
+	 *                        been received.
+	 */
+	private MessageCodec getOpenCodec() throws SocketException {
+		if (clientSocket == null
+				|| (socketOutput == null && nioConnection == null))
+			throw new SocketException("socket does not exist");
+
+		MessageCodec codec = getCodec();
+		if (codec == null && nioConnection != null)
+			throw new SocketException("handshake not complete");
+		return codec;
+	}
+
+	/**
+	 * Hands objects, or the encoded frames of a framing connection, to the
+	 * writing path of the connection as one batch.
+	 * 
+	 * @param items
+	 *            the objects, or the frames.
+	 * @exception IOException
+	 *                        if an I/O error occur when sending.
+	 */
+	@SuppressWarnings("unchecked")
+	private void send(List<?> items) throws IOException {
+		try {
+			if (nioConnection != null) {
+				nioConnection.send((List<ByteBuffer>) items);
+			} else if (outboundQueue != null) {
+				if (outboundQueue.offerAll(items))
+					outboundWriters.execute(this::drainOutbound);
+			} else {
+				// The sender waits for the others and for the socket
+				long start = System.nanoTime();
+				try {
+					synchronized (sendLock) {
+						for (Object item : items)
+							writeToStream(item);
+						endBatch();
+					}
+				} finally {
+					metrics.writeBlocked(System.nanoTime() - start);
+				}
+			}
+			metrics.messagesOut(items.size());
+		} catch (SlowConsumerException ex) {
+			if (server.getSlowConsumerPolicy() == SlowConsumerPolicy.DISCONNECT)
+				connectionFailed(ex);
+			throw ex;
+		}
+	}
+
+	/**
+	 * Answers a ping of the client; a pong needs nothing, the traffic
+	 * itself having been recorded.
+	 * 
+	 * @param control
+	 *            the control frame received.
+	 * @exception IOException
+	 *                        if an I/O error occur when answering.
+	 */
+	void controlReceived(Framing.Control control) throws IOException {
+		if (control == Framing.Control.PING)
+			sendControl(Framing.Control.PONG);
+	}
+
+	/**
+	 * Sends a control frame to the client, unless frames are already
+	 * waiting in its outbound queue: they will show the client the
+	 * connection is alive, and a control frame must not take their room.
+	 * 
+	 * @param control
+	 *            the control frame.
+	 * @exception IOException
+	 *                        if an I/O error occur when sending.
+	 */
+	private void sendControl(Framing.Control control) throws IOException {
+		if (nioConnection != null) {
+			if (nioConnection.getOutboundQueue().size() == 0)
+				nioConnection.send(control.frame());
+		} else if (outboundQueue != null) {
+			if (outboundQueue.size() == 0 && outboundQueue.offer(control.frame()))
+				outboundWriters.execute(this::drainOutbound);
+		} else {
+			synchronized (sendLock) {
+				writeToStream(control.frame());
+				endBatch();
+			}
+		}
+	}
+
+	/**
+	 * Pings the client on behalf of the heartbeat; a failure closes the
+	 * connection.
+	 */
+	private void sendPing() {
+		try {
+			sendControl(Framing.Control.PING);
+		} catch (IOException ex) {
+			connectionFailed(ex);
+		}
+	}
+
+	/**
+	 * Closes a socket, ignoring a failure.
+	 * 
+	 * @param socket
+	 *            the socket.
+	 */
+	private static void closeQuietly(Socket socket) {
+		try {
+			socket.close();
+		} catch (IOException ex) {
+		}
+	}
+
+	/**
+	 * @return the heartbeat of the connection, configured by the server.
+	 */
+	private Heartbeat newHeartbeat() {
+		long idleTimeout = server.getIdleTimeoutMillis();
+		return new Heartbeat(server.getHeartbeatMillis(), idleTimeout, this::sendPing,
+				() -> connectionFailed(new SocketTimeoutException(
+						"no traffic from the client for " + idleTimeout + " ms")));
+	}
+
+	/**
+	 * @return the heartbeat of the connection.
+	 */
+	Heartbeat getHeartbeat() {
+		return heartbeat;
+	}
+
+	/**
+	 * Takes a token for a message received from the client, from the bucket
+	 * of the connection and from that of its login ID. Called by the thread
+	 * reading from the client, before the message is handled.
+	 * 
+	 * @return 0 if the message is to be handled; -1 if it is to be dropped;
+	 *         otherwise how long to hold it, in nanoseconds, before trying
+	 *         again.
+	 * @exception RateLimitException
+	 *                        if the client is to be disconnected.
+	 */
+	long admit() throws RateLimitException {
+		long wait = rateLimiter == null ? 0 : rateLimiter.tryAcquire();
+		if (wait == 0) {
+			TokenBucket login = server.getLoginRateLimiter(loginId);
+			if (login != null)
+				wait = login.tryAcquire();
+		}
+		if (wait == 0) {
+			throttled = false;
+			return 0;
+		}
+
+		if (!throttled)
+			metrics.rateLimited();
+		switch (rateLimitPolicy) {
+		case DROP:
+			return -1;
+		case DISCONNECT:
+			throw new RateLimitException("client " + id + " sent messages over its rate limit");
+		default:
+			throttled = true;
+			metrics.throttled(wait);
+			return wait;
+		}
+	}
+
+	/**
+	 * Counts bytes read from the socket.
+	 * 
+	 * @param count
+	 *            the number of bytes.
+	 */
+	private void bytesRead(long count) {
+		metrics.bytesIn(count);
+		heartbeat.read();
+	}
+
+	/**
+	 * Counts bytes written to the socket.
+	 * 
+	 * @param count
+	 *            the number of bytes.
+	 */
+	private void bytesWritten(long count) {
+		metrics.bytesOut(count);
+		heartbeat.written();
+	}
+
+	/**
+	 * @return the outbound queue of either kind of connection, or null.
+	 */
+	private OutboundQueue<?> getOutboundQueue() {
+		return nioConnection != null ? nioConnection.getOutboundQueue()
+				: outboundQueue;
+	}
+
+	/**
+	 * Writes an object to the object stream, or a frame to a framing
+	 * client, serializing concurrent writers.
+	 * 
+	 * @param msg
+	 *            the object or frame to write, or the reset marker.
+	 * @exception IOException
+	 *                        if an I/O error occur when writing.
+	 */
+	private void writeToStream(Object msg) throws IOException {
+		synchronized (sendLock) {
+			CoalescingOutputStream socketOutput = this.socketOutput;
+			ObjectOutputStream output = this.output;
+			if (socketOutput == null || (codec == null && output == null))
+				throw new SocketException("socket does not exist");
+
+			if (codec != null)
+				Framing.writeFrame(socketOutput, (ByteBuffer) msg);
+			else if (msg == RESET_MARKER)
+				output.reset();
+			else
+				output.writeObject(msg);
+			socketOutput.endMessage();
+		}
+	}
+
+	/**
+	 * Marks the end of a batch of writes, which flushes them unless the
+	 * flush policy waits for a delay.
+	 * 
+	 * @exception IOException
+	 *                        if an I/O error occur when flushing.
+	 */
+	private void endBatch() throws IOException {
+		CoalescingOutputStream socketOutput = this.socketOutput;
+		if (socketOutput != null)
+			socketOutput.endBatch();
+	}
+
+	/**
+	 * Writes queued messages until the outbound queue is empty, then ends
+	 * the batch. Runs on a writer thread of the server; a write failure
+	 * closes the connection.
+	 */
+	private void drainOutbound() {
+		Object msg;
+
+		try {
+			while ((msg = outboundQueue.poll()) != null)
+				writeToStream(msg);
+			endBatch();
+		} catch (IOException ex) {
+			outboundQueue.clear();
+			connectionFailed(ex);
+		}
+	}
+
+	/**
+	 * @return the time senders waited for room in the outbound queue, in
+	 *         nanoseconds.
+	 */
+	long getOutboundBlockedNanos() {
+		OutboundQueue<?> queue = getOutboundQueue();
+		return queue == null ? 0 : queue.getBlockedNanos();
+	}
+
+	/**
+	 * Records the login ID bound by the registry of the server.
+	 * 
+	 * @param loginId
+	 *                the login ID, or null.
+	 */
+	void assignLoginId(String loginId) {
+		this.loginId = loginId;
+	}
+
+	/**
+	 * Handles an exception raised while servicing a connection outside its
+	 * reader thread, by an event loop or a dispatch thread, the way
+	 * <code>run</code> does in the reader thread. The connection is closed
+	 * and reported once.
+	 * 
+	 * @param exception
+	 *                  the exception raised.
+	 */
+	void connectionFailed(Exception exception) {
+		synchronized (this) {
+			if (readyToStop)
+				return;
+			readyToStop = true;
+		}
+
+		try {
+			closeAll();
+		} catch (Exception ex) {
+		}
+
+		server.clientException(this, exception);
+	}
+
+	/**
+	 * Returns the input stream of a socket. A socket accepted from a channel
+	 * is read through the channel itself: before Java 13, the streams of
+	 * such a socket take a common lock, so a blocked read would hold up
+	 * every write to the client.
+	 * 
+	 * @param socket
+	 *            the socket.
+	 * @return the stream.
+	 * @exception IOException
+	 *                        if the stream cannot be obtained.
+	 */
+	private static InputStream socketInput(Socket socket) throws IOException {
+		SocketChannel channel = socket.getChannel();
+		if (channel == null)
+			return socket.getInputStream();
+
+		return new InputStream() {
+			public int read() throws IOException {
+				byte[] b = new byte[1];
+				return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+			}
+
+			public int read(byte[] b, int off, int len) throws IOException {
+				return len == 0 ? 0 : channel.read(ByteBuffer.wrap(b, off, len));
+			}
+
+			public void close() throws IOException {
+				channel.close();
+			}
+		};
+	}
+
+	/**
+	 * Returns the output stream of a socket, written through its channel if
+	 * it was accepted from one.
+	 * 
+	 * @param socket
+	 *            the socket.
+	 * @return the stream.
+	 * @exception IOException
+	 *                        if the stream cannot be obtained.
+	 * @see #socketInput(Socket)
+	 */
+	private static OutputStream socketOutput(Socket socket) throws IOException {
+		SocketChannel channel = socket.getChannel();
+		if (channel == null)
+			return socket.getOutputStream();
+
+		return new OutputStream() {
+			public void write(int b) throws IOException {
+				write(new byte[] { (byte) b }, 0, 1);
+			}
+
+			public void write(byte[] b, int off, int len) throws IOException {
+				ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+				while (buffer.hasRemaining())
+					channel.write(buffer);
+			}
+
+			public void close() throws IOException {
+				channel.close();
+			}
+		};
+	}
+
 	/**
 	 * Closes all connection to the server.
 	 * 
@@ -236,11 +948,25 @@ public class ConnectionToClient extends Thread {
 	 *                        if an I/O error occur when closing the connection.
 	 */
 	private void closeAll() throws IOException {
+		server.removeClientConnection(this);
+		heartbeat.stop();
+
+		if (outboundQueue != null)
+			outboundQueue.clear();
+
 		try {
+			// Close the channel of an event loop connection
+			if (nioConnection != null)
+				nioConnection.close();
+
 			// Close the socket
 			if (clientSocket != null)
 				clientSocket.close();
 
+			// Drop the bytes not yet flushed
+			if (socketOutput != null)
+				socketOutput.close();
+
 			// Close the output stream
 			if (output != null)
 				output.close();
@@ -248,6 +974,10 @@ public class ConnectionToClient extends Thread {
 			// Close the input stream
 			if (input != null)
 				input.close();
+
+			// Close the frame stream
+			if (frameInput != null)
+				frameInput.close();
 		} finally {
 			// Set the streams and the sockets to NULL no matter what
 			// Doing so allows, but does not require, any finalizers
@@ -255,6 +985,8 @@ public class ConnectionToClient extends Thread {
 			// when they are garbage collected.
 			output = null;
 			input = null;
+			socketOutput = null;
+			frameInput = null;
 			clientSocket = null;
 		}
 	}
@@ -262,6 +994,7 @@ public class ConnectionToClient extends Thread {
 	/**
 	 * This method is called by garbage collection.
 	 */
+	@SuppressWarnings("deprecation")
 	protected void finalize() {
 		try {
 			closeAll();
@@ -0,0 +1,575 @@
+package ocsf.server;
+
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import ocsf.common.*;
+
+/**
+ * A <code> NioConnection </code> holds the channel and buffers behind a
+ * <code> ConnectionToClient </code> serviced by a
+ * <code> NioEventLoop </code>. Reads are only ever done by the loop. Frames
+ * to send go through the outbound queue of the connection: the sender that
+ * finds the queue idle writes directly, and whatever the socket does not
+ * accept is left for the loop to finish when the channel becomes writable.
+ * Only one writer is active at a time, so frames are never interleaved.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ *
+ * @see ocsf.common.Framing
+ */
+final class NioConnection {
+  // CLASS VARIABLES ************************************************
+
+  /**
+   * The largest number of frames handed to a single gathering write.
+   */
+  private static final int WRITE_BATCH = 16;
+
+  // INSTANCE VARIABLES *********************************************
+
+  /**
+   * The engine that accepted the connection.
+   */
+  private final NioServerEngine engine;
+
+  /**
+   * The loop servicing the connection.
+   */
+  private final NioEventLoop loop;
+
+  /**
+   * The channel to the client.
+   */
+  private final SocketChannel channel;
+
+  /**
+   * The key of the channel in the selector of the loop.
+   */
+  private SelectionKey key;
+
+  /**
+   * The connection given to the server hooks.
+   */
+  private ConnectionToClient client;
+
+  /**
+   * Bytes of an incomplete frame kept between two reads, in write mode.
+   * Null whenever the last read ended on a frame boundary, so idle
+   * connections do not hold a buffer.
+   */
+  private ByteBuffer partial;
+
+  /**
+   * Indicates that the hello of the client has not been received yet.
+   */
+  private boolean helloPending = true;
+
+  /**
+   * Closes the connection if the hello does not come in time; null if
+   * there is no limit.
+   */
+  private TimerWheel.Timeout helloDeadline;
+
+  /**
+   * Indicates that reading is held back by a rate limit. Only the loop
+   * thread touches it.
+   */
+  private boolean throttled;
+
+  /**
+   * The message refused by a full dispatch thread, held with reading
+   * stopped until it is taken; null if there is none. Only the loop
+   * thread touches it.
+   */
+  private Object stalled;
+
+  /**
+   * The codec of the connection, known once the hello is received.
+   */
+  private volatile MessageCodec codec;
+
+  /**
+   * Frames waiting to be written.
+   */
+  private final OutboundQueue<ByteBuffer> outbound;
+
+  /**
+   * The frames taken from the queue for the current gathering write. When
+   * the socket fills up, the frames not fully written stay here and are
+   * finished before any queued frame. Guarded by this.
+   */
+  private final ByteBuffer[] batch = new ByteBuffer[WRITE_BATCH];
+
+  /**
+   * The index of the first unwritten frame in <code>batch</code>.
+   */
+  private int batchStart;
+
+  /**
+   * The number of unwritten frames in <code>batch</code>.
+   */
+  private int batchCount;
+
+  /**
+   * When a sender that finds the writer idle starts writing.
+   */
+  private final FlushPolicy flushPolicy;
+
+  /**
+   * The delay of <code>FlushPolicy.MAX_DELAY</code>, in ms.
+   */
+  private final long flushDelay;
+
+  // CONSTRUCTORS *****************************************************
+
+  /**
+   * Constructs the connection state for an accepted channel.
+   *
+   * @param engine  the engine that accepted the channel.
+   * @param loop    the loop that will service it.
+   * @param channel the accepted, non-blocking channel.
+   * @param outbound the queue of frames to send.
+   */
+  NioConnection(NioServerEngine engine, NioEventLoop loop,
+      SocketChannel channel, OutboundQueue<ByteBuffer> outbound) {
+    this.engine = engine;
+    this.loop = loop;
+    this.channel = channel;
+    this.outbound = outbound;
+    this.flushPolicy = engine.getServer().getFlushPolicy();
+    this.flushDelay = engine.getServer().getFlushDelay();
+  }
+
+  // INSTANCE METHODS *************************************************
+
+  /**
+   * Registers the channel for reading. The connection is only added to the
+   * server, and <code>clientConnected</code> called, once the hello of the
+   * client has been received. Called by the loop thread.
+   *
+   * @param selector the selector of the loop.
+   * @param client   the connection given to the server hooks.
+   * @exception IOException if the channel cannot be registered.
+   */
+  void open(Selector selector, ConnectionToClient client) throws IOException {
+    this.client = client;
+    this.key = channel.register(selector, SelectionKey.OP_READ, this);
+
+    long helloTimeout = engine.getServer().getHelloTimeoutMillis();
+    if (helloTimeout > 0)
+      helloDeadline = Threads.wheel().schedule(
+          () -> loop.execute(() -> helloTimedOut(helloTimeout)),
+          helloTimeout, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * @return the socket of the channel.
+   */
+  Socket socket() {
+    return channel.socket();
+  }
+
+  /**
+   * @return the connection given to the server hooks.
+   */
+  ConnectionToClient getClient() {
+    return client;
+  }
+
+  /**
+   * @return the queue of frames to send.
+   */
+  OutboundQueue<ByteBuffer> getOutboundQueue() {
+    return outbound;
+  }
+
+  /**
+   * @return the codec of the connection, or null before the hello.
+   */
+  MessageCodec getCodec() {
+    return codec;
+  }
+
+  /**
+   * Sends an encoded frame. If no writer is active, the calling thread
+   * becomes the writer and writes what the socket accepts right away;
+   * otherwise the frame is only queued. The position of the frame is
+   * moved as it is written, so a frame shared with other connections must
+   * be given as a duplicate.
+   *
+   * @param frame the frame to send.
+   * @exception IOException if the channel is closed, an I/O error occurs
+   *                        when writing, or the slow-consumer policy
+   *                        refuses the frame.
+   */
+  void send(ByteBuffer frame) throws IOException {
+    if (!channel.isOpen())
+      throw new ClosedChannelException();
+
+    if (outbound.offer(frame))
+      startWriter();
+  }
+
+  /**
+   * Sends a batch of encoded frames. The frames are queued together, with
+   * no frame of another sender in between, before any is written, so they
+   * go out in as few gathering writes as possible.
+   *
+   * @param frames the frames to send, in order.
+   * @exception IOException if the channel is closed, an I/O error occurs
+   *                        when writing, or the slow-consumer policy
+   *                        refuses the batch, in which case no frame of it
+   *                        is sent.
+   */
+  void send(List<ByteBuffer> frames) throws IOException {
+    if (!channel.isOpen())
+      throw new ClosedChannelException();
+
+    if (outbound.offerAll(frames))
+      startWriter();
+  }
+
+  /**
+   * Closes the channel and drops the frames not yet written.
+   *
+   * @exception IOException if an error occurs when closing.
+   */
+  void close() throws IOException {
+    outbound.clear();
+    channel.close();
+  }
+
+  /**
+   * Becomes the writer: writes right away, or with
+   * <code>FlushPolicy.MAX_DELAY</code> lets frames gather in the queue
+   * and writes them when the delay has passed.
+   *
+   * @exception IOException if an I/O error occurs when writing.
+   */
+  private void startWriter() throws IOException {
+    if (flushPolicy == FlushPolicy.MAX_DELAY)
+      Threads.timer().schedule(this::timedFlush, flushDelay,
+          TimeUnit.MILLISECONDS);
+    else
+      flush();
+  }
+
+  /**
+   * Writes on behalf of the timer; a failure closes the connection.
+   */
+  private void timedFlush() {
+    try {
+      flush();
+    } catch (IOException ex) {
+      client.connectionFailed(ex);
+    }
+  }
+
+  // METHODS CALLED BY THE EVENT LOOP ---------------------------------
+
+  /**
+   * Writes frames until the queue is empty, at which point the writer
+   * becomes idle, or until the socket is full, in which case the loop is
+   * asked to carry on when the channel becomes writable. Queued frames
+   * are written in batches with a single gathering write, without
+   * copying them. Called by the active writer only.
+   *
+   * @exception IOException if an I/O error occurs when writing.
+   */
+  synchronized void flush() throws IOException {
+    for (;;) {
+      if (batchCount == 0) {
+        batchStart = 0;
+        batchCount = outbound.drainTo(batch);
+        if (batchCount == 0) {
+          watchWritable(false);
+          return;
+        }
+      }
+
+      long written = channel.write(batch, batchStart, batchCount);
+      if (written > 0) {
+        client.getMetrics().bytesOut(written);
+        client.getHeartbeat().written();
+      }
+      while (batchCount > 0 && !batch[batchStart].hasRemaining()) {
+        batch[batchStart++] = null;
+        batchCount--;
+      }
+      if (batchCount > 0) {
+        watchWritable(true);
+        return;
+      }
+    }
+  }
+
+  /**
+   * Reads what the client sent and hands every complete frame to the
+   * server.
+   *
+   * @param scratch the read buffer of the loop.
+   * @exception Exception if the read fails, the client closed the
+   *                      connection, a frame is invalid or the server
+   *                      failed to handle a message.
+   */
+  void handleRead(ByteBuffer scratch) throws Exception {
+    ByteBuffer buffer;
+    int count;
+
+    if (partial == null) {
+      buffer = scratch;
+      buffer.clear();
+    } else {
+      buffer = partial;
+    }
+    count = channel.read(buffer);
+    if (count < 0)
+      throw new EOFException("connection closed by client");
+    client.getMetrics().bytesIn(count);
+    client.getHeartbeat().read();
+
+    buffer.flip();
+    try {
+      decodeFrames(buffer);
+    } finally {
+      keepRemainder(buffer);
+    }
+  }
+
+  /**
+   * Turns interest in writability on or off. Only the loop thread changes
+   * the interest set; other threads ask it to.
+   *
+   * @param writable true to be told when the channel becomes writable.
+   */
+  private void watchWritable(boolean writable) {
+    if (!loop.inEventLoop()) {
+      if (writable)
+        loop.execute(() -> watchWritable(true));
+      return;
+    }
+
+    setInterest(SelectionKey.OP_WRITE, writable);
+  }
+
+  /**
+   * Adds an operation to the interest set of the channel, or removes it.
+   * Called by the loop thread.
+   *
+   * @param op         the operation.
+   * @param interested true to add it.
+   */
+  private void setInterest(int op, boolean interested) {
+    if (!key.isValid())
+      return;
+    int current = key.interestOps();
+    int ops = interested ? current | op : current & ~op;
+    if (ops != current)
+      key.interestOps(ops);
+  }
+
+  /**
+   * Stops reading from the client for a while; the frames already read
+   * stay in <code>partial</code>. What the client sends meanwhile fills
+   * the socket buffers, and then TCP holds the client back.
+   *
+   * @param nanos how long to stop, in nanoseconds.
+   */
+  private void throttle(long nanos) {
+    throttled = true;
+    setInterest(SelectionKey.OP_READ, false);
+    Threads.timer().schedule(() -> loop.execute(this::resumeReading), nanos,
+        TimeUnit.NANOSECONDS);
+  }
+
+  /**
+   * Handles the frames left when reading was stopped, then reads again
+   * unless they went over the limit again. Called by the loop thread.
+   */
+  private void resumeReading() {
+    throttled = false;
+    if (!key.isValid())
+      return;
+
+    ByteBuffer buffer = partial;
+    if (buffer != null) {
+      buffer.flip();
+      try {
+        decodeFrames(buffer);
+      } catch (Exception exception) {
+        client.connectionFailed(exception);
+        return;
+      } finally {
+        keepRemainder(buffer);
+      }
+    }
+    if (!throttled && stalled == null)
+      setInterest(SelectionKey.OP_READ, true);
+  }
+
+  /**
+   * Stops reading from the client until its dispatch thread takes the
+   * message it refused; the loop goes on serving the other clients.
+   *
+   * @param msg the refused message.
+   */
+  private void stall(Object msg) {
+    stalled = msg;
+    setInterest(SelectionKey.OP_READ, false);
+  }
+
+  /**
+   * Offers the refused message again once its dispatch thread has room,
+   * then reads again. Called by the loop thread.
+   */
+  private void resumeDispatch() {
+    Object msg = stalled;
+    if (msg == null || !key.isValid())
+      return;
+    if (!engine.getServer().offerMessageFromClient(msg, client,
+        () -> loop.execute(this::resumeDispatch)))
+      return;
+
+    stalled = null;
+    resumeReading();
+  }
+
+  /**
+   * Consumes the hello and every complete frame in a buffer.
+   *
+   * @param buffer the buffer, in read mode.
+   */
+  private void decodeFrames(ByteBuffer buffer) throws Exception {
+    if (helloPending && !decodeHello(buffer))
+      return;
+    if (stalled != null)
+      return;
+
+    while (buffer.remaining() >= Framing.HEADER_LENGTH && channel.isOpen()) {
+      int length = buffer.getInt(buffer.position());
+      if (length < 0) {
+        // A control frame is its length prefix alone
+        buffer.position(buffer.position() + Framing.HEADER_LENGTH);
+        client.controlReceived(Framing.Control.forLength(length));
+        continue;
+      }
+      Framing.checkLength(length);
+      if (buffer.remaining() < Framing.HEADER_LENGTH + length)
+        return;
+
+      // The frame stays in the buffer while throttled
+      long wait = client.admit();
+      if (wait > 0) {
+        throttle(wait);
+        return;
+      }
+
+      int start = buffer.position() + Framing.HEADER_LENGTH;
+      buffer.position(start + length);
+      if (wait < 0)
+        continue;
+      Object msg = codec.decode(buffer.array(),
+          buffer.arrayOffset() + start, length);
+
+      // A full dispatch thread stops this client only, not the loop
+      if (!engine.getServer().offerMessageFromClient(msg, client,
+          () -> loop.execute(this::resumeDispatch))) {
+        stall(msg);
+        return;
+      }
+    }
+  }
+
+  /**
+   * Consumes the hello of the client, answers it, and makes the connection
+   * known to the server.
+   *
+   * @param buffer the buffer, in read mode.
+   * @return true if the hello was complete.
+   */
+  private boolean decodeHello(ByteBuffer buffer) throws IOException {
+    if (buffer.remaining() < Framing.HEADER_LENGTH)
+      return false;
+
+    byte[] answer;
+    boolean heartbeats = false;
+    if (Framing.isStreamHeader(buffer)) {
+      // A legacy client: frames carry serialized objects
+      buffer.position(buffer.position() + Framing.HEADER_LENGTH);
+      codec = Codecs.SERIALIZATION;
+      answer = Framing.greeting();
+    } else if (Framing.isHello(buffer)) {
+      if (buffer.remaining() < Framing.HELLO_LENGTH)
+        return false;
+      heartbeats = Framing.hasHeartbeats(buffer);
+      codec = Framing.parseHello(buffer, engine.getServer().getCompression());
+      answer = Framing.hello(codec);
+    } else {
+      throw new StreamCorruptedException("invalid client hello");
+    }
+    helloPending = false;
+    if (helloDeadline != null)
+      helloDeadline.cancel();
+    // The answer is written at once whatever the flush policy
+    if (outbound.offer(ByteBuffer.wrap(answer)))
+      flush();
+
+    AbstractServer server = engine.getServer();
+    server.addClientConnection(client);
+    if (heartbeats)
+      client.getHeartbeat().start();
+    server.clientConnected(client);
+    return true;
+  }
+
+  /**
+   * Closes the connection if its hello has still not been received. Called
+   * by the loop thread.
+   *
+   * @param helloTimeout the time the client had, in ms.
+   */
+  private void helloTimedOut(long helloTimeout) {
+    if (helloPending && channel.isOpen())
+      client.connectionFailed(new SocketTimeoutException(
+          "no hello from the client within " + helloTimeout + " ms"));
+  }
+
+  /**
+   * Keeps the bytes of an incomplete frame for the next read, making room
+   * for at least as many more bytes as are kept, up to the whole frame:
+   * the buffer grows with the bytes that arrive, not with the length the
+   * frame claims.
+   *
+   * @param buffer the buffer just decoded, in read mode.
+   */
+  private void keepRemainder(ByteBuffer buffer) {
+    if (!buffer.hasRemaining()) {
+      partial = null;
+      return;
+    }
+
+    int capacity = Math.max(2 * buffer.remaining(), 256);
+    if (!helloPending && buffer.remaining() >= Framing.HEADER_LENGTH) {
+      int length = buffer.getInt(buffer.position());
+      if (length >= 0 && length <= Framing.MAX_FRAME_LENGTH)
+        capacity = Math.min(capacity, Framing.HEADER_LENGTH + length);
+    }
+    // Frames kept while reading is stopped may already fill more
+    capacity = Math.max(capacity, buffer.remaining());
+
+    if (buffer == partial && partial.capacity() >= capacity) {
+      partial.compact();
+    } else {
+      ByteBuffer kept = ByteBuffer.allocate(capacity);
+      kept.put(buffer);
+      partial = kept;
+    }
+  }
+}
+// End of NioConnection class
@@ -0,0 +1,230 @@
+package ocsf.server;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A <code> NioEventLoop </code> is one thread of a
+ * <code> NioServerEngine </code>. It owns a selector and performs every
+ * read, and every write that could not complete immediately, for the
+ * connections registered with it. Work submitted from other threads is
+ * queued and run by the loop between two selections.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ *
+ * @see ocsf.server.NioConnection
+ */
+final class NioEventLoop implements Runnable {
+  // CLASS VARIABLES **************************************************
+
+  /**
+   * The size of the buffer shared by all the reads done on a loop.
+   */
+  private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+  /**
+   * The loop run by the current thread, if it is a loop thread.
+   */
+  private static final ThreadLocal<NioEventLoop> CURRENT = new ThreadLocal<>();
+
+  // INSTANCE VARIABLES *********************************************
+
+  /**
+   * The engine this loop belongs to.
+   */
+  private final NioServerEngine engine;
+
+  /**
+   * The selector watching the channels of this loop.
+   */
+  private final Selector selector;
+
+  /**
+   * The thread running this loop.
+   */
+  private final Thread thread;
+
+  /**
+   * Work submitted by other threads, run by the loop.
+   */
+  private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+  /**
+   * Buffer into which every read of this loop is first done. Only bytes
+   * left over from an incomplete frame are copied to the connection.
+   */
+  private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+
+  /**
+   * Indicates if the loop is ready to stop.
+   */
+  private volatile boolean readyToStop = false;
+
+  // CONSTRUCTORS *****************************************************
+
+  /**
+   * Constructs a loop and opens its selector.
+   *
+   * @param engine the engine the loop belongs to.
+   * @param index  the position of the loop in the engine, used in the
+   *               thread name.
+   * @exception IOException if the selector cannot be opened.
+   */
+  NioEventLoop(NioServerEngine engine, int index) throws IOException {
+    this.engine = engine;
+    this.selector = Selector.open();
+    this.thread = new Thread(this, "OCSF NIO event loop " + index);
+  }
+
+  // CLASS METHODS ****************************************************
+
+  /**
+   * @return true if called from the thread of any loop, which must never
+   *         wait for a write, since only a loop makes room in its queues.
+   */
+  static boolean isEventLoopThread() {
+    return CURRENT.get() != null;
+  }
+
+  // INSTANCE METHODS *************************************************
+
+  /**
+   * Starts the loop thread.
+   */
+  void start() {
+    thread.start();
+  }
+
+  /**
+   * Asks the loop to stop after its current selection.
+   */
+  void stop() {
+    readyToStop = true;
+    selector.wakeup();
+  }
+
+  /**
+   * Queues work to be run by the loop thread.
+   *
+   * @param task the work to run.
+   */
+  void execute(Runnable task) {
+    tasks.add(task);
+    selector.wakeup();
+  }
+
+  /**
+   * @return true if called from the loop thread.
+   */
+  boolean inEventLoop() {
+    return Thread.currentThread() == thread;
+  }
+
+  /**
+   * Registers a newly accepted channel with this loop. The registration
+   * itself is done by the loop thread.
+   *
+   * @param channel the accepted, non-blocking channel.
+   */
+  void register(SocketChannel channel) {
+    execute(() -> {
+      AbstractServer server = engine.getServer();
+      NioConnection connection = new NioConnection(engine, this, channel,
+          server.<ByteBuffer>newOutboundQueue());
+      ConnectionToClient client = new ConnectionToClient(connection, server);
+
+      try {
+        connection.open(selector, client);
+      } catch (IOException ex) {
+        client.connectionFailed(ex);
+      }
+    });
+  }
+
+  // RUN METHOD -------------------------------------------------------
+
+  /**
+   * Selects ready channels and services them until stopped.
+   * Not to be called.
+   */
+  public void run() {
+    CURRENT.set(this);
+    try {
+      while (!readyToStop) {
+        selector.select();
+        runTasks();
+
+        Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+        while (keys.hasNext()) {
+          SelectionKey key = keys.next();
+          keys.remove();
+          service(key);
+        }
+      }
+    } catch (IOException | ClosedSelectorException exception) {
+      // The selector itself failed; the connections cannot be serviced.
+    } finally {
+      closeAll();
+    }
+  }
+
+  // METHODS TO BE USED FROM WITHIN THE FRAMEWORK ONLY ----------------
+
+  /**
+   * Runs the work queued by other threads.
+   */
+  private void runTasks() {
+    Runnable task;
+
+    while ((task = tasks.poll()) != null) {
+      try {
+        task.run();
+      } catch (RuntimeException ex) {
+        // A failing task must not stop the loop
+      }
+    }
+  }
+
+  /**
+   * Performs the reads and writes a selected channel is ready for.
+   *
+   * @param key the selected key.
+   */
+  private void service(SelectionKey key) {
+    NioConnection connection = (NioConnection) key.attachment();
+
+    try {
+      if (key.isValid() && key.isWritable())
+        connection.flush();
+      if (key.isValid() && key.isReadable())
+        connection.handleRead(readBuffer);
+    } catch (Exception exception) {
+      connection.getClient().connectionFailed(exception);
+    }
+  }
+
+  /**
+   * Closes the channels still registered when the loop stops.
+   */
+  private void closeAll() {
+    try {
+      for (SelectionKey key : new ArrayList<>(selector.keys())) {
+        NioConnection connection = (NioConnection) key.attachment();
+
+        if (connection != null) {
+          try {
+            connection.getClient().close();
+          } catch (Exception ex) {
+          }
+        }
+      }
+      selector.close();
+    } catch (IOException | ClosedSelectorException ex) {
+    }
+  }
+}
+// End of NioEventLoop class
@@ -0,0 +1,104 @@
+package ocsf.server;
+
+import java.io.*;
+import java.nio.channels.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The <code> NioServerEngine </code> services the clients of an
+ * <code> AbstractServer </code> configured with
+ * <code>ServerEngine.NIO</code>. Accepted sockets are handed to a fixed
+ * pool of <code>NioEventLoop</code> threads in round-robin order; each loop
+ * multiplexes its share of the clients over a single selector.
+ * <p>
+ * The engine lives from the moment the server socket is opened until the
+ * server is closed, so connections keep working while the server is not
+ * listening, as they do with the thread-per-client engine.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ *
+ * @see ocsf.server.NioEventLoop
+ * @see ocsf.server.NioConnection
+ */
+final class NioServerEngine {
+  // INSTANCE VARIABLES *********************************************
+
+  /**
+   * The server whose clients are serviced.
+   */
+  private final AbstractServer server;
+
+  /**
+   * The event loops; a connection stays on the loop it was given.
+   */
+  private final NioEventLoop[] loops;
+
+  /**
+   * Used to spread new connections over the loops.
+   */
+  private final AtomicInteger nextLoop = new AtomicInteger();
+
+  // CONSTRUCTORS *****************************************************
+
+  /**
+   * Constructs the engine and opens the selectors of its loops.
+   *
+   * @param server    the server whose clients are serviced.
+   * @param loopCount the number of event loop threads.
+   * @exception IOException if a selector cannot be opened.
+   */
+  NioServerEngine(AbstractServer server, int loopCount) throws IOException {
+    this.server = server;
+    this.loops = new NioEventLoop[Math.max(1, loopCount)];
+
+    try {
+      for (int i = 0; i < loops.length; i++)
+        loops[i] = new NioEventLoop(this, i);
+    } catch (IOException ex) {
+      shutdown();
+      throw ex;
+    }
+  }
+
+  // INSTANCE METHODS *************************************************
+
+  /**
+   * Starts the event loop threads.
+   */
+  void start() {
+    for (NioEventLoop loop : loops)
+      loop.start();
+  }
+
+  /**
+   * Stops the event loop threads. Connections still registered are closed
+   * by the loops as they exit.
+   */
+  void shutdown() {
+    for (NioEventLoop loop : loops) {
+      if (loop != null)
+        loop.stop();
+    }
+  }
+
+  /**
+   * Hands a newly accepted socket to one of the loops.
+   *
+   * @param channel the accepted channel.
+   * @exception IOException if the channel cannot be made non-blocking.
+   */
+  void register(SocketChannel channel) throws IOException {
+    channel.configureBlocking(false);
+    loops[Math.floorMod(nextLoop.getAndIncrement(), loops.length)]
+        .register(channel);
+  }
+
+  /**
+   * @return the server whose clients are serviced.
+   */
+  AbstractServer getServer() {
+    return server;
+  }
+}
+// End of NioServerEngine class
@@ -0,0 +1,173 @@
+package ocsf.server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.*;
+
+/**
+ * An <code> OrderedDispatcher </code> runs message handlers on a fixed set of
+ * stripes, each a single thread with a bounded queue. Work submitted with
+ * the same key always goes to the same stripe, so it runs in submission
+ * order, while work with different keys runs in parallel on different
+ * stripes. A full stripe blocks the submitter, which in turn stops reading
+ * from its client; a submitter that must not block, an NIO event loop,
+ * is refused instead and called back once the stripe has room again. A task that fails is reported to the uncaught exception
+ * handler of its stripe, which goes on with the next one. The stripes are
+ * daemon threads, stopped by <code>shutdown</code>.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ *
+ * @see ocsf.server.AbstractServer#setDispatchThreads(int)
+ */
+final class OrderedDispatcher {
+  // CLASS VARIABLES **************************************************
+
+  /**
+   * The number of messages each stripe may hold before submitters block.
+   */
+  private static final int STRIPE_CAPACITY = 1024;
+
+  /**
+   * The room a stripe must have before the submitters it refused are
+   * called back, so that they do not take turns filling it.
+   */
+  private static final int RESUME_ROOM = STRIPE_CAPACITY / 2;
+
+  // INSTANCE VARIABLES *********************************************
+
+  /**
+   * The stripes.
+   */
+  private final List<Stripe> stripes;
+
+  /**
+   * The threads of the stripes.
+   */
+  private final Thread[] threads;
+
+  /**
+   * Indicates if the stripes are ready to stop.
+   */
+  private volatile boolean readyToStop = false;
+
+  // CONSTRUCTORS *****************************************************
+
+  /**
+   * Constructs and starts a dispatcher.
+   *
+   * @param stripes the number of stripes; at least one.
+   */
+  OrderedDispatcher(int stripes) {
+    this.stripes = new ArrayList<>(stripes);
+    threads = new Thread[stripes];
+
+    for (int i = 0; i < stripes; i++) {
+      Stripe stripe = new Stripe();
+      this.stripes.add(stripe);
+      threads[i] = new Thread(() -> drain(stripe), "OCSF dispatch " + i);
+      threads[i].setDaemon(true);
+      threads[i].start();
+    }
+  }
+
+  // INSTANCE METHODS *************************************************
+
+  /**
+   * Queues work behind everything submitted earlier with the same key.
+   * Blocks while the stripe of the key is full.
+   *
+   * @param key  the ordering key.
+   * @param task the work to run.
+   * @exception InterruptedException if interrupted while waiting for room.
+   */
+  void dispatch(Object key, Runnable task) throws InterruptedException {
+    stripeOf(key).queue.put(task);
+  }
+
+  /**
+   * Queues work behind everything submitted earlier with the same key,
+   * unless the stripe of the key is full. A refused submitter is called
+   * back, once, when the stripe has room again; it then submits again.
+   *
+   * @param key      the ordering key.
+   * @param task     the work to run.
+   * @param whenRoom called when the stripe has room, on whatever thread
+   *                 notices it, if the work is refused.
+   * @return true if the work was queued.
+   */
+  boolean tryDispatch(Object key, Runnable task, Runnable whenRoom) {
+    Stripe stripe = stripeOf(key);
+    if (stripe.queue.offer(task))
+      return true;
+
+    stripe.waiters.add(whenRoom);
+    // The stripe may have emptied before the callback was registered
+    if (stripe.queue.remainingCapacity() > 0)
+      stripe.wakeWaiters();
+    return false;
+  }
+
+  /**
+   * Stops the stripes. Work still queued is discarded.
+   */
+  void shutdown() {
+    readyToStop = true;
+    for (Thread thread : threads)
+      thread.interrupt();
+  }
+
+  /**
+   * @return the stripe the work of a key goes to.
+   */
+  private Stripe stripeOf(Object key) {
+    int h = key.hashCode();
+    return stripes.get(Math.floorMod(h ^ (h >>> 16), stripes.size()));
+  }
+
+  /**
+   * Runs the work of one stripe until stopped.
+   *
+   * @param stripe the stripe.
+   */
+  private void drain(Stripe stripe) {
+    Thread thread = Thread.currentThread();
+    try {
+      while (!readyToStop) {
+        Runnable task = stripe.queue.take();
+        try {
+          task.run();
+          if (!stripe.waiters.isEmpty()
+              && stripe.queue.remainingCapacity() >= RESUME_ROOM)
+            stripe.wakeWaiters();
+        } catch (Throwable t) {
+          // A dead stripe would block its submitters for good
+          thread.getUncaughtExceptionHandler().uncaughtException(thread, t);
+        }
+      }
+    } catch (InterruptedException ex) {
+      // Stopped by shutdown
+    }
+  }
+
+  // INNER CLASSES ****************************************************
+
+  /**
+   * The queue of a stripe, and the submitters it refused.
+   */
+  private static final class Stripe {
+    final BlockingQueue<Runnable> queue = new ArrayBlockingQueue<>(STRIPE_CAPACITY);
+    final Queue<Runnable> waiters = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Calls back the submitters refused so far.
+     */
+    void wakeWaiters() {
+      Runnable waiter;
+      while ((waiter = waiters.poll()) != null)
+        waiter.run();
+    }
+  }
+}
+// End of OrderedDispatcher class
@@ -0,0 +1,333 @@
+package ocsf.server;
+
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.*;
+
+/**
+ * An <code> OutboundQueue </code> holds the messages waiting to be written
+ * to one client. Senders add to it without writing; a single writer at a
+ * time removes from it. The queue tracks whether a writer is active, so
+ * that the sender that finds it idle knows it must start one.
+ * <p>
+ * When the queue is full, the slow-consumer policy of the server decides
+ * what happens to the new message. A capacity of 0 means the queue is
+ * unbounded and the policy is never applied. A batch is admitted or
+ * refused as a whole: it needs room for all its items, or an empty queue
+ * if it is larger than the capacity.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ *
+ * @param <T> the type of the queued items.
+ * @see ocsf.server.SlowConsumerPolicy
+ */
+final class OutboundQueue<T> {
+  // INSTANCE VARIABLES *********************************************
+
+  /**
+   * The queued items, oldest first.
+   */
+  private final ArrayDeque<T> items = new ArrayDeque<>();
+
+  /**
+   * The maximum number of queued items, or 0 for no limit.
+   */
+  private final int capacity;
+
+  /**
+   * What to do when the queue is full.
+   */
+  private final SlowConsumerPolicy policy;
+
+  /**
+   * How long a sender waits for room with <code>BLOCK</code>, in
+   * nanoseconds.
+   */
+  private final long blockNanos;
+
+  /**
+   * Guards all the state of the queue.
+   */
+  private final ReentrantLock lock = new ReentrantLock();
+
+  /**
+   * Signalled when an item is removed.
+   */
+  private final Condition notFull = lock.newCondition();
+
+  /**
+   * Indicates if a writer is currently draining the queue.
+   */
+  private boolean writerActive = false;
+
+  /**
+   * The number of items discarded by <code>DROP_OLDEST</code>.
+   */
+  private long dropped = 0;
+
+  /**
+   * The largest number of items ever queued at once.
+   */
+  private int highWatermark = 0;
+
+  /**
+   * The time senders waited for room with <code>BLOCK</code>, in
+   * nanoseconds.
+   */
+  private long blockedNanos = 0;
+
+  /**
+   * The counters of the server, which get the waits of senders too.
+   */
+  private final ServerMetrics metrics;
+
+  // CONSTRUCTORS *****************************************************
+
+  /**
+   * Constructs an empty queue.
+   *
+   * @param capacity    the maximum number of items, or 0 for no limit.
+   * @param policy      what to do when the queue is full.
+   * @param blockMillis how long a sender waits for room with
+   *                    <code>BLOCK</code>.
+   * @param metrics     the counters of the server.
+   */
+  OutboundQueue(int capacity, SlowConsumerPolicy policy, long blockMillis,
+      ServerMetrics metrics) {
+    this.capacity = capacity;
+    this.policy = policy;
+    this.blockNanos = TimeUnit.MILLISECONDS.toNanos(blockMillis);
+    this.metrics = metrics;
+  }
+
+  // INSTANCE METHODS *************************************************
+
+  /**
+   * Adds an item, applying the slow-consumer policy if the queue is full.
+   *
+   * @param item the item to add.
+   * @return true if no writer was active; the caller must then start one.
+   * @exception SlowConsumerException if the policy refuses the item.
+   * @exception InterruptedIOException if interrupted while waiting for
+   *                                   room.
+   */
+  boolean offer(T item) throws SlowConsumerException, InterruptedIOException {
+    lock.lock();
+    try {
+      if (!hasRoom(1))
+        makeRoom(1);
+
+      items.add(item);
+      return added();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Adds a batch of items next to each other, applying the slow-consumer
+   * policy if there is no room for all of them. Either every item is
+   * added or none is.
+   *
+   * @param batch the items to add, in order.
+   * @return true if no writer was active; the caller must then start one.
+   * @exception SlowConsumerException if the policy refuses the batch.
+   * @exception InterruptedIOException if interrupted while waiting for
+   *                                   room.
+   */
+  boolean offerAll(List<? extends T> batch)
+      throws SlowConsumerException, InterruptedIOException {
+    if (batch.isEmpty())
+      return false;
+
+    lock.lock();
+    try {
+      if (!hasRoom(batch.size()))
+        makeRoom(batch.size());
+
+      items.addAll(batch);
+      return added();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Removes the oldest item. When the queue is empty, the writer is
+   * marked idle in the same step, so no item can be left behind.
+   *
+   * @return the oldest item, or null if the writer must stop.
+   */
+  T poll() {
+    lock.lock();
+    try {
+      T item = items.poll();
+
+      if (item == null)
+        writerActive = false;
+      else
+        notFull.signal();
+      return item;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Removes the oldest items, as many as fit in the given array. When the
+   * queue is empty, the writer is marked idle in the same step, as with
+   * <code>poll</code>.
+   *
+   * @param batch the array to fill from index 0.
+   * @return the number of items removed; 0 if the writer must stop.
+   */
+  int drainTo(T[] batch) {
+    lock.lock();
+    try {
+      int count = 0;
+      T item;
+
+      while (count < batch.length && (item = items.poll()) != null)
+        batch[count++] = item;
+
+      if (count == 0)
+        writerActive = false;
+      else
+        notFull.signalAll();
+      return count;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Discards every queued item and wakes up waiting senders.
+   */
+  void clear() {
+    lock.lock();
+    try {
+      items.clear();
+      notFull.signalAll();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * @return the number of items currently queued.
+   */
+  int size() {
+    lock.lock();
+    try {
+      return items.size();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * @return the number of items discarded by <code>DROP_OLDEST</code>.
+   */
+  long getDropped() {
+    lock.lock();
+    try {
+      return dropped;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * @return the largest number of items ever queued at once.
+   */
+  int getHighWatermark() {
+    lock.lock();
+    try {
+      return highWatermark;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * @return the time senders waited for room with <code>BLOCK</code>, in
+   *         nanoseconds.
+   */
+  long getBlockedNanos() {
+    lock.lock();
+    try {
+      return blockedNanos;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Records that items were added and claims the writer if it was idle.
+   * Called with the lock held.
+   *
+   * @return true if the caller must start a writer.
+   */
+  private boolean added() {
+    highWatermark = Math.max(highWatermark, items.size());
+
+    if (writerActive)
+      return false;
+    writerActive = true;
+    return true;
+  }
+
+  /**
+   * @return true if the given number of items can be added: the queue is
+   *         unbounded, has room for them, or is empty. Called with the
+   *         lock held.
+   */
+  private boolean hasRoom(int count) {
+    return capacity == 0 || items.isEmpty() || items.size() + count <= capacity;
+  }
+
+  /**
+   * Applies the policy to a queue without room for the given number of
+   * items. Called with the lock held.
+   */
+  private void makeRoom(int count) throws SlowConsumerException, InterruptedIOException {
+    switch (policy) {
+    case DROP_OLDEST:
+      while (!hasRoom(count)) {
+        items.poll();
+        dropped++;
+      }
+      return;
+
+    case BLOCK:
+      // A loop waiting for room only its own writes can make would stall
+      // every connection it serves, so it gives up right away
+      long nanos = NioEventLoop.isEventLoopThread() ? 0 : blockNanos;
+      long start = System.nanoTime();
+      try {
+        while (!hasRoom(count)) {
+          if (nanos <= 0)
+            throw new SlowConsumerException("outbound queue still full after "
+                + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+          nanos = notFull.awaitNanos(nanos);
+        }
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("interrupted waiting for room");
+      } finally {
+        long waited = System.nanoTime() - start;
+        blockedNanos += waited;
+        metrics.writeBlocked(waited);
+      }
+      return;
+
+    default:
+      throw new SlowConsumerException("outbound queue full ("
+          + capacity + " messages)");
+    }
+  }
+}
+// End of OutboundQueue class
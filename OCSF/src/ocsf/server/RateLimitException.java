@@ -0,0 +1,28 @@
+package ocsf.server;
+
+import java.io.IOException;
+
+/**
+ * Given to <code>clientException</code> when a client is disconnected for
+ * sending faster than its rate limit allows, under the
+ * <code>DISCONNECT</code> policy.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ *
+ * @see ocsf.server.RateLimitPolicy
+ */
+public class RateLimitException extends IOException {
+
+  private static final long serialVersionUID = 1L;
+
+  /**
+   * Constructs the exception.
+   *
+   * @param message the detail message.
+   */
+  public RateLimitException(String message) {
+    super(message);
+  }
+}
+// End of RateLimitException class
@@ -0,0 +1,32 @@
+package ocsf.server;
+
+/**
+ * The <code> RateLimitPolicy </code> enumeration lists what a server does
+ * with a message received from a client that sends faster than its rate
+ * limit, or that of its login ID, allows.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ *
+ * @see ocsf.server.AbstractServer#setRateLimit(double, int, RateLimitPolicy)
+ */
+public enum RateLimitPolicy {
+  /**
+   * The server stops reading from the client until the message is within
+   * the limit, then handles it. What the client sends meanwhile waits in
+   * the socket buffers, until TCP makes the client itself wait.
+   */
+  THROTTLE,
+
+  /**
+   * The message is discarded. The client is not told.
+   */
+  DROP,
+
+  /**
+   * The client is disconnected; <code>clientException</code> is called
+   * with a <code>RateLimitException</code>.
+   */
+  DISCONNECT
+}
+// End of RateLimitPolicy enum
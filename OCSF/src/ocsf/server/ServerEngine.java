@@ -0,0 +1,62 @@
+package ocsf.server;
+
+/**
+ * The <code> ServerEngine </code> enumeration lists the ways in which an
+ * <code> AbstractServer </code> can service its client connections. The
+ * engine is chosen when the server is constructed, either explicitly or
+ * through the <code>ocsf.server.engine</code> system property, and the hook
+ * methods of the server are called the same way whichever engine is used.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ *
+ * @see ocsf.server.AbstractServer
+ */
+public enum ServerEngine {
+  /**
+   * Each client is serviced by its own <code>ConnectionToClient</code>
+   * thread blocked reading an object stream. This is the classic OCSF
+   * model and the default.
+   */
+  THREAD_PER_CLIENT,
+
+  /**
+   * Each client is serviced by its own virtual thread running the same
+   * blocking loop as <code>THREAD_PER_CLIENT</code>. Blocked readers
+   * release their carrier thread, so idle clients are cheap. Requires
+   * Java 21 or later.
+   */
+  VIRTUAL_THREAD,
+
+  /**
+   * All clients are serviced by a small pool of
+   * <code>java.nio.channels.Selector</code> event loops. Idle clients cost
+   * a registered channel instead of a thread, but they must speak the
+   * length-prefixed protocol of <code>ocsf.common.Framing</code>, which
+   * <code>AbstractClient</code> detects on its own.
+   */
+  NIO;
+
+  /**
+   * The system property read by <code>AbstractServer(int)</code> to choose
+   * an engine; one of <code>thread_per_client</code>,
+   * <code>virtual_thread</code> or <code>nio</code>.
+   */
+  public static final String PROPERTY = "ocsf.server.engine";
+
+  /**
+   * Returns the engine named by the <code>ocsf.server.engine</code> system
+   * property, or <code>THREAD_PER_CLIENT</code> if it is not set.
+   *
+   * @return the configured engine.
+   * @exception IllegalArgumentException if the property names no engine.
+   */
+  public static ServerEngine fromSystemProperty() {
+    String name = System.getProperty(PROPERTY);
+
+    if (name == null || name.trim().isEmpty())
+      return THREAD_PER_CLIENT;
+    return valueOf(name.trim().toUpperCase());
+  }
+}
+// End of ServerEngine enum
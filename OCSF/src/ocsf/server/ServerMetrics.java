@@ -0,0 +1,245 @@
+package ocsf.server;
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.ObjectName;
+
+import ocsf.common.Metrics;
+
+/**
+ * The <code> ServerMetrics </code> class counts what a server does for all
+ * its clients: connections, messages and bytes in both directions, the
+ * wait of messages for a dispatch thread, broadcasts, and the time senders
+ * are held back by slow clients. The connections add their own counts
+ * here as they go, so closed connections are still accounted for.
+ * <p>
+ * Every counter is a <code>LongAdder</code>: the threads of the server
+ * update them without contending, and reading one sums its cells. A
+ * reading taken while the server runs is therefore not a consistent
+ * snapshot of all the counters, only of each.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ *
+ * @see ocsf.server.AbstractServer#getMetrics()
+ * @see ocsf.server.ConnectionMetrics
+ */
+public final class ServerMetrics implements ServerMetricsMBean {
+  // INSTANCE VARIABLES *********************************************
+
+  /**
+   * The server counted.
+   */
+  private final AbstractServer server;
+
+  private final LongAdder connects = new LongAdder();
+  private final LongAdder disconnects = new LongAdder();
+  private final LongAdder messagesIn = new LongAdder();
+  private final LongAdder messagesOut = new LongAdder();
+  private final LongAdder bytesIn = new LongAdder();
+  private final LongAdder bytesOut = new LongAdder();
+  private final LongAdder dispatches = new LongAdder();
+  private final LongAdder dispatchWaitNanos = new LongAdder();
+  private final LongAdder broadcasts = new LongAdder();
+  private final LongAdder broadcastNanos = new LongAdder();
+  private final LongAccumulator maxBroadcastNanos = new LongAccumulator(Math::max, 0);
+  private final LongAdder writeBlockedNanos = new LongAdder();
+  private final LongAdder rateLimited = new LongAdder();
+  private final LongAdder throttledNanos = new LongAdder();
+
+  /**
+   * The name of the MBean while it is registered; null otherwise.
+   */
+  private ObjectName mbeanName;
+
+  // CONSTRUCTORS *****************************************************
+
+  /**
+   * Constructs the counters of a server.
+   *
+   * @param server the server.
+   */
+  ServerMetrics(AbstractServer server) {
+    this.server = server;
+  }
+
+  // INSTANCE METHODS *************************************************
+
+  public int getConnections() {
+    return server.getNumberOfClients();
+  }
+
+  public long getConnects() {
+    return connects.sum();
+  }
+
+  public long getDisconnects() {
+    return disconnects.sum();
+  }
+
+  public long getMessagesIn() {
+    return messagesIn.sum();
+  }
+
+  public long getMessagesOut() {
+    return messagesOut.sum();
+  }
+
+  public long getBytesIn() {
+    return bytesIn.sum();
+  }
+
+  public long getBytesOut() {
+    return bytesOut.sum();
+  }
+
+  public long getDispatches() {
+    return dispatches.sum();
+  }
+
+  public double getDispatchWaitMillis() {
+    return dispatchWaitNanos.sum() / 1e6;
+  }
+
+  public long getBroadcasts() {
+    return broadcasts.sum();
+  }
+
+  public double getBroadcastMillis() {
+    return broadcastNanos.sum() / 1e6;
+  }
+
+  public double getMaxBroadcastMillis() {
+    return maxBroadcastNanos.get() / 1e6;
+  }
+
+  public double getWriteBlockedMillis() {
+    return writeBlockedNanos.sum() / 1e6;
+  }
+
+  public long getRateLimited() {
+    return rateLimited.sum();
+  }
+
+  public double getThrottledMillis() {
+    return throttledNanos.sum() / 1e6;
+  }
+
+  public void reset() {
+    connects.reset();
+    disconnects.reset();
+    messagesIn.reset();
+    messagesOut.reset();
+    bytesIn.reset();
+    bytesOut.reset();
+    dispatches.reset();
+    dispatchWaitNanos.reset();
+    broadcasts.reset();
+    broadcastNanos.reset();
+    maxBroadcastNanos.reset();
+    writeBlockedNanos.reset();
+    rateLimited.reset();
+    throttledNanos.reset();
+  }
+
+  /**
+   * Returns the counters in a few lines of text, for a console.
+   *
+   * @return the description.
+   */
+  public String toString() {
+    long dispatched = getDispatches(), broadcast = getBroadcasts();
+    return String.format("Connections: %d open, %d connects, %d disconnects%n"
+        + "Messages: %d in, %d out%n"
+        + "Bytes: %d in, %d out%n"
+        + "Dispatch wait: %.3f ms over %d messages (%.1f us mean)%n"
+        + "Broadcasts: %d, %.3f ms (%.1f us mean, %.3f ms max)%n"
+        + "Write blocking: %.3f ms%n"
+        + "Rate limiting: %d messages over, %.3f ms throttled",
+        getConnections(), getConnects(), getDisconnects(),
+        getMessagesIn(), getMessagesOut(), getBytesIn(), getBytesOut(),
+        getDispatchWaitMillis(), dispatched,
+        dispatched == 0 ? 0 : getDispatchWaitMillis() * 1e3 / dispatched,
+        broadcast, getBroadcastMillis(),
+        broadcast == 0 ? 0 : getBroadcastMillis() * 1e3 / broadcast,
+        getMaxBroadcastMillis(), getWriteBlockedMillis(),
+        getRateLimited(), getThrottledMillis());
+  }
+
+  // METHODS TO BE USED FROM WITHIN THE FRAMEWORK ONLY ----------------
+
+  void connected() {
+    connects.increment();
+  }
+
+  void disconnected() {
+    disconnects.increment();
+  }
+
+  void messageIn() {
+    messagesIn.increment();
+  }
+
+  void messagesOut(int count) {
+    messagesOut.add(count);
+  }
+
+  void bytesIn(long count) {
+    bytesIn.add(count);
+  }
+
+  void bytesOut(long count) {
+    bytesOut.add(count);
+  }
+
+  /**
+   * Counts a message handled on a dispatch thread.
+   *
+   * @param nanos how long it waited for its handling to start.
+   */
+  void dispatched(long nanos) {
+    dispatches.increment();
+    dispatchWaitNanos.add(nanos);
+  }
+
+  /**
+   * Counts a message sent to several clients.
+   *
+   * @param nanos how long sending it took.
+   */
+  void broadcast(long nanos) {
+    broadcasts.increment();
+    broadcastNanos.add(nanos);
+    maxBroadcastNanos.accumulate(nanos);
+  }
+
+  void writeBlocked(long nanos) {
+    writeBlockedNanos.add(nanos);
+  }
+
+  void rateLimited() {
+    rateLimited.increment();
+  }
+
+  void throttled(long nanos) {
+    throttledNanos.add(nanos);
+  }
+
+  /**
+   * Registers the MBean, under the port of the server.
+   */
+  synchronized void register() {
+    if (mbeanName == null && Metrics.jmxEnabled())
+      mbeanName = Metrics.register(this, "type=Server,port=" + server.getPort());
+  }
+
+  /**
+   * Unregisters the MBean, if it is registered.
+   */
+  synchronized void unregister() {
+    Metrics.unregister(mbeanName);
+    mbeanName = null;
+  }
+}
+// End of ServerMetrics class
@@ -0,0 +1,101 @@
+package ocsf.server;
+
+/**
+ * The management interface of the <code> ServerMetrics </code> of a server,
+ * registered as <code>ocsf:type=Server,port=</code><i>port</i> while the
+ * server is listening. Counters only grow, from the construction of the
+ * server or the last <code>reset</code>; monitoring tools derive rates from
+ * two readings. Times are totals over all the events counted.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ *
+ * @see ocsf.common.Metrics
+ */
+public interface ServerMetricsMBean {
+  /**
+   * @return the number of clients currently connected.
+   */
+  int getConnections();
+
+  /**
+   * @return the number of connections set up.
+   */
+  long getConnects();
+
+  /**
+   * @return the number of connections closed.
+   */
+  long getDisconnects();
+
+  /**
+   * @return the number of messages received from clients.
+   */
+  long getMessagesIn();
+
+  /**
+   * @return the number of messages sent to clients, queued or written.
+   */
+  long getMessagesOut();
+
+  /**
+   * @return the number of bytes read from clients.
+   */
+  long getBytesIn();
+
+  /**
+   * @return the number of bytes written to clients.
+   */
+  long getBytesOut();
+
+  /**
+   * @return the number of messages handed to dispatch threads.
+   */
+  long getDispatches();
+
+  /**
+   * @return the time messages waited between their receipt and the start
+   *         of their handling on a dispatch thread, in ms.
+   */
+  double getDispatchWaitMillis();
+
+  /**
+   * @return the number of messages sent to several clients at once.
+   */
+  long getBroadcasts();
+
+  /**
+   * @return the time spent in <code>sendToClients</code> and
+   *         <code>sendToAllClients</code>, in ms.
+   */
+  double getBroadcastMillis();
+
+  /**
+   * @return the longest call to <code>sendToClients</code> or
+   *         <code>sendToAllClients</code>, in ms.
+   */
+  double getMaxBroadcastMillis();
+
+  /**
+   * @return the time senders waited for a client socket or for room in a
+   *         full outbound queue, in ms.
+   */
+  double getWriteBlockedMillis();
+
+  /**
+   * @return the number of messages that went over a rate limit.
+   */
+  long getRateLimited();
+
+  /**
+   * @return the time reading from clients was held back by
+   *         <code>RateLimitPolicy.THROTTLE</code>, in ms.
+   */
+  double getThrottledMillis();
+
+  /**
+   * Sets every counter back to 0.
+   */
+  void reset();
+}
+// End of ServerMetricsMBean interface
@@ -0,0 +1,28 @@
+package ocsf.server;
+
+import java.io.IOException;
+
+/**
+ * Thrown by <code>ConnectionToClient.sendToClient</code> when the outbound
+ * queue of the client is full and the slow-consumer policy of the server
+ * refuses the message.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ *
+ * @see ocsf.server.SlowConsumerPolicy
+ */
+public class SlowConsumerException extends IOException {
+
+  private static final long serialVersionUID = 1L;
+
+  /**
+   * Constructs the exception.
+   *
+   * @param message the detail message.
+   */
+  public SlowConsumerException(String message) {
+    super(message);
+  }
+}
+// End of SlowConsumerException class
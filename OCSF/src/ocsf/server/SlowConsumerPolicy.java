@@ -0,0 +1,36 @@
+package ocsf.server;
+
+/**
+ * The <code> SlowConsumerPolicy </code> enumeration lists what a server does
+ * when a message is sent to a client whose outbound queue is full, that is,
+ * a client that does not read as fast as messages are sent to it.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ *
+ * @see ocsf.server.AbstractServer#setOutboundQueue(int, SlowConsumerPolicy, long)
+ */
+public enum SlowConsumerPolicy {
+  /**
+   * The oldest queued message is discarded to make room for the new one.
+   * The client silently misses messages but is never disconnected.
+   */
+  DROP_OLDEST,
+
+  /**
+   * The client is disconnected; <code>sendToClient</code> throws a
+   * <code>SlowConsumerException</code> and <code>clientException</code>
+   * is called.
+   */
+  DISCONNECT,
+
+  /**
+   * The sender waits for room up to the configured timeout; if the queue
+   * is still full, the message is not sent and <code>sendToClient</code>
+   * throws a <code>SlowConsumerException</code>. A sender on an NIO event
+   * loop thread, such as a handler run without dispatch threads, does not
+   * wait, since the loop is what empties the queues.
+   */
+  BLOCK
+}
+// End of SlowConsumerPolicy enum
@@ -0,0 +1,10 @@
+#!/bin/sh
+# Builds the project and drives simulated chat users against an EchoServer,
+# started here on the loopback unless --port names a running one. Arguments
+# go to the load generator, for instance --clients 2000 --rate 1,5,10 to
+# step up the rate, or --format csv --out load.csv to collect a sweep.
+set -e
+cd "$(dirname "$0")/.."
+
+mvn -B -q -DskipTests package
+exec java -cp benchmarks/target/benchmarks.jar edu.seg2105.client.load.LoadGenerator "$@"
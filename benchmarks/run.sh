@@ -0,0 +1,18 @@
+#!/bin/sh
+# Builds the project and runs the benchmarks, keeping the results under the
+# current commit in benchmarks/results. With BASELINE set to another commit
+# whose results are there, the two runs are compared and the script fails
+# on a regression. Arguments go to JMH, for instance a benchmark name
+# pattern or -p clients=10,1000 to run fewer cases.
+set -e
+cd "$(dirname "$0")/.."
+
+mvn -B -q -DskipTests package
+mkdir -p benchmarks/results
+commit=$(git rev-parse --short HEAD)
+java -jar benchmarks/target/benchmarks.jar -rf json -rff "benchmarks/results/$commit.json" "$@"
+
+if [ -n "$BASELINE" ]; then
+  java -cp benchmarks/target/benchmarks.jar ocsf.bench.CompareResults \
+      "benchmarks/results/$BASELINE.json" "benchmarks/results/$commit.json"
+fi
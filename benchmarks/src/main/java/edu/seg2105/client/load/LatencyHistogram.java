@@ -0,0 +1,149 @@
+package edu.seg2105.client.load;
+
+/**
+ * This class counts latencies in buckets whose width grows with the value,
+ * so that any latency from a nanosecond to hours is kept within 1% of its
+ * value in a fixed array. Values below 256 have a bucket each; above, every
+ * power of two is split into 128 buckets.
+ *
+ * Each load client records into a histogram of its own, from its reader
+ * thread, and the histograms are merged for the report; recording is
+ * synchronized only so that the merge sees every count.
+ */
+public class LatencyHistogram {
+  // Class variables *************************************************
+
+  /**
+   * The number of bits of a value kept exactly.
+   */
+  private static final int SUB_BITS = 8;
+
+  /**
+   * The values below this one have a bucket each.
+   */
+  private static final int LINEAR = 1 << SUB_BITS;
+
+  /**
+   * The number of buckets each power of two above is split into.
+   */
+  private static final int HALF = LINEAR / 2;
+
+  /**
+   * Enough buckets for any positive long.
+   */
+  private static final int BUCKETS = LINEAR + (63 - SUB_BITS) * HALF;
+
+  // Instance variables **********************************************
+
+  private final long[] counts = new long[BUCKETS];
+
+  private long total;
+
+  private long min = Long.MAX_VALUE;
+
+  private long max;
+
+  private double sum;
+
+  // Instance methods ************************************************
+
+  /**
+   * Counts a value, a negative one as 0.
+   *
+   * @param value The value, in nanoseconds.
+   */
+  public synchronized void record(long value) {
+    value = Math.max(0, value);
+    counts[indexOf(value)]++;
+    total++;
+    sum += value;
+    min = Math.min(min, value);
+    max = Math.max(max, value);
+  }
+
+  /**
+   * Adds the counts of another histogram to this one.
+   *
+   * @param other The other histogram.
+   */
+  public synchronized void add(LatencyHistogram other) {
+    synchronized (other) {
+      for (int i = 0; i < BUCKETS; i++)
+        counts[i] += other.counts[i];
+      total += other.total;
+      sum += other.sum;
+      min = Math.min(min, other.min);
+      max = Math.max(max, other.max);
+    }
+  }
+
+  /**
+   * Returns the value below which a percentage of the values fall, as
+   * the highest value of its bucket.
+   *
+   * @param percentile The percentage, from 0 to 100.
+   * @return The value, 0 if the histogram is empty.
+   */
+  public synchronized long getValueAtPercentile(double percentile) {
+    if (total == 0)
+      return 0;
+
+    long rank = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+    long seen = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      seen += counts[i];
+      if (seen >= rank)
+        return Math.min(highestValueOf(i), max);
+    }
+    return max;
+  }
+
+  /**
+   * @return The number of values counted.
+   */
+  public synchronized long getCount() {
+    return total;
+  }
+
+  /**
+   * @return The smallest value counted, 0 if none was.
+   */
+  public synchronized long getMin() {
+    return total == 0 ? 0 : min;
+  }
+
+  /**
+   * @return The largest value counted.
+   */
+  public synchronized long getMax() {
+    return max;
+  }
+
+  /**
+   * @return The mean of the values counted, 0 if none was.
+   */
+  public synchronized double getMean() {
+    return total == 0 ? 0 : sum / total;
+  }
+
+  // Returns the bucket of a value
+  private static int indexOf(long value) {
+    if (value < LINEAR)
+      return (int) value;
+
+    // The value shifted right keeps its SUB_BITS - 1 highest bits
+    int shift = 63 - Long.numberOfLeadingZeros(value) - (SUB_BITS - 1);
+    return LINEAR + (shift - 1) * HALF + (int) ((value >>> shift) - HALF);
+  }
+
+  // Returns the highest value that falls in a bucket
+  private static long highestValueOf(int index) {
+    if (index < LINEAR)
+      return index;
+
+    int shift = (index - LINEAR) / HALF + 1;
+    long mantissa = (index - LINEAR) % HALF + HALF;
+    return ((mantissa + 1) << shift) - 1;
+  }
+}
+// End of LatencyHistogram class
@@ -0,0 +1,189 @@
+package edu.seg2105.client.load;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+
+import ocsf.client.AbstractClient;
+
+/**
+ * This class is a simulated chat user of the load generator. It logs in
+ * with <code>#login</code>, makes a room its current room with
+ * <code>#join</code>, then sends the lines the generator gives it; the lines
+ * it receives from the room are timed against the moment they were meant
+ * to be sent, written in them by their sender.
+ *
+ * A timed line is <code>~load &lt;nanoTime&gt; &lt;padding&gt;</code>. The
+ * server delivers it once as sent and once after the login ID of its
+ * sender, like a <code>ChatClient</code> shows it; only the latter is
+ * timed.
+ */
+public class LoadClient extends AbstractClient {
+  // Class variables *************************************************
+
+  /**
+   * The start of the lines timed by the load clients.
+   */
+  final public static String MARKER = "~load ";
+
+  // Instance variables **********************************************
+
+  /**
+   * The login ID of the user.
+   */
+  private final String loginId;
+
+  /**
+   * The room the user talks in.
+   */
+  private final String room;
+
+  /**
+   * Counted down once the server has put the user in its room.
+   */
+  private final CountDownLatch joined;
+
+  /**
+   * The window of the step whose lines are timed, null before the first.
+   */
+  private volatile LoadWindow window;
+
+  /**
+   * The latencies of the timed lines of the window received.
+   */
+  private volatile LatencyHistogram latencies = new LatencyHistogram();
+
+  /**
+   * Whether the server closed the connection or failed.
+   */
+  private volatile boolean failed;
+
+  // Constructors ****************************************************
+
+  /**
+   * Constructs a client, not connected yet.
+   *
+   * @param loginId The login ID of the user.
+   * @param room    The room the user talks in.
+   * @param host    The server to connect to.
+   * @param port    The port number to connect on.
+   * @param joined  Counted down once the user is in its room.
+   */
+  public LoadClient(String loginId, String room, String host, int port,
+      CountDownLatch joined) {
+    super(host, port);
+    this.loginId = loginId;
+    this.room = room;
+    this.joined = joined;
+  }
+
+  // Instance methods ************************************************
+
+  /**
+   * Connects to the server, logs in and joins the room.
+   *
+   * @throws IOException if the client cannot connect.
+   */
+  public void start() throws IOException {
+    openConnection();
+    sendToServer("#login " + loginId);
+    sendToServer("#join " + room);
+  }
+
+  /**
+   * Starts timing the lines of another window, in a new histogram.
+   *
+   * @param window The window.
+   */
+  public void measure(LoadWindow window) {
+    latencies = new LatencyHistogram();
+    this.window = window;
+  }
+
+  /**
+   * Sends a timed line without waiting for the socket, so that a user
+   * whose connection is slow does not hold up the thread sending for the
+   * others; the lines queued meanwhile leave together.
+   *
+   * @param intended The <code>System.nanoTime</code> at which the line was
+   *                 meant to be sent, what its latency is measured from.
+   * @param padding  What fills the line up to its size.
+   * @return Whether the line was queued.
+   */
+  public boolean send(long intended, String padding) {
+    CompletableFuture<Void> sent = sendToServerAsync(MARKER + intended + " " + padding);
+    if (sent.isCompletedExceptionally()) {
+      failed = true;
+      return false;
+    }
+    sent.whenComplete((done, failure) -> {
+      if (failure != null)
+        failed = true;
+    });
+    return true;
+  }
+
+  /**
+   * Times the lines of the room and notes when the user is in the room.
+   *
+   * @param msg The message from the server.
+   */
+  @Override
+  protected void handleMessageFromServer(Object msg) {
+    String message = msg.toString();
+
+    int marker = message.indexOf(": " + MARKER);
+    if (marker > 0) {
+      long now = System.nanoTime();
+      int start = marker + 2 + MARKER.length();
+      int end = message.indexOf(' ', start);
+      long sent = Long.parseLong(message.substring(start, end < 0 ? message.length() : end));
+      LoadWindow current = window;
+      if (current != null && current.contains(sent)) {
+        latencies.record(now - sent);
+        current.received();
+      }
+    } else if (message.startsWith("You are now in ")) {
+      joined.countDown();
+    }
+  }
+
+  /**
+   * Notes that the server failed.
+   *
+   * @param exception The exception raised.
+   */
+  @Override
+  protected void connectionException(Exception exception) {
+    failed = true;
+  }
+
+  /**
+   * @return The login ID of the user.
+   */
+  public String getLoginId() {
+    return loginId;
+  }
+
+  /**
+   * @return The room the user talks in.
+   */
+  public String getRoom() {
+    return room;
+  }
+
+  /**
+   * @return The latencies of the timed lines of the window received.
+   */
+  public LatencyHistogram getLatencies() {
+    return latencies;
+  }
+
+  /**
+   * @return Whether the server closed the connection or failed.
+   */
+  public boolean hasFailed() {
+    return failed;
+  }
+}
+// End of LoadClient class
@@ -0,0 +1,431 @@
+package edu.seg2105.client.load;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import edu.seg2105.edu.server.backend.ChatRooms;
+import edu.seg2105.edu.server.backend.EchoServer;
+import edu.seg2105.edu.server.store.ChatHistory;
+import edu.seg2105.edu.server.store.MailboxStore;
+import ocsf.bench.ClientFleet;
+import ocsf.server.ServerEngine;
+
+/**
+ * This class drives simulated chat users against an <code>EchoServer</code>
+ * to find the load it stops keeping up with. Each user is a
+ * <code>LoadClient</code> that logs in, joins one of the rooms, and sends
+ * timed lines at a fixed rate; every user of the room receives them, and
+ * the time from the moment a line was meant to be sent to its delivery is
+ * its latency. Lines are stamped when they are due rather than when their
+ * sender gets to them, so a server that holds the senders back shows in
+ * the latencies instead of hiding it.
+ *
+ * A run connects the users once and goes through one step for each rate
+ * given: a warmup, a measured window, and a drain until the lines of the
+ * window stop arriving. The report gives for each step the lines sent and
+ * the deliveries received per second, the share of the deliveries that
+ * arrived, and the latency percentiles from p50 to p99.99, in JSON or in
+ * CSV; a CSV file that exists gets the new rows appended, so that the runs
+ * of a sweep end up in one table.
+ *
+ * Without <code>--port</code> the server runs in this process on the
+ * loopback, with its history and mailboxes in a temporary directory unless
+ * <code>chat.history.dir</code> or <code>chat.mailbox.dir</code> are set,
+ * and what it prints is discarded. A client and its connection on the
+ * server take a file each, so more than a few thousand users need a server
+ * started on its own. The clients follow the <code>ocsf.*</code> system
+ * properties, such as <code>ocsf.codec</code>, and thousands of them are
+ * lighter with <code>-Docsf.client.virtualThreads=true</code>.
+ *
+ * Usage: <code>java -cp benchmarks.jar edu.seg2105.client.load.LoadGenerator
+ * [--option value]...</code>, with the options of <code>USAGE</code>.
+ */
+public class LoadGenerator {
+  // Class variables *************************************************
+
+  /**
+   * The options and their defaults.
+   */
+  final public static String USAGE = "Options:\n"
+      + "  --clients N     simulated users (1000)\n"
+      + "  --rooms N       rooms the users are spread over, 0 for the lobby (10)\n"
+      + "  --rate R[,R...] lines per second sent by each user, one step per rate (1)\n"
+      + "  --size BYTES    length of a line (64)\n"
+      + "  --warmup S      seconds of each step before measuring (5)\n"
+      + "  --duration S    seconds measured in each step (30)\n"
+      + "  --drain S       seconds at most to wait for the lines of a step (10)\n"
+      + "  --senders N     threads sending the lines (available processors)\n"
+      + "  --host HOST     server to connect to (localhost)\n"
+      + "  --port PORT     port of a running server, else one is started here\n"
+      + "  --engine NAME   engine of the server started here (ocsf.server.engine)\n"
+      + "  --format F      json or csv (json)\n"
+      + "  --out FILE      where the report goes (standard output)\n";
+
+  /**
+   * The latency percentiles reported.
+   */
+  private static final double[] PERCENTILES = { 50, 90, 99, 99.9, 99.99 };
+
+  /**
+   * The names of the percentiles in the report.
+   */
+  private static final String[] PERCENTILE_NAMES = { "P50", "P90", "P99", "P99_9", "P99_99" };
+
+  /**
+   * How long the users may take to connect and join their rooms, in
+   * seconds.
+   */
+  private static final long JOIN_TIMEOUT = 120;
+
+  // Instance variables **********************************************
+
+  private int clients = 1000;
+
+  private int rooms = 10;
+
+  private double[] rates = { 1 };
+
+  private int size = 64;
+
+  private double warmup = 5;
+
+  private double duration = 30;
+
+  private double drain = 10;
+
+  private int senders = Runtime.getRuntime().availableProcessors();
+
+  private String host = "localhost";
+
+  private int port = -1;
+
+  private ServerEngine engine;
+
+  private String format = "json";
+
+  private String out;
+
+  /**
+   * Where progress and the summary go.
+   */
+  private final PrintStream console = System.err;
+
+  /**
+   * The standard output, where the report goes unless a file is given.
+   */
+  private final PrintStream output = System.out;
+
+  /**
+   * The server started here, if any.
+   */
+  private EchoServer server;
+
+  /**
+   * The directory of the server started here, deleted when it stops.
+   */
+  private Path directory;
+
+  private final List<LoadClient> users = new ArrayList<>();
+
+  // Class methods ***************************************************
+
+  /**
+   * Runs the load and writes its report.
+   *
+   * @param args The options, see <code>USAGE</code>.
+   */
+  public static void main(String[] args) {
+    LoadGenerator generator = new LoadGenerator();
+    try {
+      generator.parse(args);
+    } catch (IllegalArgumentException e) {
+      System.err.println("ERROR - " + e.getMessage());
+      System.err.print(USAGE);
+      System.exit(2);
+    }
+
+    try {
+      List<Map<String, Object>> steps = generator.run();
+      generator.report(steps);
+      System.exit(0);
+    } catch (Exception e) {
+      System.err.println("ERROR - Load run failed: " + e);
+      System.exit(1);
+    }
+  }
+
+  // Instance methods ************************************************
+
+  // Reads the options
+  private void parse(String[] args) {
+    for (int i = 0; i < args.length; i += 2) {
+      if (i + 1 >= args.length)
+        throw new IllegalArgumentException("Missing value of " + args[i]);
+      String value = args[i + 1];
+      try {
+        switch (args[i]) {
+        case "--clients":
+          clients = Integer.parseInt(value);
+          break;
+        case "--rooms":
+          rooms = Integer.parseInt(value);
+          break;
+        case "--rate":
+          rates = Arrays.stream(value.split(",")).mapToDouble(Double::parseDouble).toArray();
+          break;
+        case "--size":
+          size = Integer.parseInt(value);
+          break;
+        case "--warmup":
+          warmup = Double.parseDouble(value);
+          break;
+        case "--duration":
+          duration = Double.parseDouble(value);
+          break;
+        case "--drain":
+          drain = Double.parseDouble(value);
+          break;
+        case "--senders":
+          senders = Integer.parseInt(value);
+          break;
+        case "--host":
+          host = value;
+          break;
+        case "--port":
+          port = Integer.parseInt(value);
+          break;
+        case "--engine":
+          engine = ServerEngine.valueOf(value.toUpperCase());
+          break;
+        case "--format":
+          format = value.toLowerCase();
+          break;
+        case "--out":
+          out = value;
+          break;
+        default:
+          throw new IllegalArgumentException("Unknown option " + args[i]);
+        }
+      } catch (NumberFormatException e) {
+        throw new IllegalArgumentException("Invalid value of " + args[i] + ": " + value);
+      }
+    }
+
+    if (clients < 1 || rooms < 0 || size < 1 || senders < 1 || duration <= 0)
+      throw new IllegalArgumentException("Counts and durations must be positive");
+    for (double rate : rates)
+      if (rate <= 0)
+        throw new IllegalArgumentException("Rates must be positive");
+    if (!format.equals("json") && !format.equals("csv"))
+      throw new IllegalArgumentException("Unknown format " + format);
+  }
+
+  // Connects the users, runs every step and stops
+  private List<Map<String, Object>> run() throws Exception {
+    List<Map<String, Object>> steps = new ArrayList<>();
+    try {
+      if (port < 0)
+        startServer();
+      connect();
+      for (double rate : rates)
+        steps.add(step(rate));
+    } finally {
+      for (LoadClient user : users) {
+        try {
+          user.closeConnection();
+        } catch (IOException e) {
+        }
+      }
+      stopServer();
+    }
+    return steps;
+  }
+
+  // Starts an EchoServer on the loopback with its files in a temporary
+  // directory, and silences it
+  private void startServer() throws IOException {
+    directory = Files.createTempDirectory("chat-load");
+    if (System.getProperty(ChatHistory.DIRECTORY_PROPERTY) == null)
+      System.setProperty(ChatHistory.DIRECTORY_PROPERTY, directory.resolve("history").toString());
+    if (System.getProperty(MailboxStore.DIRECTORY_PROPERTY) == null)
+      System.setProperty(MailboxStore.DIRECTORY_PROPERTY, directory.resolve("mailbox").toString());
+    System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+
+    port = ClientFleet.freePort();
+    server = new EchoServer(port);
+    if (engine != null)
+      server.setEngine(engine);
+    server.setBacklog(ClientFleet.BACKLOG);
+    server.listen();
+    console.println("Server started on port " + port + " with the "
+        + server.getEngine() + " engine");
+  }
+
+  // Stops the server started here and deletes its files
+  private void stopServer() throws IOException {
+    if (server != null)
+      server.close();
+    if (directory == null)
+      return;
+
+    try (java.util.stream.Stream<Path> files = Files.walk(directory)) {
+      files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+    }
+  }
+
+  // Connects every user and waits until each is in its room
+  private void connect() throws IOException, InterruptedException {
+    CountDownLatch joined = new CountDownLatch(clients);
+    for (int i = 0; i < clients; i++) {
+      LoadClient user = new LoadClient("load" + i, roomOf(i), host, port, joined);
+      user.start();
+      users.add(user);
+    }
+
+    if (!joined.await(JOIN_TIMEOUT, TimeUnit.SECONDS))
+      throw new IOException((clients - joined.getCount()) + " of " + clients
+          + " users joined their rooms");
+    console.println(clients + " users connected in " + Math.max(rooms, 1) + " room(s)");
+  }
+
+  // Returns the room of the user of an index
+  private String roomOf(int user) {
+    return rooms == 0 ? ChatRooms.LOBBY : "load" + (user % rooms);
+  }
+
+  // Returns the number of users of the room of the user of an index
+  private int roomSizeOf(int user) {
+    if (rooms == 0)
+      return clients;
+    return clients / rooms + (user % rooms < clients % rooms ? 1 : 0);
+  }
+
+  // Sends lines at a rate through a warmup and a window, waits for them,
+  // and returns the results
+  private Map<String, Object> step(double rate) throws InterruptedException {
+    long period = Math.max(1, Math.round(1e9 / rate));
+    long origin = System.nanoTime();
+    long start = origin + (long) (warmup * 1e9);
+    LoadWindow window = new LoadWindow(start, start + (long) (duration * 1e9));
+    for (LoadClient user : users)
+      user.measure(window);
+    console.printf("Step at %s line(s)/s per user: %.0f s warmup, %.0f s measured%n",
+        rate, warmup, duration);
+
+    // Each user sends at its own phase, so that the lines are spread out
+    char[] fill = new char[Math.max(0, size - LoadClient.MARKER.length() - 20)];
+    Arrays.fill(fill, 'x');
+    String padding = new String(fill);
+    Random random = new Random(42);
+    ScheduledThreadPoolExecutor sending = new ScheduledThreadPoolExecutor(senders);
+    for (int i = 0; i < users.size(); i++) {
+      LoadClient user = users.get(i);
+      int recipients = roomSizeOf(i);
+      long phase = origin + (long) (random.nextDouble() * period);
+      long[] next = { phase };
+      sending.scheduleAtFixedRate(() -> {
+        long intended = next[0];
+        next[0] += period;
+        if (user.send(intended, padding) && window.contains(intended))
+          window.sent(recipients);
+      }, phase - System.nanoTime(), period, TimeUnit.NANOSECONDS);
+    }
+
+    Thread.sleep(Math.max(0, (window.getEnd() - System.nanoTime()) / 1000000));
+    sending.shutdownNow();
+    sending.awaitTermination(10, TimeUnit.SECONDS);
+
+    // The lines still on their way arrive or are lost
+    long deadline = System.nanoTime() + (long) (drain * 1e9);
+    long received = -1;
+    while (window.getReceived() != received && window.getReceived() < window.getExpected()
+        && System.nanoTime() < deadline) {
+      received = window.getReceived();
+      Thread.sleep(500);
+    }
+
+    return results(rate, window);
+  }
+
+  // Collects the results of a step
+  private Map<String, Object> results(double rate, LoadWindow window) {
+    LatencyHistogram latencies = new LatencyHistogram();
+    int failed = 0;
+    for (LoadClient user : users) {
+      latencies.add(user.getLatencies());
+      if (user.hasFailed() || !user.isConnected())
+        failed++;
+    }
+
+    Map<String, Object> results = new LinkedHashMap<>();
+    results.put("clients", clients);
+    results.put("rooms", rooms);
+    results.put("size", size);
+    results.put("rate", rate);
+    results.put("seconds", window.getSeconds());
+    // Lines due but never sent mean the server held the senders back
+    results.put("due", Math.round(clients * rate * window.getSeconds()));
+    results.put("sent", window.getSent());
+    results.put("sentPerSecond", window.getSent() / window.getSeconds());
+    results.put("expected", window.getExpected());
+    results.put("received", window.getReceived());
+    results.put("receivedPerSecond", window.getReceived() / window.getSeconds());
+    results.put("deliveryRatio", window.getExpected() == 0 ? 0.0
+        : (double) window.getReceived() / window.getExpected());
+    results.put("failedClients", failed);
+    results.put("latencyMinUs", latencies.getMin() / 1e3);
+    results.put("latencyMeanUs", latencies.getMean() / 1e3);
+    for (int i = 0; i < PERCENTILES.length; i++)
+      results.put("latency" + PERCENTILE_NAMES[i] + "Us",
+          latencies.getValueAtPercentile(PERCENTILES[i]) / 1e3);
+    results.put("latencyMaxUs", latencies.getMax() / 1e3);
+
+    console.printf("  %d of %d lines sent (%.0f/s), %d of %d deliveries (%.0f/s, %.2f%%),"
+        + " p50 %.0f us, p99 %.0f us, p99.99 %.0f us, max %.0f us%n",
+        window.getSent(), results.get("due"), results.get("sentPerSecond"), window.getReceived(),
+        window.getExpected(), results.get("receivedPerSecond"),
+        100 * (double) results.get("deliveryRatio"), latencies.getValueAtPercentile(50) / 1e3,
+        latencies.getValueAtPercentile(99) / 1e3, latencies.getValueAtPercentile(99.99) / 1e3,
+        latencies.getMax() / 1e3);
+    return results;
+  }
+
+  // Writes the report in its format
+  private void report(List<Map<String, Object>> steps) throws IOException {
+    boolean append = out != null && format.equals("csv") && Files.exists(Paths.get(out));
+    StringBuilder text = new StringBuilder();
+
+    if (format.equals("csv")) {
+      if (!append)
+        text.append(String.join(",", steps.get(0).keySet())).append('\n');
+      for (Map<String, Object> step : steps) {
+        StringJoiner row = new StringJoiner(",");
+        for (Object value : step.values())
+          row.add(value.toString());
+        text.append(row).append('\n');
+      }
+    } else {
+      text.append("[\n");
+      for (int i = 0; i < steps.size(); i++) {
+        StringJoiner fields = new StringJoiner(", ", "  {", "}");
+        for (Map.Entry<String, Object> field : steps.get(i).entrySet())
+          fields.add("\"" + field.getKey() + "\": " + field.getValue());
+        text.append(fields).append(i + 1 < steps.size() ? ",\n" : "\n");
+      }
+      text.append("]\n");
+    }
+
+    if (out == null) {
+      output.print(text);
+      output.flush();
+    } else {
+      Files.write(Paths.get(out), text.toString().getBytes(StandardCharsets.UTF_8),
+          StandardOpenOption.CREATE, append ? StandardOpenOption.APPEND
+              : StandardOpenOption.TRUNCATE_EXISTING);
+    }
+  }
+}
+// End of LoadGenerator class
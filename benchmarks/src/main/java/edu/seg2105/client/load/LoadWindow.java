@@ -0,0 +1,114 @@
+package edu.seg2105.client.load;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * This class is the measured part of a step of a load run: the lines meant
+ * to be sent from its start, once the clients are warmed up, to its end
+ * are counted and timed, the others are not.
+ */
+public class LoadWindow {
+  // Instance variables **********************************************
+
+  /**
+   * The <code>System.nanoTime</code> at which the window opens.
+   */
+  private final long start;
+
+  /**
+   * The <code>System.nanoTime</code> at which the window closes.
+   */
+  private final long end;
+
+  private final LongAdder sent = new LongAdder();
+
+  private final LongAdder expected = new LongAdder();
+
+  private final LongAdder received = new LongAdder();
+
+  // Constructors ****************************************************
+
+  /**
+   * Constructs a window.
+   *
+   * @param start The <code>System.nanoTime</code> at which it opens.
+   * @param end   The <code>System.nanoTime</code> at which it closes.
+   */
+  public LoadWindow(long start, long end) {
+    this.start = start;
+    this.end = end;
+  }
+
+  // Instance methods ************************************************
+
+  /**
+   * Returns whether a line meant to be sent at a time is measured.
+   *
+   * @param intended The <code>System.nanoTime</code> of the line.
+   * @return Whether the time falls in the window.
+   */
+  public boolean contains(long intended) {
+    return intended >= start && intended < end;
+  }
+
+  /**
+   * Counts a line sent in the window.
+   *
+   * @param recipients The number of users of its room, who should all
+   *                   receive it.
+   */
+  public void sent(int recipients) {
+    sent.increment();
+    expected.add(recipients);
+  }
+
+  /**
+   * Counts a line of the window received by a user.
+   */
+  public void received() {
+    received.increment();
+  }
+
+  /**
+   * @return The number of lines sent in the window.
+   */
+  public long getSent() {
+    return sent.sum();
+  }
+
+  /**
+   * @return The number of deliveries the lines sent should cause.
+   */
+  public long getExpected() {
+    return expected.sum();
+  }
+
+  /**
+   * @return The number of deliveries received.
+   */
+  public long getReceived() {
+    return received.sum();
+  }
+
+  /**
+   * @return The <code>System.nanoTime</code> at which the window opens.
+   */
+  public long getStart() {
+    return start;
+  }
+
+  /**
+   * @return The <code>System.nanoTime</code> at which the window closes.
+   */
+  public long getEnd() {
+    return end;
+  }
+
+  /**
+   * @return The length of the window, in seconds.
+   */
+  public double getSeconds() {
+    return (end - start) / 1e9;
+  }
+}
+// End of LoadWindow class
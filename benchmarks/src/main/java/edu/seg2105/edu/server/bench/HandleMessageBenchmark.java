@@ -0,0 +1,107 @@
+package edu.seg2105.edu.server.bench;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import edu.seg2105.edu.server.backend.EchoServer;
+import edu.seg2105.edu.server.store.ChatHistory;
+import edu.seg2105.edu.server.store.MailboxStore;
+import ocsf.bench.ClientFleet;
+import ocsf.common.Codecs;
+import ocsf.server.ConnectionToClient;
+import ocsf.server.ServerEngine;
+import ocsf.server.SlowConsumerPolicy;
+
+/**
+ * This class benchmarks <code>EchoServer.handleMessageFromClient</code>:
+ * the parsing of a line from a logged in client and what the server does
+ * with it, for a chat message sent to the lobby and for the commands.
+ * The server keeps no history and no mailboxes, and what it prints is
+ * discarded, so only the handling itself is measured. A single client of
+ * a <code>ClientFleet</code> receives the answers.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = { "-Xms1g", "-Xmx1g" })
+public class HandleMessageBenchmark {
+  // Instance variables **********************************************
+
+  /**
+   * The line sent by the client.
+   */
+  @Param({ "hello everyone", "#rooms", "#join blue", "#msg nobody hi", "#history" })
+  public String message;
+
+  /**
+   * The server under test.
+   */
+  private EchoServer server;
+
+  /**
+   * The client.
+   */
+  private ClientFleet fleet;
+
+  /**
+   * The connection of the client on the server.
+   */
+  private ConnectionToClient client;
+
+  /**
+   * The standard output, restored after the benchmark.
+   */
+  private PrintStream console;
+
+  // Instance methods ************************************************
+
+  /**
+   * Starts the server, connects the client and logs it in.
+   *
+   * @throws IOException if the server cannot listen or the client cannot
+   *                     connect.
+   */
+  @Setup(Level.Trial)
+  public void start() throws IOException {
+    System.setProperty(ChatHistory.DIRECTORY_PROPERTY, "");
+    System.setProperty(MailboxStore.DIRECTORY_PROPERTY, "");
+    console = System.out;
+    System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+
+    server = new EchoServer(ClientFleet.freePort());
+    server.setEngine(ServerEngine.NIO);
+    server.setOutboundQueue(4096, SlowConsumerPolicy.DROP_OLDEST, 0);
+    server.listen();
+    fleet = ClientFleet.start(server, 1, Codecs.forName("binary"));
+
+    client = server.getClientConnections()[0];
+    server.handleMessageFromClient("#login bench", client);
+  }
+
+  /**
+   * Disconnects the client and closes the server.
+   *
+   * @throws IOException if the server cannot be closed.
+   */
+  @TearDown(Level.Trial)
+  public void stop() throws IOException {
+    fleet.close();
+    server.close();
+    System.setOut(console);
+  }
+
+  /**
+   * Handles the line as if the client had sent it.
+   */
+  @Benchmark
+  public void handleMessageFromClient() {
+    server.handleMessageFromClient(message, client);
+  }
+}
+// End of HandleMessageBenchmark class
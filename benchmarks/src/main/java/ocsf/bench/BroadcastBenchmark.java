@@ -0,0 +1,120 @@
+package ocsf.bench;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import ocsf.common.Codecs;
+import ocsf.server.*;
+
+/**
+ * Benchmarks of the operations of a server on all its clients:
+ * <code>sendToAllClients</code>, which encodes a message once and queues
+ * it for every client, and <code>getClientConnections</code>, which copies
+ * the connection list. The server runs the NIO engine with bounded
+ * outbound queues that block the sender when full, so the fan-out time
+ * includes the writes it causes once the queues fill up; the clients are
+ * a <code>ClientFleet</code> in another process.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = { "-Xms1g", "-Xmx1g" })
+public class BroadcastBenchmark {
+
+	// CLASS VARIABLES **************************************************
+
+	/**
+	 * A typical chat line.
+	 */
+	private static final String	LINE	= "ann: has anyone tried the new build? the history replay is much faster";
+
+	// INSTANCE VARIABLES ***********************************************
+
+	/**
+	 * The number of connected clients.
+	 */
+	@Param({ "10", "1000", "10000" })
+	public int					clients;
+
+	/**
+	 * The server under test.
+	 */
+	private AbstractServer		server;
+
+	/**
+	 * The clients.
+	 */
+	private ClientFleet			fleet;
+
+	// SETUP ------------------------------------------------------------
+
+	/**
+	 * Starts the server and connects the clients.
+	 *
+	 * @exception IOException
+	 *                if the server cannot listen or the clients cannot
+	 *                connect.
+	 */
+	@Setup(Level.Trial)
+	public void start() throws IOException {
+		server = new SinkServer(ClientFleet.freePort());
+		server.setOutboundQueue(1024, SlowConsumerPolicy.BLOCK, 10000);
+		server.setBacklog(ClientFleet.BACKLOG);
+		server.listen();
+		fleet = ClientFleet.start(server, clients, Codecs.forName("binary"));
+	}
+
+	/**
+	 * Disconnects the clients and closes the server.
+	 *
+	 * @exception IOException
+	 *                if the server cannot be closed.
+	 */
+	@TearDown(Level.Trial)
+	public void stop() throws IOException {
+		fleet.close();
+		server.close();
+	}
+
+	// BENCHMARKS -------------------------------------------------------
+
+	/**
+	 * Sends a line to every client.
+	 */
+	@Benchmark
+	public void sendToAllClients() {
+		server.sendToAllClients(LINE);
+	}
+
+	/**
+	 * Copies the list of the connected clients.
+	 *
+	 * @return the copy.
+	 */
+	@Benchmark
+	public ConnectionToClient[] getClientConnections() {
+		return server.getClientConnections();
+	}
+
+	// INNER CLASSES ****************************************************
+
+	/**
+	 * A server on the NIO engine ignoring what its clients send.
+	 */
+	private static final class SinkServer extends AbstractServer {
+		SinkServer(int port) {
+			super(port, ServerEngine.NIO);
+		}
+
+		protected void handleMessageFromClient(Object msg, ConnectionToClient client) {
+		}
+	}
+}
+// End of BroadcastBenchmark class
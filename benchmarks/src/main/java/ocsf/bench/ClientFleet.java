@@ -0,0 +1,211 @@
+package ocsf.bench;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+import ocsf.common.*;
+import ocsf.server.AbstractServer;
+
+/**
+ * The <code> ClientFleet </code> class connects many framing clients to a
+ * server and discards whatever the server sends them, so benchmarks can
+ * measure the server side alone. The clients are plain non-blocking
+ * channels read by a single thread: ten thousand of them cost a selector,
+ * not ten thousand threads.
+ * <p>
+ * A fleet runs in a process of its own, started by <code>start</code> with
+ * the class path of the benchmark, so that the sockets of the clients and
+ * those of the server do not share one limit on open files. The process
+ * ends when the fleet is closed or the benchmark dies.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ */
+public final class ClientFleet implements Closeable {
+
+	// CLASS VARIABLES **************************************************
+
+	/**
+	 * The line a fleet process prints once every client is connected.
+	 */
+	private static final String	READY		= "ready";
+
+	/**
+	 * How long the clients of a fleet may take to connect, in seconds.
+	 */
+	private static final long	START_TIMEOUT	= 120;
+
+	/**
+	 * The backlog a server needs to accept a fleet without dropping
+	 * connection requests, which would hold a client back for seconds.
+	 */
+	public static final int		BACKLOG			= 4096;
+
+	// INSTANCE VARIABLES ***********************************************
+
+	/**
+	 * The process running the clients.
+	 */
+	private final Process		process;
+
+	// CONSTRUCTORS *****************************************************
+
+	private ClientFleet(Process process) {
+		this.process = process;
+	}
+
+	// CLASS METHODS ****************************************************
+
+	/**
+	 * Connects clients to a server and waits until the server has accepted
+	 * all of them. The server should listen with a backlog of
+	 * <code>BACKLOG</code>.
+	 *
+	 * @param server
+	 *            the server, listening on the local host.
+	 * @param clients
+	 *            the number of clients.
+	 * @param codec
+	 *            the codec the clients propose, plain or compressed.
+	 * @return the running fleet.
+	 * @exception IOException
+	 *                if the fleet cannot start or the clients cannot connect.
+	 */
+	public static ClientFleet start(AbstractServer server, int clients,
+			MessageCodec codec) throws IOException {
+		String java = System.getProperty("java.home") + File.separator + "bin"
+				+ File.separator + "java";
+		ProcessBuilder builder = new ProcessBuilder(java, "-Xss256k", "-cp",
+				System.getProperty("java.class.path"), ClientFleet.class.getName(),
+				"localhost", String.valueOf(server.getPort()), String.valueOf(clients),
+				String.valueOf(codec.getId()), Compression.of(codec).name());
+		builder.redirectError(ProcessBuilder.Redirect.INHERIT);
+		ClientFleet fleet = new ClientFleet(builder.start());
+
+		try {
+			BufferedReader out = new BufferedReader(
+					new InputStreamReader(fleet.process.getInputStream()));
+			FutureTask<String> ready = new FutureTask<>(out::readLine);
+			Thread waiter = new Thread(ready, "fleet-start");
+			waiter.setDaemon(true);
+			waiter.start();
+			String line = ready.get(START_TIMEOUT, TimeUnit.SECONDS);
+			if (!READY.equals(line))
+				throw new IOException("client fleet failed: " + line);
+
+			// The server counts a client once its hello is handled
+			long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(START_TIMEOUT);
+			while (server.getNumberOfClients() < clients) {
+				if (System.nanoTime() > deadline)
+					throw new IOException("server accepted " + server.getNumberOfClients()
+							+ " of " + clients + " clients");
+				Thread.sleep(10);
+			}
+			return fleet;
+		} catch (TimeoutException ex) {
+			fleet.process.destroyForcibly();
+			throw new IOException("client fleet did not connect in " + START_TIMEOUT + " s");
+		} catch (IOException | InterruptedException | ExecutionException | RuntimeException ex) {
+			fleet.close();
+			throw ex instanceof IOException ? (IOException) ex : new IOException(ex);
+		}
+	}
+
+	/**
+	 * @return a port free on the local host, for the server of a benchmark.
+	 * @exception IOException
+	 *                if no port can be found.
+	 */
+	public static int freePort() throws IOException {
+		try (ServerSocketChannel probe = ServerSocketChannel.open()) {
+			probe.bind(new InetSocketAddress(0));
+			return probe.socket().getLocalPort();
+		}
+	}
+
+	/**
+	 * Runs a fleet in this process until its standard input closes.
+	 *
+	 * @param args
+	 *            the host and port of the server, the number of clients,
+	 *            the identifier of their codec and its compression.
+	 * @exception Exception
+	 *                if the clients cannot connect.
+	 */
+	public static void main(String[] args) throws Exception {
+		String host = args[0];
+		int port = Integer.parseInt(args[1]);
+		int clients = Integer.parseInt(args[2]);
+		MessageCodec codec = Compression.valueOf(args[4]).wrap(
+				Codecs.forId(Integer.parseInt(args[3])));
+
+		Selector selector = Selector.open();
+		List<SocketChannel> channels = new ArrayList<>(clients);
+		for (int i = 0; i < clients; i++) {
+			SocketChannel channel = SocketChannel.open(new InetSocketAddress(host, port));
+			channel.write(ByteBuffer.wrap(Framing.hello(codec)));
+			channel.configureBlocking(false);
+			channel.register(selector, SelectionKey.OP_READ);
+			channels.add(channel);
+		}
+
+		Thread reader = new Thread(() -> discard(selector), "fleet-reader");
+		reader.setDaemon(true);
+		reader.start();
+		System.out.println(READY);
+		System.out.flush();
+
+		// The benchmark closes our input when it is done, or dies
+		while (System.in.read() >= 0)
+			;
+		for (SocketChannel channel : channels)
+			channel.close();
+		System.exit(0);
+	}
+
+	/**
+	 * Reads and drops everything the server sends to the clients.
+	 */
+	private static void discard(Selector selector) {
+		ByteBuffer sink = ByteBuffer.allocateDirect(64 * 1024);
+		try {
+			while (selector.isOpen()) {
+				selector.select();
+				for (SelectionKey key : selector.selectedKeys()) {
+					SocketChannel channel = (SocketChannel) key.channel();
+					int read;
+					do {
+						sink.clear();
+						read = channel.read(sink);
+					} while (read > 0);
+					if (read < 0)
+						channel.close(); // Closed by the server
+				}
+				selector.selectedKeys().clear();
+			}
+		} catch (IOException ex) {
+			System.exit(1);
+		}
+	}
+
+	// INSTANCE METHODS *************************************************
+
+	/**
+	 * Disconnects the clients and ends the fleet process.
+	 */
+	public void close() {
+		try {
+			process.getOutputStream().close();
+			if (!process.waitFor(10, TimeUnit.SECONDS))
+				process.destroyForcibly();
+		} catch (IOException | InterruptedException ex) {
+			process.destroyForcibly();
+		}
+	}
+}
+// End of ClientFleet class
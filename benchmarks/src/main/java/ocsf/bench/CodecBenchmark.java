@@ -0,0 +1,202 @@
+package ocsf.bench;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import ocsf.common.*;
+
+/**
+ * Benchmarks of the encodings of chat messages: the object stream of
+ * legacy connections, where every message goes through a long-lived
+ * <code>ObjectOutputStream</code>, against the frames of the serialization,
+ * binary and compressed binary codecs. Messages are a chat line, a
+ * <code>ChatEvent</code>, and a page of lines such as a history chunk.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = { "-Xms1g", "-Xmx1g" })
+public class CodecBenchmark {
+
+	// CLASS METHODS ****************************************************
+
+	/**
+	 * Builds a message.
+	 *
+	 * @param payload
+	 *            <code>line</code>, <code>event</code> or <code>page</code>.
+	 * @return the message.
+	 */
+	static Object message(String payload) {
+		String line = "has anyone tried the new build? the history replay is much faster";
+		switch (payload) {
+		case "line":
+			return "ann: " + line;
+		case "event":
+			return new ChatEvent(ChatEvent.Kind.MESSAGE, "ann", "lobby", line,
+					1700000000000L);
+		case "page":
+			StringBuilder page = new StringBuilder();
+			for (int i = 0; i < 32; i++)
+				page.append("2026-10-18 12:").append(10 + i).append(" ann: ").append(line).append('\n');
+			return page.toString();
+		default:
+			throw new IllegalArgumentException("unknown payload " + payload);
+		}
+	}
+
+	/**
+	 * Finds a codec by name, followed by <code>+deflate</code> or
+	 * <code>+dictionary</code> for a compressed one.
+	 *
+	 * @param name
+	 *            the name.
+	 * @return the codec.
+	 */
+	static MessageCodec codec(String name) {
+		String[] parts = name.split("\\+");
+		MessageCodec codec = Codecs.forName(parts[0]);
+		if (codec == null)
+			throw new IllegalArgumentException("unknown codec " + name);
+		return parts.length == 1 ? codec
+				: Compression.valueOf(parts[1].toUpperCase()).wrap(codec);
+	}
+
+	// BENCHMARKS -------------------------------------------------------
+
+	/**
+	 * Encodes a message as a connection sends it.
+	 *
+	 * @param state
+	 *            the encoding and message.
+	 * @return the number of bytes produced, for the object stream, or the
+	 *         frame.
+	 * @exception IOException
+	 *                if the message cannot be encoded.
+	 */
+	@Benchmark
+	public Object encode(EncodeState state) throws IOException {
+		if (state.stream == null)
+			return Framing.encode(state.codec, state.message);
+
+		// As a legacy connection: one stream for every message, reset so
+		// that it does not keep every object it wrote
+		state.stream.writeObject(state.message);
+		state.stream.reset();
+		return state.sink.count;
+	}
+
+	/**
+	 * Decodes a frame as a connection receives it.
+	 *
+	 * @param state
+	 *            the codec and frame.
+	 * @return the message.
+	 * @exception Exception
+	 *                if the frame cannot be decoded.
+	 */
+	@Benchmark
+	public Object decode(DecodeState state) throws Exception {
+		ByteBuffer frame = state.frame;
+		return state.codec.decode(frame.array(), Framing.HEADER_LENGTH,
+				frame.remaining() - Framing.HEADER_LENGTH);
+	}
+
+	// INNER CLASSES ****************************************************
+
+	/**
+	 * The encoding and message of <code>encode</code>.
+	 */
+	@State(Scope.Thread)
+	public static class EncodeState {
+		/**
+		 * <code>object-stream</code> for the legacy stream, or a codec.
+		 */
+		@Param({ "object-stream", "java", "binary", "binary+deflate" })
+		public String				encoding;
+
+		/**
+		 * The message, as accepted by <code>message</code>.
+		 */
+		@Param({ "line", "event", "page" })
+		public String				payload;
+
+		Object						message;
+		MessageCodec				codec;
+		CountingSink				sink;
+		ObjectOutputStream			stream;
+
+		/**
+		 * Builds the message and the encoder.
+		 *
+		 * @exception IOException
+		 *                if the object stream cannot be opened.
+		 */
+		@Setup
+		public void setup() throws IOException {
+			message = message(payload);
+			if (encoding.equals("object-stream")) {
+				sink = new CountingSink();
+				stream = new ObjectOutputStream(sink);
+			} else {
+				codec = codec(encoding);
+			}
+		}
+	}
+
+	/**
+	 * The codec and frame of <code>decode</code>.
+	 */
+	@State(Scope.Thread)
+	public static class DecodeState {
+		/**
+		 * The codec.
+		 */
+		@Param({ "java", "binary", "binary+deflate" })
+		public String		encoding;
+
+		/**
+		 * The message, as accepted by <code>message</code>.
+		 */
+		@Param({ "line", "event", "page" })
+		public String		payload;
+
+		MessageCodec		codec;
+		ByteBuffer			frame;
+
+		/**
+		 * Encodes the frame.
+		 *
+		 * @exception IOException
+		 *                if the message cannot be encoded.
+		 */
+		@Setup
+		public void setup() throws IOException {
+			codec = codec(encoding);
+			frame = Framing.encode(codec, message(payload));
+		}
+	}
+
+	/**
+	 * An output stream counting and dropping what is written to it.
+	 */
+	static final class CountingSink extends OutputStream {
+		long count;
+
+		public void write(int b) {
+			count++;
+		}
+
+		public void write(byte[] b, int off, int len) {
+			count += len;
+		}
+	}
+}
+// End of CodecBenchmark class
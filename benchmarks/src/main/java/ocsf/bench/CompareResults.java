@@ -0,0 +1,218 @@
+package ocsf.bench;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.*;
+
+/**
+ * The <code> CompareResults </code> class compares two result files written
+ * by JMH with <code>-rf json</code>, typically those of two commits, and
+ * lists every benchmark found in both with its change. A benchmark
+ * regressed when it got worse by more than the threshold and by more than
+ * the error margins of both runs; the exit status is 1 if one did, so a
+ * build can stop there.
+ * <p>
+ * Usage: <code>java -cp benchmarks.jar ocsf.bench.CompareResults
+ * baseline.json current.json [threshold%]</code>, 10% by default.
+ * <p>
+ * Project Name: OCSF (Object Client-Server Framework)
+ * <p>
+ */
+public final class CompareResults {
+
+	// CLASS VARIABLES **************************************************
+
+	/**
+	 * The threshold used when none is given, in percent.
+	 */
+	public static final double	DEFAULT_THRESHOLD	= 10;
+
+	// CONSTRUCTORS *****************************************************
+
+	private CompareResults() {
+	}
+
+	// CLASS METHODS ****************************************************
+
+	/**
+	 * Compares two result files.
+	 *
+	 * @param args
+	 *            the baseline file, the current file, and optionally the
+	 *            threshold in percent.
+	 * @exception IOException
+	 *                if a file cannot be read or is not a JMH result file.
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length < 2) {
+			System.err.println("Usage: CompareResults <baseline.json> <current.json> [threshold%]");
+			System.exit(2);
+		}
+		double threshold = args.length > 2 ? Double.parseDouble(args[2]) : DEFAULT_THRESHOLD;
+
+		Map<String, Map<String, Object>> baseline = read(args[0]);
+		Map<String, Map<String, Object>> current = read(args[1]);
+
+		int regressions = 0;
+		for (Map.Entry<String, Map<String, Object>> entry : current.entrySet()) {
+			Map<String, Object> before = baseline.get(entry.getKey());
+			if (before == null) {
+				System.out.printf("%-70s new%n", entry.getKey());
+				continue;
+			}
+
+			Map<String, Object> after = entry.getValue();
+			double old = score(before), now = score(after);
+			double change = old == 0 ? 0 : (now - old) / old * 100;
+			// Lower is better for times, higher for throughputs
+			double worse = "thrpt".equals(after.get("mode")) ? -change : change;
+			boolean regressed = worse > threshold
+					&& Math.abs(now - old) > error(before) + error(after);
+			if (regressed)
+				regressions++;
+
+			System.out.printf("%-70s %12.3f -> %12.3f %s %+7.1f%%%s%n", entry.getKey(),
+					old, now, metric(after).get("scoreUnit"), change,
+					regressed ? "  REGRESSION" : "");
+		}
+
+		System.out.println(regressions + " regression(s) over " + threshold + "%");
+		System.exit(regressions > 0 ? 1 : 0);
+	}
+
+	/**
+	 * Reads a result file.
+	 *
+	 * @return its benchmarks, keyed by name and parameters.
+	 */
+	@SuppressWarnings("unchecked")
+	private static Map<String, Map<String, Object>> read(String file) throws IOException {
+		String json = new String(Files.readAllBytes(Paths.get(file)), StandardCharsets.UTF_8);
+		Object parsed = new Parser(json).value();
+		if (!(parsed instanceof List))
+			throw new IOException(file + " is not a JMH result file");
+
+		Map<String, Map<String, Object>> results = new TreeMap<>();
+		for (Object item : (List<Object>) parsed) {
+			Map<String, Object> result = (Map<String, Object>) item;
+			StringBuilder key = new StringBuilder((String) result.get("benchmark"));
+			Object params = result.get("params");
+			if (params instanceof Map)
+				key.append(new TreeMap<>((Map<String, Object>) params));
+			results.put(key.toString(), result);
+		}
+		return results;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static Map<String, Object> metric(Map<String, Object> result) {
+		return (Map<String, Object>) result.get("primaryMetric");
+	}
+
+	private static double score(Map<String, Object> result) {
+		return ((Number) metric(result).get("score")).doubleValue();
+	}
+
+	/**
+	 * @return the error margin of a result, 0 if JMH could not compute it.
+	 */
+	private static double error(Map<String, Object> result) {
+		Object error = metric(result).get("scoreError");
+		return error instanceof Number && !Double.isNaN(((Number) error).doubleValue())
+				? ((Number) error).doubleValue() : 0;
+	}
+
+	// INNER CLASSES ****************************************************
+
+	/**
+	 * A parser of the JSON written by JMH: objects become maps, arrays
+	 * lists, numbers doubles, and <code>"NaN"</code> stays a string.
+	 */
+	private static final class Parser {
+		private final String	text;
+		private int				pos;
+
+		Parser(String text) {
+			this.text = text;
+		}
+
+		Object value() throws IOException {
+			skipSpace();
+			if (pos >= text.length())
+				throw new IOException("unexpected end of JSON");
+
+			char c = text.charAt(pos);
+			if (c == '{') {
+				Map<String, Object> map = new LinkedHashMap<>();
+				pos++;
+				while (!next('}')) {
+					String name = (String) value();
+					expect(':');
+					map.put(name, value());
+					next(',');
+				}
+				return map;
+			} else if (c == '[') {
+				List<Object> list = new ArrayList<>();
+				pos++;
+				while (!next(']')) {
+					list.add(value());
+					next(',');
+				}
+				return list;
+			} else if (c == '"') {
+				StringBuilder string = new StringBuilder();
+				for (pos++; text.charAt(pos) != '"'; pos++) {
+					if (text.charAt(pos) == '\\') {
+						char escaped = text.charAt(++pos);
+						if (escaped == 'u') {
+							string.append((char) Integer.parseInt(text.substring(pos + 1, pos + 5), 16));
+							pos += 4;
+						} else {
+							string.append(escaped == 'n' ? '\n' : escaped == 't' ? '\t' : escaped);
+						}
+					} else {
+						string.append(text.charAt(pos));
+					}
+				}
+				pos++;
+				return string.toString();
+			} else if (text.startsWith("true", pos) || text.startsWith("false", pos)
+					|| text.startsWith("null", pos)) {
+				String word = text.startsWith("true", pos) ? "true"
+						: text.startsWith("false", pos) ? "false" : "null";
+				pos += word.length();
+				return word.equals("null") ? null : Boolean.valueOf(word);
+			}
+
+			int start = pos;
+			while (pos < text.length() && "+-.0123456789eE".indexOf(text.charAt(pos)) >= 0)
+				pos++;
+			if (start == pos)
+				throw new IOException("invalid JSON at " + pos);
+			return Double.valueOf(text.substring(start, pos));
+		}
+
+		private boolean next(char c) {
+			skipSpace();
+			if (pos < text.length() && text.charAt(pos) == c) {
+				pos++;
+				return true;
+			}
+			return false;
+		}
+
+		private void expect(char c) throws IOException {
+			if (!next(c))
+				throw new IOException("expected " + c + " at " + pos);
+		}
+
+		private void skipSpace() {
+			while (pos < text.length() && Character.isWhitespace(text.charAt(pos)))
+				pos++;
+		}
+	}
+}
+// End of CompareResults class
@@ -34,7 +34,8 @@ public class ChatClient extends AbstractClient {
   /**
    * Constructs an instance of the chat client.
    *
-   * @param host     The server to connect to.
+   * @param host     The server to connect to, or several servers to try in
+   *                 order, as <code>host[:port],host[:port]</code>.
    * @param port     The port number to connect on.
    * @param clientUI The interface type variable.
    */
@@ -46,6 +47,13 @@ public class ChatClient extends AbstractClient {
 
     // Set client login id
     this.clientLoginId = clientLoginId;
+
+    // Fail over between the servers listed, and get the connection back
+    // when the server goes away unless told not to
+    if (host.indexOf(',') >= 0)
+      setEndpoints(parseEndpoints(host, port));
+    if (!"false".equalsIgnoreCase(System.getProperty(ReconnectPolicy.RECONNECT_PROPERTY)))
+      setReconnectPolicy(ReconnectPolicy.fromSystemProperties());
     openConnection();
   }
 
@@ -86,8 +94,13 @@ public class ChatClient extends AbstractClient {
         try {
           sendToServer(message);
         } catch (IOException e) {
-          clientUI.display("Could not send message to server. Terminating client.");
-          quit();
+          if (isReconnecting()) {
+            // The login is sent again once the connection is back
+            clientUI.display("Not connected, reconnecting. You will be logged in once connected.");
+          } else {
+            clientUI.display("Could not send message to server. Terminating client.");
+            quit();
+          }
         }
 
       } else {
@@ -95,13 +108,21 @@ public class ChatClient extends AbstractClient {
         quit();
       }
 
+    } else if (message.startsWith("#msg") && message.trim().split("\\s+", 3).length < 3) {
+      // A private message needs a recipient and some text
+      clientUI.display("ERROR: Usage: #msg <loginId> <text>");
+
     } else {
 
       try {
         sendToServer(message);
       } catch (IOException e) {
-        clientUI.display("Could not send message to server. Terminating client.");
-        quit();
+        if (isReconnecting()) {
+          clientUI.display("Not connected, reconnecting. The message was not sent.");
+        } else {
+          clientUI.display("Could not send message to server. Terminating client.");
+          quit();
+        }
       }
     }
   }
@@ -128,15 +149,57 @@ public class ChatClient extends AbstractClient {
    */
   @Override
   protected void connectionException(Exception exception) {
+    // Quit system, unless the connection is to be got back
+    if (isReconnecting()) {
+      clientUI.display("Lost the connection to the server, reconnecting...");
+      return;
+    }
     clientUI.display("The server has shut down");
-
-    // Quit system
     System.exit(0);
 
     // Calls method quit
     // quit();
   }
 
+  /**
+   * Tells the user when the client tries to get its connection back.
+   *
+   * @param attempt     The number of the attempt.
+   * @param delayMillis How long the client waits before it.
+   */
+  @Override
+  protected void reconnecting(int attempt, long delayMillis) {
+    clientUI.display("Reconnecting in " + delayMillis + " ms (attempt " + attempt + ")");
+  }
+
+  /**
+   * Logs in again once the connection is back, if the user had logged in.
+   *
+   * @param attempts The number of attempts it took.
+   */
+  @Override
+  protected void reconnected(int attempts) {
+    clientUI.display("Reconnected to " + getHost() + ":" + getPort());
+    if (sentLoginCommand) {
+      try {
+        sendToServer("#login " + clientLoginId);
+      } catch (IOException e) {
+        // The connection failed again, and the next reconnection logs in
+      }
+    }
+  }
+
+  /**
+   * Terminates the client once it gives up reconnecting.
+   *
+   * @param exception Why the last attempt failed.
+   */
+  @Override
+  protected void reconnectFailed(Exception exception) {
+    clientUI.display("Could not reconnect to the server. Terminating client.");
+    System.exit(0);
+  }
+
   /**
    * Hook method called after the connection has been closed. The default
    * implementation does nothing. The method may be overriden by subclasses to
@@ -145,6 +208,8 @@ public class ChatClient extends AbstractClient {
    */
   @Override
   protected void connectionClosed() {
+    // The user logged off: the next connection needs its own #login
+    sentLoginCommand = false;
     clientUI.display("Connection closed");
   }
 }
@@ -120,7 +120,7 @@ public class ClientConsole implements ChatIF {
       // Handle logoff command
       System.out.println(clientLoginId + " requested to log off");
 
-      if (client.isConnected()) {
+      if (client.isConnected() || client.isReconnecting()) {
 
         try {
           client.closeConnection();
@@ -147,6 +147,7 @@ public class ClientConsole implements ChatIF {
         String[] cLine = command.split(" ");
         if (cLine.length >= 2) {
           String newHost = cLine[1];
+          client.setEndpoints(null);
           client.setHost(newHost);
 
           System.out.println("Setting new host to: " + newHost);
@@ -171,6 +172,7 @@ public class ClientConsole implements ChatIF {
         String[] cLine = command.split(" ");
         if (cLine.length >= 2) {
           int newPort = Integer.parseInt(cLine[1]);
+          client.setEndpoints(null);
           client.setPort(newPort);
 
           System.out.println("Setting new port to: " + newPort);
@@ -192,6 +194,8 @@ public class ClientConsole implements ChatIF {
 
         try {
           client.openConnection();
+          // Tells the server who is back, so it delivers what was kept
+          client.handleMessageFromClientUI("#login " + clientLoginId);
           System.out.println(clientLoginId + " is now logged in");
         } catch (
 
@@ -215,10 +219,12 @@ public class ClientConsole implements ChatIF {
       // Handle getport command
       System.out.println(clientLoginId + " requested to get port");
       System.out.println("Current port: " + client.getPort());
-    }
 
-    else {
-      System.out.println("Invalid command: " + command);
+    } else {
+
+      // Room, history, private message and other commands are answered
+      // by the server
+      client.handleMessageFromClientUI(command);
     }
   }
 
@@ -238,7 +244,8 @@ public class ClientConsole implements ChatIF {
    * This method is responsible for the creation of the Client UI.
    *
    * @param args[0] The client's login id
-   * @param args[1] The host to connect to.
+   * @param args[1] The host to connect to, or hosts to fail over between,
+   *                as <code>host[:port],host[:port]</code>.
    * @param args[2] The port to connect to
    */
   public static void main(String[] args) {
@@ -0,0 +1,164 @@
+package edu.seg2105.edu.server.backend;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+import ocsf.server.ConnectionToClient;
+
+/**
+ * This class is the subscription index of the chat rooms of the server:
+ * for every room, the connections that joined it, and for every
+ * connection, the rooms it joined. The members of a room are kept as an
+ * array that is replaced, never modified, when someone joins or leaves, so
+ * a message can be sent to a room without locking or copying.
+ * <p>
+ * Every client is a member of the lobby, which cannot be left, so a server
+ * whose clients never join a room behaves as if there were no rooms.
+ * Other rooms are created by their first member and removed with their
+ * last.
+ */
+public class ChatRooms {
+  // Class variables *************************************************
+
+  /**
+   * The room every client joins when it connects.
+   */
+  final public static String LOBBY = "lobby";
+
+  /**
+   * The members of a room with nobody in it.
+   */
+  private static final ConnectionToClient[] NOBODY = new ConnectionToClient[0];
+
+  // Instance variables **********************************************
+
+  /**
+   * The members of every room, by room name.
+   */
+  private final ConcurrentHashMap<String, ConnectionToClient[]> members =
+      new ConcurrentHashMap<>();
+
+  /**
+   * The rooms joined by every connection, by connection ID.
+   */
+  private final ConcurrentHashMap<Long, Set<String>> roomsOf =
+      new ConcurrentHashMap<>();
+
+  // Instance methods ************************************************
+
+  /**
+   * Adds a client to a room, creating the room if needed.
+   *
+   * @param room   The name of the room.
+   * @param client The connection of the client.
+   * @return false if the client was already a member.
+   */
+  public boolean join(String room, ConnectionToClient client) {
+    Set<String> joined = roomsOf.computeIfAbsent(client.getId(),
+        id -> ConcurrentHashMap.newKeySet());
+    if (!joined.add(room))
+      return false;
+
+    members.merge(room, new ConnectionToClient[] { client }, (current, added) -> {
+      ConnectionToClient[] grown = Arrays.copyOf(current, current.length + 1);
+      grown[current.length] = client;
+      return grown;
+    });
+    return true;
+  }
+
+  /**
+   * Removes a client from a room. The room disappears with its last
+   * member, except for the lobby, which cannot be left.
+   *
+   * @param room   The name of the room.
+   * @param client The connection of the client.
+   * @return false if the client was not a member, or the room is the
+   *         lobby.
+   */
+  public boolean leave(String room, ConnectionToClient client) {
+    if (LOBBY.equals(room))
+      return false;
+    return remove(room, client);
+  }
+
+  /**
+   * Removes a client from every room, lobby included. Called when the
+   * client disconnects.
+   *
+   * @param client The connection of the client.
+   * @return The rooms the client left, none if it was already removed.
+   */
+  public Set<String> leaveAll(ConnectionToClient client) {
+    Set<String> joined = roomsOf.remove(client.getId());
+    if (joined == null)
+      return Collections.emptySet();
+
+    for (String room : joined)
+      removeMember(room, client);
+    return joined;
+  }
+
+  /**
+   * Returns the members of a room. The array is shared and must not be
+   * modified.
+   *
+   * @param room The name of the room.
+   * @return The members, none if the room does not exist.
+   */
+  public ConnectionToClient[] getMembers(String room) {
+    return members.getOrDefault(room, NOBODY);
+  }
+
+  /**
+   * @param client The connection of a client.
+   * @return The names of the rooms the client joined.
+   */
+  public Set<String> getRooms(ConnectionToClient client) {
+    Set<String> joined = roomsOf.get(client.getId());
+    return joined == null ? Collections.emptySet()
+        : Collections.unmodifiableSet(joined);
+  }
+
+  /**
+   * @return The number of members of every room, by room name, sorted by
+   *         name.
+   */
+  public SortedMap<String, Integer> getRoomSizes() {
+    SortedMap<String, Integer> sizes = new TreeMap<>();
+    members.forEach((room, list) -> sizes.put(room, list.length));
+    return sizes;
+  }
+
+  /**
+   * Removes a client from a room and from its own list of rooms.
+   */
+  private boolean remove(String room, ConnectionToClient client) {
+    Set<String> joined = roomsOf.get(client.getId());
+    if (joined == null || !joined.remove(room))
+      return false;
+
+    removeMember(room, client);
+    return true;
+  }
+
+  /**
+   * Replaces the members of a room with a copy that does not hold the
+   * client, or removes the room if the client was its last member.
+   */
+  private void removeMember(String room, ConnectionToClient client) {
+    members.computeIfPresent(room, (name, current) -> {
+      int index = Arrays.asList(current).indexOf(client);
+      if (index < 0)
+        return current;
+      if (current.length == 1)
+        return null;
+
+      ConnectionToClient[] shrunk = new ConnectionToClient[current.length - 1];
+      System.arraycopy(current, 0, shrunk, 0, index);
+      System.arraycopy(current, index + 1, shrunk, index, shrunk.length - index);
+      return shrunk;
+    });
+  }
+}
+// End of ChatRooms class
@@ -5,7 +5,21 @@ package edu.seg2105.edu.server.backend;
 // license found at www.lloseng.com 
 
 import ocsf.server.*;
+import ocsf.common.ChatEvent;
+import ocsf.common.Threads;
 import java.io.IOException;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeParseException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 
 // Importing oscf classes
 import ocsf.server.ConnectionToClient;
@@ -13,6 +27,9 @@ import ocsf.server.AbstractServer;
 
 // Importing new ServerConsole class
 import edu.seg2105.edu.server.ui.ServerConsole;
+import edu.seg2105.edu.server.store.ChatHistory;
+import edu.seg2105.edu.server.store.MailboxStore;
+import edu.seg2105.edu.server.log.ServerLog;
 
 /**
  * This class overrides some of the methods in the abstract
@@ -31,6 +48,53 @@ public class EchoServer extends AbstractServer {
    */
   final public static int DEFAULT_PORT = 5555;
 
+  /**
+   * The log of the server.
+   */
+  private static final ServerLog LOG = ServerLog.getDefault();
+
+  /**
+   * How long a private message relayed to the other servers waits for one
+   * of them to deliver or keep it before this server keeps it, in
+   * milliseconds.
+   */
+  private static final long RECEIPT_TIMEOUT_MILLIS = 2000;
+
+  // Instance variables **********************************************
+
+  /**
+   * The rooms of the server and their members.
+   */
+  private final ChatRooms rooms = new ChatRooms();
+
+  /**
+   * The persistent history of the chat messages, opened when the server
+   * first starts listening; null if there is none.
+   */
+  private volatile ChatHistory history;
+
+  /**
+   * Replays the history to clients; null if there is no history.
+   */
+  private volatile HistoryService historyService;
+
+  /**
+   * Keeps and delivers the messages of users that logged off; null if
+   * there are no mailboxes.
+   */
+  private volatile MailboxService mailboxService;
+
+  /**
+   * The links of the server with other servers, which share its chat.
+   */
+  private volatile Federation federation;
+
+  /**
+   * The private messages relayed to the other servers that no server
+   * delivered or kept yet, by <code>receiptKey</code>.
+   */
+  private final Map<String, ChatEvent> unconfirmed = new ConcurrentHashMap<>();
+
   // Constructors ****************************************************
 
   /**
@@ -46,17 +110,47 @@ public class EchoServer extends AbstractServer {
 
   /**
    * This method handles any messages received from the client.
+   * Messages only go to the members of the current room of the client,
+   * the lobby unless it joined another one.
    *
    * @param msg    The message received from the client.
    * @param client The connection from which the message originated.
    */
   public void handleMessageFromClient(Object msg, ConnectionToClient client) {
 
-    this.sendToAllClients(msg);
+    // Other servers relaying their messages are not chat users
+    Federation peers = federation;
+    if (peers != null && peers.handlePeerMessage(msg, client)) {
+      if (peers.isPeer(client))
+        updateSubscriptions(rooms.leaveAll(client));
+      return;
+    }
 
     // Make message into string
     String message = msg.toString(); // Convert the message to a string
 
+    // Room commands are answered to the client only
+    if (message.startsWith("#join")) {
+      joinRoomMessage(message, client);
+      return;
+    } else if (message.startsWith("#leave")) {
+      leaveRoomMessage(message, client);
+      return;
+    } else if (message.startsWith("#rooms")) {
+      listRoomsMessage(client);
+      return;
+    } else if (message.startsWith("#history")) {
+      historyMessage(message, client);
+      return;
+    } else if (message.startsWith("#msg")) {
+      // Private messages are never echoed to a room
+      privateMessage(message, client);
+      return;
+    }
+
+    String room = getCurrentRoom(client);
+    sendToRoom(room, msg);
+
     // If message starts with #login then call the loginClientMessage method
     if (message.startsWith("#login")) {
 
@@ -64,10 +158,296 @@ public class EchoServer extends AbstractServer {
 
     } else {
       // Other processing for regular messages
-      System.out.println("Message received: " + message + " from " + client.getInfo("clientLoginId"));
+      LOG.info("Message received: {} from {}", message, client.getInfo("clientLoginId"));
+
+      // Sending to all the clients in the same room
+      sendToRoom(room, client.getInfo("clientLoginId") + ": " + message);
+
+      ChatEvent event = new ChatEvent(ChatEvent.Kind.MESSAGE, client.getLoginId(), room,
+          message, System.currentTimeMillis());
+      record(event);
+      MailboxService mailboxes = mailboxService;
+      if (mailboxes != null)
+        mailboxes.getStore().deliverToRoom(room, event);
+      if (peers != null)
+        peers.publish(event);
+    }
+  }
+
+  /**
+   * Delivers to the users of this server an event published on another
+   * server of the federation, as if it had happened here.
+   *
+   * @param event The event.
+   */
+  private void deliverRelayed(ChatEvent event) {
+    if (event.getKind() == ChatEvent.Kind.MESSAGE) {
+      sendToRoom(event.getTarget(), event.getSender() + ": " + event.getText());
+      MailboxService mailboxes = mailboxService;
+      if (mailboxes != null)
+        mailboxes.getStore().deliverToRoom(event.getTarget(), event);
+      record(event);
+
+    } else if (event.getKind() == ChatEvent.Kind.PRIVATE) {
+      // Kept for the recipient if it logged off from this server
+      ConnectionToClient recipient = getClientConnection(event.getTarget());
+      MailboxService mailboxes = mailboxService;
+      if (recipient == null) {
+        if (mailboxes != null && mailboxes.getStore().deliver(event.getTarget(), event)) {
+          record(event);
+          confirm(event);
+        }
+        return;
+      }
+      try {
+        recipient.sendToClient("[private] " + event.getSender() + ": " + event.getText());
+        record(event);
+        confirm(event);
+      } catch (IOException e) {
+      }
+
+    } else if (event.getKind() == ChatEvent.Kind.SYSTEM) {
+      // Another server delivered or kept a private message relayed by this
+      // one, which need not keep it any more
+      unconfirmed.remove(receiptKey(event));
+    }
+  }
+
+  /**
+   * Tells the other servers that a private message they relayed was
+   * delivered or kept here.
+   *
+   * @param event The private message.
+   */
+  private void confirm(ChatEvent event) {
+    Federation peers = federation;
+    if (peers != null)
+      peers.publish(new ChatEvent(ChatEvent.Kind.SYSTEM, event.getSender(),
+          event.getTarget(), event.getText(), event.getTimestamp()));
+  }
+
+  /**
+   * @param event A private message or its receipt.
+   * @return The key of the message among the unconfirmed ones.
+   */
+  private static String receiptKey(ChatEvent event) {
+    return event.getSender() + " " + event.getTarget() + " " + event.getTimestamp()
+        + " " + event.getText();
+  }
+
+  /**
+   * Keeps a relayed private message for its recipient, unless another
+   * server delivered or kept it meanwhile.
+   *
+   * @param key The key of the message.
+   */
+  private void keepUnconfirmed(String key) {
+    ChatEvent event = unconfirmed.remove(key);
+    MailboxService mailboxes = mailboxService;
+    if (event != null && mailboxes != null)
+      mailboxes.getStore().deliver(event.getTarget(), event);
+  }
+
+  /**
+   * Sends a message to the members of a room only.
+   *
+   * @param room The name of the room.
+   * @param msg  The message to send.
+   */
+  public void sendToRoom(String room, Object msg) {
+    sendToClients(rooms.getMembers(room), msg);
+  }
+
+  /**
+   * Returns the room the messages of a client go to.
+   *
+   * @param client The connection of the client.
+   * @return The name of the room.
+   */
+  private String getCurrentRoom(ConnectionToClient client) {
+    Object room = client.getInfo("room");
+    return room == null ? ChatRooms.LOBBY : room.toString();
+  }
+
+  // Handles #join <room>: joins the room and makes it the current room
+  private void joinRoomMessage(String command, ConnectionToClient client) {
+    String[] parts = command.trim().split("\\s+");
+
+    if (parts.length < 2) {
+      reply(client, "ERROR - Usage: #join <room>");
+      return;
+    }
+
+    String room = parts[1];
+    if (rooms.join(room, client)) {
+      sendToRoom(room, client.getInfo("clientLoginId") + " has joined " + room + ".");
+      updateSubscriptions(Collections.singleton(room));
+    }
+    client.setInfo("room", room);
+    reply(client, "You are now in " + room + ".");
+  }
+
+  // Handles #leave [room]: leaves the room, by default the current one
+  private void leaveRoomMessage(String command, ConnectionToClient client) {
+    String[] parts = command.trim().split("\\s+");
+    String room = parts.length >= 2 ? parts[1] : getCurrentRoom(client);
+
+    if (ChatRooms.LOBBY.equals(room)) {
+      reply(client, "ERROR - The lobby cannot be left.");
+      return;
+    }
+    if (!rooms.leave(room, client)) {
+      reply(client, "ERROR - You are not in " + room + ".");
+      return;
+    }
+
+    sendToRoom(room, client.getInfo("clientLoginId") + " has left " + room + ".");
+    updateSubscriptions(Collections.singleton(room));
+    if (room.equals(getCurrentRoom(client)))
+      client.setInfo("room", ChatRooms.LOBBY);
+    reply(client, "You left " + room + ", you are now in " + getCurrentRoom(client) + ".");
+  }
+
+  // Handles #rooms: lists the rooms, their sizes and where the client is
+  private void listRoomsMessage(ConnectionToClient client) {
+    StringBuilder list = new StringBuilder("Rooms:");
+    String current = getCurrentRoom(client);
+
+    rooms.getRoomSizes().forEach((room, size) -> {
+      list.append("\n  ").append(room).append(" (").append(size).append(')');
+      if (room.equals(current))
+        list.append(" <- current");
+      else if (rooms.getRooms(client).contains(room))
+        list.append(" <- joined");
+    });
+    reply(client, list.toString());
+  }
+
+  // Handles #msg <loginId> <text>: delivers the text to that user only,
+  // found through the login ID index of the server
+  private void privateMessage(String command, ConnectionToClient client) {
+    String[] parts = command.trim().split("\\s+", 3);
+
+    if (parts.length < 3) {
+      reply(client, "ERROR - Usage: #msg <loginId> <text>");
+      return;
+    }
+
+    String sender = client.getLoginId();
+    if (sender == null) {
+      reply(client, "ERROR - You must #login before sending private messages.");
+      return;
+    }
+
+    String target = parts[1];
+    ChatEvent event = new ChatEvent(ChatEvent.Kind.PRIVATE, sender, target, parts[2],
+        System.currentTimeMillis());
+    ConnectionToClient recipient = getClientConnection(target);
+    if (recipient == null) {
+      // Relayed to the other servers, where the user may be logged in, and
+      // kept for a known user that logged off only if none of them
+      // delivered or kept it, so that it is never received twice
+      Federation peers = federation;
+      MailboxService mailboxes = mailboxService;
+      boolean relayed = peers != null && peers.isLinked();
+      boolean kept = false;
+      if (relayed) {
+        String key = receiptKey(event);
+        unconfirmed.put(key, event);
+        peers.publish(event);
+        Threads.wheel().schedule(() -> keepUnconfirmed(key), RECEIPT_TIMEOUT_MILLIS,
+            TimeUnit.MILLISECONDS);
+      } else {
+        kept = mailboxes != null && mailboxes.getStore().deliver(target, event);
+      }
 
-      // Sending to all the clients on the same server
-      this.sendToAllClients(client.getInfo("clientLoginId") + ": " + message);
+      if (kept) {
+        record(event);
+        reply(client, "[private to " + target + "] " + parts[2] + " (" + target
+            + " is away and will get it on login)");
+      } else if (relayed) {
+        record(event);
+        reply(client, "[private to " + target + "] " + parts[2] + " (" + target
+            + " is not on this server, sent to the other servers)");
+      } else {
+        reply(client, "ERROR - " + target + " is not connected.");
+      }
+      return;
+    }
+
+    try {
+      recipient.sendToClient("[private] " + sender + ": " + parts[2]);
+    } catch (IOException e) {
+      reply(client, "ERROR - Could not deliver the message to " + target + ".");
+      return;
+    }
+    LOG.info("Private message received from {} to {}", sender, target);
+    record(event);
+    reply(client, "[private to " + target + "] " + parts[2]);
+  }
+
+  // Handles #history [count] and #history since <time>: replays the
+  // messages the client can see, the time being epoch milliseconds, an ISO
+  // date and time, or a time of today
+  private void historyMessage(String command, ConnectionToClient client) {
+    HistoryService service = historyService;
+    if (service == null) {
+      reply(client, "ERROR - The server keeps no history.");
+      return;
+    }
+
+    String[] parts = command.trim().split("\\s+", 3);
+    try {
+      if (parts.length == 1) {
+        service.replayLast(client, HistoryService.DEFAULT_MESSAGES);
+      } else if (parts[1].equals("since") && parts.length == 3) {
+        service.replaySince(client, parseTime(parts[2]));
+      } else if (parts.length == 2 && Integer.parseInt(parts[1]) > 0) {
+        service.replayLast(client, Integer.parseInt(parts[1]));
+      } else {
+        reply(client, "ERROR - Usage: #history [count] | #history since <time>");
+      }
+    } catch (NumberFormatException | DateTimeParseException e) {
+      reply(client, "ERROR - Usage: #history [count] | #history since <time>");
+    }
+  }
+
+  // Reads a time given as epoch milliseconds, yyyy-MM-ddTHH:mm[:ss] or
+  // HH:mm[:ss] of today
+  private static long parseTime(String time) {
+    LocalDateTime local;
+    if (time.matches("\\d+"))
+      return Long.parseLong(time);
+    else if (time.contains("T"))
+      local = LocalDateTime.parse(time);
+    else
+      local = LocalDate.now().atTime(LocalTime.parse(time));
+    return local.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+  }
+
+  // Appends a message to the history, if there is one. The message is
+  // written by the history in the background.
+  private void record(ChatEvent event) {
+    ChatHistory log = history;
+    if (log == null)
+      return;
+
+    try {
+      log.record(event)
+          .exceptionally(e -> {
+            LOG.error("ERROR - Could not save a message to the history: {}", e);
+            return null;
+          });
+    } catch (IllegalArgumentException | IllegalStateException e) {
+      LOG.error("ERROR - Could not save a message to the history: {}", e);
+    }
+  }
+
+  // Sends an answer to a single client, ignoring a closed connection
+  private void reply(ConnectionToClient client, String message) {
+    try {
+      client.sendToClient(message);
+    } catch (IOException e) {
     }
   }
 
@@ -81,14 +461,86 @@ public class EchoServer extends AbstractServer {
       // Assigns 2nd split of the string to be the clientLoginId
       String clientLoginId = parts[1];
 
+      // Register the login ID with the server; it can only be used once
+      if (!client.setLoginId(clientLoginId)) {
+        try {
+          client.sendToClient("ERROR - Login ID " + clientLoginId + " is already in use.");
+        } catch (IOException e) {
+        }
+        return;
+      }
+
       // Set the client's login ID in their connection information
       client.setInfo("clientLoginId", clientLoginId);
       client.setInfo("clientLoginId", clientLoginId);
-      System.out.println("Message received: " + command + " from null");
-      System.out.println(clientLoginId + " has logged on.");
+      LOG.info("Message received: {} from null", command);
+      LOG.info("{} has logged on.", clientLoginId);
+
+      // Deliver what was kept while the user was away, or else show what
+      // was said before the client connected
+      if (!resumeSession(client)) {
+        HistoryService service = historyService;
+        if (service != null && service.getReplayOnLogin() > 0)
+          service.replayLast(client, service.getReplayOnLogin());
+      }
+
+    }
+
+  }
+
+  // Puts a user that logged in again back in the rooms it was in when it
+  // logged off, and starts delivering the messages kept for it meanwhile
+  private boolean resumeSession(ConnectionToClient client) {
+    MailboxService mailboxes = mailboxService;
+    if (mailboxes == null)
+      return false;
+
+    Set<String> saved = mailboxes.getStore().login(client.getLoginId());
+    for (String room : saved)
+      rooms.join(room, client);
+    updateSubscriptions(saved);
+    if (saved.size() > 1)
+      reply(client, "You are back in " + String.join(", ", saved) + ".");
+    return mailboxes.drain(client);
+  }
 
+  // Subscribes this server, in a sharded federation, to the rooms among
+  // the given ones that its users are in or were in when they logged off,
+  // and unsubscribes it from the others
+  private void updateSubscriptions(Collection<String> changed) {
+    Federation peers = federation;
+    if (peers == null || !peers.isSharded())
+      return;
+
+    MailboxService mailboxes = mailboxService;
+    for (String room : changed) {
+      if (rooms.getMembers(room).length > 0
+          || (mailboxes != null && mailboxes.getStore().isKeptFor(room)))
+        peers.subscribe(room);
+      else
+        peers.unsubscribe(room);
     }
+  }
 
+  // Forgets the link of another server once it is closed
+  private void peerDisconnected(ConnectionToClient client) {
+    Federation peers = federation;
+    if (peers != null)
+      peers.peerDisconnected(client);
+  }
+
+  // Starts keeping the messages of a user that logged off
+  private void suspendSession(ConnectionToClient client, Set<String> left) {
+    MailboxService mailboxes = mailboxService;
+    String loginId = client.getLoginId();
+    if (mailboxes == null || loginId == null || left.isEmpty())
+      return;
+
+    try {
+      mailboxes.getStore().logout(loginId, left);
+    } catch (IllegalStateException e) {
+      // Closed with the server
+    }
   }
 
   /**
@@ -96,7 +548,13 @@ public class EchoServer extends AbstractServer {
    * when the server starts listening for connections.
    */
   protected void serverStarted() {
-    System.out.println("Server listening for connections on port " + getPort());
+    LOG.info("Server listening for connections on port {}", getPort());
+    if (history == null)
+      openHistory();
+    if (mailboxService == null)
+      openMailboxes();
+    if (federation == null)
+      openFederation();
   }
 
   /**
@@ -104,7 +562,123 @@ public class EchoServer extends AbstractServer {
    * when the server stops listening for connections.
    */
   protected void serverStopped() {
-    System.out.println("Server has stopped listening for connections.");
+    LOG.info("Server has stopped listening for connections.");
+  }
+
+  /**
+   * This method overrides the one in the superclass. Called
+   * when the server is closed; the links to other servers are closed,
+   * and the history and the mailboxes are written and closed.
+   */
+  protected void serverClosed() {
+    closeFederation();
+    closeHistory();
+    closeMailboxes();
+  }
+
+  // Opens the history configured by the system properties. The server
+  // runs without history if it cannot be opened.
+  private synchronized void openHistory() {
+    if (history != null)
+      return;
+
+    try {
+      history = ChatHistory.fromSystemProperties();
+    } catch (IOException | IllegalArgumentException e) {
+      LOG.error("ERROR - Could not open the chat history: {}", e);
+      return;
+    }
+    if (history != null) {
+      historyService = new HistoryService(history, rooms);
+      LOG.info("Chat history kept in {}", history.getLog().getDirectory());
+      // System.exit from the console must not lose the queued messages
+      Runtime.getRuntime().addShutdownHook(new Thread(this::closeHistory));
+    }
+  }
+
+  // Writes and closes the history, if there is one
+  private synchronized void closeHistory() {
+    ChatHistory log = history;
+    history = null;
+    if (log == null)
+      return;
+
+    historyService.close();
+    historyService = null;
+
+    try {
+      log.close();
+    } catch (IOException e) {
+      LOG.error("ERROR - Could not close the chat history: {}", e);
+    }
+  }
+
+  // Opens the mailboxes configured by the system properties. The server
+  // runs without them if they cannot be opened.
+  private synchronized void openMailboxes() {
+    if (mailboxService != null)
+      return;
+
+    MailboxStore store;
+    try {
+      store = MailboxStore.fromSystemProperties();
+    } catch (IOException | IllegalArgumentException e) {
+      LOG.error("ERROR - Could not open the mailboxes: {}", e);
+      return;
+    }
+    if (store != null) {
+      mailboxService = new MailboxService(store);
+      Runtime.getRuntime().addShutdownHook(new Thread(this::closeMailboxes));
+    }
+  }
+
+  // Writes and closes the mailboxes, if there are some
+  private synchronized void closeMailboxes() {
+    MailboxService mailboxes = mailboxService;
+    mailboxService = null;
+    if (mailboxes == null)
+      return;
+
+    // The relayed private messages still waiting are kept, as they may
+    // have reached no other server
+    for (ChatEvent event : unconfirmed.values())
+      mailboxes.getStore().deliver(event.getTarget(), event);
+    unconfirmed.clear();
+    mailboxes.close();
+    mailboxes.getStore().close();
+  }
+
+  // Joins the federation configured by the system properties. The server
+  // runs alone if none is configured or the configuration is invalid.
+  private synchronized void openFederation() {
+    if (federation != null)
+      return;
+
+    try {
+      federation = Federation.fromSystemProperties(getPort(), this::deliverRelayed);
+      if (federation == null)
+        return;
+      LOG.info("Federation node {}{}", federation.getNodeId(),
+          federation.isSharded() ? ", rooms sharded" : "");
+    } catch (IllegalArgumentException e) {
+      LOG.error("ERROR - Could not join the federation: {}", e.getMessage());
+      return;
+    }
+
+    Set<String> known = new HashSet<>(rooms.getRoomSizes().keySet());
+    MailboxService mailboxes = mailboxService;
+    if (mailboxes != null)
+      known.addAll(mailboxes.getStore().getKeptRooms());
+    updateSubscriptions(known);
+  }
+
+  // Closes the links to other servers
+
+  private synchronized void closeFederation() {
+    Federation peers = federation;
+    federation = null;
+    if (peers != null)
+      peers.close();
   }
 
   // Class methods ***************************************************
@@ -136,7 +710,7 @@ public class EchoServer extends AbstractServer {
     try {
       sv.listen(); // Start listening for connections
     } catch (Exception ex) {
-      System.out.println("ERROR - Could not listen for clients!");
+      LOG.error("ERROR - Could not listen for clients!");
     }
   }
 
@@ -148,7 +722,9 @@ public class EchoServer extends AbstractServer {
    */
   @Override
   protected void clientConnected(ConnectionToClient client) {
-    System.out.println("A new client has connected to the server.");
+    LOG.info("A new client has connected to the server.");
+    rooms.join(ChatRooms.LOBBY, client);
+    updateSubscriptions(Collections.singleton(ChatRooms.LOBBY));
 
   }
 
@@ -163,7 +739,29 @@ public class EchoServer extends AbstractServer {
   synchronized protected void clientDisconnected(
       ConnectionToClient client) {
 
-    System.out.println("Client " + client.getInfo("clientLoginId") + " is disconnected.");
+    LOG.info("Client {} is disconnected.", client.getInfo("clientLoginId"));
+    Set<String> left = rooms.leaveAll(client);
+    suspendSession(client, left);
+    updateSubscriptions(left);
+    peerDisconnected(client);
+  }
+
+  /**
+   * Implements hook method called each time the connection with a client
+   * fails, which is also how a client that quits is seen. The client is
+   * removed from its rooms, and its messages are kept until it logs in
+   * again.
+   *
+   * @param client    the client that raised the exception.
+   * @param exception the exception thrown.
+   */
+  @Override
+  synchronized protected void clientException(
+      ConnectionToClient client, Throwable exception) {
+    Set<String> left = rooms.leaveAll(client);
+    suspendSession(client, left);
+    updateSubscriptions(left);
+    peerDisconnected(client);
   }
 
   public void setServerConsole(ServerConsole serverConsole) {
@@ -172,21 +770,16 @@ public class EchoServer extends AbstractServer {
   // Disconnects all existing clients
   public void disconnectAllClients() {
 
-    // Iterate through all the clients connected in the thread list
-    Thread[] clientThreadList = getClientConnections();
+    // Iterate through all the clients connected to the server
+    ConnectionToClient[] clientList = getClientConnections();
 
     // For each connected client, disconnect each of them
-    for (Thread clientThread : clientThreadList) {
-      if (clientThread instanceof ConnectionToClient) {
-
-        ConnectionToClient client = (ConnectionToClient) clientThread;
-
-        try {
-          client.close();
-        } catch (IOException e) {
-          e.printStackTrace();
-        }
+    for (ConnectionToClient client : clientList) {
 
+      try {
+        client.close();
+      } catch (IOException e) {
+        e.printStackTrace();
       }
     }
   }
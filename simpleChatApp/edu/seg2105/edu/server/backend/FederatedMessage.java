@@ -0,0 +1,121 @@
+package edu.seg2105.edu.server.backend;
+
+import java.io.Serializable;
+
+import ocsf.common.ChatEvent;
+
+/**
+ * This class is a chat event travelling between federated servers. It
+ * names the node where it was first published, the start of that node it
+ * was published in, and its number there, which identify it on every node,
+ * and counts the links it crossed. Messages are immutable.
+ */
+public final class FederatedMessage implements Serializable {
+  // Class variables *************************************************
+
+  private static final long serialVersionUID = 2L;
+
+  // Instance variables **********************************************
+
+  /**
+   * The ID of the node that published the event.
+   */
+  private final String origin;
+
+  /**
+   * The start of the origin the event was published in, as numbers start
+   * over when a node restarts.
+   */
+  private final long epoch;
+
+  /**
+   * The number of the event among those published by its origin.
+   */
+  private final long sequence;
+
+  /**
+   * The number of links the message crossed since its origin.
+   */
+  private final int hops;
+
+  /**
+   * The event.
+   */
+  private final ChatEvent event;
+
+  // Constructors ****************************************************
+
+  /**
+   * Constructs a message.
+   *
+   * @param origin   The ID of the node that published the event.
+   * @param epoch    The start of the origin it was published in.
+   * @param sequence The number of the event on its origin.
+   * @param hops     The number of links crossed.
+   * @param event    The event.
+   */
+  public FederatedMessage(String origin, long epoch, long sequence, int hops,
+      ChatEvent event) {
+    this.origin = origin;
+    this.epoch = epoch;
+    this.sequence = sequence;
+    this.hops = hops;
+    this.event = event;
+  }
+
+  // Instance methods ************************************************
+
+  /**
+   * @return The ID of the node that published the event.
+   */
+  public String getOrigin() {
+    return origin;
+  }
+
+  /**
+   * @return The start of the origin the event was published in.
+   */
+  public long getEpoch() {
+    return epoch;
+  }
+
+  /**
+   * @return The identity of the event on every node.
+   */
+  public String getKey() {
+    return origin + "#" + epoch + "." + sequence;
+  }
+
+  /**
+   * @return The number of the event on its origin.
+   */
+  public long getSequence() {
+    return sequence;
+  }
+
+  /**
+   * @return The number of links crossed.
+   */
+  public int getHops() {
+    return hops;
+  }
+
+  /**
+   * @return The event.
+   */
+  public ChatEvent getEvent() {
+    return event;
+  }
+
+  /**
+   * @return The same message, one link further.
+   */
+  public FederatedMessage forwarded() {
+    return new FederatedMessage(origin, epoch, sequence, hops + 1, event);
+  }
+
+  public String toString() {
+    return getKey() + " " + event;
+  }
+}
+// End of FederatedMessage class
@@ -0,0 +1,740 @@
+package edu.seg2105.edu.server.backend;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+import edu.seg2105.edu.server.log.ServerLog;
+import ocsf.common.ChatEvent;
+import ocsf.server.ConnectionToClient;
+
+/**
+ * This class links a chat server to other servers, its peers, so that the
+ * users of all of them see one chat. Every node opens a
+ * <code>PeerLink</code> to the peers it is configured with, and accepts the
+ * links other nodes open to it as ordinary connections that introduce
+ * themselves with <code>#peer &lt;nodeId&gt; &lt;secret&gt;</code>. Only
+ * a connection giving the secret of the federation, and that has not
+ * logged in as a user, becomes a peer; any other is closed. Links carry
+ * messages both ways, so a link needs to be configured on one side only.
+ * <p>
+ * An event published on a node is flooded: every node delivers it to its
+ * own users and forwards it on all its links but the one it came from.
+ * Loops and the duplicates of redundant links are stopped by remembering
+ * the origin, start and number of the last events seen, and by a hop
+ * limit.
+ * <p>
+ * A federation can instead be sharded, so that a node only handles the
+ * rooms its users are in. The nodes and their peers then form a
+ * consistent-hash ring that gives every room an owner. A node subscribes
+ * to the rooms of its users at their owners, and sends the messages of
+ * its users to the owner of their room, which relays them to the other
+ * subscribed nodes: every message crosses at most two links, and a node
+ * added to the federation takes its share of the rooms and of the
+ * traffic. When nodes join or leave, only the rooms that change owner are
+ * subscribed again. Sharding expects every node to be linked to every
+ * other one; private messages are still flooded.
+ * <p>
+ * The federation is configured with system properties:
+ * <ul>
+ * <li><code>chat.federation.peers</code>, the peers to link to, as
+ * <code>host:port</code> separated by commas;</li>
+ * <li><code>chat.federation.nodeId</code>, the ID of the node, which must
+ * be unique and without spaces, the host name and port by default;</li>
+ * <li><code>chat.federation.secret</code>, the secret shared by the nodes,
+ * without which no link from another node is accepted;</li>
+ * <li><code>chat.federation.sharding</code>, <code>true</code> to shard the
+ * rooms, which every node must agree on.</li>
+ * </ul>
+ * A server none of them is set for is not federated. Nodes on the same
+ * machine must keep their history and mailboxes in different directories.
+ */
+public class Federation {
+  // Class variables *************************************************
+
+  /**
+   * The system property giving the peers to link to.
+   */
+  final public static String PEERS_PROPERTY = "chat.federation.peers";
+
+  /**
+   * The system property giving the ID of the node.
+   */
+  final public static String NODE_ID_PROPERTY = "chat.federation.nodeId";
+
+  /**
+   * The system property telling whether the rooms are sharded.
+   */
+  final public static String SHARDING_PROPERTY = "chat.federation.sharding";
+
+  /**
+   * The system property giving the secret shared by the nodes.
+   */
+  final public static String SECRET_PROPERTY = "chat.federation.secret";
+
+  /**
+   * The command a peer link opens with, followed by the ID of its node.
+   */
+  final public static String HELLO = "#peer";
+
+  /**
+   * The largest number of links a message crosses.
+   */
+  final public static int MAX_HOPS = 16;
+
+  /**
+   * The delay before a lost or refused link is opened again, in
+   * milliseconds.
+   */
+  final public static long RETRY_MILLIS = 2000;
+
+  /**
+   * The number of events remembered to recognize duplicates.
+   */
+  private static final int SEEN_CAPACITY = 64 * 1024;
+
+  /**
+   * The log of the server.
+   */
+  private static final ServerLog LOG = ServerLog.getDefault();
+
+  // Instance variables **********************************************
+
+  /**
+   * The ID of this node.
+   */
+  private final String nodeId;
+
+  /**
+   * Whether the rooms are sharded rather than flooded.
+   */
+  private final boolean sharded;
+
+  /**
+   * The secret the nodes linking to this one must give, null to accept no
+   * link.
+   */
+  private final String secret;
+
+  /**
+   * Delivers the events published by other nodes to the users of this one.
+   */
+  private final Consumer<ChatEvent> deliver;
+
+  /**
+   * The start of this node, which tells the events it publishes from
+   * those of its previous starts.
+   */
+  private final long epoch = System.currentTimeMillis();
+
+  /**
+   * The number of the last event published by this node.
+   */
+  private final AtomicLong sequence = new AtomicLong();
+
+  /**
+   * The keys of the last events seen, oldest first.
+   */
+  private final Map<String, Boolean> seen =
+      Collections.synchronizedMap(new LinkedHashMap<String, Boolean>() {
+        private static final long serialVersionUID = 1L;
+
+        protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+          return size() > SEEN_CAPACITY;
+        }
+      });
+
+  /**
+   * The links this node opened.
+   */
+  private final List<PeerLink> outbound = new CopyOnWriteArrayList<>();
+
+  /**
+   * The links other nodes opened to this one, by connection ID.
+   */
+  private final ConcurrentHashMap<Long, ConnectionToClient> inbound =
+      new ConcurrentHashMap<>();
+
+  /**
+   * The link used to reach every linked node, a <code>PeerLink</code> or a
+   * <code>ConnectionToClient</code>, by node ID.
+   */
+  private final ConcurrentHashMap<String, Object> links = new ConcurrentHashMap<>();
+
+  /**
+   * This node and the nodes it is linked to, sharing the rooms.
+   */
+  private final HashRing ring = new HashRing();
+
+  /**
+   * The rooms this node is subscribed to.
+   */
+  private final Set<String> subscriptions = ConcurrentHashMap.newKeySet();
+
+  /**
+   * The nodes subscribed to the rooms this node owns, by room.
+   */
+  private final ConcurrentHashMap<String, Set<String>> subscribers =
+      new ConcurrentHashMap<>();
+
+  /**
+   * The thread opening the outbound links.
+   */
+  private final ScheduledExecutorService connector =
+      Executors.newSingleThreadScheduledExecutor(task -> {
+        Thread thread = new Thread(task, "federation-connector");
+        thread.setDaemon(true);
+        return thread;
+      });
+
+  /**
+   * Whether the federation was closed.
+   */
+  private volatile boolean closed;
+
+  // Constructors ****************************************************
+
+  /**
+   * Constructs a federation node with no link.
+   *
+   * @param nodeId  The unique ID of the node.
+   * @param deliver Delivers the events published by other nodes to the
+   *                users of this one.
+   */
+  public Federation(String nodeId, Consumer<ChatEvent> deliver) {
+    this(nodeId, false, null, deliver);
+  }
+
+  /**
+   * Constructs a federation node with no link.
+   *
+   * @param nodeId  The unique ID of the node.
+   * @param sharded true to shard the rooms rather than flood them.
+   * @param secret  The secret shared by the nodes, null to accept no link
+   *                from another node.
+   * @param deliver Delivers the events published by other nodes to the
+   *                users of this one.
+   */
+  public Federation(String nodeId, boolean sharded, String secret,
+      Consumer<ChatEvent> deliver) {
+    this.nodeId = nodeId;
+    this.sharded = sharded;
+    this.secret = secret == null || secret.isEmpty() ? null : secret;
+    this.deliver = deliver;
+    ring.add(nodeId);
+  }
+
+  // Class methods ***************************************************
+
+  /**
+   * Creates the node configured by the system properties and starts
+   * opening its links.
+   *
+   * @param port    The port of the server of the node.
+   * @param deliver Delivers the events published by other nodes.
+   * @return The node, null if the server is not federated.
+   * @throws IllegalArgumentException if a peer is not host:port.
+   */
+  public static Federation fromSystemProperties(int port, Consumer<ChatEvent> deliver) {
+    String nodeId = System.getProperty(NODE_ID_PROPERTY, "").trim();
+    String peers = System.getProperty(PEERS_PROPERTY, "").trim();
+    String secret = System.getProperty(SECRET_PROPERTY, "").trim();
+    if (nodeId.isEmpty() && peers.isEmpty() && secret.isEmpty())
+      return null;
+
+    if (nodeId.isEmpty()) {
+      try {
+        nodeId = InetAddress.getLocalHost().getHostName() + ":" + port;
+      } catch (IOException e) {
+        nodeId = "localhost:" + port;
+      }
+    }
+
+    if (nodeId.matches(".*\\s.*"))
+      throw new IllegalArgumentException("node ID " + nodeId + " contains spaces");
+
+    Federation federation = new Federation(nodeId,
+        Boolean.getBoolean(SHARDING_PROPERTY), secret, deliver);
+    if (federation.secret == null && !peers.isEmpty())
+      LOG.warn("No {} set: the peers cannot link to this node.", SECRET_PROPERTY);
+    for (String peer : peers.split("[,\\s]+")) {
+      if (peer.isEmpty())
+        continue;
+
+      int colon = peer.lastIndexOf(':');
+      if (colon <= 0)
+        throw new IllegalArgumentException("peer " + peer + " is not host:port");
+      federation.connect(peer.substring(0, colon), Integer.parseInt(peer.substring(colon + 1)));
+    }
+    return federation;
+  }
+
+  // Instance methods ************************************************
+
+  /**
+   * @return The ID of this node.
+   */
+  public String getNodeId() {
+    return nodeId;
+  }
+
+  /**
+   * @return The secret this node gives the peers it links to, null if
+   *         there is none.
+   */
+  String getSecret() {
+    return secret;
+  }
+
+  /**
+   * @return true if the rooms are sharded rather than flooded.
+   */
+  public boolean isSharded() {
+    return sharded;
+  }
+
+  /**
+   * @param room A room.
+   * @return The ID of the node owning the room; this node if the rooms are
+   *         not sharded.
+   */
+  public String getOwner(String room) {
+    return sharded ? ring.ownerOf(room) : nodeId;
+  }
+
+  /**
+   * Opens a link to a peer in the background, trying again until it
+   * succeeds or the federation is closed.
+   *
+   * @param host The host of the peer.
+   * @param port The port of the peer.
+   */
+  public void connect(String host, int port) {
+    PeerLink link = new PeerLink(host, port, this);
+    outbound.add(link);
+    schedule(link, 0);
+  }
+
+  /**
+   * @return true if this node has at least one working link.
+   */
+  public boolean isLinked() {
+    if (!inbound.isEmpty())
+      return true;
+    for (PeerLink link : outbound) {
+      if (link.isReady())
+        return true;
+    }
+    return false;
+  }
+
+  /**
+   * @return The number of working links, opened by either side.
+   */
+  public int getLinkCount() {
+    int count = inbound.size();
+    for (PeerLink link : outbound) {
+      if (link.isReady())
+        count++;
+    }
+    return count;
+  }
+
+  /**
+   * Sends an event of the users of this node to every other node.
+   *
+   * @param event The event.
+   */
+  public void publish(ChatEvent event) {
+    FederatedMessage msg = new FederatedMessage(nodeId, epoch, sequence.incrementAndGet(), 0,
+        event);
+    if (isRouted(msg))
+      route(msg, null);
+    else
+      forward(msg, null);
+  }
+
+  /**
+   * Subscribes this node to the messages of a room, in a sharded
+   * federation, because some of its users are in the room.
+   *
+   * @param room The room.
+   */
+  public synchronized void subscribe(String room) {
+    if (!sharded || !subscriptions.add(room))
+      return;
+
+    String owner = ring.ownerOf(room);
+    if (!nodeId.equals(owner))
+      sendTo(owner, new RoomSubscription(nodeId, room, true));
+  }
+
+  /**
+   * Unsubscribes this node from the messages of a room, in a sharded
+   * federation, because none of its users are in the room any more.
+   *
+   * @param room The room.
+   */
+  public synchronized void unsubscribe(String room) {
+    if (!sharded || !subscriptions.remove(room))
+      return;
+
+    String owner = ring.ownerOf(room);
+    if (!nodeId.equals(owner))
+      sendTo(owner, new RoomSubscription(nodeId, room, false));
+  }
+
+  /**
+   * Handles a message a connection sent to the server if it is federation
+   * traffic: the introduction of a peer, or anything a peer sends. A
+   * connection that gives a wrong secret is closed; one that logged in as
+   * a user cannot become a peer.
+   *
+   * @param msg    The message.
+   * @param client The connection it came from.
+   * @return true if the message was handled, and is not for the chat.
+   */
+  public boolean handlePeerMessage(Object msg, ConnectionToClient client) {
+    if (inbound.containsKey(client.getId())) {
+      // A peer is never a chat user
+      if (msg instanceof FederatedMessage)
+        receive((FederatedMessage) msg, client);
+      else if (msg instanceof RoomSubscription)
+        subscribed((RoomSubscription) msg);
+      return true;
+    } else if (msg instanceof FederatedMessage || msg instanceof RoomSubscription) {
+      return true; // Not from a peer
+    }
+
+    String text = msg.toString();
+    if (!text.startsWith(HELLO + " "))
+      return false;
+
+    if (client.getLoginId() != null) {
+      LOG.warn("User {} tried to link as a peer.", client.getLoginId());
+      sendOn(client, "ERROR - A user cannot link as a peer.");
+      return true;
+    }
+
+    String[] parts = text.trim().split("\\s+", 3);
+    if (parts.length < 3 || !isSecret(parts[2])) {
+      LOG.warn("Peer link from {} refused: wrong secret.", client.toString());
+      try {
+        client.close();
+      } catch (IOException e) {
+      }
+      return true;
+    }
+
+    String peerId = parts[1];
+    client.setInfo("peer", peerId);
+    inbound.put(client.getId(), client);
+    LOG.info("Peer {} linked from {}", peerId, client);
+
+    // The peer learns the ID of this node the same way
+    sendOn(client, HELLO + " " + nodeId);
+    linked(peerId, client);
+    return true;
+  }
+
+  /**
+   * @param client A connection to the server.
+   * @return true if the connection is the link of a peer.
+   */
+  public boolean isPeer(ConnectionToClient client) {
+    return inbound.containsKey(client.getId());
+  }
+
+  /**
+   * Forgets a link opened by a peer, once it is closed.
+   *
+   * @param client The connection of the link.
+   */
+  public void peerDisconnected(ConnectionToClient client) {
+    if (inbound.remove(client.getId()) != null) {
+      LOG.info("Peer {} unlinked.", client.getInfo("peer"));
+      unlinked(client);
+    }
+  }
+
+  /**
+   * Closes the links this node opened and stops opening them. The links
+   * opened by peers close with the server.
+   */
+  public void close() {
+    closed = true;
+    connector.shutdownNow();
+    for (PeerLink link : outbound)
+      link.close();
+  }
+
+  /**
+   * Delivers and forwards a message relayed by a peer, unless it was seen
+   * before.
+   *
+   * @param msg  The message.
+   * @param from The link it came through, a <code>PeerLink</code> or a
+   *             <code>ConnectionToClient</code>.
+   */
+  void receive(FederatedMessage msg, Object from) {
+    if (nodeId.equals(msg.getOrigin()))
+      return;
+    if (seen.put(msg.getKey(), Boolean.TRUE) != null)
+      return;
+
+    deliver.accept(msg.getEvent());
+    if (msg.getHops() + 1 >= MAX_HOPS)
+      return;
+    if (isRouted(msg))
+      route(msg.forwarded(), nodeOf(from));
+    else
+      forward(msg.forwarded(), from);
+  }
+
+  /**
+   * Records that a node subscribed to, or unsubscribed from, a room this
+   * node owns, or is about to own.
+   *
+   * @param subscription The subscription.
+   */
+  void subscribed(RoomSubscription subscription) {
+    String room = subscription.getRoom();
+    if (subscription.isSubscribe()) {
+      subscribers.computeIfAbsent(room, name -> ConcurrentHashMap.newKeySet())
+          .add(subscription.getNode());
+    } else {
+      subscribers.computeIfPresent(room, (name, nodes) -> {
+        nodes.remove(subscription.getNode());
+        return nodes.isEmpty() ? null : nodes;
+      });
+    }
+  }
+
+  /**
+   * Called when the ID of the node at the other end of a link is known:
+   * the node joins the ring if it is new.
+   *
+   * @param peerId The ID of the other node.
+   * @param link   The link, a <code>PeerLink</code> or a
+   *               <code>ConnectionToClient</code>.
+   */
+  synchronized void linked(String peerId, Object link) {
+    if (nodeId.equals(peerId))
+      return; // Linked to itself
+
+    links.put(peerId, link);
+    HashRing before = new HashRing(ring);
+    if (ring.add(peerId))
+      rebalance(before);
+  }
+
+  /**
+   * Called when a link closed: the node at the other end leaves the ring,
+   * unless another link still reaches it.
+   *
+   * @param link The link, a <code>PeerLink</code> or a
+   *             <code>ConnectionToClient</code>.
+   */
+  synchronized void unlinked(Object link) {
+    String peerId = nodeOf(link);
+    if (peerId == null || links.get(peerId) != link)
+      return;
+
+    Object other = findLink(peerId, link);
+    if (other != null) {
+      links.put(peerId, other);
+      return;
+    }
+
+    links.remove(peerId);
+    for (Set<String> nodes : subscribers.values())
+      nodes.remove(peerId);
+    HashRing before = new HashRing(ring);
+    if (ring.remove(peerId))
+      rebalance(before);
+  }
+
+  /**
+   * Called by a link that failed, to open it again later.
+   *
+   * @param link The link.
+   */
+  void linkLost(PeerLink link) {
+    LOG.warn("Peer link to {} lost.", link);
+    unlinked(link);
+    schedule(link, RETRY_MILLIS);
+  }
+
+  /**
+   * @return true if this node accepts links and the given secret is its
+   *         own, compared in a time that does not tell how much matched.
+   */
+  private boolean isSecret(String given) {
+    return secret != null && MessageDigest.isEqual(
+        secret.getBytes(StandardCharsets.UTF_8), given.getBytes(StandardCharsets.UTF_8));
+  }
+
+  /**
+   * @return true if the message goes through the owner of its room rather
+   *         than to every node.
+   */
+  private boolean isRouted(FederatedMessage msg) {
+    return sharded && msg.getEvent().getKind() == ChatEvent.Kind.MESSAGE;
+  }
+
+  /**
+   * Sends a room message on in a sharded federation: to the owner of the
+   * room, or by the owner to the other subscribed nodes.
+   *
+   * @param msg      The message.
+   * @param fromNode The node it came from, null if it was published here.
+   */
+  private void route(FederatedMessage msg, String fromNode) {
+    String room = msg.getEvent().getTarget();
+    String owner = ring.ownerOf(room);
+    if (!nodeId.equals(owner)) {
+      if (!owner.equals(fromNode))
+        sendTo(owner, msg);
+      return;
+    }
+
+    Set<String> nodes = subscribers.get(room);
+    if (nodes == null)
+      return;
+    for (String node : nodes) {
+      if (!node.equals(fromNode) && !node.equals(msg.getOrigin()))
+        sendTo(node, msg);
+    }
+  }
+
+  /**
+   * Moves the subscriptions of this node after nodes joined or left the
+   * ring: only the rooms whose owner changed are subscribed again, and
+   * the subscribers of the rooms this node gave away are forgotten, since
+   * they subscribe at the new owner.
+   *
+   * @param before The ring before the change.
+   */
+  private void rebalance(HashRing before) {
+    LOG.info("Federation ring: {}", ring.toString());
+    if (!sharded)
+      return;
+
+    int moved = 0;
+    for (String room : subscriptions) {
+      String was = before.ownerOf(room);
+      String owner = ring.ownerOf(room);
+      if (owner.equals(was))
+        continue;
+
+      moved++;
+      if (!nodeId.equals(was))
+        sendTo(was, new RoomSubscription(nodeId, room, false));
+      if (!nodeId.equals(owner))
+        sendTo(owner, new RoomSubscription(nodeId, room, true));
+    }
+
+    subscribers.keySet().removeIf(room ->
+        nodeId.equals(before.ownerOf(room)) && !nodeId.equals(ring.ownerOf(room)));
+    if (moved > 0)
+      LOG.info("{} of {} rooms changed owner.", moved, subscriptions.size());
+  }
+
+  /**
+   * @return The ID of the node at the other end of a link, null if it is
+   *         not known yet.
+   */
+  private String nodeOf(Object link) {
+    if (link instanceof PeerLink)
+      return ((PeerLink) link).getPeerId();
+    if (link instanceof ConnectionToClient)
+      return (String) ((ConnectionToClient) link).getInfo("peer");
+    return null;
+  }
+
+  /**
+   * @return A working link to a node other than the given one, null if
+   *         there is none.
+   */
+  private Object findLink(String peerId, Object except) {
+    for (PeerLink link : outbound) {
+      if (link != except && link.isReady() && peerId.equals(link.getPeerId()))
+        return link;
+    }
+    for (ConnectionToClient peer : inbound.values()) {
+      if (peer != except && peerId.equals(peer.getInfo("peer")))
+        return peer;
+    }
+    return null;
+  }
+
+  /**
+   * Sends a message to a linked node, if it is still linked.
+   */
+  private void sendTo(String node, Object msg) {
+    Object link = links.get(node);
+    if (link != null)
+      sendOn(link, msg);
+  }
+
+  /**
+   * Sends a message on a link, a <code>PeerLink</code> or a
+   * <code>ConnectionToClient</code>.
+   */
+  private void sendOn(Object link, Object msg) {
+    try {
+      if (link instanceof PeerLink)
+        ((PeerLink) link).sendToServer(msg);
+      else
+        ((ConnectionToClient) link).sendToClient(msg);
+    } catch (IOException e) {
+      // The link reports its own failure, or is removed when the server
+      // sees it closed
+    }
+  }
+
+  /**
+   * Sends a message on every working link but one.
+   */
+  private void forward(FederatedMessage msg, Object from) {
+    for (PeerLink link : outbound) {
+      if (link != from && link.isReady())
+        sendOn(link, msg);
+    }
+
+    for (ConnectionToClient peer : inbound.values()) {
+      if (peer != from)
+        sendOn(peer, msg);
+    }
+  }
+
+  /**
+   * Tries to open a link after a delay.
+   */
+  private void schedule(PeerLink link, long delay) {
+    if (closed)
+      return;
+
+    try {
+      connector.schedule(() -> {
+        if (closed || link.isReady())
+          return;
+        try {
+          link.open();
+          LOG.info("Peer link to {} open.", link);
+        } catch (IOException e) {
+          link.close();
+          schedule(link, RETRY_MILLIS);
+        }
+      }, delay, TimeUnit.MILLISECONDS);
+    } catch (RejectedExecutionException e) {
+      // Closed meanwhile
+    }
+  }
+}
+// End of Federation class
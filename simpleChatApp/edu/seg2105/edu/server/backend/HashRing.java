@@ -0,0 +1,154 @@
+package edu.seg2105.edu.server.backend;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+/**
+ * This class is a consistent-hash ring: it gives every key, such as a room
+ * name, an owner among a set of nodes, so that adding or removing a node
+ * only moves the keys it takes or gives back, about one key in the number
+ * of nodes, and leaves the owner of every other key unchanged.
+ * <p>
+ * Every node is placed on the ring at <code>VIRTUAL_NODES</code> points,
+ * hashes of its ID, which spreads the keys evenly. The owner of a key is
+ * the node of the first point at or after the hash of the key. Nodes with
+ * the same set of IDs compute the same owners.
+ * <p>
+ * The ring is replaced, never modified, when a node is added or removed,
+ * so owners are looked up without locking.
+ */
+public class HashRing {
+  // Class variables *************************************************
+
+  /**
+   * The number of points of every node on the ring.
+   */
+  final public static int VIRTUAL_NODES = 128;
+
+  // Instance variables **********************************************
+
+  /**
+   * The points of the ring and their node, by hash.
+   */
+  private volatile TreeMap<Long, String> points = new TreeMap<>();
+
+  /**
+   * The nodes on the ring.
+   */
+  private volatile Set<String> nodes = Collections.emptySet();
+
+  // Constructors ****************************************************
+
+  /**
+   * Constructs a ring with no node.
+   */
+  public HashRing() {
+  }
+
+  /**
+   * Constructs a ring with the same nodes as another one.
+   *
+   * @param ring The other ring.
+   */
+  public HashRing(HashRing ring) {
+    this.points = ring.points;
+    this.nodes = ring.nodes;
+  }
+
+  // Instance methods ************************************************
+
+  /**
+   * Adds a node to the ring.
+   *
+   * @param node The ID of the node.
+   * @return false if the node was already on the ring.
+   */
+  public synchronized boolean add(String node) {
+    if (nodes.contains(node))
+      return false;
+
+    TreeMap<Long, String> next = new TreeMap<>(points);
+    for (int i = 0; i < VIRTUAL_NODES; i++)
+      next.putIfAbsent(hash(node + "#" + i), node);
+
+    Set<String> names = new TreeSet<>(nodes);
+    names.add(node);
+    points = next;
+    nodes = Collections.unmodifiableSet(names);
+    return true;
+  }
+
+  /**
+   * Removes a node from the ring.
+   *
+   * @param node The ID of the node.
+   * @return false if the node was not on the ring.
+   */
+  public synchronized boolean remove(String node) {
+    if (!nodes.contains(node))
+      return false;
+
+    TreeMap<Long, String> next = new TreeMap<>(points);
+    next.values().removeIf(node::equals);
+
+    Set<String> names = new TreeSet<>(nodes);
+    names.remove(node);
+    points = next;
+    nodes = Collections.unmodifiableSet(names);
+    return true;
+  }
+
+  /**
+   * @param key A key, such as the name of a room.
+   * @return The ID of the node owning the key, null if the ring is empty.
+   */
+  public String ownerOf(String key) {
+    TreeMap<Long, String> ring = points;
+    if (ring.isEmpty())
+      return null;
+
+    Map.Entry<Long, String> point = ring.ceilingEntry(hash(key));
+    return point != null ? point.getValue() : ring.firstEntry().getValue();
+  }
+
+  /**
+   * @return The IDs of the nodes on the ring, sorted.
+   */
+  public Set<String> getNodes() {
+    return nodes;
+  }
+
+  /**
+   * @return The number of nodes on the ring.
+   */
+  public int size() {
+    return nodes.size();
+  }
+
+  public String toString() {
+    return nodes.toString();
+  }
+
+  // Class methods ***************************************************
+
+  /**
+   * Hashes a string to a point of the ring: the first eight bytes of its
+   * MD5 digest, which every JVM computes the same way.
+   */
+  private static long hash(String key) {
+    byte[] digest;
+    try {
+      digest = MessageDigest.getInstance("MD5").digest(key.getBytes(StandardCharsets.UTF_8));
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e); // Every JVM has MD5
+    }
+
+    long hash = 0;
+    for (int i = 0; i < 8; i++)
+      hash = (hash << 8) | (digest[i] & 0xff);
+    return hash;
+  }
+}
+// End of HashRing class
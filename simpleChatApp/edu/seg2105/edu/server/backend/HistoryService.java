@@ -0,0 +1,295 @@
+package edu.seg2105.edu.server.backend;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+import edu.seg2105.edu.server.log.ServerLog;
+import edu.seg2105.edu.server.store.ChatHistory;
+import ocsf.common.ChatEvent;
+import ocsf.server.ConnectionToClient;
+
+/**
+ * This class replays the history of the server to a client: the last
+ * messages it can see, or everything it can see since a time. A client
+ * sees the messages of the rooms it is in and its own private messages.
+ * <p>
+ * Replays run on their own threads, never on the threads that handle
+ * messages, and read the history <code>CHUNK_SIZE</code> events at a time
+ * through its index, so a long history neither fills the heap nor holds up
+ * the chat. Each chunk goes to the client as one batch. A replay stops at
+ * the events recorded when it started; what is said afterwards reaches the
+ * client as usual.
+ */
+public class HistoryService {
+  // Class variables *************************************************
+
+  /**
+   * The number of events read from the history at a time.
+   */
+  final public static int CHUNK_SIZE = 64;
+
+  /**
+   * The number of messages replayed when no number is given.
+   */
+  final public static int DEFAULT_MESSAGES = 20;
+
+  /**
+   * The largest number of messages a client can ask for at once.
+   */
+  final public static int MAX_MESSAGES = 1000;
+
+  /**
+   * The largest number of events looked at to find the last messages a
+   * client can see, so a client that sees few of them does not make a
+   * replay read the whole history.
+   */
+  private static final int MAX_SCANNED = 64 * 1024;
+
+  /**
+   * The system property giving the number of messages replayed when a
+   * client logs in, <code>DEFAULT_MESSAGES</code> by default; 0 to replay none.
+   */
+  final public static String REPLAY_ON_LOGIN_PROPERTY = "chat.history.replayOnLogin";
+
+  /**
+   * The number of replays that can run at the same time.
+   */
+  private static final int REPLAY_THREADS = 2;
+
+  /**
+   * The format of the time of a replayed message.
+   */
+  private static final DateTimeFormatter TIME_FORMAT =
+      DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm").withZone(ZoneId.systemDefault());
+
+  /**
+   * The log of the server.
+   */
+  private static final ServerLog LOG = ServerLog.getDefault();
+
+  // Instance variables **********************************************
+
+  /**
+   * The history replayed.
+   */
+  private final ChatHistory history;
+
+  /**
+   * The rooms of the server, to know what a client can see.
+   */
+  private final ChatRooms rooms;
+
+  /**
+   * The threads running the replays.
+   */
+  private final ExecutorService replays = Executors.newFixedThreadPool(
+      REPLAY_THREADS, task -> {
+        Thread thread = new Thread(task, "history-replay");
+        thread.setDaemon(true);
+        return thread;
+      });
+
+  // Constructors ****************************************************
+
+  /**
+   * Constructs the replay service of a history.
+   *
+   * @param history The history.
+   * @param rooms   The rooms of the server.
+   */
+  public HistoryService(ChatHistory history, ChatRooms rooms) {
+    this.history = history;
+    this.rooms = rooms;
+  }
+
+  // Instance methods ************************************************
+
+  /**
+   * @return The number of messages to replay when a client logs in.
+   */
+  public int getReplayOnLogin() {
+    return Math.min(Math.max(0, Integer.getInteger(REPLAY_ON_LOGIN_PROPERTY, DEFAULT_MESSAGES)),
+        MAX_MESSAGES);
+  }
+
+  /**
+   * Sends, in the background, the last messages a client can see.
+   *
+   * @param client The connection of the client.
+   * @param count  The number of messages, at most
+   *               <code>MAX_MESSAGES</code>.
+   */
+  public void replayLast(ConnectionToClient client, int count) {
+    int wanted = Math.min(count, MAX_MESSAGES);
+    submit(client, () -> {
+      long end = history.getNextOffset();
+      replay(client, findLast(client, wanted, end), end);
+    });
+  }
+
+  /**
+   * Sends, in the background, every message a client can see since a
+   * time.
+   *
+   * @param client    The connection of the client.
+   * @param timestamp The time, in milliseconds since the epoch.
+   */
+  public void replaySince(ConnectionToClient client, long timestamp) {
+    submit(client, () -> {
+      long end = history.getNextOffset();
+      replay(client, history.offsetOf(timestamp), end);
+    });
+  }
+
+  /**
+   * Stops the replays. Those running end at their next chunk.
+   */
+  public void close() {
+    replays.shutdownNow();
+  }
+
+  /**
+   * Runs a replay, reporting to the client a history that cannot be read.
+   */
+  private void submit(ConnectionToClient client, Replay replay) {
+    try {
+      replays.execute(() -> {
+        try {
+          replay.run();
+        } catch (IOException e) {
+          LOG.error("ERROR - Could not read the chat history: {}", e);
+          send(client, "ERROR - The history could not be read.");
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      send(client, "ERROR - The history is not available.");
+    }
+  }
+
+  /**
+   * Walks the history back, a chunk at a time, until it has passed the
+   * given number of messages the client can see, or
+   * <code>MAX_SCANNED</code> events.
+   *
+   * @return The offset to replay from.
+   */
+  private long findLast(ConnectionToClient client, int count, long end)
+      throws IOException {
+    long first = Math.max(history.getFirstOffset(), end - MAX_SCANNED);
+    long start = end;
+    int found = 0;
+
+    while (found < count && start > first) {
+      long from = Math.max(first, start - CHUNK_SIZE);
+      List<ChatEvent> chunk = history.read(from, (int) (start - from));
+
+      int i = chunk.size();
+      while (i > 0 && found < count) {
+        if (isVisible(chunk.get(--i), client))
+          found++;
+      }
+      start = found < count ? from : from + i;
+    }
+    return start;
+  }
+
+  /**
+   * Sends the messages the client can see between two offsets, one chunk
+   * at a time, between a header and a footer.
+   */
+  private void replay(ConnectionToClient client, long from, long end)
+      throws IOException {
+    int sent = 0;
+
+    while (from < end && !Thread.currentThread().isInterrupted()) {
+      List<ChatEvent> chunk = history.read(from, (int) Math.min(CHUNK_SIZE, end - from));
+      if (chunk.isEmpty())
+        break;
+      from += chunk.size();
+
+      List<String> lines = new ArrayList<>(chunk.size() + 1);
+      for (ChatEvent event : chunk) {
+        if (isVisible(event, client))
+          lines.add(format(event, client));
+      }
+      if (lines.isEmpty())
+        continue;
+      if (sent == 0)
+        lines.add(0, "--- History ---");
+
+      sent += lines.size();
+      if (!send(client, lines))
+        return;
+    }
+    send(client, sent == 0 ? "No history to show." : "--- End of history ---");
+  }
+
+  /**
+   * Tells whether a client can see an event.
+   */
+  private boolean isVisible(ChatEvent event, ConnectionToClient client) {
+    switch (event.getKind()) {
+    case MESSAGE:
+      return rooms.getRooms(client).contains(event.getTarget());
+    case PRIVATE:
+      String loginId = client.getLoginId();
+      return loginId != null
+          && (loginId.equals(event.getSender()) || loginId.equals(event.getTarget()));
+    default:
+      return false;
+    }
+  }
+
+  /**
+   * Formats an event as the client saw it live, preceded by its time. Also
+   * used for the messages kept while the client was logged off.
+   */
+  static String format(ChatEvent event, ConnectionToClient client) {
+    String time = TIME_FORMAT.format(Instant.ofEpochMilli(event.getTimestamp()));
+
+    if (event.getKind() == ChatEvent.Kind.PRIVATE) {
+      if (event.getSender().equals(client.getLoginId()))
+        return time + " [private to " + event.getTarget() + "] " + event.getText();
+      return time + " [private] " + event.getSender() + ": " + event.getText();
+    }
+    if (ChatRooms.LOBBY.equals(event.getTarget()))
+      return time + " " + event.getSender() + ": " + event.getText();
+    return time + " (" + event.getTarget() + ") " + event.getSender() + ": " + event.getText();
+  }
+
+  /**
+   * Sends lines to a client as one batch.
+   *
+   * @return false if the client is gone or cannot keep up.
+   */
+  private boolean send(ConnectionToClient client, List<String> lines) {
+    try {
+      client.sendToClient(lines);
+      return true;
+    } catch (IOException e) {
+      return false;
+    }
+  }
+
+  private boolean send(ConnectionToClient client, String line) {
+    return send(client, Collections.singletonList(line));
+  }
+
+  // Inner classes ***************************************************
+
+  /**
+   * The body of a replay.
+   */
+  private interface Replay {
+    void run() throws IOException;
+  }
+}
+// End of HistoryService class
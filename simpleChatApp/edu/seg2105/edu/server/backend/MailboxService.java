@@ -0,0 +1,198 @@
+package edu.seg2105.edu.server.backend;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import edu.seg2105.edu.server.log.ServerLog;
+import edu.seg2105.edu.server.store.MailboxStore;
+import ocsf.common.ChatEvent;
+import ocsf.server.ConnectionToClient;
+
+/**
+ * This class delivers to a user who logs in the messages kept in its
+ * mailbox while it was logged off.
+ * <p>
+ * A mailbox is drained a batch at a time, at most
+ * <code>BATCH_MESSAGES</code> messages or <code>BATCH_BYTES</code> bytes,
+ * by a single background thread. Batches are paced: the next one is read
+ * <code>PACE_MILLIS</code> later, and only once the outbound queue of the
+ * client is back under <code>MAX_QUEUE_DEPTH</code>, so a user returning
+ * to tens of thousands of messages neither loads them into memory nor
+ * takes the connection from live traffic. Live messages are sent as usual
+ * during the drain and may arrive before older kept ones.
+ * <p>
+ * A batch leaves the mailbox only once it is sent, so a client that
+ * disconnects during the drain gets the rest, and possibly the last batch
+ * again, on its next login.
+ */
+public class MailboxService {
+  // Class variables *************************************************
+
+  /**
+   * The largest number of messages sent in one batch.
+   */
+  final public static int BATCH_MESSAGES = 100;
+
+  /**
+   * The largest number of bytes read from a mailbox for one batch.
+   */
+  final public static int BATCH_BYTES = 32 * 1024;
+
+  /**
+   * The pause between two batches, in milliseconds.
+   */
+  final public static long PACE_MILLIS = 10;
+
+  /**
+   * The depth of the outbound queue of the client above which the next
+   * batch waits.
+   */
+  final public static int MAX_QUEUE_DEPTH = 16;
+
+  /**
+   * The log of the server.
+   */
+  private static final ServerLog LOG = ServerLog.getDefault();
+
+  // Instance variables **********************************************
+
+  /**
+   * The mailboxes.
+   */
+  private final MailboxStore store;
+
+  /**
+   * The thread running the drains.
+   */
+  private final ScheduledExecutorService drains =
+      Executors.newSingleThreadScheduledExecutor(task -> {
+        Thread thread = new Thread(task, "mailbox-drain");
+        thread.setDaemon(true);
+        return thread;
+      });
+
+  // Constructors ****************************************************
+
+  /**
+   * Constructs the delivery service of a mailbox store.
+   *
+   * @param store The mailboxes.
+   */
+  public MailboxService(MailboxStore store) {
+    this.store = store;
+  }
+
+  // Instance methods ************************************************
+
+  /**
+   * @return The mailboxes.
+   */
+  public MailboxStore getStore() {
+    return store;
+  }
+
+  /**
+   * Starts delivering, in the background, the messages kept for a client
+   * that just logged in. The store must already know that it did.
+   *
+   * @param client The connection of the client.
+   * @return false if no message was kept for the client.
+   */
+  public boolean drain(ConnectionToClient client) {
+    String loginId = client.getLoginId();
+    // Deliveries queued up to now may still be on their way to the mailbox
+    long mark = store.getQueuedCount();
+    if (store.getPending(loginId) == 0 && store.isWritten(mark))
+      return false;
+
+    schedule(new Drain(client, loginId, mark), 0);
+    return true;
+  }
+
+  /**
+   * Stops the drains. The messages not yet sent stay in their mailboxes.
+   */
+  public void close() {
+    drains.shutdownNow();
+  }
+
+  private void schedule(Drain drain, long delay) {
+    try {
+      drains.schedule(drain, delay, TimeUnit.MILLISECONDS);
+    } catch (RejectedExecutionException e) {
+      // Closed: the rest is delivered on the next login
+    }
+  }
+
+  // Inner classes ***************************************************
+
+  /**
+   * One step of the drain of a mailbox: sends a batch and schedules the
+   * next step.
+   */
+  private final class Drain implements Runnable {
+    private final ConnectionToClient client;
+    private final String loginId;
+    private final long mark;
+    private int sent;
+
+    Drain(ConnectionToClient client, String loginId, long mark) {
+      this.client = client;
+      this.loginId = loginId;
+      this.mark = mark;
+    }
+
+    public void run() {
+      if (!loginId.equals(client.getLoginId()))
+        return;
+      if (client.getOutboundQueueDepth() > MAX_QUEUE_DEPTH) {
+        schedule(this, PACE_MILLIS);
+        return;
+      }
+
+      MailboxStore.Batch batch;
+      try {
+        batch = store.read(loginId, BATCH_MESSAGES, BATCH_BYTES);
+      } catch (IOException e) {
+        LOG.error("ERROR - Could not read the mailbox of {}: {}", loginId, e);
+        return;
+      }
+
+      try {
+        if (batch.isEmpty()) {
+          if (!store.isWritten(mark))
+            schedule(this, PACE_MILLIS);
+          else if (sent > 0)
+            client.sendToClient(Collections.singletonList("--- End of offline messages ---"));
+          return;
+        }
+
+        List<String> lines = new ArrayList<>(batch.getEvents().size() + 1);
+        if (sent == 0)
+          lines.add("--- Messages received while you were away ---");
+        for (ChatEvent event : batch.getEvents())
+          lines.add(HistoryService.format(event, client));
+
+        client.sendToClient(lines);
+      } catch (IOException e) {
+        return; // Gone or too slow: the rest waits for the next login
+      }
+
+      try {
+        store.commit(batch);
+      } catch (IOException e) {
+        LOG.error("ERROR - Could not update the mailbox of {}: {}", loginId, e);
+        return;
+      }
+      sent += batch.getEvents().size();
+      schedule(this, PACE_MILLIS);
+    }
+  }
+}
+// End of MailboxService class
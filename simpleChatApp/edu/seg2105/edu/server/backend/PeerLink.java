@@ -0,0 +1,121 @@
+package edu.seg2105.edu.server.backend;
+
+import java.io.IOException;
+
+import ocsf.client.AbstractClient;
+import ocsf.common.Codecs;
+
+/**
+ * This class is the link a federated server opens to another one. It is an
+ * ordinary OCSF client of the other server that introduces itself as a
+ * peer with the secret of the federation, is told the ID of the other node in return, then exchanges
+ * <code>FederatedMessage</code> and <code>RoomSubscription</code> objects in
+ * both directions. They travel with the serialization codec whatever the codec
+ * of the chat clients.
+ */
+class PeerLink extends AbstractClient {
+  // Instance variables **********************************************
+
+  /**
+   * The federation the link belongs to.
+   */
+  private final Federation federation;
+
+  /**
+   * Whether the other server knows the link is a peer, so relayed
+   * messages can go through it.
+   */
+  private volatile boolean ready;
+
+  /**
+   * The ID of the node at the other end, null until it introduced itself.
+   */
+  private volatile String peerId;
+
+  // Constructors ****************************************************
+
+  /**
+   * Constructs a link, not yet opened.
+   *
+   * @param host       The host of the other server.
+   * @param port       The port of the other server.
+   * @param federation The federation the link belongs to.
+   */
+  PeerLink(String host, int port, Federation federation) {
+    super(host, port);
+    this.federation = federation;
+    setCodec(Codecs.SERIALIZATION);
+  }
+
+  // Instance methods ************************************************
+
+  /**
+   * Opens the link and introduces this node to the other server.
+   *
+   * @throws IOException if the other server cannot be reached.
+   */
+  void open() throws IOException {
+    openConnection();
+    String secret = federation.getSecret();
+    sendToServer(Federation.HELLO + " " + federation.getNodeId()
+        + (secret == null ? "" : " " + secret));
+    ready = true;
+  }
+
+  /**
+   * @return true if relayed messages can go through the link.
+   */
+  boolean isReady() {
+    return ready && isConnected();
+  }
+
+  /**
+   * @return The ID of the node at the other end, null until it introduced
+   *         itself.
+   */
+  String getPeerId() {
+    return peerId;
+  }
+
+  /**
+   * Closes the link for good.
+   */
+  void close() {
+    ready = false;
+    try {
+      closeConnection();
+    } catch (IOException e) {
+    }
+  }
+
+  /**
+   * Hands relayed messages to the federation.
+   *
+   * @param msg The message from the other server.
+   */
+  protected void handleMessageFromServer(Object msg) {
+    if (msg instanceof FederatedMessage) {
+      federation.receive((FederatedMessage) msg, this);
+    } else if (msg instanceof RoomSubscription) {
+      federation.subscribed((RoomSubscription) msg);
+    } else if (msg.toString().startsWith(Federation.HELLO + " ")) {
+      peerId = msg.toString().substring(Federation.HELLO.length() + 1).trim();
+      federation.linked(peerId, this);
+    }
+  }
+
+  /**
+   * Called when the link fails; the federation opens it again later.
+   *
+   * @param exception The exception raised.
+   */
+  protected void connectionException(Exception exception) {
+    ready = false;
+    federation.linkLost(this);
+  }
+
+  public String toString() {
+    return getHost() + ":" + getPort();
+  }
+}
+// End of PeerLink class
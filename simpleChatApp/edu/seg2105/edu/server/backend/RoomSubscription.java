@@ -0,0 +1,76 @@
+package edu.seg2105.edu.server.backend;
+
+import java.io.Serializable;
+
+/**
+ * This class is the request of a sharded federation node to receive, or
+ * to stop receiving, the messages of a room from the node owning it. A node
+ * subscribes to the rooms its users are in, or were in when they logged
+ * off. Subscriptions are immutable and travel on a single link, never
+ * relayed.
+ */
+public final class RoomSubscription implements Serializable {
+  // Class variables *************************************************
+
+  private static final long serialVersionUID = 1L;
+
+  // Instance variables **********************************************
+
+  /**
+   * The ID of the subscribing node.
+   */
+  private final String node;
+
+  /**
+   * The room.
+   */
+  private final String room;
+
+  /**
+   * true to subscribe, false to unsubscribe.
+   */
+  private final boolean subscribe;
+
+  // Constructors ****************************************************
+
+  /**
+   * Constructs a subscription.
+   *
+   * @param node      The ID of the subscribing node.
+   * @param room      The room.
+   * @param subscribe true to subscribe, false to unsubscribe.
+   */
+  public RoomSubscription(String node, String room, boolean subscribe) {
+    this.node = node;
+    this.room = room;
+    this.subscribe = subscribe;
+  }
+
+  // Instance methods ************************************************
+
+  /**
+   * @return The ID of the subscribing node.
+   */
+  public String getNode() {
+    return node;
+  }
+
+  /**
+   * @return The room.
+   */
+  public String getRoom() {
+    return room;
+  }
+
+  /**
+   * @return true to subscribe, false to unsubscribe.
+   */
+  public boolean isSubscribe() {
+    return subscribe;
+  }
+
+  public String toString() {
+    return (subscribe ? "subscribe " : "unsubscribe ") + node + " to " + room;
+  }
+}
+// End of RoomSubscription class
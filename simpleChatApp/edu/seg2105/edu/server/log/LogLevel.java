@@ -0,0 +1,45 @@
+package edu.seg2105.edu.server.log;
+
+/**
+ * The levels of the messages of a <code>ServerLog</code>, from the most to
+ * the least important. A log set to a level writes the messages of that
+ * level and of the levels above it.
+ */
+public enum LogLevel {
+  /**
+   * Something failed and was given up on.
+   */
+  ERROR,
+
+  /**
+   * Something unexpected the server got over.
+   */
+  WARN,
+
+  /**
+   * What the server does, such as the messages it receives.
+   */
+  INFO,
+
+  /**
+   * Details for finding out what went wrong.
+   */
+  DEBUG,
+
+  /**
+   * Nothing is written.
+   */
+  OFF;
+
+  /**
+   * Finds a level by its name, in any case.
+   *
+   * @param name The name.
+   * @return The level.
+   * @throws IllegalArgumentException if no level has that name.
+   */
+  public static LogLevel parse(String name) {
+    return valueOf(name.trim().toUpperCase());
+  }
+}
+// End of LogLevel enum
@@ -0,0 +1,470 @@
+package edu.seg2105.edu.server.log;
+
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * This class writes the messages of the server from a thread of its own,
+ * so the threads handling clients never wait for the console.
+ * <p>
+ * A message is a template whose <code>{}</code> are replaced by up to three
+ * arguments. The threads logging put the template and the arguments in a
+ * ring of preallocated slots and go on; the writer takes them out in order,
+ * formats them into a single reused buffer and prints each batch at once.
+ * Nothing is formatted, and nothing allocated beyond boxing, for a message
+ * whose level is not written. When the ring is full, a message is dropped
+ * rather than making its thread wait, and counted.
+ * <p>
+ * The log is configured with system properties:
+ * <ul>
+ * <li><code>chat.log.level</code>, the <code>LogLevel</code> written and
+ * the levels above it, <code>info</code> by default;</li>
+ * <li><code>chat.log.sampling</code>, a list such as
+ * <code>info=10,debug=100</code> keeping one message in so many of the
+ * levels listed, none by default;</li>
+ * <li><code>chat.log.capacity</code>, the number of slots of the ring,
+ * rounded up to a power of 2, 8192 by default.</li>
+ * </ul>
+ */
+public class ServerLog {
+  // Class variables *************************************************
+
+  /**
+   * The system property giving the level written.
+   */
+  final public static String LEVEL_PROPERTY = "chat.log.level";
+
+  /**
+   * The system property giving the sampling of the levels.
+   */
+  final public static String SAMPLING_PROPERTY = "chat.log.sampling";
+
+  /**
+   * The system property giving the number of slots of the ring.
+   */
+  final public static String CAPACITY_PROPERTY = "chat.log.capacity";
+
+  /**
+   * The default number of slots of the ring.
+   */
+  final public static int DEFAULT_CAPACITY = 8192;
+
+  /**
+   * The longest time the writer sleeps before looking at the ring again,
+   * in nanoseconds.
+   */
+  private static final long PARK_NANOS = 100_000_000L;
+
+  /**
+   * The log of the server, created on first use.
+   */
+  private static ServerLog defaultLog;
+
+  // Instance variables **********************************************
+
+  /**
+   * The slots of the ring; the message numbered <code>n</code> goes into
+   * <code>slots[n &amp; mask]</code>.
+   */
+  private final Slot[] slots;
+
+  private final int mask;
+
+  /**
+   * The ordinal of the least important level written; -1 if none is.
+   */
+  private final int limit;
+
+  /**
+   * For each level, the number of messages of which one is kept; 1 keeps
+   * them all.
+   */
+  private final int[] sampling = new int[LogLevel.values().length];
+
+  /**
+   * The stream written to; null for whatever <code>System.out</code> is
+   * when a batch is written.
+   */
+  private final PrintStream out;
+
+  /**
+   * The number of the next message to be put in the ring.
+   */
+  private final AtomicLong claimed = new AtomicLong();
+
+  /**
+   * The number of the next message to be written; only the writer moves it.
+   */
+  private volatile long consumed;
+
+  /**
+   * True while the writer is sleeping on an empty ring.
+   */
+  private volatile boolean sleeping;
+
+  private volatile boolean closed;
+
+  private final LongAdder written = new LongAdder();
+  private final LongAdder dropped = new LongAdder();
+  private final LongAdder sampledOut = new LongAdder();
+
+  /**
+   * The buffer messages are formatted into.
+   */
+  private final StringBuilder line = new StringBuilder(256);
+
+  private final Thread writer;
+
+  // Constructors ****************************************************
+
+  /**
+   * Constructs a log and starts its writer.
+   *
+   * @param capacity The number of slots of the ring, rounded up to a power
+   *                 of 2.
+   * @param level    The level written and the levels above it.
+   * @param out      The stream written to, or null for
+   *                 <code>System.out</code>.
+   */
+  public ServerLog(int capacity, LogLevel level, PrintStream out) {
+    if (capacity < 1)
+      throw new IllegalArgumentException("capacity must be at least 1");
+
+    int size = Integer.highestOneBit(capacity);
+    if (size < capacity)
+      size <<= 1;
+    slots = new Slot[size];
+    for (int i = 0; i < size; i++)
+      slots[i] = new Slot(i - size);
+    mask = size - 1;
+    limit = level == LogLevel.OFF ? -1 : level.ordinal();
+    Arrays.fill(sampling, 1);
+    this.out = out;
+
+    writer = new Thread(this::drain, "chat-log");
+    writer.setDaemon(true);
+    writer.start();
+  }
+
+  // Class methods ***************************************************
+
+  /**
+   * Returns the log of the server, configured by the system properties the
+   * first time. Its messages are written before the JVM exits.
+   *
+   * @return The log.
+   * @throws IllegalArgumentException if a property is invalid.
+   */
+  public static synchronized ServerLog getDefault() {
+    if (defaultLog == null) {
+      String level = System.getProperty(LEVEL_PROPERTY);
+      ServerLog log = new ServerLog(
+          Integer.getInteger(CAPACITY_PROPERTY, DEFAULT_CAPACITY),
+          level == null ? LogLevel.INFO : LogLevel.parse(level), null);
+      log.setSampling(System.getProperty(SAMPLING_PROPERTY));
+      Runtime.getRuntime().addShutdownHook(new Thread(log::close, "chat-log-flush"));
+      defaultLog = log;
+    }
+    return defaultLog;
+  }
+
+  // Instance methods ************************************************
+
+  /**
+   * Sets the sampling of the levels.
+   *
+   * @param spec A list such as <code>info=10,debug=100</code>, or null.
+   * @throws IllegalArgumentException if the list is invalid.
+   */
+  private void setSampling(String spec) {
+    if (spec == null || spec.trim().isEmpty())
+      return;
+
+    for (String entry : spec.split(",")) {
+      int equals = entry.indexOf('=');
+      if (equals < 0)
+        throw new IllegalArgumentException("Invalid sampling: " + entry.trim());
+      int every = Integer.parseInt(entry.substring(equals + 1).trim());
+      if (every < 1)
+        throw new IllegalArgumentException("Invalid sampling: " + entry.trim());
+      sampling[LogLevel.parse(entry.substring(0, equals)).ordinal()] = every;
+    }
+  }
+
+  /**
+   * Tells whether messages of a level are written, for callers that would
+   * have work to do to find the arguments.
+   *
+   * @param level The level.
+   * @return True if they are.
+   */
+  public boolean isEnabled(LogLevel level) {
+    return level.ordinal() <= limit;
+  }
+
+  public void error(String template) {
+    publish(LogLevel.ERROR, template, 0, null, null, null);
+  }
+
+  public void error(String template, Object a) {
+    publish(LogLevel.ERROR, template, 1, a, null, null);
+  }
+
+  public void error(String template, Object a, Object b) {
+    publish(LogLevel.ERROR, template, 2, a, b, null);
+  }
+
+  public void error(String template, Object a, Object b, Object c) {
+    publish(LogLevel.ERROR, template, 3, a, b, c);
+  }
+
+  public void warn(String template) {
+    publish(LogLevel.WARN, template, 0, null, null, null);
+  }
+
+  public void warn(String template, Object a) {
+    publish(LogLevel.WARN, template, 1, a, null, null);
+  }
+
+  public void warn(String template, Object a, Object b) {
+    publish(LogLevel.WARN, template, 2, a, b, null);
+  }
+
+  public void warn(String template, Object a, Object b, Object c) {
+    publish(LogLevel.WARN, template, 3, a, b, c);
+  }
+
+  public void info(String template) {
+    publish(LogLevel.INFO, template, 0, null, null, null);
+  }
+
+  public void info(String template, Object a) {
+    publish(LogLevel.INFO, template, 1, a, null, null);
+  }
+
+  public void info(String template, Object a, Object b) {
+    publish(LogLevel.INFO, template, 2, a, b, null);
+  }
+
+  public void info(String template, Object a, Object b, Object c) {
+    publish(LogLevel.INFO, template, 3, a, b, c);
+  }
+
+  public void debug(String template) {
+    publish(LogLevel.DEBUG, template, 0, null, null, null);
+  }
+
+  public void debug(String template, Object a) {
+    publish(LogLevel.DEBUG, template, 1, a, null, null);
+  }
+
+  public void debug(String template, Object a, Object b) {
+    publish(LogLevel.DEBUG, template, 2, a, b, null);
+  }
+
+  public void debug(String template, Object a, Object b, Object c) {
+    publish(LogLevel.DEBUG, template, 3, a, b, c);
+  }
+
+  /**
+   * Waits until the messages logged so far are written.
+   *
+   * @param millis The longest time to wait.
+   * @return True if they were written in time.
+   */
+  public boolean flush(long millis) {
+    long target = claimed.get();
+    long deadline = System.nanoTime() + millis * 1_000_000L;
+    while (consumed < target) {
+      if (!writer.isAlive() || System.nanoTime() - deadline >= 0)
+        return false;
+      LockSupport.unpark(writer);
+      LockSupport.parkNanos(1_000_000L);
+    }
+    return true;
+  }
+
+  /**
+   * Writes the messages logged so far and stops the writer. Later messages
+   * are dropped.
+   */
+  public void close() {
+    closed = true;
+    LockSupport.unpark(writer);
+    try {
+      writer.join(5000);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * @return The number of messages written.
+   */
+  public long getWritten() {
+    return written.sum();
+  }
+
+  /**
+   * @return The number of messages dropped because the ring was full or
+   *         the log closed.
+   */
+  public long getDropped() {
+    return dropped.sum();
+  }
+
+  /**
+   * @return The number of messages left out by the sampling.
+   */
+  public long getSampledOut() {
+    return sampledOut.sum();
+  }
+
+  /**
+   * Returns the counters of the log in a line of text, for a console.
+   *
+   * @return The description.
+   */
+  public String toString() {
+    return "Log: " + getWritten() + " written, " + getDropped() + " dropped, "
+        + getSampledOut() + " sampled out";
+  }
+
+  /**
+   * Puts a message in the ring, unless its level is not written, the
+   * sampling leaves it out or the ring is full.
+   */
+  private void publish(LogLevel level, String template, int argc, Object a, Object b, Object c) {
+    int ordinal = level.ordinal();
+    if (ordinal > limit)
+      return;
+    int every = sampling[ordinal];
+    if (every > 1 && ThreadLocalRandom.current().nextInt(every) != 0) {
+      sampledOut.increment();
+      return;
+    }
+    if (closed) {
+      dropped.increment();
+      return;
+    }
+
+    long sequence;
+    do {
+      sequence = claimed.get();
+      if (sequence - consumed >= slots.length) {
+        dropped.increment();
+        return;
+      }
+    } while (!claimed.compareAndSet(sequence, sequence + 1));
+
+    Slot slot = slots[(int) sequence & mask];
+    slot.template = template;
+    slot.argc = argc;
+    slot.a = a;
+    slot.b = b;
+    slot.c = c;
+    slot.sequence = sequence;
+
+    if (sleeping)
+      LockSupport.unpark(writer);
+  }
+
+  /**
+   * The loop of the writer: formats the messages in the ring as they come
+   * and prints them by batches, until the log is closed and the ring empty.
+   */
+  private void drain() {
+    long next = 0;
+    while (true) {
+      Slot slot = slots[(int) next & mask];
+      if (slot.sequence != next) {
+        if (line.length() > 0) {
+          print();
+          continue;
+        }
+        if (closed && next == claimed.get())
+          return;
+        sleeping = true;
+        if (slot.sequence != next && !closed)
+          LockSupport.parkNanos(this, PARK_NANOS);
+        sleeping = false;
+        continue;
+      }
+
+      format(slot);
+      slot.template = null;
+      slot.a = slot.b = slot.c = null;
+      consumed = ++next;
+      written.increment();
+      if (line.length() >= 16384)
+        print();
+    }
+  }
+
+  /**
+   * Appends the message of a slot and a line separator to the buffer.
+   */
+  private void format(Slot slot) {
+    String template = slot.template;
+    int argc = slot.argc, used = 0, from = 0, at;
+    while (used < argc && (at = template.indexOf("{}", from)) >= 0) {
+      line.append(template, from, at);
+      appendArgument(used == 0 ? slot.a : used == 1 ? slot.b : slot.c);
+      used++;
+      from = at + 2;
+    }
+    line.append(template, from, template.length()).append(System.lineSeparator());
+  }
+
+  /**
+   * Appends an argument of a message, or a placeholder if its
+   * <code>toString</code> throws, so that one bad argument neither stops
+   * the writer nor loses the rest of the message.
+   */
+  private void appendArgument(Object argument) {
+    String text;
+    try {
+      text = String.valueOf(argument);
+    } catch (RuntimeException e) {
+      text = "[" + argument.getClass().getName() + ".toString() threw "
+          + e.getClass().getName() + "]";
+    }
+    line.append(text);
+  }
+
+  /**
+   * Prints the buffer and empties it.
+   */
+  private void print() {
+    PrintStream stream = out == null ? System.out : out;
+    stream.print(line);
+    stream.flush();
+    line.setLength(0);
+    if (line.capacity() > 65536)
+      line.trimToSize();
+  }
+
+  // Inner classes ***************************************************
+
+  /**
+   * A slot of the ring. Its fields are written by the thread that claimed
+   * it, then published to the writer by the volatile write of its number.
+   */
+  private static final class Slot {
+    volatile long sequence;
+    String template;
+    int argc;
+    Object a;
+    Object b;
+    Object c;
+
+    Slot(long sequence) {
+      this.sequence = sequence;
+    }
+  }
+}
+// End of ServerLog class
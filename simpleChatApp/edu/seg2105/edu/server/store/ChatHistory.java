@@ -0,0 +1,191 @@
+package edu.seg2105.edu.server.store;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import ocsf.common.BinaryChatCodec;
+import ocsf.common.ChatEvent;
+import ocsf.common.MessageCodec;
+
+/**
+ * This class keeps the history of a chat server: every chat event is
+ * appended to a <code>MessageLog</code>, encoded as the binary chat codec
+ * puts it in a frame, so it survives a restart of the server.
+ * <p>
+ * The history is configured with system properties:
+ * <ul>
+ * <li><code>chat.history.dir</code>, the directory of the log,
+ * <code>chat-history</code> by default; empty to keep no history;</li>
+ * <li><code>chat.history.fsync</code>, the <code>FsyncPolicy</code>,
+ * <code>periodic</code> by default;</li>
+ * <li><code>chat.history.fsyncMillis</code>, the interval of the periodic
+ * policy, 1000 by default;</li>
+ * <li><code>chat.history.segmentBytes</code>, the size of a segment file,
+ * 64 MB by default.</li>
+ * </ul>
+ */
+public class ChatHistory implements Closeable {
+  // Class variables *************************************************
+
+  /**
+   * The system property giving the directory of the log.
+   */
+  final public static String DIRECTORY_PROPERTY = "chat.history.dir";
+
+  /**
+   * The system property giving the fsync policy.
+   */
+  final public static String FSYNC_PROPERTY = "chat.history.fsync";
+
+  /**
+   * The system property giving the interval of the periodic policy, in
+   * milliseconds.
+   */
+  final public static String FSYNC_INTERVAL_PROPERTY = "chat.history.fsyncMillis";
+
+  /**
+   * The system property giving the size of a segment, in bytes.
+   */
+  final public static String SEGMENT_PROPERTY = "chat.history.segmentBytes";
+
+  /**
+   * The codec records are encoded with.
+   */
+  private static final MessageCodec CODEC = new BinaryChatCodec();
+
+  // Instance variables **********************************************
+
+  /**
+   * The log holding the events.
+   */
+  private final MessageLog log;
+
+  // Constructors ****************************************************
+
+  /**
+   * Constructs a history kept in a log.
+   *
+   * @param log The log of the history.
+   */
+  public ChatHistory(MessageLog log) {
+    this.log = log;
+  }
+
+  // Class methods ***************************************************
+
+  /**
+   * Opens the history configured by the system properties.
+   *
+   * @return The history, or null if the properties ask for none.
+   * @throws IOException              if the log cannot be opened.
+   * @throws IllegalArgumentException if a property is invalid.
+   */
+  public static ChatHistory fromSystemProperties() throws IOException {
+    String directory = System.getProperty(DIRECTORY_PROPERTY, "chat-history");
+    if (directory.trim().isEmpty())
+      return null;
+
+    return new ChatHistory(new MessageLog(new File(directory.trim()),
+        FsyncPolicy.parse(System.getProperty(FSYNC_PROPERTY), FsyncPolicy.PERIODIC),
+        Long.getLong(FSYNC_INTERVAL_PROPERTY, MessageLog.DEFAULT_FSYNC_INTERVAL),
+        Integer.getInteger(SEGMENT_PROPERTY, MessageLog.DEFAULT_SEGMENT_BYTES)));
+  }
+
+  // Instance methods ************************************************
+
+  /**
+   * Appends an event to the history without waiting for the disk.
+   *
+   * @param event The event.
+   * @return A future completed with the offset of the event once it is
+   *         written, or with the reason it could not be.
+   */
+  public CompletableFuture<Long> record(ChatEvent event) {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+    try {
+      CODEC.encode(event, bytes);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e); // Cannot happen with a byte array
+    }
+    return log.append(event.getTimestamp(), bytes.toByteArray());
+  }
+
+  /**
+   * Reads events back from the history.
+   *
+   * @param fromOffset The offset of the first event to read.
+   * @param max        The largest number of events to read.
+   * @return The events, oldest first.
+   * @throws IOException if a record is not a chat event.
+   */
+  public List<ChatEvent> read(long fromOffset, int max) throws IOException {
+    List<ChatEvent> events = new ArrayList<>();
+    for (LogRecord record : log.read(fromOffset, max))
+      events.add(decode(record));
+    return events;
+  }
+
+  /**
+   * Finds the first event that happened at or after a time.
+   *
+   * @param timestamp The time, in milliseconds since the epoch.
+   * @return The offset of the event, or the next offset if every event is
+   *         older.
+   */
+  public long offsetOf(long timestamp) {
+    return log.offsetOf(timestamp);
+  }
+
+  /**
+   * @return The offset of the oldest event.
+   */
+  public long getFirstOffset() {
+    return log.getFirstOffset();
+  }
+
+  /**
+   * @return The offset the next event recorded will have.
+   */
+  public long getNextOffset() {
+    return log.getNextOffset();
+  }
+
+  /**
+   * @return The log of the history.
+   */
+  public MessageLog getLog() {
+    return log;
+  }
+
+  /**
+   * Writes the events not yet written and closes the log.
+   *
+   * @throws IOException if the log cannot be closed.
+   */
+  public void close() throws IOException {
+    log.close();
+  }
+
+  /**
+   * Decodes the event of a record.
+   */
+  private static ChatEvent decode(LogRecord record) throws IOException {
+    byte[] payload = record.getPayload();
+    Object event;
+    try {
+      event = CODEC.decode(payload, 0, payload.length);
+    } catch (ClassNotFoundException e) {
+      throw new IOException("record " + record.getOffset() + " is not a chat event", e);
+    }
+    if (!(event instanceof ChatEvent))
+      throw new IOException("record " + record.getOffset() + " is not a chat event");
+    return (ChatEvent) event;
+  }
+}
+// End of ChatHistory class
@@ -0,0 +1,86 @@
+package edu.seg2105.edu.server.store;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * This class keeps a store directory for a single server, so that two
+ * servers started from the same directory, such as federated nodes on one
+ * machine, cannot write the same files. The lock is a lock on a file of the
+ * directory, released when the store closes or the process ends.
+ */
+final class DirectoryLock {
+  // Class variables *************************************************
+
+  /**
+   * The name of the locked file.
+   */
+  private static final String LOCK_FILE = ".lock";
+
+  // Instance variables **********************************************
+
+  /**
+   * The channel of the locked file.
+   */
+  private final FileChannel channel;
+
+  /**
+   * The lock held.
+   */
+  private final FileLock lock;
+
+  // Constructors ****************************************************
+
+  private DirectoryLock(FileChannel channel, FileLock lock) {
+    this.channel = channel;
+    this.lock = lock;
+  }
+
+  // Class methods ***************************************************
+
+  /**
+   * Locks a directory.
+   *
+   * @param directory The directory, which must exist.
+   * @return The lock.
+   * @throws IOException if the directory is locked by another store.
+   */
+  static DirectoryLock acquire(File directory) throws IOException {
+    FileChannel channel = FileChannel.open(new File(directory, LOCK_FILE).toPath(),
+        StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+    FileLock lock;
+    try {
+      lock = channel.tryLock();
+    } catch (OverlappingFileLockException e) {
+      lock = null; // Locked by this process
+    } catch (IOException e) {
+      channel.close();
+      throw e;
+    }
+
+    if (lock == null) {
+      channel.close();
+      throw new IOException(directory + " is used by another server");
+    }
+    return new DirectoryLock(channel, lock);
+  }
+
+  // Instance methods ************************************************
+
+  /**
+   * Releases the directory.
+   */
+  void release() {
+    try {
+      lock.release();
+      channel.close();
+    } catch (IOException e) {
+      // Released by the end of the process anyway
+    }
+  }
+}
+// End of DirectoryLock class
@@ -0,0 +1,44 @@
+package edu.seg2105.edu.server.store;
+
+/**
+ * This enumeration lists when the records appended to a
+ * <code>MessageLog</code> are forced from the page cache to the disk. A
+ * record is visible to readers as soon as it is written to its mapped
+ * segment; the policy only decides how much a crash of the machine, not of
+ * the server, can lose.
+ */
+public enum FsyncPolicy {
+  /**
+   * Every record is forced before the next one is written. Nothing
+   * acknowledged is ever lost, but every message costs a disk flush.
+   */
+  PER_MESSAGE,
+
+  /**
+   * The records written together, everything queued while the previous
+   * batch was being forced, are forced once. Nothing acknowledged is lost
+   * and the cost of a flush is shared by the whole batch.
+   */
+  GROUPED,
+
+  /**
+   * Records are forced at most once per interval. At most one interval of
+   * records can be lost, and appending never waits for the disk.
+   */
+  PERIODIC;
+
+  /**
+   * Returns the policy with the given name, ignoring case.
+   *
+   * @param name The name of the policy, or null.
+   * @param defaultPolicy The policy returned if the name is null or empty.
+   * @return The policy.
+   * @throws IllegalArgumentException if the name is not a policy.
+   */
+  public static FsyncPolicy parse(String name, FsyncPolicy defaultPolicy) {
+    if (name == null || name.trim().isEmpty())
+      return defaultPolicy;
+    return valueOf(name.trim().toUpperCase());
+  }
+}
+// End of FsyncPolicy enum
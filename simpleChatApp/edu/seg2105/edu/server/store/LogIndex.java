@@ -0,0 +1,144 @@
+package edu.seg2105.edu.server.store;
+
+import java.util.Arrays;
+
+/**
+ * This class is the sparse index of a <code>LogSegment</code>: the
+ * offset, timestamp and file position of one record every
+ * <code>INTERVAL_BYTES</code> of the segment. Finding a record is a binary
+ * search of the index followed by a walk of at most that many bytes, so the
+ * index of a full segment holds a few thousand entries instead of one per
+ * message.
+ * <p>
+ * Timestamps are expected to grow with offsets, as they do when records are
+ * stamped when they are appended. Clocks going back only make a search by
+ * time start a little late.
+ * <p>
+ * Only the writer of the segment adds entries. Readers see every entry up
+ * to the size published after each addition.
+ */
+final class LogIndex {
+  // Class variables *************************************************
+
+  /**
+   * The number of bytes of records between two entries.
+   */
+  static final int INTERVAL_BYTES = 4096;
+
+  // Instance variables **********************************************
+
+  /**
+   * The offsets of the indexed records.
+   */
+  private long[] offsets = new long[16];
+
+  /**
+   * The timestamps of the indexed records.
+   */
+  private long[] timestamps = new long[16];
+
+  /**
+   * The positions of the indexed records in the segment.
+   */
+  private int[] positions = new int[16];
+
+  /**
+   * The number of entries. Written after the arrays, so a reader that
+   * reads it first sees arrays holding at least that many entries.
+   */
+  private volatile int size;
+
+  // Instance methods ************************************************
+
+  /**
+   * Indexes a record just written, if it is far enough from the last
+   * indexed one.
+   *
+   * @param offset    The offset of the record.
+   * @param timestamp The timestamp of the record.
+   * @param position  The position of the record in the segment.
+   */
+  void add(long offset, long timestamp, int position) {
+    int count = size;
+    if (count > 0 && position - positions[count - 1] < INTERVAL_BYTES)
+      return;
+
+    if (count == offsets.length) {
+      offsets = Arrays.copyOf(offsets, count * 2);
+      timestamps = Arrays.copyOf(timestamps, count * 2);
+      positions = Arrays.copyOf(positions, count * 2);
+    }
+    offsets[count] = offset;
+    timestamps[count] = timestamp;
+    positions[count] = position;
+    size = count + 1;
+  }
+
+  /**
+   * @return The timestamp of the first record of the segment, or
+   *         <code>Long.MAX_VALUE</code> if it is empty.
+   */
+  long firstTimestamp() {
+    return size == 0 ? Long.MAX_VALUE : timestamps[0];
+  }
+
+  /**
+   * Finds the last entry at or before an offset.
+   *
+   * @param offset The offset looked for.
+   * @return The entry, or -1 if the offset is before the first one.
+   */
+  int floorOffset(long offset) {
+    int count = size;
+    long[] keys = offsets;
+    int low = 0, high = count - 1;
+
+    while (low <= high) {
+      int middle = (low + high) >>> 1;
+      if (keys[middle] <= offset)
+        low = middle + 1;
+      else
+        high = middle - 1;
+    }
+    return high;
+  }
+
+  /**
+   * Finds the last entry older than a timestamp, where a walk towards the
+   * first record at or after that time can start.
+   *
+   * @param timestamp The time looked for.
+   * @return The entry, or -1 if no record is older.
+   */
+  int floorTimestamp(long timestamp) {
+    int count = size;
+    long[] keys = timestamps;
+    int low = 0, high = count - 1;
+
+    while (low <= high) {
+      int middle = (low + high) >>> 1;
+      if (keys[middle] < timestamp)
+        low = middle + 1;
+      else
+        high = middle - 1;
+    }
+    return high;
+  }
+
+  /**
+   * @param entry An entry returned by a search.
+   * @return The offset of its record.
+   */
+  long offsetAt(int entry) {
+    return offsets[entry];
+  }
+
+  /**
+   * @param entry An entry returned by a search.
+   * @return The position of its record in the segment.
+   */
+  int positionAt(int entry) {
+    return positions[entry];
+  }
+}
+// End of LogIndex class
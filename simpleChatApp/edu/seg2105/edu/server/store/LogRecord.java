@@ -0,0 +1,58 @@
+package edu.seg2105.edu.server.store;
+
+/**
+ * This class is one record read back from a <code>MessageLog</code>: its
+ * offset, when it was appended and its bytes. Records are immutable.
+ */
+public final class LogRecord {
+  // Instance variables **********************************************
+
+  /**
+   * The position of the record in the log, counted in records from the
+   * first one ever appended.
+   */
+  private final long offset;
+
+  /**
+   * When the record was appended, in milliseconds since the epoch.
+   */
+  private final long timestamp;
+
+  /**
+   * The bytes of the record.
+   */
+  private final byte[] payload;
+
+  // Constructors ****************************************************
+
+  LogRecord(long offset, long timestamp, byte[] payload) {
+    this.offset = offset;
+    this.timestamp = timestamp;
+    this.payload = payload;
+  }
+
+  // Instance methods ************************************************
+
+  /**
+   * @return The offset of the record.
+   */
+  public long getOffset() {
+    return offset;
+  }
+
+  /**
+   * @return When the record was appended, in milliseconds since the epoch.
+   */
+  public long getTimestamp() {
+    return timestamp;
+  }
+
+  /**
+   * @return The bytes of the record; the array is shared and must not be
+   *         modified.
+   */
+  public byte[] getPayload() {
+    return payload;
+  }
+}
+// End of LogRecord class
@@ -0,0 +1,347 @@
+package edu.seg2105.edu.server.store;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * This class is one file of a <code>MessageLog</code>. The file is mapped
+ * in memory at its full size when it is opened, so appending a record is a
+ * copy into the page cache with no system call. Records are laid out one
+ * after the other:
+ * <ul>
+ * <li>the length of the payload, four bytes, never zero;</li>
+ * <li>a CRC-32 of the timestamp and the payload, four bytes;</li>
+ * <li>the timestamp, eight bytes;</li>
+ * <li>the payload.</li>
+ * </ul>
+ * The unused end of the file is zeroes, so the first zero length ends the
+ * records. The file is named after the offset of its first record.
+ * <p>
+ * A sparse <code>LogIndex</code>, rebuilt when the segment is opened, finds
+ * records by offset or by time without walking the whole file.
+ * <p>
+ * Only the writer of the log appends to a segment. Readers see the records
+ * up to the end published after each append.
+ */
+final class LogSegment {
+  // Class variables *************************************************
+
+  /**
+   * The length of the header of every record, in bytes.
+   */
+  static final int HEADER_LENGTH = 16;
+
+  /**
+   * The extension of segment files.
+   */
+  static final String SUFFIX = ".log";
+
+  // Instance variables **********************************************
+
+  /**
+   * The file of the segment.
+   */
+  private final File file;
+
+  /**
+   * The offset of the first record of the segment.
+   */
+  private final long baseOffset;
+
+  /**
+   * The channel the file was mapped with, kept open to close it.
+   */
+  private final FileChannel channel;
+
+  /**
+   * The whole file, mapped for reading and writing.
+   */
+  private final MappedByteBuffer map;
+
+  /**
+   * The sparse index of the records.
+   */
+  private final LogIndex index = new LogIndex();
+
+  /**
+   * The position after the last complete record.
+   */
+  private volatile int end;
+
+  /**
+   * The offset the next record appended will have.
+   */
+  private volatile long nextOffset;
+
+  // Constructors ****************************************************
+
+  private LogSegment(File file, long baseOffset, FileChannel channel,
+      MappedByteBuffer map) {
+    this.file = file;
+    this.baseOffset = baseOffset;
+    this.channel = channel;
+    this.map = map;
+    this.nextOffset = baseOffset;
+  }
+
+  // Class methods ***************************************************
+
+  /**
+   * Opens the segment starting at an offset, creating it if it does not
+   * exist, and finds the end of its records. A record cut by a crash, and
+   * anything after it, is erased.
+   *
+   * @param directory  The directory of the log.
+   * @param baseOffset The offset of the first record of the segment.
+   * @param capacity   The size of a new segment file, in bytes.
+   * @return The segment.
+   * @throws IOException if the file cannot be opened or mapped.
+   */
+  static LogSegment open(File directory, long baseOffset, int capacity)
+      throws IOException {
+    File file = new File(directory, fileName(baseOffset));
+    FileChannel channel = FileChannel.open(file.toPath(),
+        StandardOpenOption.CREATE, StandardOpenOption.READ,
+        StandardOpenOption.WRITE);
+
+    try {
+      long size = channel.size() > 0 ? channel.size() : capacity;
+      if (size > Integer.MAX_VALUE)
+        throw new IOException(file + " is too large to be a segment");
+
+      LogSegment segment = new LogSegment(file, baseOffset, channel,
+          channel.map(FileChannel.MapMode.READ_WRITE, 0, size));
+      segment.recover();
+      return segment;
+    } catch (IOException | RuntimeException e) {
+      channel.close();
+      throw e;
+    }
+  }
+
+  /**
+   * @param baseOffset The offset of the first record of a segment.
+   * @return The name of the file of the segment.
+   */
+  static String fileName(long baseOffset) {
+    return String.format("%020d%s", baseOffset, SUFFIX);
+  }
+
+  /**
+   * @param name The name of a file of the log directory.
+   * @return The offset of the first record of the segment, or -1 if the
+   *         file is not a segment.
+   */
+  static long parseFileName(String name) {
+    if (!name.endsWith(SUFFIX))
+      return -1;
+    try {
+      return Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+
+  // Instance methods ************************************************
+
+  /**
+   * @return The offset of the first record of the segment.
+   */
+  long getBaseOffset() {
+    return baseOffset;
+  }
+
+  /**
+   * @return The offset the next record appended will have.
+   */
+  long getNextOffset() {
+    return nextOffset;
+  }
+
+  /**
+   * Appends a record if it fits.
+   *
+   * @param timestamp When the record was appended.
+   * @param payload   The bytes of the record, at least one.
+   * @return false if the segment is too full for the record.
+   */
+  boolean append(long timestamp, byte[] payload) {
+    int position = end;
+    if (HEADER_LENGTH + payload.length > map.capacity() - position)
+      return false;
+
+    ByteBuffer record = map.duplicate();
+    record.position(position + 8);
+    record.putLong(timestamp);
+    record.put(payload);
+
+    // The length goes last: until then the record reads as the end
+    record.putInt(position + 4, checksum(timestamp, payload, 0, payload.length));
+    record.putInt(position, payload.length);
+
+    end = record.position();
+    index.add(nextOffset, timestamp, position);
+    nextOffset++;
+    return true;
+  }
+
+  /**
+   * Reads records of the segment.
+   *
+   * @param fromOffset The offset of the first record to read.
+   * @param max        The largest number of records to read.
+   * @param into       The list the records are added to.
+   * @return The number of records read.
+   */
+  int read(long fromOffset, int max, List<LogRecord> into) {
+    ByteBuffer records = map.duplicate();
+    records.limit(end);
+    int read = 0;
+
+    long offset = seek(records, index.floorOffset(fromOffset));
+    for (; read < max && records.hasRemaining(); offset++) {
+      int length = records.getInt();
+      records.getInt(); // checksum, verified when the segment was opened
+      long timestamp = records.getLong();
+
+      if (offset < fromOffset) {
+        records.position(records.position() + length);
+        continue;
+      }
+      byte[] payload = new byte[length];
+      records.get(payload);
+      into.add(new LogRecord(offset, timestamp, payload));
+      read++;
+    }
+    return read;
+  }
+
+  /**
+   * @return The timestamp of the first record, or
+   *         <code>Long.MAX_VALUE</code> if the segment is empty.
+   */
+  long getFirstTimestamp() {
+    return index.firstTimestamp();
+  }
+
+  /**
+   * Finds the first record written at or after a time.
+   *
+   * @param timestamp The time looked for, in milliseconds since the epoch.
+   * @return The offset of the record, or the next offset if every record
+   *         is older.
+   */
+  long offsetOf(long timestamp) {
+    ByteBuffer records = map.duplicate();
+    records.limit(end);
+
+    long offset = seek(records, index.floorTimestamp(timestamp));
+    for (; records.hasRemaining(); offset++) {
+      int length = records.getInt();
+      records.getInt(); // checksum
+      if (records.getLong() >= timestamp)
+        return offset;
+      records.position(records.position() + length);
+    }
+    return offset;
+  }
+
+  /**
+   * Forces the records written so far to the disk.
+   *
+   * @throws java.io.UncheckedIOException if the disk fails.
+   */
+  void force() {
+    map.force();
+  }
+
+  /**
+   * Forces the segment to the disk and closes its file. The mapping itself
+   * is released when the segment is garbage collected.
+   *
+   * @throws IOException if the file cannot be closed.
+   */
+  void close() throws IOException {
+    try {
+      force();
+    } finally {
+      channel.close();
+    }
+  }
+
+  public String toString() {
+    return file.getName();
+  }
+
+  /**
+   * Moves a view of the records to an entry of the index, or to the first
+   * record if there is none. An entry added after the view was limited is
+   * passed over for an earlier one.
+   *
+   * @return The offset of the record the view is moved to.
+   */
+  private long seek(ByteBuffer records, int entry) {
+    while (entry >= 0 && index.positionAt(entry) > records.limit())
+      entry--;
+    if (entry < 0)
+      return baseOffset;
+
+    records.position(index.positionAt(entry));
+    return index.offsetAt(entry);
+  }
+
+  /**
+   * Walks the records to find the end of the last complete one, then
+   * erases whatever follows it, so that a record cut by a crash is never
+   * read again once new records are written over its start.
+   */
+  private void recover() {
+    ByteBuffer records = map.duplicate();
+    long count = 0;
+
+    while (records.remaining() >= HEADER_LENGTH) {
+      int position = records.position();
+      int length = records.getInt();
+      int checksum = records.getInt();
+      long timestamp = records.getLong();
+
+      if (length <= 0 || length > records.remaining())
+        break;
+      byte[] payload = new byte[length];
+      records.get(payload);
+      if (checksum(timestamp, payload, 0, length) != checksum) {
+        records.position(position);
+        break;
+      }
+      index.add(baseOffset + count, timestamp, position);
+      count++;
+      end = records.position();
+    }
+    nextOffset = baseOffset + count;
+
+    int last = map.capacity();
+    while (last > end && map.get(last - 1) == 0)
+      last--;
+    for (int i = end; i < last; i++)
+      map.put(i, (byte) 0);
+  }
+
+  /**
+   * Computes the checksum of a record.
+   */
+  private static int checksum(long timestamp, byte[] payload, int offset,
+      int length) {
+    CRC32 crc = new CRC32();
+    for (int shift = 56; shift >= 0; shift -= 8)
+      crc.update((int) (timestamp >>> shift));
+    crc.update(payload, offset, length);
+    return (int) crc.getValue();
+  }
+}
+// End of LogSegment class
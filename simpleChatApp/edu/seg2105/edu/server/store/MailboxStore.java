@@ -0,0 +1,852 @@
+package edu.seg2105.edu.server.store;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+import edu.seg2105.edu.server.log.ServerLog;
+import ocsf.common.BinaryChatCodec;
+import ocsf.common.ChatEvent;
+import ocsf.common.MessageCodec;
+
+/**
+ * This class keeps the messages sent to users while they are logged off,
+ * until they log in again. A user who logged off once is known to the
+ * store: the rooms it was in are remembered, and the messages of those
+ * rooms and the private messages sent to it are kept in its mailbox.
+ * <p>
+ * Every mailbox is a file of the store directory, named after the login ID:
+ * an eight byte header holding the position of the first message not yet
+ * delivered, followed by the messages, each a four byte length and a chat
+ * event encoded with the binary chat codec. Only the positions and counts
+ * of the mailboxes, and who is offline in which room, are kept in memory.
+ * Delivering a message only queues it: a single writer thread appends
+ * everything queued at once, one file write per mailbox. A mailbox holds at
+ * most a configured number of messages; the oldest are dropped first.
+ * <p>
+ * Messages are read back in batches of bounded size and only leave the
+ * mailbox when the batch is committed, so a batch that could not be sent is
+ * delivered again on the next login.
+ * <p>
+ * The store is configured with system properties:
+ * <ul>
+ * <li><code>chat.mailbox.dir</code>, the directory of the mailboxes,
+ * <code>chat-mailbox</code> by default; empty to keep no mailboxes;</li>
+ * <li><code>chat.mailbox.maxMessages</code>, the size of a mailbox,
+ * 100000 messages by default.</li>
+ * </ul>
+ */
+public class MailboxStore implements Closeable {
+  // Class variables *************************************************
+
+  /**
+   * The system property giving the directory of the mailboxes.
+   */
+  final public static String DIRECTORY_PROPERTY = "chat.mailbox.dir";
+
+  /**
+   * The system property giving the number of messages a mailbox holds.
+   */
+  final public static String MAX_MESSAGES_PROPERTY = "chat.mailbox.maxMessages";
+
+  /**
+   * The default number of messages a mailbox holds.
+   */
+  final public static int DEFAULT_MAX_MESSAGES = 100000;
+
+  /**
+   * The extension of mailbox files.
+   */
+  private static final String SUFFIX = ".box";
+
+  /**
+   * The file remembering the rooms of the known users.
+   */
+  private static final String SUBSCRIPTIONS = "subscriptions.properties";
+
+  /**
+   * The length of the header of a mailbox file.
+   */
+  private static final int HEADER_LENGTH = 8;
+
+  /**
+   * The number of deliveries that can wait for the writer before
+   * deliveries are dropped.
+   */
+  private static final int QUEUE_CAPACITY = 4096;
+
+  /**
+   * The largest number of deliveries written between two looks at the
+   * queue.
+   */
+  private static final int MAX_BATCH = 256;
+
+  /**
+   * The codec messages are encoded with.
+   */
+  private static final MessageCodec CODEC = new BinaryChatCodec();
+
+  /**
+   * Queued to have the subscriptions saved.
+   */
+  private static final Delivery SAVE = new Delivery(new String[0], null);
+
+  /**
+   * The last element ever queued, asking the writer to stop.
+   */
+  private static final Delivery STOP = new Delivery(new String[0], null);
+
+  /**
+   * The log of the server.
+   */
+  private static final ServerLog LOG = ServerLog.getDefault();
+
+  // Instance variables **********************************************
+
+  /**
+   * The directory of the mailboxes.
+   */
+  private final File directory;
+
+  /**
+   * The number of messages a mailbox holds.
+   */
+  private final int maxMessages;
+
+  /**
+   * Keeps other servers out of the directory.
+   */
+  private final DirectoryLock directoryLock;
+
+  /**
+   * The mailboxes of the known users, by login ID.
+   */
+  private final ConcurrentHashMap<String, Mailbox> mailboxes =
+      new ConcurrentHashMap<>();
+
+  /**
+   * The known users that are logged off, by room they were in.
+   */
+  private final ConcurrentHashMap<String, Set<String>> offlineByRoom =
+      new ConcurrentHashMap<>();
+
+  /**
+   * The deliveries waiting for the writer.
+   */
+  private final BlockingQueue<Delivery> queue =
+      new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+
+  /**
+   * The number of deliveries ever queued.
+   */
+  private final AtomicLong queued = new AtomicLong();
+
+  /**
+   * The number of deliveries dropped because the queue was full.
+   */
+  private final AtomicLong dropped = new AtomicLong();
+
+  /**
+   * Whether the subscriptions changed since the writer last saved them.
+   */
+  private volatile boolean saveRequested;
+
+  /**
+   * The number of deliveries ever written. Only the writer changes it.
+   */
+  private volatile long written;
+
+  /**
+   * Orders queueing with closing, so nothing is queued after
+   * <code>STOP</code>.
+   */
+  private final Object queueLock = new Object();
+
+  /**
+   * Whether the store was closed. Guarded by <code>queueLock</code>.
+   */
+  private boolean closed;
+
+  /**
+   * The thread writing the queued deliveries.
+   */
+  private final Thread writer;
+
+  // Constructors ****************************************************
+
+  /**
+   * Opens the mailboxes of a directory, creating it if needed, and starts
+   * the writer.
+   *
+   * @param directory   The directory of the mailboxes.
+   * @param maxMessages The number of messages a mailbox holds.
+   * @throws IOException if the directory or a mailbox cannot be read, or
+   *                     another server uses the directory.
+   */
+  public MailboxStore(File directory, int maxMessages) throws IOException {
+    if (maxMessages <= 0)
+      throw new IllegalArgumentException("mailbox of " + maxMessages + " messages");
+
+    this.directory = directory;
+    this.maxMessages = maxMessages;
+    if (!directory.isDirectory() && !directory.mkdirs())
+      throw new IOException("cannot create mailbox directory " + directory);
+
+    directoryLock = DirectoryLock.acquire(directory);
+    try {
+      load();
+    } catch (IOException | RuntimeException e) {
+      directoryLock.release();
+      throw e;
+    }
+
+    writer = new Thread(this::writeDeliveries, "mailbox-writer " + directory);
+    writer.setDaemon(true);
+    writer.start();
+  }
+
+  // Class methods ***************************************************
+
+  /**
+   * Opens the store configured by the system properties.
+   *
+   * @return The store, or null if the properties ask for none.
+   * @throws IOException if the store cannot be opened.
+   */
+  public static MailboxStore fromSystemProperties() throws IOException {
+    String directory = System.getProperty(DIRECTORY_PROPERTY, "chat-mailbox");
+    if (directory.trim().isEmpty())
+      return null;
+
+    return new MailboxStore(new File(directory.trim()),
+        Integer.getInteger(MAX_MESSAGES_PROPERTY, DEFAULT_MAX_MESSAGES));
+  }
+
+  // Instance methods ************************************************
+
+  /**
+   * Records that a user logged off: its messages are kept from now on.
+   *
+   * @param loginId The login ID of the user.
+   * @param rooms   The rooms the user was in.
+   */
+  public void logout(String loginId, Set<String> rooms) {
+    Mailbox box = mailboxes.computeIfAbsent(loginId, this::newMailbox);
+    synchronized (box) {
+      box.rooms = new TreeSet<>(rooms);
+      box.online = false;
+      for (String room : box.rooms)
+        offlineByRoom.computeIfAbsent(room, name -> ConcurrentHashMap.newKeySet())
+            .add(loginId);
+    }
+    // If the queue is full, the busy writer saves after its batch anyway
+    saveRequested = true;
+    enqueue(SAVE);
+  }
+
+  /**
+   * Records that a user logged in: its messages are no longer kept, and
+   * those already kept can be read.
+   *
+   * @param loginId The login ID of the user.
+   * @return The rooms the user was in when it logged off, none if it is not
+   *         known.
+   */
+  public Set<String> login(String loginId) {
+    Mailbox box = mailboxes.get(loginId);
+    if (box == null)
+      return Collections.emptySet();
+
+    synchronized (box) {
+      box.online = true;
+      for (String room : box.rooms) {
+        offlineByRoom.computeIfPresent(room, (name, users) -> {
+          users.remove(loginId);
+          return users.isEmpty() ? null : users;
+        });
+      }
+      return Collections.unmodifiableSet(box.rooms);
+    }
+  }
+
+  /**
+   * Keeps a private message for a user that is logged off.
+   *
+   * @param loginId The login ID of the recipient.
+   * @param event   The message.
+   * @return false if the recipient is not a known user that is logged off,
+   *         or if the message was dropped because the writer is too far
+   *         behind.
+   */
+  public boolean deliver(String loginId, ChatEvent event) {
+    Mailbox box = mailboxes.get(loginId);
+    if (box == null || box.online)
+      return false;
+
+    if (enqueue(new Delivery(new String[] { loginId }, encode(event))))
+      return true;
+    dropped.incrementAndGet();
+    return false;
+  }
+
+  /**
+   * Keeps a room message for the users that were in the room when they
+   * logged off, unless the writer is too far behind.
+   *
+   * @param room  The room.
+   * @param event The message.
+   */
+  public void deliverToRoom(String room, ChatEvent event) {
+    Set<String> users = offlineByRoom.get(room);
+    if (users == null || users.isEmpty())
+      return;
+
+    String[] recipients = users.toArray(new String[0]);
+    if (recipients.length > 0 && !enqueue(new Delivery(recipients, encode(event))))
+      dropped.incrementAndGet();
+  }
+
+  /**
+   * @param room A room.
+   * @return true if messages of the room are kept for some user.
+   */
+  public boolean isKeptFor(String room) {
+    return offlineByRoom.containsKey(room);
+  }
+
+  /**
+   * @return The rooms whose messages are kept for some user.
+   */
+  public Set<String> getKeptRooms() {
+    return Collections.unmodifiableSet(offlineByRoom.keySet());
+  }
+
+  /**
+   * @param loginId A login ID.
+   * @return The number of messages waiting in the mailbox of the user,
+   *         as far as they are written.
+   */
+  public int getPending(String loginId) {
+    Mailbox box = mailboxes.get(loginId);
+    if (box == null)
+      return 0;
+    synchronized (box) {
+      return box.pending;
+    }
+  }
+
+  /**
+   * Returns a mark of the deliveries queued so far, for
+   * <code>isWritten</code>.
+   *
+   * @return The number of deliveries ever queued.
+   */
+  public long getQueuedCount() {
+    return queued.get();
+  }
+
+  /**
+   * @return The number of deliveries dropped because the writer was too
+   *         far behind.
+   */
+  public long getDroppedCount() {
+    return dropped.get();
+  }
+
+  /**
+   * Tells whether the deliveries queued before a mark are in their
+   * mailboxes.
+   *
+   * @param mark A value returned by <code>getQueuedCount</code>.
+   * @return true if they are all written.
+   */
+  public boolean isWritten(long mark) {
+    return written >= mark;
+  }
+
+  /**
+   * Reads the oldest messages of a mailbox, without removing them.
+   *
+   * @param loginId     The login ID of the user.
+   * @param maxMessages The largest number of messages to read.
+   * @param maxBytes    The largest number of bytes to read, unless the
+   *                    first message alone is longer.
+   * @return The messages; to be committed once delivered.
+   * @throws IOException if the mailbox cannot be read.
+   */
+  public Batch read(String loginId, int maxMessages, int maxBytes)
+      throws IOException {
+    Mailbox box = mailboxes.get(loginId);
+    if (box == null)
+      return new Batch(box, Collections.emptyList(), new long[0], 0);
+
+    synchronized (box) {
+      if (box.pending == 0)
+        return new Batch(box, Collections.emptyList(), new long[0], box.readPosition);
+
+      try (FileChannel channel = FileChannel.open(box.file.toPath(),
+          StandardOpenOption.READ)) {
+        long position = box.readPosition;
+        ByteBuffer length = ByteBuffer.allocate(4);
+        readFully(channel, length, position);
+
+        int size = (int) Math.min(box.writePosition - position,
+            Math.max(maxBytes, 4L + length.getInt(0)));
+        ByteBuffer bytes = ByteBuffer.allocate(size);
+        readFully(channel, bytes, position);
+        bytes.flip();
+
+        List<ChatEvent> events = new ArrayList<>();
+        long[] starts = new long[Math.min(maxMessages, 64)];
+        while (events.size() < maxMessages && bytes.remaining() >= 4
+            && bytes.remaining() >= 4 + bytes.getInt(bytes.position())) {
+          if (events.size() == starts.length)
+            starts = Arrays.copyOf(starts, 2 * starts.length);
+          starts[events.size()] = position + bytes.position();
+          byte[] payload = new byte[bytes.getInt()];
+          bytes.get(payload);
+          events.add(decode(payload));
+        }
+        return new Batch(box, events, starts, position + bytes.position());
+      }
+    }
+  }
+
+  /**
+   * Removes messages read with <code>read</code> from their mailbox, once
+   * they are delivered.
+   *
+   * @param batch The messages.
+   * @throws IOException if the mailbox cannot be updated.
+   */
+  public void commit(Batch batch) throws IOException {
+    Mailbox box = batch.box;
+    if (box == null || batch.isEmpty())
+      return;
+
+    synchronized (box) {
+      if (batch.end <= box.readPosition)
+        return; // Dropped meanwhile to make room
+
+      // Only the messages not dropped meanwhile are still counted
+      int removed = 0;
+      for (int i = 0; i < batch.events.size(); i++) {
+        if (batch.starts[i] >= box.readPosition)
+          removed++;
+      }
+      box.readPosition = batch.end;
+      box.pending = Math.max(0, box.pending - removed);
+      if (box.readPosition >= box.writePosition) {
+        // Empty: start the file again rather than let it grow
+        Files.deleteIfExists(box.file.toPath());
+        box.readPosition = box.writePosition = 0;
+        box.pending = 0;
+      } else {
+        try (FileChannel channel = FileChannel.open(box.file.toPath(),
+            StandardOpenOption.WRITE)) {
+          writeHeader(channel, box.readPosition);
+        }
+      }
+    }
+  }
+
+  /**
+   * Writes the deliveries already queued, saves the subscriptions and
+   * stops the writer. Delivering afterwards fails.
+   */
+  public void close() {
+    synchronized (queueLock) {
+      if (closed)
+        return;
+      closed = true;
+      put(STOP);
+    }
+
+    boolean interrupted = false;
+    while (writer.isAlive()) {
+      try {
+        writer.join();
+      } catch (InterruptedException e) {
+        interrupted = true;
+      }
+    }
+    if (interrupted)
+      Thread.currentThread().interrupt();
+    directoryLock.release();
+  }
+
+  /**
+   * Loads the subscriptions, then the positions and counts of every
+   * mailbox, cutting a message written in part by a crash.
+   */
+  private void load() throws IOException {
+    File subscriptions = new File(directory, SUBSCRIPTIONS);
+    if (subscriptions.isFile()) {
+      Properties rooms = new Properties();
+      try (Reader in = new InputStreamReader(new FileInputStream(subscriptions),
+          StandardCharsets.UTF_8)) {
+        rooms.load(in);
+      }
+      for (String loginId : rooms.stringPropertyNames()) {
+        Set<String> joined = new TreeSet<>(Arrays.asList(
+            rooms.getProperty(loginId).trim().split("\\s+")));
+        joined.remove("");
+        mailboxes.computeIfAbsent(loginId, this::newMailbox).rooms = joined;
+      }
+    }
+
+    File[] files = directory.listFiles((dir, name) -> name.endsWith(SUFFIX));
+    if (files == null)
+      throw new IOException("cannot list mailbox directory " + directory);
+    for (File file : files) {
+      String loginId = loginIdOf(file.getName());
+      if (loginId != null)
+        recover(mailboxes.computeIfAbsent(loginId, this::newMailbox));
+    }
+
+    for (Mailbox box : mailboxes.values()) {
+      for (String room : box.rooms)
+        offlineByRoom.computeIfAbsent(room, name -> ConcurrentHashMap.newKeySet())
+            .add(box.loginId);
+    }
+  }
+
+  /**
+   * Counts the messages of a mailbox file and cuts a message written in
+   * part.
+   */
+  private void recover(Mailbox box) throws IOException {
+    long position;
+    int pending = 0;
+
+    try (FileChannel channel = FileChannel.open(box.file.toPath(),
+        StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+      long size = channel.size();
+      long start = size < HEADER_LENGTH ? HEADER_LENGTH : readHeader(channel);
+      if (start < HEADER_LENGTH || start > size)
+        start = HEADER_LENGTH;
+
+      ByteBuffer length = ByteBuffer.allocate(4);
+      for (position = start; position + 4 <= size; pending++) {
+        length.clear();
+        readFully(channel, length, position);
+        if (length.getInt(0) <= 0 || position + 4 + length.getInt(0) > size)
+          break;
+        position += 4 + length.getInt(0);
+      }
+      if (position < size && pending > 0)
+        channel.truncate(position);
+
+      box.readPosition = start;
+      box.writePosition = position;
+      box.pending = pending;
+    }
+
+    if (pending == 0) {
+      Files.delete(box.file.toPath());
+      box.readPosition = box.writePosition = 0;
+    }
+  }
+
+  /**
+   * Queues a delivery, unless the writer is too far behind.
+   *
+   * @return false if the queue is full.
+   * @throws IllegalStateException if the store is closed.
+   */
+  private boolean enqueue(Delivery delivery) {
+    synchronized (queueLock) {
+      if (closed)
+        throw new IllegalStateException("mailbox store is closed");
+      if (!queue.offer(delivery))
+        return false;
+      queued.incrementAndGet();
+      return true;
+    }
+  }
+
+  /**
+   * Queues <code>STOP</code>, waiting for room if needed.
+   */
+  private void put(Delivery delivery) {
+    boolean interrupted = false;
+    while (true) {
+      try {
+        queue.put(delivery);
+        queued.incrementAndGet();
+        break;
+      } catch (InterruptedException e) {
+        interrupted = true;
+      }
+    }
+    if (interrupted)
+      Thread.currentThread().interrupt();
+  }
+
+  /**
+   * The body of the writer thread: takes whatever is queued and appends it
+   * to the mailboxes, one write per mailbox, until <code>STOP</code>.
+   */
+  private void writeDeliveries() {
+    List<Delivery> batch = new ArrayList<>(MAX_BATCH);
+    boolean stopping = false;
+
+    while (!stopping) {
+      try {
+        batch.add(queue.take());
+        queue.drainTo(batch, MAX_BATCH - 1);
+      } catch (InterruptedException e) {
+        continue; // Only close stops the writer
+      }
+
+      boolean save = false;
+      Map<Mailbox, List<byte[]>> byMailbox = new LinkedHashMap<>();
+      for (Delivery delivery : batch) {
+        if (delivery == STOP)
+          stopping = save = true;
+        else if (delivery == SAVE)
+          save = true;
+
+        for (String loginId : delivery.recipients) {
+          Mailbox box = mailboxes.get(loginId);
+          if (box != null)
+            byMailbox.computeIfAbsent(box, key -> new ArrayList<>()).add(delivery.payload);
+        }
+      }
+
+      byMailbox.forEach(this::append);
+      if (save || saveRequested) {
+        saveRequested = false;
+        saveSubscriptions();
+      }
+      written += batch.size();
+      batch.clear();
+    }
+  }
+
+  /**
+   * Appends messages to a mailbox, dropping the oldest if it is full.
+   */
+  private void append(Mailbox box, List<byte[]> payloads) {
+    ByteBuffer[] buffers = new ByteBuffer[payloads.size() * 2];
+    for (int i = 0; i < payloads.size(); i++) {
+      buffers[2 * i] = ByteBuffer.allocate(4).putInt(0, payloads.get(i).length);
+      buffers[2 * i + 1] = ByteBuffer.wrap(payloads.get(i));
+    }
+
+    synchronized (box) {
+      try (FileChannel channel = FileChannel.open(box.file.toPath(),
+          StandardOpenOption.CREATE, StandardOpenOption.READ,
+          StandardOpenOption.WRITE)) {
+        if (box.writePosition == 0) {
+          box.readPosition = box.writePosition = HEADER_LENGTH;
+          writeHeader(channel, HEADER_LENGTH);
+        }
+
+        channel.position(box.writePosition);
+        long length = 0;
+        for (ByteBuffer buffer : buffers)
+          length += buffer.remaining();
+        for (long left = length; left > 0;)
+          left -= channel.write(buffers);
+
+        box.writePosition += length;
+        box.pending += payloads.size();
+        if (box.pending > maxMessages)
+          dropOldest(channel, box);
+      } catch (IOException e) {
+        LOG.error("ERROR - Could not keep messages for {}: {}", box.loginId, e);
+      }
+    }
+  }
+
+  /**
+   * Moves the start of a full mailbox past its oldest messages.
+   */
+  private void dropOldest(FileChannel channel, Mailbox box) throws IOException {
+    ByteBuffer length = ByteBuffer.allocate(4);
+    while (box.pending > maxMessages) {
+      length.clear();
+      readFully(channel, length, box.readPosition);
+      box.readPosition += 4 + length.getInt(0);
+      box.pending--;
+    }
+    writeHeader(channel, box.readPosition);
+  }
+
+  /**
+   * Writes the rooms of every known user, replacing the file at once.
+   */
+  private void saveSubscriptions() {
+    Properties rooms = new Properties();
+    for (Mailbox box : mailboxes.values()) {
+      synchronized (box) {
+        rooms.setProperty(box.loginId, String.join(" ", box.rooms));
+      }
+    }
+
+    File target = new File(directory, SUBSCRIPTIONS);
+    File temporary = new File(directory, SUBSCRIPTIONS + ".tmp");
+    try {
+      try (Writer out = new OutputStreamWriter(new FileOutputStream(temporary),
+          StandardCharsets.UTF_8)) {
+        rooms.store(out, "Rooms of the users that logged off");
+      }
+      Files.move(temporary.toPath(), target.toPath(),
+          StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException e) {
+      LOG.error("ERROR - Could not save the mailbox subscriptions: {}", e);
+    }
+  }
+
+  private Mailbox newMailbox(String loginId) {
+    return new Mailbox(loginId, new File(directory, fileName(loginId)));
+  }
+
+  /**
+   * @return The name of the file of a mailbox: the login ID in hexadecimal,
+   *         since it may hold any character.
+   */
+  private static String fileName(String loginId) {
+    StringBuilder name = new StringBuilder();
+    for (byte b : loginId.getBytes(StandardCharsets.UTF_8))
+      name.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+    return name.append(SUFFIX).toString();
+  }
+
+  /**
+   * @return The login ID of a mailbox file, or null if the name is not one.
+   */
+  private static String loginIdOf(String fileName) {
+    String hex = fileName.substring(0, fileName.length() - SUFFIX.length());
+    if (hex.isEmpty() || hex.length() % 2 != 0)
+      return null;
+
+    byte[] bytes = new byte[hex.length() / 2];
+    for (int i = 0; i < bytes.length; i++) {
+      int high = Character.digit(hex.charAt(2 * i), 16);
+      int low = Character.digit(hex.charAt(2 * i + 1), 16);
+      if (high < 0 || low < 0)
+        return null;
+      bytes[i] = (byte) (high << 4 | low);
+    }
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  private static byte[] encode(ChatEvent event) {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+    try {
+      CODEC.encode(event, bytes);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e); // Cannot happen with a byte array
+    }
+    return bytes.toByteArray();
+  }
+
+  private static ChatEvent decode(byte[] payload) throws IOException {
+    try {
+      Object event = CODEC.decode(payload, 0, payload.length);
+      if (event instanceof ChatEvent)
+        return (ChatEvent) event;
+    } catch (ClassNotFoundException e) {
+    }
+    throw new StreamCorruptedException("mailbox message is not a chat event");
+  }
+
+  private static long readHeader(FileChannel channel) throws IOException {
+    ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+    readFully(channel, header, 0);
+    return header.getLong(0);
+  }
+
+  private static void writeHeader(FileChannel channel, long readPosition)
+      throws IOException {
+    ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH).putLong(0, readPosition);
+    while (header.hasRemaining())
+      channel.write(header, header.position());
+  }
+
+  private static void readFully(FileChannel channel, ByteBuffer buffer,
+      long position) throws IOException {
+    while (buffer.hasRemaining()) {
+      if (channel.read(buffer, position + buffer.position()) < 0)
+        throw new EOFException("mailbox ends early");
+    }
+  }
+
+  // Inner classes ***************************************************
+
+  /**
+   * The messages read from a mailbox by <code>read</code>.
+   */
+  public static final class Batch {
+    private final Mailbox box;
+    private final List<ChatEvent> events;
+    private final long[] starts;
+    private final long end;
+
+    private Batch(Mailbox box, List<ChatEvent> events, long[] starts, long end) {
+      this.box = box;
+      this.events = events;
+      this.starts = starts;
+      this.end = end;
+    }
+
+    /**
+     * @return The messages, oldest first.
+     */
+    public List<ChatEvent> getEvents() {
+      return events;
+    }
+
+    /**
+     * @return true if the mailbox was empty.
+     */
+    public boolean isEmpty() {
+      return events.isEmpty();
+    }
+  }
+
+  /**
+   * What is kept in memory of the mailbox of a known user. Guarded by its
+   * own lock.
+   */
+  private static final class Mailbox {
+    final String loginId;
+    final File file;
+    Set<String> rooms = Collections.emptySet();
+    volatile boolean online;
+
+    // The first message not delivered and the end of the file, 0 when
+    // there is no file
+    long readPosition;
+    long writePosition;
+    int pending;
+
+    Mailbox(String loginId, File file) {
+      this.loginId = loginId;
+      this.file = file;
+    }
+  }
+
+  /**
+   * A message for one or more mailboxes.
+   */
+  private static final class Delivery {
+    final String[] recipients;
+    final byte[] payload;
+
+    Delivery(String[] recipients, byte[] payload) {
+      this.recipients = recipients;
+      this.payload = payload;
+    }
+  }
+}
+// End of MailboxStore class
@@ -0,0 +1,527 @@
+package edu.seg2105.edu.server.store;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class is a durable, append-only log of records, such as the chat
+ * messages of a server. Every record gets an offset, its position in the
+ * log counted from the first record ever appended.
+ * <p>
+ * The log is a directory of segments: files of a fixed size, mapped in
+ * memory, filled one after the other. Appending only queues the record; a
+ * single writer thread takes everything queued at once, copies it into the
+ * mapped segment and forces the segment to the disk as often as the
+ * <code>FsyncPolicy</code> requires, so the cost of a disk flush is shared
+ * by the whole batch and the thread appending never waits for the disk.
+ * The future returned by <code>append</code> completes with the offset of
+ * the record once the policy considers it written.
+ * <p>
+ * Records are found by offset or by time through the sparse index of each
+ * segment, and read in chunks of a bounded number of records, so a reader
+ * never holds more of the log than it asked for.
+ * <p>
+ * When the log is opened again, the segments are read back and a record
+ * cut by a crash is dropped with everything after it.
+ */
+public class MessageLog implements Closeable {
+  // Class variables *************************************************
+
+  /**
+   * The default size of a segment file, in bytes.
+   */
+  final public static int DEFAULT_SEGMENT_BYTES = 64 * 1024 * 1024;
+
+  /**
+   * The default interval between two disk flushes of the
+   * <code>PERIODIC</code> policy, in milliseconds.
+   */
+  final public static long DEFAULT_FSYNC_INTERVAL = 1000;
+
+  /**
+   * The largest number of records written between two looks at the queue.
+   */
+  private static final int MAX_BATCH = 512;
+
+  /**
+   * The number of records that can wait for the writer before appending
+   * fails.
+   */
+  private static final int QUEUE_CAPACITY = 16 * 1024;
+
+  /**
+   * The last element ever queued, asking the writer to stop.
+   */
+  private static final Append STOP = new Append(0, new byte[0]);
+
+  // Instance variables **********************************************
+
+  /**
+   * The directory holding the segments.
+   */
+  private final File directory;
+
+  /**
+   * The size of a new segment file, in bytes.
+   */
+  private final int segmentBytes;
+
+  /**
+   * When records are forced to the disk.
+   */
+  private final FsyncPolicy fsyncPolicy;
+
+  /**
+   * The interval between two disk flushes of the <code>PERIODIC</code>
+   * policy, in milliseconds.
+   */
+  private final long fsyncInterval;
+
+  /**
+   * Keeps other servers out of the directory.
+   */
+  private DirectoryLock directoryLock;
+
+  /**
+   * The segments, oldest first. Only the writer adds to it.
+   */
+  private final List<LogSegment> segments = new CopyOnWriteArrayList<>();
+
+  /**
+   * The records waiting for the writer.
+   */
+  private final BlockingQueue<Append> queue =
+      new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+
+  /**
+   * The number of records that failed because the queue was full.
+   */
+  private final AtomicLong dropped = new AtomicLong();
+
+  /**
+   * Orders appending with closing, so nothing is queued after
+   * <code>STOP</code>.
+   */
+  private final Object appendLock = new Object();
+
+  /**
+   * Whether the log was closed. Guarded by <code>appendLock</code>.
+   */
+  private boolean closed;
+
+  /**
+   * The thread writing the queued records.
+   */
+  private final Thread writer;
+
+  /**
+   * The segment records are appended to. Only used by the writer once the
+   * log is open.
+   */
+  private LogSegment active;
+
+  /**
+   * Whether records were written since the last disk flush. Only used by
+   * the writer.
+   */
+  private boolean dirty;
+
+  /**
+   * When the disk was last flushed, in milliseconds. Only used by the
+   * writer.
+   */
+  private long lastForce;
+
+  // Constructors ****************************************************
+
+  /**
+   * Opens the log of a directory, creating both if needed, and starts its
+   * writer.
+   *
+   * @param directory     The directory of the log.
+   * @param fsyncPolicy   When records are forced to the disk.
+   * @param fsyncInterval The interval between two disk flushes of the
+   *                      <code>PERIODIC</code> policy, in milliseconds.
+   * @param segmentBytes  The size of a segment file, in bytes. It bounds
+   *                      the size of a record.
+   * @throws IOException if the directory or a segment cannot be opened,
+   *                     the segments do not follow each other, or another
+   *                     server uses the directory.
+   */
+  public MessageLog(File directory, FsyncPolicy fsyncPolicy,
+      long fsyncInterval, int segmentBytes) throws IOException {
+    if (segmentBytes <= LogSegment.HEADER_LENGTH)
+      throw new IllegalArgumentException("segment of " + segmentBytes
+          + " bytes is too small");
+    if (fsyncInterval < 0)
+      throw new IllegalArgumentException("negative fsync interval");
+
+    this.directory = directory;
+    this.fsyncPolicy = fsyncPolicy;
+    this.fsyncInterval = fsyncInterval;
+    this.segmentBytes = segmentBytes;
+
+    openSegments();
+    lastForce = System.currentTimeMillis();
+
+    writer = new Thread(this::writeRecords, "message-log-writer " + directory);
+    writer.setDaemon(true);
+    writer.start();
+  }
+
+  // Instance methods ************************************************
+
+  /**
+   * Queues a record. Never blocks: if the writer is too far behind, the
+   * record is dropped and its future fails.
+   *
+   * @param timestamp When the record happened, in milliseconds since the
+   *                  epoch.
+   * @param payload   The bytes of the record; must not be modified until
+   *                  the future completes.
+   * @return A future completed with the offset of the record when it is
+   *         written, as defined by the fsync policy, or with the
+   *         <code>IOException</code> that prevented it, including a full
+   *         queue.
+   * @throws IllegalArgumentException if the payload is empty or larger than
+   *                                  a segment.
+   * @throws IllegalStateException    if the log is closed.
+   */
+  public CompletableFuture<Long> append(long timestamp, byte[] payload) {
+    if (payload.length == 0
+        || payload.length > segmentBytes - LogSegment.HEADER_LENGTH)
+      throw new IllegalArgumentException("record of " + payload.length
+          + " bytes cannot be logged");
+
+    Append append = new Append(timestamp, payload);
+    synchronized (appendLock) {
+      if (closed)
+        throw new IllegalStateException("message log is closed");
+      if (!queue.offer(append)) {
+        dropped.incrementAndGet();
+        append.done.completeExceptionally(
+            new IOException("message log is full, record dropped"));
+      }
+    }
+    return append.done;
+  }
+
+  /**
+   * Reads records that were written.
+   *
+   * @param fromOffset The offset of the first record to read. Reading
+   *                   starts at the oldest record if it is older.
+   * @param max        The largest number of records to read.
+   * @return The records, in offset order.
+   */
+  public List<LogRecord> read(long fromOffset, int max) {
+    List<LogRecord> records = new ArrayList<>(Math.min(max, 1024));
+    List<LogSegment> all = segments;
+
+    for (int i = segmentOf(fromOffset); i < all.size() && records.size() < max; i++) {
+      long from = Math.max(fromOffset, all.get(i).getBaseOffset());
+      all.get(i).read(from, max - records.size(), records);
+    }
+    return records;
+  }
+
+  /**
+   * Finds the first record written at or after a time.
+   *
+   * @param timestamp The time looked for, in milliseconds since the epoch.
+   * @return The offset of the record, or the next offset if every record
+   *         is older.
+   */
+  public long offsetOf(long timestamp) {
+    List<LogSegment> all = segments;
+
+    // The last segment that starts before the time holds the record, or
+    // it is the first record of the segment after
+    int low = 0, high = all.size() - 1;
+    while (low <= high) {
+      int middle = (low + high) >>> 1;
+      if (all.get(middle).getFirstTimestamp() < timestamp)
+        low = middle + 1;
+      else
+        high = middle - 1;
+    }
+    if (high < 0)
+      return getFirstOffset();
+
+    LogSegment segment = all.get(high);
+    long offset = segment.offsetOf(timestamp);
+    return offset < segment.getNextOffset() || high + 1 >= all.size() ? offset
+        : all.get(high + 1).getBaseOffset();
+  }
+
+  /**
+   * @return The offset of the oldest record of the log.
+   */
+  public long getFirstOffset() {
+    return segments.get(0).getBaseOffset();
+  }
+
+  /**
+   * @return The offset the next record written will have.
+   */
+  public long getNextOffset() {
+    return segments.get(segments.size() - 1).getNextOffset();
+  }
+
+  /**
+   * @return The number of records dropped because the writer was too far
+   *         behind.
+   */
+  public long getDroppedCount() {
+    return dropped.get();
+  }
+
+  /**
+   * @return When records are forced to the disk.
+   */
+  public FsyncPolicy getFsyncPolicy() {
+    return fsyncPolicy;
+  }
+
+  /**
+   * @return The directory of the log.
+   */
+  public File getDirectory() {
+    return directory;
+  }
+
+  /**
+   * Writes the records already queued, forces every segment to the disk
+   * and closes the files. Appending afterwards fails.
+   *
+   * @throws IOException if a segment cannot be closed.
+   */
+  public void close() throws IOException {
+    synchronized (appendLock) {
+      if (closed)
+        return;
+      closed = true;
+      enqueue(STOP);
+    }
+
+    boolean interrupted = false;
+    while (writer.isAlive()) {
+      try {
+        writer.join();
+      } catch (InterruptedException e) {
+        interrupted = true;
+      }
+    }
+    if (interrupted)
+      Thread.currentThread().interrupt();
+
+    IOException failure = null;
+    for (LogSegment segment : segments) {
+      try {
+        segment.close();
+      } catch (IOException | UncheckedIOException e) {
+        if (failure == null)
+          failure = e instanceof IOException ? (IOException) e
+              : ((UncheckedIOException) e).getCause();
+      }
+    }
+    directoryLock.release();
+    if (failure != null)
+      throw failure;
+  }
+
+  /**
+   * Finds the segment holding an offset.
+   *
+   * @return The index of the segment, 0 if the offset is older than the
+   *         log.
+   */
+  private int segmentOf(long offset) {
+    List<LogSegment> all = segments;
+    int low = 0, high = all.size() - 1;
+
+    while (low <= high) {
+      int middle = (low + high) >>> 1;
+      if (all.get(middle).getBaseOffset() <= offset)
+        low = middle + 1;
+      else
+        high = middle - 1;
+    }
+    return Math.max(high, 0);
+  }
+
+  /**
+   * Opens the existing segments in offset order, or the first one of a
+   * new log.
+   */
+  private void openSegments() throws IOException {
+    if (!directory.isDirectory() && !directory.mkdirs())
+      throw new IOException("cannot create log directory " + directory);
+    directoryLock = DirectoryLock.acquire(directory);
+
+    String[] names = directory.list();
+    if (names == null)
+      throw new IOException("cannot list log directory " + directory);
+
+    long[] bases = Arrays.stream(names).mapToLong(LogSegment::parseFileName)
+        .filter(base -> base >= 0).sorted().toArray();
+    try {
+      for (long base : bases) {
+        // Offsets have no gaps, so readers can count records
+        if (!segments.isEmpty() && base != getNextOffset())
+          throw new IOException("segment " + LogSegment.fileName(base)
+              + " does not follow the previous one");
+        segments.add(LogSegment.open(directory, base, segmentBytes));
+      }
+      if (segments.isEmpty())
+        segments.add(LogSegment.open(directory, 0, segmentBytes));
+    } catch (IOException | RuntimeException e) {
+      for (LogSegment segment : segments)
+        segment.close();
+      directoryLock.release();
+      throw e;
+    }
+    active = segments.get(segments.size() - 1);
+  }
+
+  /**
+   * Queues <code>STOP</code>, waiting for room if needed. Called with
+   * <code>appendLock</code> held.
+   */
+  private void enqueue(Append append) {
+    boolean interrupted = false;
+    while (true) {
+      try {
+        queue.put(append);
+        break;
+      } catch (InterruptedException e) {
+        interrupted = true;
+      }
+    }
+    if (interrupted)
+      Thread.currentThread().interrupt();
+  }
+
+  /**
+   * The body of the writer thread: takes whatever is queued, writes it and
+   * forces it, until <code>STOP</code> is taken.
+   */
+  private void writeRecords() {
+    List<Append> batch = new ArrayList<>(MAX_BATCH);
+    boolean stopping = false;
+
+    while (!stopping) {
+      try {
+        Append first;
+        if (dirty && fsyncPolicy == FsyncPolicy.PERIODIC)
+          first = queue.poll(Math.max(0,
+              lastForce + fsyncInterval - System.currentTimeMillis()),
+              TimeUnit.MILLISECONDS);
+        else
+          first = queue.take();
+
+        if (first != null) {
+          batch.add(first);
+          queue.drainTo(batch, MAX_BATCH - 1);
+        }
+      } catch (InterruptedException e) {
+        continue; // Only close stops the writer
+      }
+
+      if (!batch.isEmpty() && batch.get(batch.size() - 1) == STOP) {
+        batch.remove(batch.size() - 1);
+        stopping = true;
+      }
+      writeBatch(batch);
+      batch.clear();
+    }
+  }
+
+  /**
+   * Writes a batch of records, forces them as the policy requires and
+   * completes their futures.
+   */
+  private void writeBatch(List<Append> batch) {
+    for (Append append : batch) {
+      try {
+        if (!active.append(append.timestamp, append.payload)) {
+          roll();
+          active.append(append.timestamp, append.payload);
+        }
+        append.offset = active.getNextOffset() - 1;
+        dirty = true;
+
+        if (fsyncPolicy == FsyncPolicy.PER_MESSAGE)
+          force();
+      } catch (IOException | UncheckedIOException e) {
+        append.failure = e;
+      }
+    }
+
+    try {
+      if (dirty && (fsyncPolicy == FsyncPolicy.GROUPED
+          || System.currentTimeMillis() - lastForce >= fsyncInterval))
+        force();
+    } catch (UncheckedIOException e) {
+      for (Append append : batch) {
+        if (append.failure == null)
+          append.failure = e;
+      }
+    }
+
+    for (Append append : batch) {
+      if (append.failure == null) {
+        append.done.complete(append.offset);
+      } else {
+        append.done.completeExceptionally(
+            append.failure instanceof UncheckedIOException
+                ? append.failure.getCause() : append.failure);
+      }
+    }
+  }
+
+  /**
+   * Seals the full segment, forcing it to the disk, and starts the next
+   * one.
+   */
+  private void roll() throws IOException {
+    active.force();
+    active = LogSegment.open(directory, active.getNextOffset(), segmentBytes);
+    segments.add(active);
+  }
+
+  /**
+   * Forces the active segment to the disk.
+   */
+  private void force() {
+    active.force();
+    dirty = false;
+    lastForce = System.currentTimeMillis();
+  }
+
+  // Inner classes ***************************************************
+
+  /**
+   * A record waiting for the writer, and the future of its caller.
+   */
+  private static final class Append {
+    final long timestamp;
+    final byte[] payload;
+    final CompletableFuture<Long> done = new CompletableFuture<>();
+
+    // Set by the writer
+    long offset;
+    Exception failure;
+
+    Append(long timestamp, byte[] payload) {
+      this.timestamp = timestamp;
+      this.payload = payload;
+    }
+  }
+}
+// End of MessageLog class
@@ -1,17 +1,24 @@
 package edu.seg2105.edu.server.ui;
 
 import edu.seg2105.edu.server.backend.EchoServer;
+import edu.seg2105.edu.server.log.ServerLog;
 import edu.seg2105.client.common.ChatIF;
 
 import java.io.IOException;
 import java.util.Scanner;
 
+import ocsf.server.ServerMetrics;
+
 public class ServerConsole implements ChatIF {
 
     // Declare class variables
     private EchoServer server;
     private Scanner scanner;
 
+    // The counters at the last #stats, rates are given since then
+    private long[] lastCounts = new long[6];
+    private long lastStatsTime = System.nanoTime();
+
     // Constructor
     public ServerConsole(EchoServer server) {
         this.server = server;
@@ -100,12 +107,37 @@ public class ServerConsole implements ChatIF {
         } else if (command.startsWith("#getport")) {
             display("Current server port: " + server.getPort());
 
+            // Handle stats command
+        } else if (command.startsWith("#stats")) {
+            displayStats();
+
         } else {
             display("Invalid command: " + command);
         }
 
     }
 
+    // Shows the counters of the server and their rates since the last #stats
+    private void displayStats() {
+        ServerMetrics metrics = server.getMetrics();
+        long[] counts = { metrics.getConnects(), metrics.getDisconnects(),
+                metrics.getMessagesIn(), metrics.getMessagesOut(),
+                metrics.getBytesIn(), metrics.getBytesOut() };
+        long now = System.nanoTime();
+        double seconds = Math.max((now - lastStatsTime) / 1e9, 1e-3);
+
+        display(metrics.toString());
+        display(String.format("Per second over the last %.1f s: %.1f connects, %.1f disconnects,"
+                + " %.1f messages in, %.1f out, %.0f bytes in, %.0f out",
+                seconds, (counts[0] - lastCounts[0]) / seconds, (counts[1] - lastCounts[1]) / seconds,
+                (counts[2] - lastCounts[2]) / seconds, (counts[3] - lastCounts[3]) / seconds,
+                (counts[4] - lastCounts[4]) / seconds, (counts[5] - lastCounts[5]) / seconds));
+        display(ServerLog.getDefault().toString());
+
+        lastCounts = counts;
+        lastStatsTime = now;
+    }
+
     // Implemented ChatIF method
     @Override
     public void display(String message) {